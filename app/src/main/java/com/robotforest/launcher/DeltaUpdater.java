@@ -0,0 +1,295 @@
+package com.robotforest.launcher;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Brings an installed runtime tree to the state described by a manifest's per-file index by
+ * fetching only new or changed files as content-addressed blobs ({@code blob_base + sha256})
+ * and deleting files that are no longer listed.
+ *
+ * The index that produced the installed tree is kept next to it as {@link #INDEX_NAME}; with
+ * it, a diff costs one stat per file. Without it (first update after an older install) files of
+ * matching size are hashed instead, which is still far cheaper than re-downloading them.
+ */
+final class DeltaUpdater {
+    static final String INDEX_NAME = ".files.json";
+    private static final String TMP_NAME = ".delta-tmp";
+    private static final int FETCH_THREADS = 4;
+    /** Blobs at least this big go through Downloads.downloadTo (may be segmented); smaller ones skip the probe. */
+    private static final long LARGE_BLOB = 16L * 1024 * 1024;
+
+    /** What an update has to do. */
+    static final class Plan {
+        final List<RuntimeManifest.FileEntry> wanted;
+        final List<RuntimeManifest.FileEntry> fetch = new ArrayList<>();
+        final List<RuntimeManifest.FileEntry> chmod = new ArrayList<>();
+        final List<String> delete = new ArrayList<>();
+        long fetchBytes;
+        int unchanged;
+
+        Plan(List<RuntimeManifest.FileEntry> wanted) { this.wanted = wanted; }
+
+        boolean isEmpty() { return fetch.isEmpty() && chmod.isEmpty() && delete.isEmpty(); }
+
+        @Override public String toString() {
+            return "fetch " + fetch.size() + " (" + fetchBytes + " bytes), delete " + delete.size()
+                    + ", chmod " + chmod.size() + ", unchanged " + unchanged;
+        }
+    }
+
+    private DeltaUpdater() {}
+
+    /** Inline index if the manifest has one, otherwise the one at {@code files_url}. */
+    static List<RuntimeManifest.FileEntry> resolveIndex(RuntimeManifest m) throws Exception {
+        if (m.files != null) return m.files;
+        if (m.filesUrl.isEmpty()) return null;
+        return RuntimeManifest.parseFiles(new JSONArray(Downloads.getText(m.filesUrl, 15000, 30000)));
+    }
+
+    /** Diffs, fetches and applies; returns the executed plan. The tree is left untouched on failure before apply. */
+    static Plan update(RuntimeManifest m, File installDir, ProgressLog log) throws Exception {
+        if (!m.supportsDelta()) throw new IllegalArgumentException("manifest has no file index / blob_base");
+        List<RuntimeManifest.FileEntry> wanted = resolveIndex(m);
+        Plan plan = diff(wanted, installDir);
+        if (log != null) log.log("[delta] " + plan);
+        File tmp = new File(installDir, TMP_NAME);
+        try {
+            Map<String, File> blobs = fetchBlobs(plan.fetch, m.blobBase, tmp, log);
+            apply(plan, installDir, blobs);
+            writeIndex(installDir, wanted);
+        } finally {
+            deleteRec(tmp);
+        }
+        return plan;
+    }
+
+    /** Re-fetches {@code entries} from {@code blobBase} and replaces them in place (one rename each). */
+    static void repair(File installDir, String blobBase, List<RuntimeManifest.FileEntry> entries,
+                       ProgressLog log) throws Exception {
+        Plan plan = new Plan(entries);
+        plan.fetch.addAll(entries);
+        File tmp = new File(installDir, TMP_NAME);
+        try {
+            apply(plan, installDir, fetchBlobs(entries, blobBase, tmp, log));
+        } finally {
+            deleteRec(tmp);
+        }
+    }
+
+    static Plan diff(List<RuntimeManifest.FileEntry> wanted, File installDir) throws IOException {
+        Map<String, RuntimeManifest.FileEntry> have = readIndex(installDir);
+        Plan plan = new Plan(wanted);
+        Set<String> keep = new HashSet<>();
+        for (RuntimeManifest.FileEntry e : wanted) {
+            keep.add(e.path);
+            File f = resolve(installDir, e.path);
+            RuntimeManifest.FileEntry old = have != null ? have.get(e.path) : null;
+            boolean same;
+            if (!f.isFile() || f.length() != e.size) {
+                same = false;
+            } else if (have != null) {
+                same = old != null && old.sha256.equals(e.sha256);
+            } else {
+                same = Hashes.sha256File(f).equals(e.sha256);
+            }
+            if (!same) {
+                plan.fetch.add(e);
+                plan.fetchBytes += e.size;
+            } else {
+                plan.unchanged++;
+                if (old == null || old.mode != e.mode) plan.chmod.add(e);
+            }
+        }
+        if (have != null) {
+            for (String p : have.keySet()) if (!keep.contains(p)) plan.delete.add(p);
+        } else {
+            collectStray(installDir, "", keep, plan.delete);
+        }
+        return plan;
+    }
+
+    /** Downloads each distinct blob once into {@code tmp}, verifying its digest; returns sha256 -> file. */
+    private static Map<String, File> fetchBlobs(List<RuntimeManifest.FileEntry> entries, String blobBase,
+                                                File tmp, ProgressLog log) throws Exception {
+        Map<String, RuntimeManifest.FileEntry> distinct = new LinkedHashMap<>();
+        for (RuntimeManifest.FileEntry e : entries) distinct.put(e.sha256, e);
+        Map<String, File> out = new ConcurrentHashMap<>();
+        if (distinct.isEmpty()) return out;
+        if (!tmp.isDirectory() && !tmp.mkdirs()) throw new IOException("mkdirs failed: " + tmp);
+
+        String base = blobBase.endsWith("/") ? blobBase : blobBase + "/";
+        final CancellationToken token = CancellationToken.current();
+        final Metrics.Phase m = Metrics.current();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(FETCH_THREADS, distinct.size()), r -> {
+            Thread t = new Thread(r, "rf-delta-blob");
+            t.setDaemon(true);
+            return t;
+        });
+        // Interrupts the workers and cancels queued blobs, so the caller blocked in f.get() is
+        // released; requests already running are disconnected through the token they entered
+        try (Closeable stop = token.onCancel(() -> {
+            for (Runnable r : pool.shutdownNow()) if (r instanceof Future) ((Future<?>) r).cancel(false);
+        })) {
+            List<Future<?>> fs = new ArrayList<>();
+            for (RuntimeManifest.FileEntry e : distinct.values()) {
+                fs.add(pool.submit(() -> {
+                    try (CancellationToken.Scope s = token.enter(); Metrics.Scope ms = m.enter()) {
+                        File dst = new File(tmp, e.sha256);
+                        String url = base + e.sha256;
+                        String got = e.size >= LARGE_BLOB
+                                ? Downloads.downloadTo(url, 15000, 60000, dst, null)
+                                : ResumableDownload.fetch(url, dst, 15000, 60000, null);
+                        if (!got.equals(e.sha256)) {
+                            throw new IOException("blob digest mismatch for " + e.path + ": " + got);
+                        }
+                        out.put(e.sha256, dst);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : fs) {
+                try {
+                    f.get();
+                } catch (CancellationException ce) {
+                    token.throwIfCancelled();
+                    throw ce;
+                } catch (ExecutionException ee) {
+                    token.throwIfCancelled();
+                    Throwable c = ee.getCause();
+                    throw c instanceof Exception ? (Exception) c : new IOException(c);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        if (log != null) log.log("[delta] fetched " + out.size() + " blobs");
+        return out;
+    }
+
+    private static void apply(Plan plan, File installDir, Map<String, File> blobs) throws IOException {
+        Map<String, Integer> uses = new HashMap<>();
+        for (RuntimeManifest.FileEntry e : plan.fetch) uses.merge(e.sha256, 1, Integer::sum);
+        for (RuntimeManifest.FileEntry e : plan.fetch) {
+            File dst = resolve(installDir, e.path);
+            File parent = dst.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("mkdirs failed: " + parent);
+            File blob = blobs.get(e.sha256);
+            int left = uses.merge(e.sha256, -1, Integer::sum);
+            // Last user of a blob takes it by rename; earlier ones get a copy.
+            File staged = left == 0 ? blob : copyBeside(blob, dst);
+            if (dst.exists() && !dst.delete()) throw new IOException("cannot replace " + dst);
+            if (!staged.renameTo(dst)) throw new IOException("rename failed: " + staged + " -> " + dst);
+            chmod(dst, e.mode);
+        }
+        for (RuntimeManifest.FileEntry e : plan.chmod) {
+            File f = resolve(installDir, e.path);
+            if (FileModes.hasMode(f, e.mode)) continue;
+            // Hard-linked to the previous version and the store, which keep the old mode: copy first
+            File copy = copyBeside(f, f);
+            if (!copy.renameTo(f)) throw new IOException("rename failed: " + copy + " -> " + f);
+            chmod(f, e.mode);
+        }
+        for (String p : plan.delete) {
+            File f = resolve(installDir, p);
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+            pruneEmptyParents(f.getParentFile(), installDir);
+        }
+    }
+
+    static void writeIndex(File installDir, List<RuntimeManifest.FileEntry> files) throws Exception {
+        JSONArray arr = new JSONArray();
+        for (RuntimeManifest.FileEntry e : files) {
+            JSONObject o = new JSONObject();
+            o.put("path", e.path);
+            o.put("size", e.size);
+            o.put("mode", Integer.toOctalString(e.mode));
+            o.put("sha256", e.sha256);
+            arr.put(o);
+        }
+        File out = new File(installDir, INDEX_NAME);
+        File tmp = new File(installDir, INDEX_NAME + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            w.write(arr.toString());
+        }
+        if (!tmp.renameTo(out)) throw new IOException("rename failed: " + tmp);
+    }
+
+    private static Map<String, RuntimeManifest.FileEntry> readIndex(File installDir) {
+        File f = new File(installDir, INDEX_NAME);
+        if (!f.isFile()) return null;
+        try (InputStream in = new FileInputStream(f);
+             ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+            Map<String, RuntimeManifest.FileEntry> m = new HashMap<>();
+            for (RuntimeManifest.FileEntry e : RuntimeManifest.parseFiles(new JSONArray(bos.toString("UTF-8")))) {
+                m.put(e.path, e);
+            }
+            return m;
+        } catch (Exception e) {
+            return null; // unreadable index: fall back to hashing
+        }
+    }
+
+    /**
+     * Regular files under {@code dir} not in {@code keep}; dot-entries at the top level are ours.
+     * Symlinks came from a tar archive and aren't in any file index, so they stay.
+     */
+    private static void collectStray(File dir, String prefix, Set<String> keep, List<String> out) {
+        File[] kids = dir.listFiles();
+        if (kids == null) return;
+        for (File k : kids) {
+            if (prefix.isEmpty() && k.getName().startsWith(".")) continue;
+            String rel = prefix + k.getName();
+            if (RuntimeLayout.isSymlink(k)) continue;
+            if (k.isDirectory()) collectStray(k, rel + "/", keep, out);
+            else if (!keep.contains(rel)) out.add(rel);
+        }
+    }
+
+    static File resolve(File root, String rel) throws IOException {
+        File f = new File(root, rel);
+        String base = root.getCanonicalPath() + File.separator;
+        if (!f.getCanonicalPath().startsWith(base)) throw new IOException("path escapes install dir: " + rel);
+        return f;
+    }
+
+    private static File copyBeside(File src, File dst) throws IOException {
+        File tmp = new File(dst.getPath() + ".delta");
+        try (InputStream in = new FileInputStream(src); OutputStream out = new FileOutputStream(tmp)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) out.write(buf, 0, n);
+        }
+        return tmp;
+    }
+
+    private static void chmod(File f, int mode) {
+        FileModes.chmod(f, mode);
+    }
+
+    private static void pruneEmptyParents(File dir, File stop) {
+        while (dir != null && !dir.equals(stop)) {
+            String[] left = dir.list();
+            if (left == null || left.length > 0 || !dir.delete()) return;
+            dir = dir.getParentFile();
+        }
+    }
+
+    private static void deleteRec(File f) {
+        if (f.isDirectory() && !RuntimeLayout.isSymlink(f)) {
+            File[] kids = f.listFiles();
+            if (kids != null) for (File k : kids) deleteRec(k);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
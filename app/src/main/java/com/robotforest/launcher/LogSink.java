@@ -0,0 +1,234 @@
+package com.robotforest.launcher;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Log pipeline for the launcher screen.
+ *
+ * <pre>
+ *   log() ──► lock-free queue ──► writer thread ──► rotating file (logs/launcher.log, .1, .2)
+ *                                      │
+ *                                      └──► fixed-size line ring ──► TextView, once per frame
+ * </pre>
+ *
+ * Producers only enqueue, from any thread. The writer drains in batches, appends to the file and
+ * the ring, and asks for a frame; the frame callback renders the ring's new lines at most once per
+ * vsync. The view never holds more than {@code capacity} lines, so a burst of any size costs
+ * bounded memory and a handful of frames.
+ *
+ * There is one sink per process ({@link #shared}) and it is never closed: work started from one
+ * activity instance keeps logging after it is destroyed, and the next instance shows those lines.
+ */
+final class LogSink {
+    private static final String TAG = "log";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    static final String FILE = "launcher.log";
+    private static final long ROTATE_BYTES = 1024 * 1024;
+    private static final int KEEP_ROTATED = 2;
+
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "rf-log");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final Ring ring;
+    private final File dir;
+
+    // writer thread only
+    private Writer out;
+    private long outBytes;
+
+    // main thread only
+    private TextView view;
+    private long shownSeq;
+    private int shownLines;
+
+    private static LogSink shared; // guarded by LogSink.class
+
+    private LogSink(File dir, int capacity) {
+        this.dir = dir;
+        this.ring = new Ring(capacity);
+    }
+
+    /** The process's sink, writing under {@code dir}; arguments only matter on the first call. */
+    static synchronized LogSink shared(File dir, int capacity) {
+        if (shared == null) shared = new LogSink(dir, capacity);
+        return shared;
+    }
+
+    /** Binds the view that shows the ring, starting with what it still holds (main thread). */
+    void attach(TextView v) {
+        view = v;
+        shownSeq = 0;
+        shownLines = 0;
+        if (v != null) v.setText("");
+        requestFrame();
+    }
+
+    /** Unbinds {@code v} if it is still the bound view (main thread); logging carries on. */
+    void detach(TextView v) {
+        if (view == v) view = null;
+    }
+
+    /** Enqueues a message (may span lines); any thread, never blocks. */
+    void log(String msg) {
+        queue.add(msg);
+        if (drainScheduled.compareAndSet(false, true)) writer.execute(this::drain);
+    }
+
+    /** Everything logged so far (current file plus rotations, oldest first), at most {@code maxChars} from the end. */
+    Future<String> readBack(int maxChars) {
+        return writer.submit(() -> {
+            drain();
+            StringBuilder sb = new StringBuilder();
+            for (int i = KEEP_ROTATED; i >= 0; i--) {
+                File f = file(i);
+                if (f.isFile()) sb.append(readAll(f));
+            }
+            return sb.length() > maxChars ? sb.substring(sb.length() - maxChars) : sb.toString();
+        });
+    }
+
+    // ---- writer thread -----------------------------------------------------------------------
+
+    private void drain() {
+        drainScheduled.set(false);
+        String s;
+        StringBuilder batch = null;
+        while ((s = queue.poll()) != null) {
+            ring.add(s);
+            if (batch == null) batch = new StringBuilder(4096);
+            batch.append(s).append('\n');
+            if (batch.length() >= 64 * 1024) { writeFile(batch); batch.setLength(0); }
+        }
+        if (batch == null) return;
+        if (batch.length() > 0) writeFile(batch);
+        try { if (out != null) out.flush(); } catch (IOException e) { Log.w(TAG, "flush", e); }
+        requestFrame();
+    }
+
+    private void writeFile(CharSequence text) {
+        try {
+            if (out == null) {
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+                File f = file(0);
+                outBytes = f.length();
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f, true), UTF8), 16 * 1024);
+            }
+            out.append(text);
+            outBytes += text.length(); // chars, close enough for rotation
+            if (outBytes >= ROTATE_BYTES) rotate();
+        } catch (IOException e) {
+            Log.w(TAG, "log file write failed", e);
+            closeQuietly(out);
+            out = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        out = null;
+        //noinspection ResultOfMethodCallIgnored
+        file(KEEP_ROTATED).delete();
+        for (int i = KEEP_ROTATED - 1; i >= 0; i--) {
+            File f = file(i);
+            //noinspection ResultOfMethodCallIgnored
+            if (f.exists()) f.renameTo(file(i + 1));
+        }
+    }
+
+    private File file(int generation) {
+        return new File(dir, generation == 0 ? FILE : FILE + "." + generation);
+    }
+
+    // ---- main thread -------------------------------------------------------------------------
+
+    private void requestFrame() {
+        if (frameScheduled.compareAndSet(false, true)) {
+            main.post(() -> Choreographer.getInstance().postFrameCallback(t -> render()));
+        }
+    }
+
+    private void render() {
+        frameScheduled.set(false);
+        TextView v = view;
+        if (v == null) return;
+        Ring.Delta d = ring.since(shownSeq);
+        if (d.text.length() == 0 && !d.reset) return;
+        if (d.reset || shownLines + d.lines > ring.capacity) {
+            // The view would outgrow the ring: replace it with the ring's contents.
+            Ring.Delta all = ring.since(0);
+            v.setText(all.text);
+            shownLines = all.lines;
+            shownSeq = all.seq;
+        } else {
+            v.append(d.text);
+            shownLines += d.lines;
+            shownSeq = d.seq;
+        }
+        int bottom = v.getLayout() != null ? v.getLayout().getLineTop(v.getLineCount()) : 0;
+        v.scrollTo(0, Math.max(0, bottom - v.getHeight()));
+    }
+
+    /** Last {@code capacity} messages with a running sequence number. */
+    static final class Ring {
+        final int capacity;
+        private final String[] lines;
+        private long seq; // messages ever added
+
+        static final class Delta {
+            final String text;
+            final int lines;
+            final long seq;
+            final boolean reset; // caller's position fell out of the ring
+            Delta(String text, int lines, long seq, boolean reset) {
+                this.text = text; this.lines = lines; this.seq = seq; this.reset = reset;
+            }
+        }
+
+        Ring(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            this.lines = new String[this.capacity];
+        }
+
+        synchronized void add(String s) {
+            lines[(int) (seq % capacity)] = s;
+            seq++;
+        }
+
+        /** Messages after {@code from} (all retained ones if {@code from} is too old). */
+        synchronized Delta since(long from) {
+            long oldest = Math.max(0, seq - capacity);
+            boolean reset = from < oldest;
+            long start = Math.max(from, oldest);
+            StringBuilder sb = new StringBuilder();
+            for (long i = start; i < seq; i++) sb.append(lines[(int) (i % capacity)]).append('\n');
+            return new Delta(sb.toString(), (int) (seq - start), seq, reset && from != 0);
+        }
+    }
+
+    private static String readAll(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f);
+             ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+            return bos.toString("UTF-8");
+        }
+    }
+
+    private static void closeQuietly(Closeable c) { try { if (c != null) c.close(); } catch (Throwable ignore) {} }
+}
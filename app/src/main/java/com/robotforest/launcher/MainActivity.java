@@ -4,6 +4,8 @@ import android.app.Activity;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.system.Os;
 import android.system.OsConstants;
@@ -16,10 +18,30 @@ import android.widget.TextView;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Future;
 
 public class MainActivity extends Activity {
+    /**
+     * Imports the runtime archive the intent's data names (a path, {@code file:} or {@code content:}
+     * uri; or the {@link #EXTRA_PATH} extra) instead of downloading it. Scriptable over adb, see
+     * {@code tools/rf_runtime_preseed.sh}. Only an archive with the embedded manifest's digest is
+     * installed, so whoever sends it can't choose what runs; and only the shell may send it, so
+     * other apps can't make the launcher unpack whatever they like into its storage. In the app,
+     * the document picker behind the import button does the same without the intent.
+     */
+    public static final String ACTION_IMPORT_RUNTIME = "com.robotforest.launcher.action.IMPORT_RUNTIME";
+    public static final String EXTRA_PATH = "path";
+    private static final int RECENT_INSTALLS = 50;
+    private static final int REQUEST_IMPORT = 1;
+    /** Package the system records for {@code adb shell am start}. */
+    private static final String SHELL_PACKAGE = "com.android.shell";
+    private static final int LATENCY_COLD = 1;
+    private static final int LATENCY_WARM = 20;
+
     private TextView logView;
+    private LogSink logSink;
     private File installDir;
+    private final List<SingleFlight.Handle<File>> pending = new ArrayList<>();
 
     @Override protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -30,10 +52,12 @@ public class MainActivity extends Activity {
         root.setPadding(pad, pad, pad, pad);
 
         logView = new TextView(this);
-        logView.setText("Preparing runtime…\n");
         logView.setTextIsSelectable(true);
         logView.setMovementMethod(new ScrollingMovementMethod());
         logView.setMinLines(8);
+        logSink = LogSink.shared(new File(getFilesDir(), "logs"), 2000);
+        logSink.attach(logView);
+        append("Preparing runtime…");
 
         Button btnCheck = new Button(this);    btnCheck.setText("Run: box64 -v");
         Button btnList = new Button(this);     btnList.setText("List runtime/bin");
@@ -41,22 +65,39 @@ public class MainActivity extends Activity {
         Button btnCopy = new Button(this);     btnCopy.setText("Copy log");
         Button btnExit = new Button(this);     btnExit.setText("Exit");
         Button btnRein = new Button(this);     btnRein.setText("Force reinstall runtime");
+        Button btnScrub = new Button(this);    btnScrub.setText("Verify runtime");
+        Button btnProcs = new Button(this);    btnProcs.setText("Sessions");
+        Button btnStats = new Button(this);    btnStats.setText("Install diagnostics");
+        Button btnImport = new Button(this);   btnImport.setText("Import runtime archive…");
+        Button btnLatency = new Button(this);  btnLatency.setText("Launch latency: box64 -v");
 
         ScrollView scroller = new ScrollView(this); scroller.addView(logView);
         root.addView(scroller, new LinearLayout.LayoutParams(
                 LinearLayout.LayoutParams.MATCH_PARENT, 0, 1f));
         root.addView(btnCheck); root.addView(btnList); root.addView(btnFix);
         root.addView(btnCopy);  root.addView(btnExit); root.addView(btnRein);
+        root.addView(btnScrub); root.addView(btnProcs); root.addView(btnStats);
+        root.addView(btnImport); root.addView(btnLatency);
 
         setContentView(root);
 
-        RuntimeInstaller.ensureInstalled(this, new RuntimeInstaller.Listener() {
-            @Override public void onReady(File dir) {
-                installDir = dir;
-                append("[ready] " + dir.getAbsolutePath());
-            }
-            @Override public void onProgress(String msg) { append(msg); }
-            @Override public void onError(Exception e) { append("[error] " + e.getMessage()); }
+        // Joins an install already running (e.g. from before a rotation) rather than starting another.
+        // Launched to import, it skips the download the import is there to replace.
+        if (!startImport(getIntent())) {
+            pending.add(RuntimeInstaller.ensureInstalled(this, new RuntimeInstaller.Listener() {
+                @Override public void onReady(File dir) {
+                    installDir = dir;
+                    append("[ready] " + dir.getAbsolutePath());
+                }
+                @Override public void onProgress(String msg) { append(msg); }
+                @Override public void onError(Exception e) { append("[error] " + e.getMessage()); }
+            }));
+        }
+
+        // Any document provider; local files are read in place, without a copy
+        btnImport.setOnClickListener(v -> {
+            Intent pick = new Intent(Intent.ACTION_OPEN_DOCUMENT).addCategory(Intent.CATEGORY_OPENABLE).setType("*/*");
+            startActivityForResult(pick, REQUEST_IMPORT);
         });
 
         btnList.setOnClickListener(v -> {
@@ -74,18 +115,15 @@ public class MainActivity extends Activity {
             append(sb.toString());
         });
 
+        // Off the UI thread; only files whose mode differs from the install index are touched
         btnFix.setOnClickListener(v -> {
             if (installDir == null) { append("[warn] runtime not ready yet"); return; }
-            try {
-                // Fix dirs 0755 and bin/* 0755
-                walkChmod(installDir, true);
-                File bin = new File(installDir, "bin");
-                File[] xs = bin.listFiles();
-                if (xs != null) for (File f : xs) try { Os.chmod(f.getAbsolutePath(), 0755); } catch (Throwable ignore) {}
-                append("[fix] permissions updated");
-            } catch (Throwable t) {
-                append("[fix error] " + t);
-            }
+            append("[fix] checking permissions…");
+            pending.add(RuntimeInstaller.fixPermissions(this, installDir, new RuntimeInstaller.Listener() {
+                @Override public void onReady(File dir) {}
+                @Override public void onProgress(String msg) { append(msg); }
+                @Override public void onError(Exception e) { append("[fix error] " + e.getMessage()); }
+            }));
         });
 
         btnCheck.setOnClickListener(v -> {
@@ -100,10 +138,14 @@ public class MainActivity extends Activity {
             env.put("PATH", bin.getAbsolutePath() + ":" + System.getenv("PATH"));
 
             append("$ box64 -v");
-            Exec.runAsync(Arrays.asList(box64.getAbsolutePath(), "-v"), installDir, env,
+            Exec.Options opts = new Exec.Options();
+            opts.listener = (stream, line) -> append(stream == Exec.Stream.STDERR ? "[stderr] " + line : line);
+            ProcessSupervisor.Limits limits = new ProcessSupervisor.Limits();
+            limits.wallClockMs = 30000;
+            ProcessSupervisor.shared().submit(Arrays.asList(box64.getAbsolutePath(), "-v"), installDir, env, limits, opts,
                     new Exec.Callback() {
                         @Override public void onCompleted(int code, String out, String err) {
-                            append("[exit " + code + "]\n" + trimBoth(out, err));
+                            append("[exit " + code + "]");
                         }
                         @Override public void onError(Exception e) {
                             append("[exec error] " + e);
@@ -111,24 +153,189 @@ public class MainActivity extends Activity {
                     });
         });
 
+        // Copies from the log file (the view only keeps the last lines); clipboard binder limit caps it
         btnCopy.setOnClickListener(v -> {
-            ClipboardManager cm = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-            cm.setPrimaryClip(ClipData.newPlainText("RobotForest log", logView.getText()));
-            append("[copied log to clipboard]");
+            Future<String> text = logSink.readBack(512 * 1024);
+            new Thread(() -> {
+                try {
+                    String s = text.get();
+                    runOnUiThread(() -> {
+                        ClipboardManager cm = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+                        cm.setPrimaryClip(ClipData.newPlainText("RobotForest log", s));
+                        append("[copied log to clipboard: " + s.length() + " chars]");
+                    });
+                } catch (Exception e) {
+                    append("[copy error] " + e);
+                }
+            }, "rf-copy-log").start();
         });
 
         btnExit.setOnClickListener(v -> finish());
 
+        // Tap: list sessions; long-press: cancel all of them
+        btnProcs.setOnClickListener(v -> {
+            List<ProcessSupervisor.Session> ss = ProcessSupervisor.shared().sessions();
+            if (ss.isEmpty()) { append("[sessions] none"); return; }
+            StringBuilder sb = new StringBuilder("[sessions]\n");
+            for (ProcessSupervisor.Session x : ss) sb.append("  ").append(x).append("\n");
+            append(sb.toString());
+        });
+        btnProcs.setOnLongClickListener(v -> {
+            append("[sessions] cancelling all…");
+            ProcessSupervisor.shared().cancelAll();
+            return true;
+        });
+
+        // Per-phase p50/p95 over the recent installs in files/metrics
+        btnStats.setOnClickListener(v -> {
+            Metrics.JsonLines m = RobotForestApp.installMetrics();
+            if (m == null) { append("[metrics] not recording"); return; }
+            new Thread(() -> {
+                try {
+                    append(Metrics.summary(m.read(RECENT_INSTALLS)));
+                } catch (Exception e) {
+                    append("[metrics error] " + e);
+                }
+            }, "rf-metrics").start();
+        });
+
+        // Tap: through Exec, as the "Run" button launches; long-press: bare ProcessBuilder, the floor
+        btnLatency.setOnClickListener(v -> startLatency(btnLatency, true));
+        btnLatency.setOnLongClickListener(v -> { startLatency(btnLatency, false); return true; });
+
+        btnScrub.setOnClickListener(v -> startScrub(btnScrub, false));
+        btnScrub.setOnLongClickListener(v -> { startScrub(btnScrub, true); return true; });
+
         btnRein.setOnClickListener(v -> {
             append("[action] force reinstall requested…");
-            RuntimeInstaller.forceReinstall(this, new RuntimeInstaller.Listener() {
+            pending.add(RuntimeInstaller.forceReinstall(this, new RuntimeInstaller.Listener() {
                 @Override public void onReady(File dir) { installDir = dir; append("[ready] " + dir.getAbsolutePath()); }
                 @Override public void onProgress(String msg) { append(msg); }
                 @Override public void onError(Exception e) { append("[error] " + e.getMessage()); }
-            });
+            }));
+        });
+    }
+
+    @Override protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        // getReferrer() reads the current intent's extras
+        setIntent(intent);
+        startImport(intent);
+    }
+
+    @Override protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_IMPORT || resultCode != RESULT_OK || data == null || data.getData() == null) return;
+        importRuntime(data.getData());
+    }
+
+    /** Starts the import {@code intent} asks for, if it is an {@link #ACTION_IMPORT_RUNTIME}. */
+    private boolean startImport(Intent intent) {
+        if (intent == null || !ACTION_IMPORT_RUNTIME.equals(intent.getAction())) return false;
+        if (!fromShell(intent)) {
+            // Under the tag the preseed script waits on, so it fails now rather than time out
+            Log.w("runtime", "import failed: not sent from the shell (" + getReferrer() + ")");
+            append("[import error] refused: imports over an intent only come from adb; use the import button");
+            return false;
+        }
+        Uri source = intent.getData();
+        String path = intent.getStringExtra(EXTRA_PATH);
+        if (source == null && path != null) source = Uri.parse(path);
+        if (source == null) { append("[import error] no archive given"); return false; }
+        importRuntime(source);
+        return true;
+    }
+
+    /**
+     * Whether {@code intent} was started by the shell, going by the launching package the system
+     * recorded for it. A sender can override that record with a referrer extra, so an intent
+     * carrying one never counts.
+     */
+    private boolean fromShell(Intent intent) {
+        if (intent.hasExtra(Intent.EXTRA_REFERRER) || intent.hasExtra(Intent.EXTRA_REFERRER_NAME)) return false;
+        Uri ref = getReferrer();
+        return ref != null && "android-app".equals(ref.getScheme()) && SHELL_PACKAGE.equals(ref.getHost());
+    }
+
+    private void importRuntime(Uri source) {
+        append("[import] " + source);
+        pending.add(RuntimeInstaller.importArchive(this, source, new RuntimeInstaller.Listener() {
+            @Override public void onReady(File dir) { installDir = dir; append("[ready] " + dir.getAbsolutePath()); }
+            @Override public void onProgress(String msg) { append(msg); }
+            @Override public void onError(Exception e) { append("[import error] " + e.getMessage()); }
+        }));
+    }
+
+    private RuntimeScrubber.Handle scrub;
+
+    /** Tap: incremental verify; long-press: hash every file. Tapping while running cancels. */
+    private void startScrub(Button btn, boolean full) {
+        if (scrub != null && !scrub.isDone()) { scrub.cancel(); return; }
+        if (installDir == null) { append("[warn] runtime not ready yet"); return; }
+        RuntimeScrubber.Options o = new RuntimeScrubber.Options();
+        o.full = full;
+        append("[verify] " + (full ? "full" : "incremental") + " scrub…");
+        btn.setText("Cancel verify");
+        scrub = RuntimeScrubber.start(installDir, o, new RuntimeScrubber.Listener() {
+            @Override public void onProgress(RuntimeScrubber.Progress p) { btn.setText("Cancel verify (" + p + ")"); }
+            @Override public void onResult(RuntimeScrubber.Result r) {
+                btn.setText("Verify runtime");
+                append("[verify] " + r);
+                for (String p : r.corrupt) append("  corrupt: " + p);
+                for (String p : r.missing) append("  missing: " + p);
+                if (r.isClean()) return;
+                pending.add(RuntimeInstaller.repair(MainActivity.this, r, new RuntimeInstaller.Listener() {
+                    @Override public void onReady(File dir) { installDir = dir; append("[ready] " + dir.getAbsolutePath()); }
+                    @Override public void onProgress(String msg) { append(msg); }
+                    @Override public void onError(Exception e) { append("[error] " + e.getMessage()); }
+                }));
+            }
+            @Override public void onError(Exception e) {
+                btn.setText("Verify runtime");
+                append("[verify error] " + e.getMessage());
+            }
         });
     }
 
+    private volatile CancellationToken latency;
+
+    /**
+     * Times {@code box64 -v} from launch to first output and exit, cold then warm, and appends the
+     * percentiles here and to files/metrics/launches.jsonl. Tapping again while it runs stops it.
+     */
+    private void startLatency(Button btn, boolean viaExec) {
+        CancellationToken running = latency;
+        if (running != null) { running.cancel(); return; }
+        if (installDir == null) { append("[warn] runtime not ready yet"); return; }
+        File bin = new File(installDir, "bin");
+        List<String> cmd = Arrays.asList(new File(bin, "box64").getAbsolutePath(), "-v");
+        Map<String,String> env = new HashMap<>();
+        env.put("PATH", bin.getAbsolutePath() + ":" + System.getenv("PATH"));
+        LaunchLatency.Launcher l = viaExec
+                ? Exec.latencyProbe(cmd, installDir, env)
+                : LaunchLatency.direct(cmd, installDir, env);
+        String label = "box64 -v (" + (viaExec ? "Exec" : "ProcessBuilder") + ")";
+        CancellationToken token = new CancellationToken();
+        latency = token;
+        btn.setText("Stop launch latency");
+        append("[launch] " + label + ": " + LATENCY_COLD + " cold + " + LATENCY_WARM + " warm…");
+        new Thread(() -> {
+            try (CancellationToken.Scope s = token.enter()) {
+                LaunchLatency.Report r = LaunchLatency.run(label, l, LATENCY_COLD, LATENCY_WARM);
+                append(r.summary());
+                Metrics.JsonLines m = RobotForestApp.launchMetrics();
+                if (m != null) m.append(r.toJson());
+            } catch (CancellationToken.Cancelled e) {
+                append("[launch] stopped");
+            } catch (Exception e) {
+                append("[launch error] " + e);
+            } finally {
+                latency = null;
+                runOnUiThread(() -> btn.setText("Launch latency: box64 -v"));
+            }
+        }, "rf-launch-latency").start();
+    }
+
     private String diag(File f) {
         StringBuilder sb = new StringBuilder();
         try {
@@ -147,28 +354,20 @@ public class MainActivity extends Activity {
         return sb.toString();
     }
 
-    private void walkChmod(File root, boolean dirs0755) {
-        if (root.isDirectory()) {
-            try { Os.chmod(root.getAbsolutePath(), 0755); } catch (Throwable ignore) {}
-            File[] kids = root.listFiles();
-            if (kids != null) for (File k : kids) walkChmod(k, dirs0755);
-        } else {
-            try { Os.chmod(root.getAbsolutePath(), 0644); } catch (Throwable ignore) {}
+    @Override protected void onDestroy() {
+        // A rotation only lets go (the next instance joins); leaving for good cancels work no one else awaits
+        for (SingleFlight.Handle<File> h : pending) {
+            if (isChangingConfigurations()) h.detach(); else h.cancel();
         }
+        pending.clear();
+        // Late callbacks still log; only this instance's view goes
+        logSink.detach(logView);
+        super.onDestroy();
     }
 
+    /** Any thread; rendered at most once per frame by {@link LogSink}. */
     private void append(String s) {
-        runOnUiThread(() -> {
-            logView.append(s + "\n");
-            int bottom = logView.getLayout() != null ? logView.getLayout().getLineTop(logView.getLineCount()) : 0;
-            logView.scrollTo(0, Math.max(0, bottom - logView.getHeight()));
-        });
+        logSink.log(s);
     }
     private int dp(int v) { float d = getResources().getDisplayMetrics().density; return Math.round(d * v); }
-    private String trimBoth(String out, String err) {
-        String o = (out == null ? "" : out.trim());
-        String e = (err == null ? "" : err.trim());
-        if (!e.isEmpty()) return o + (o.isEmpty() ? "" : "\n") + "[stderr]\n" + e;
-        return o;
-    }
 }
@@ -0,0 +1,378 @@
+package com.robotforest.launcher;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link Exec} commands as supervised sessions: at most {@code maxConcurrent} children at
+ * once (the rest wait in FIFO order), optional wall-clock and idle timeouts, and cancellation that
+ * escalates from SIGTERM to SIGKILL. A killed session takes its descendants with it (found through
+ * /proc before the parent dies), so wineserver and friends don't outlive the session as orphans.
+ *
+ * Live and recently finished sessions can be listed with {@link #sessions()}.
+ */
+public final class ProcessSupervisor {
+    private static final String TAG = "supervisor";
+    private static final long WATCH_INTERVAL_MS = 250;
+    private static final int KEEP_FINISHED = 16;
+
+    public enum State { QUEUED, RUNNING, EXITED, CANCELLED, TIMED_OUT, FAILED }
+
+    public static final class Limits {
+        /** Kill after this long running; 0 means no limit. */
+        public long wallClockMs = 0;
+        /** Kill after this long without any output; 0 means no limit. */
+        public long idleMs = 0;
+        /** Time between SIGTERM and SIGKILL. */
+        public long termGraceMs = 3000;
+    }
+
+    private static volatile ProcessSupervisor shared;
+
+    /** App-wide supervisor, two concurrent children. */
+    public static ProcessSupervisor shared() {
+        ProcessSupervisor s = shared;
+        if (s == null) {
+            synchronized (ProcessSupervisor.class) {
+                if (shared == null) shared = new ProcessSupervisor(2);
+                s = shared;
+            }
+        }
+        return s;
+    }
+
+    private final int maxConcurrent;
+    private final AtomicInteger ids = new AtomicInteger();
+    private final ArrayDeque<Session> queue = new ArrayDeque<>();
+    private final List<Session> running = new ArrayList<>();
+    private final ArrayDeque<Session> finished = new ArrayDeque<>();
+    private final ExecutorService runner = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "rf-session");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rf-supervisor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ProcessSupervisor(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        watchdog.scheduleWithFixedDelay(this::watch, WATCH_INTERVAL_MS, WATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** One supervised command. All getters are safe from any thread. */
+    public final class Session {
+        public final int id;
+        public final List<String> cmd;
+        final File workDir;
+        final Map<String, String> env;
+        final Limits limits;
+        final Exec.Options opts;
+        final Exec.Callback cb;
+
+        private volatile State state = State.QUEUED;
+        private volatile int pid = -1;
+        private volatile Process process;
+        private volatile long startedAt;     // elapsedRealtime, 0 until running
+        private volatile long endedAt;
+        private volatile long lastActivity;
+        private volatile int exitCode = Integer.MIN_VALUE;
+        private volatile State stopReason;   // why we are killing it, if we are
+        private volatile long killAt;        // when SIGTERM escalates to SIGKILL, 0 if not pending
+        private final Set<Integer> tree = new LinkedHashSet<>(); // descendants seen so far
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Session(List<String> cmd, File workDir, Map<String, String> env, Limits limits, Exec.Options opts,
+                Exec.Callback cb) {
+            this.id = ids.incrementAndGet();
+            this.cmd = Collections.unmodifiableList(new ArrayList<>(cmd));
+            this.workDir = workDir;
+            this.env = env;
+            this.limits = limits;
+            this.opts = opts;
+            this.cb = cb;
+        }
+
+        public State state() { return state; }
+        /** Child pid, or -1 when not started or unknown. */
+        public int pid() { return pid; }
+        /** Exit code once {@link State#EXITED} (or killed), otherwise {@link Integer#MIN_VALUE}. */
+        public int exitCode() { return exitCode; }
+
+        public long uptimeMs() {
+            long s = startedAt;
+            if (s == 0) return 0;
+            long e = endedAt;
+            return (e != 0 ? e : SystemClock.elapsedRealtime()) - s;
+        }
+
+        /** SIGTERM now, SIGKILL after {@link Limits#termGraceMs}; a queued session is just dropped. */
+        public void cancel() { stop(State.CANCELLED, false); }
+
+        /** SIGKILL now. */
+        public void kill() { stop(State.CANCELLED, true); }
+
+        /** Waits for the session to end; returns false on timeout. */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('#').append(id).append(' ').append(state);
+            if (pid > 0) sb.append(" pid=").append(pid);
+            if (startedAt != 0) sb.append(" up=").append(uptimeMs()).append("ms");
+            if (exitCode != Integer.MIN_VALUE) sb.append(" exit=").append(exitCode);
+            sb.append(' ').append(cmd.isEmpty() ? "" : new File(cmd.get(0)).getName());
+            return sb.toString();
+        }
+
+        private void stop(State reason, boolean now) {
+            synchronized (ProcessSupervisor.this) {
+                if (state == State.QUEUED && queue.remove(this)) {
+                    state = reason;
+                    finish(null);
+                    Exec.callbackExecutor(opts).execute(() ->
+                            cb.onError(new CancellationException("session " + id + " cancelled while queued")));
+                    return;
+                }
+                if (state != State.RUNNING) return;
+                if (stopReason == null) stopReason = reason;
+            }
+            if (now) {
+                signalTree(SIGKILL);
+                killAt = 0;
+            } else if (killAt == 0) {
+                killAt = SystemClock.elapsedRealtime() + limits.termGraceMs;
+                signalTree(SIGTERM);
+            }
+        }
+
+        /**
+         * Signals the child and everything below it, deepest first. Descendants found on earlier
+         * calls are remembered, so the SIGKILL still reaches children the SIGTERM orphaned.
+         */
+        private void signalTree(int sig) {
+            int p = pid;
+            if (p <= 0) {
+                Process pr = process;
+                if (pr != null) pr.destroy();
+                return;
+            }
+            List<Integer> targets;
+            synchronized (tree) {
+                tree.addAll(descendants(p));
+                targets = new ArrayList<>(tree);
+            }
+            Collections.reverse(targets);
+            for (int d : targets) signal(d, sig);
+            signal(p, sig);
+        }
+
+        private void finish(Integer code) {
+            if (code != null) exitCode = code;
+            endedAt = startedAt != 0 ? SystemClock.elapsedRealtime() : 0;
+            done.countDown();
+        }
+    }
+
+    /** Queues {@code cmd}; it starts as soon as fewer than {@code maxConcurrent} sessions run. */
+    public Session submit(List<String> cmd, File workDir, Map<String, String> env, Limits limits,
+                          Exec.Options opts, Exec.Callback cb) {
+        Session s = new Session(cmd, workDir, env, limits != null ? limits : new Limits(),
+                opts != null ? opts : new Exec.Options(), cb);
+        synchronized (this) {
+            queue.add(s);
+        }
+        pump();
+        return s;
+    }
+
+    /** Snapshot: running, then queued, then the most recently finished sessions. */
+    public synchronized List<Session> sessions() {
+        List<Session> out = new ArrayList<>(running);
+        out.addAll(queue);
+        out.addAll(finished);
+        return out;
+    }
+
+    public synchronized int runningCount() { return running.size(); }
+
+    /** Cancels everything queued or running. */
+    public void cancelAll() {
+        for (Session s : sessions()) s.cancel();
+    }
+
+    private void pump() {
+        List<Session> start = new ArrayList<>();
+        synchronized (this) {
+            while (running.size() < maxConcurrent && !queue.isEmpty()) {
+                Session s = queue.poll();
+                s.state = State.RUNNING;
+                running.add(s);
+                start.add(s);
+            }
+        }
+        for (Session s : start) runner.execute(() -> runSession(s));
+    }
+
+    private void runSession(Session s) {
+        Exec.Observer obs = new Exec.Observer() {
+            @Override public void onStart(Process p) {
+                s.process = p;
+                s.pid = pidOf(p);
+                s.startedAt = s.lastActivity = SystemClock.elapsedRealtime();
+                // cancel() may have arrived before the process existed
+                if (s.stopReason != null) s.signalTree(SIGKILL);
+            }
+            @Override public void onActivity() { s.lastActivity = SystemClock.elapsedRealtime(); }
+        };
+        Exec.Callback cb = new Exec.Callback() {
+            @Override public void onCompleted(int code, String out, String err) {
+                State reason = s.stopReason;
+                if (reason == null) {
+                    s.cb.onCompleted(code, out, err);
+                } else {
+                    s.cb.onError(new CancellationException("session " + s.id + " "
+                            + reason.name().toLowerCase(Locale.ROOT) + " (exit " + code + ")"));
+                }
+            }
+            @Override public void onError(Exception e) { s.cb.onError(e); }
+        };
+        try {
+            Exec.run(s.cmd, s.workDir, s.env, s.opts, Exec.callbackExecutor(s.opts), cb, obs);
+        } finally {
+            Process p = s.process;
+            Integer code = null;
+            if (p != null) try { code = p.exitValue(); } catch (IllegalThreadStateException ignore) {}
+            synchronized (this) {
+                running.remove(s);
+                State reason = s.stopReason;
+                s.state = reason != null ? reason : p == null ? State.FAILED : State.EXITED;
+                s.finish(code);
+                s.process = null;
+                s.killAt = 0;
+                finished.addFirst(s);
+                while (finished.size() > KEEP_FINISHED) finished.removeLast();
+            }
+            pump();
+        }
+    }
+
+    /** Enforces timeouts and SIGTERM to SIGKILL escalation. */
+    private void watch() {
+        List<Session> live;
+        synchronized (this) {
+            live = new ArrayList<>(running);
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (Session s : live) {
+            try {
+                if (s.startedAt == 0) continue;
+                long killAt = s.killAt;
+                if (killAt != 0 && now >= killAt) {
+                    Log.w(TAG, "session " + s.id + " ignored SIGTERM; killing");
+                    s.kill();
+                    continue;
+                }
+                if (s.stopReason != null) continue;
+                Limits l = s.limits;
+                if (l.wallClockMs > 0 && now - s.startedAt > l.wallClockMs) {
+                    Log.w(TAG, "session " + s.id + " exceeded " + l.wallClockMs + "ms");
+                    s.stop(State.TIMED_OUT, false);
+                } else if (l.idleMs > 0 && now - s.lastActivity > l.idleMs) {
+                    Log.w(TAG, "session " + s.id + " idle for " + (now - s.lastActivity) + "ms");
+                    s.stop(State.TIMED_OUT, false);
+                }
+            } catch (Throwable t) {
+                Log.w(TAG, "watchdog", t);
+            }
+        }
+    }
+
+    // ---- pids and signals --------------------------------------------------------------------
+
+    private static final int SIGTERM = OsConstants.SIGTERM;
+    private static final int SIGKILL = OsConstants.SIGKILL;
+
+    /** The child's pid via the platform Process implementation's private field; -1 if unavailable. */
+    static int pidOf(Process p) {
+        try {
+            // Desktop JVMs (9+) have Process.pid(); not in Android's API.
+            return ((Number) Process.class.getMethod("pid").invoke(p)).intValue();
+        } catch (Exception ignore) {}
+        for (Class<?> c = p.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField("pid");
+                f.setAccessible(true);
+                return f.getInt(p);
+            } catch (NoSuchFieldException e) {
+                // try the superclass
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void signal(int pid, int sig) {
+        try {
+            Os.kill(pid, sig);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ESRCH) Log.w(TAG, "kill " + pid + " failed", e);
+        }
+    }
+
+    /** All descendants of {@code pid}, breadth-first, from /proc (only our own uid's are visible). */
+    static List<Integer> descendants(int pid) {
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        File[] procs = new File("/proc").listFiles();
+        if (procs != null) for (File d : procs) {
+            int child;
+            try { child = Integer.parseInt(d.getName()); } catch (NumberFormatException e) { continue; }
+            int ppid = parentOf(d);
+            if (ppid > 0) {
+                List<Integer> l = children.get(ppid);
+                if (l == null) children.put(ppid, l = new ArrayList<>());
+                l.add(child);
+            }
+        }
+        List<Integer> out = new ArrayList<>();
+        ArrayDeque<Integer> todo = new ArrayDeque<>();
+        todo.add(pid);
+        while (!todo.isEmpty()) {
+            List<Integer> kids = children.get(todo.poll());
+            if (kids == null) continue;
+            for (int k : kids) {
+                if (out.contains(k)) continue;
+                out.add(k);
+                todo.add(k);
+            }
+        }
+        return out;
+    }
+
+    private static int parentOf(File procDir) {
+        // /proc/<pid>/stat: "pid (comm) state ppid ..."; comm may contain spaces and parens
+        try (BufferedReader r = new BufferedReader(new FileReader(new File(procDir, "stat")))) {
+            String line = r.readLine();
+            if (line == null) return -1;
+            int close = line.lastIndexOf(')');
+            String[] rest = line.substring(close + 2).split(" ");
+            return Integer.parseInt(rest[1]);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
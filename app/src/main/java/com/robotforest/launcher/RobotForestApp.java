@@ -1,9 +1,29 @@
 package com.robotforest.launcher;
 
 import android.app.Application;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+
 public final class RobotForestApp extends Application {
+    private static volatile Metrics.JsonLines installMetrics;
+
+    /** Install timings (files/metrics/installs.jsonl and its rotations); null before onCreate. */
+    static Metrics.JsonLines installMetrics() { return installMetrics; }
+
+    private static volatile Metrics.JsonLines launchMetrics;
+
+    /** Launch-latency series (files/metrics/launches.jsonl); null before onCreate. */
+    static Metrics.JsonLines launchMetrics() { return launchMetrics; }
+
     @Override public void onCreate() {
         super.onCreate();
         Thread.setDefaultUncaughtExceptionHandler((t, e) -> {
@@ -11,5 +31,35 @@ public final class RobotForestApp extends Application {
             // Let system default handler still crash the app:
             System.exit(1);
         });
+        // Platform hooks for the Android-free core
+        String abi = Build.SUPPORTED_ABIS != null && Build.SUPPORTED_ABIS.length > 0 ? Build.SUPPORTED_ABIS[0] : "unknown";
+        Http.setUserAgent("RobotForest/" + (Build.VERSION.RELEASE != null ? Build.VERSION.RELEASE : "0") +
+                " (Android; " + abi + ")");
+        FileModes.setChmod(Os::chmod);
+        FileModes.setStat(path -> Os.stat(path).st_mode);
+        Untar.setSymlink(Os::symlink);
+        ParallelUnzip.setPreallocate((fd, length) -> {
+            try {
+                Os.posix_fallocate(fd, 0, length);
+            } catch (ErrnoException e) {
+                // Filesystems without fallocate just grow the file as it is written
+                if (e.errno == OsConstants.ENOSPC) throw new IOException("no space for " + length + " bytes", e);
+            }
+        });
+        // Before a download fails for want of space, old runtime versions and stale archives go
+        Downloads.setSpace((dst, bytes) -> RuntimeStore.shared(this).reserve(dst, bytes));
+        // Exec callbacks default to the main thread
+        Exec.setMainExecutor(new Handler(Looper.getMainLooper())::post);
+        Exec.setLaunchGuard((cmd, workDir) -> {
+            // Pin the runtime version we run from so a background update cannot GC it underneath us
+            return RuntimeLayout.lease(workDir != null ? workDir : new File(cmd.get(0)));
+        });
+        Metrics.setTracer(new Metrics.Tracer() {
+            @Override public void begin(String section) { Trace.beginSection(section); }
+            @Override public void end() { Trace.endSection(); }
+        });
+        installMetrics = new Metrics.JsonLines(new File(getFilesDir(), "metrics"), "installs.jsonl", 256 * 1024, 2);
+        Metrics.setSink(installMetrics);
+        launchMetrics = new Metrics.JsonLines(new File(getFilesDir(), "metrics"), "launches.jsonl", 256 * 1024, 2);
     }
 }
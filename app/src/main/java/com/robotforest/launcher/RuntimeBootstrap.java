@@ -3,25 +3,16 @@ package com.robotforest.launcher;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.net.Uri;
-import android.os.Build;
-
-import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.FileOutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.MessageDigest;
-import java.util.Locale;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Queue;
 
 public final class RuntimeBootstrap {
 
@@ -33,7 +24,7 @@ public final class RuntimeBootstrap {
         Result(Status s, File dir) { this.status = s; this.runtimeDir = dir; }
     }
 
-    public interface Logger { void log(String msg); }
+    public interface Logger extends ProgressLog {}
 
     private RuntimeBootstrap() {}
 
@@ -46,76 +37,168 @@ public final class RuntimeBootstrap {
 
     private static final String RUNTIME_SUBDIR_DEFAULT = "runtime";
 
+    // The remote manifest may name any version, so all bootstraps share one flight
+    private static final String FLIGHT_KEY = "bootstrap";
+
+    // A cached manifest younger than this is used without even a background revalidation
+    private static final long MANIFEST_FRESH_MS = 5 * 60 * 1000;
+
+    /**
+     * Blocking; call from a worker thread other than the install worker. Runs on the shared install
+     * coordinator ({@link RuntimeInstaller#installs()}), so concurrent callers share one bootstrap
+     * and it never overlaps an install. Interrupting the caller cancels its wait, and the bootstrap
+     * too once no one else is waiting for it.
+     */
     public static Result ensureRuntimeInstalled(Context ctx, Logger log) throws Exception {
-        final File root = new File(ctx.getFilesDir(), "rf_runtime");
-        final File installDir = new File(root, RUNTIME_SUBDIR_DEFAULT);
-        if (installDir.isDirectory() && hasSanity(installDir)) {
+        SingleFlight.Handle<Result> h = RuntimeInstaller.installs().submit(FLIGHT_KEY, (token, progress) -> {
+            Metrics.Install run = Metrics.start("bootstrap");
+            try {
+                Result r = ensureRuntimeInstalled(ctx, progress, run);
+                run.finish(r.status == Status.ALREADY_PRESENT ? "ready" : "installed", null);
+                return r;
+            } catch (Exception e) {
+                run.finish(null, e);
+                throw e;
+            }
+        }, new SingleFlight.Callback<Result>() {
+            @Override public void onProgress(String msg) { if (log != null) log.log(msg); }
+            @Override public void onResult(Result r) {}
+            @Override public void onError(Exception e) {}
+        });
+        try {
+            return h.await();
+        } catch (InterruptedException e) {
+            h.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("bootstrap wait interrupted");
+        }
+    }
+
+    private static Result ensureRuntimeInstalled(Context ctx, ProgressLog log, Metrics.Install run) throws Exception {
+        // The same store RuntimeInstaller uses, so the two never hold separate copies
+        final RuntimeStore store = RuntimeStore.shared(ctx);
+        store.adoptLegacy(ctx);
+        final File installDir = store.layout(RUNTIME_SUBDIR_DEFAULT).current();
+        // An install index is only written for a complete, verified tree; older installs fall back to the sanity stat.
+        boolean present;
+        try (Metrics.Phase p = run.phase("readiness")) {
+            present = installDir != null && (InstallIndex.readHeader(installDir) != null || hasSanity(installDir));
+        }
+        if (present) {
             if (log != null) log.log("[runtime] already present: " + installDir);
             return new Result(Status.ALREADY_PRESENT, installDir);
         }
 
-        Manifest m = null;
-        // 1) Try remote manifest
-        try {
-            if (log != null) log.log("[runtime] fetching manifest (remote) …");
-            m = fetchManifestRemote(MANIFEST_URL, log);
-        } catch (Throwable t) {
-            if (log != null) log.log("[runtime] remote manifest failed: " + t);
-        }
-        // 2) Fall back to assets
-        if (m == null) {
-            if (log != null) log.log("[runtime] using embedded manifest from assets …");
-            m = fetchManifestFromAssets(ctx.getAssets(), ASSET_MANIFEST_PATH, log);
+        final HttpCache cache = HttpCache.shared(ctx.getCacheDir());
+        RuntimeManifest m = null;
+        try (Metrics.Phase p = run.phase("manifest")) {
+            // 1) Cached remote manifest: no network wait; revalidated in the background for next time
+            HttpCache.Entry cached = cache.getStale(MANIFEST_URL, MANIFEST_FRESH_MS, 15000, 20000);
+            if (cached != null) {
+                try {
+                    m = parseManifest(cached.body, "cached", log);
+                    run.tag("manifest", "cached");
+                } catch (Throwable t) {
+                    if (log != null) log.log("[runtime] cached manifest unusable: " + t);
+                }
+            }
+            // 2) Nothing cached: remote manifest (stored for the next launch)
+            if (m == null) {
+                try {
+                    if (log != null) log.log("[runtime] fetching manifest (remote) …");
+                    m = parseManifest(cache.get(MANIFEST_URL, 0, 15000, 20000).body, "remote", log);
+                    run.tag("manifest", "remote");
+                } catch (Throwable t) {
+                    if (log != null) log.log("[runtime] remote manifest failed: " + t);
+                }
+            }
+            // 3) Fall back to assets
+            if (m == null) {
+                if (log != null) log.log("[runtime] using embedded manifest from assets …");
+                m = fetchManifestFromAssets(ctx.getAssets(), ASSET_MANIFEST_PATH, log);
+                run.tag("manifest", "assets");
+            }
         }
         if (m == null || m.url == null || m.url.isEmpty()) {
             throw new IllegalStateException("no runtime manifest available");
         }
+        run.tag("hash", m.hash);
+        run.tag("format", m.format);
 
         final String subdir = (m.subdir != null && !m.subdir.isEmpty()) ? m.subdir : RUNTIME_SUBDIR_DEFAULT;
-        final File targetDir = new File(root, subdir);
+        final RuntimeLayout layout = store.layout(subdir);
 
-        if (log != null) log.log("[runtime] downloading zip …");
-        final File zip = downloadToCache(ctx, m.url, "rf-runtime.zip", log);
+        File kept = layout.find(m.digest);
+        if (kept != null) {
+            if (log != null) log.log("[runtime] reactivating " + kept);
+            try (Metrics.Phase p = run.phase("activate")) {
+                return new Result(Status.OK_READY, layout.activate(kept));
+            }
+        }
 
-        // Resolve SHA-256: accept manifest sha, or auto-fetch from url+".sha256"
-        String needSha = m.sha256;
-        if (needSha == null || needSha.isEmpty() || "auto".equalsIgnoreCase(needSha)) {
-            try {
+        if (log != null) log.log("[runtime] downloading " + m.format + " …");
+        // Kept only until its tree is in the store; an interrupted download resumes from its .part
+        final File archive = store.archive("rf-runtime." + m.format);
+        final Hashes.Algorithm alg = Hashes.algorithm(m.hash);
+        final String got;
+        try (Metrics.Phase p = run.phase("download")) {
+            got = downloadToCache(RuntimeInstaller.sources(ctx, m), archive, log, alg, m.digest);
+        }
+
+        // Resolve the digest: accept the manifest's, or (SHA-256 only) auto-fetch from url+".sha256"
+        String needSha = m.digest;
+        if (!Hashes.shouldVerify(needSha)) {
+            if (alg != Hashes.SHA256) throw new IllegalStateException("manifest declares " + alg + " but no digest");
+            try (Metrics.Phase p = run.phase("sidecar")) {
                 if (log != null) log.log("[runtime] fetching sha256 from: " + m.url + ".sha256");
-                needSha = fetchText(m.url + ".sha256").trim().split("\\s+")[0];
+                // Always revalidated (a 304 when unchanged); the cached copy covers a flaky network
+                needSha = cache.get(m.url + ".sha256", 0, 15000, 20000).body.trim().split("\\s+")[0];
             } catch (Throwable t) {
                 throw new IllegalStateException("unable to resolve sha256 (no field and no .sha256 sidecar): " + t);
             }
         }
 
-        if (log != null) log.log("[runtime] verifying sha256 …");
-        final String got = sha256File(zip);
-        if (!got.equalsIgnoreCase(needSha)) {
-            throw new IllegalStateException("checksum mismatch: expected " + needSha + " got " + got);
+        if (log != null) log.log("[runtime] verifying " + alg + " …");
+        try (Metrics.Phase p = run.phase("verify")) {
+            if (!got.equalsIgnoreCase(needSha)) {
+                //noinspection ResultOfMethodCallIgnored
+                archive.delete();
+                throw new IllegalStateException("checksum mismatch: expected " + needSha + " got " + got);
+            }
         }
         if (log != null) log.log("[runtime] checksum OK.");
 
-        // Clean target and unzip
-        if (targetDir.exists()) deleteRecursively(targetDir);
-        if (!targetDir.mkdirs() && !targetDir.isDirectory()) {
-            throw new IllegalStateException("mkdirs failed: " + targetDir);
-        }
-
-        if (log != null) log.log("[runtime] extracting to " + targetDir);
-        unzip(zip, targetDir);
+        // Extract into a staging dir; the active version (if any) stays usable until the swap
+        final String id = RuntimeLayout.newVersionId(needSha.toLowerCase());
+        final File staging = layout.newStaging(id);
+        final File targetDir;
+        try {
+            if (log != null) log.log("[runtime] extracting to " + staging);
+            Queue<InstallIndex.Entry> entries;
+            try (Metrics.Phase p = run.phase("extract")) {
+                entries = Unpacker.unpack(archive, m.format, staging, ParallelUnzip.defaultThreads(), m.modes);
+            }
 
-        if (!hasSanity(targetDir)) {
-            throw new IllegalStateException("runtime incomplete after unzip");
-        }
+            try (Metrics.Phase p = run.phase("sanity")) {
+                if (!hasSanity(staging)) {
+                    throw new IllegalStateException("runtime incomplete after extraction");
+                }
+            }
 
-        // Make bin/* executable
-        File bin = new File(targetDir, "bin");
-        if (bin.isDirectory()) {
-            File[] all = bin.listFiles();
-            if (all != null) for (File f : all) {
-                try { f.setExecutable(true, false); } catch (Throwable ignore) {}
+            try (Metrics.Phase p = run.phase("activate")) {
+                store.ingest(staging, entries);
+                InstallIndex.write(staging, needSha.toLowerCase(), entries);
+                targetDir = layout.commit(staging, id);
             }
+        } catch (Exception e) {
+            RuntimeLayout.deleteRec(staging);
+            throw e;
         }
+        if (log != null) log.log("[runtime] activated " + targetDir);
+        //noinspection ResultOfMethodCallIgnored
+        archive.delete();
+        layout.gc();
+        store.trim();
 
         return new Result(Status.OK_READY, targetDir);
     }
@@ -125,123 +208,30 @@ public final class RuntimeBootstrap {
         return f.isFile();
     }
 
-    // Manifest model
-    private static final class Manifest {
-        final String url;
-        final String sha256;
-        final String subdir;
-        Manifest(String url, String sha256, String subdir) {
-            this.url = url; this.sha256 = sha256; this.subdir = subdir;
-        }
+    private static RuntimeManifest parseManifest(String json, String source, ProgressLog log) throws Exception {
+        RuntimeManifest m = RuntimeManifest.parse(json);
+        if (log != null) log.log("[runtime] " + source + " manifest url: " + m.url + " (" + m.hash + "=" + (m.digest.isEmpty()?"<auto>":m.digest) + ")");
+        return m;
     }
 
-    private static Manifest fetchManifestRemote(String url, Logger log) throws Exception {
-        String json = fetchText(url);
-        JSONObject j = new JSONObject(json);
-        String mUrl = j.getString("url");
-        String sha = j.optString("sha256", "");
-        String sub = j.optString("subdir", RUNTIME_SUBDIR_DEFAULT);
-        if (log != null) log.log("[runtime] manifest url: " + mUrl + " (sha=" + (sha.isEmpty()?"<auto>":sha) + ")");
-        return new Manifest(mUrl, sha, sub);
-    }
-
-    private static Manifest fetchManifestFromAssets(AssetManager am, String path, Logger log) throws Exception {
+    private static RuntimeManifest fetchManifestFromAssets(AssetManager am, String path, ProgressLog log) throws Exception {
         try (InputStream in = am.open(path);
              BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
             StringBuilder sb = new StringBuilder();
             String line; while ((line = br.readLine()) != null) sb.append(line).append('\n');
-            JSONObject j = new JSONObject(sb.toString());
-            String mUrl = j.optString("url", "");
-            String sha = j.optString("sha256", "");
-            String sub = j.optString("subdir", RUNTIME_SUBDIR_DEFAULT);
-            if (log != null) log.log("[runtime] asset manifest url: " + mUrl);
-            return new Manifest(mUrl, sha, sub);
-        }
-    }
-
-    private static String fetchText(String url) throws Exception {
-        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
-        c.setConnectTimeout(15000);
-        c.setReadTimeout(20000);
-        c.setRequestProperty("User-Agent", ua());
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(c.getInputStream()))) {
-            StringBuilder sb = new StringBuilder();
-            String line; while ((line = br.readLine()) != null) sb.append(line).append('\n');
-            return sb.toString();
-        } finally {
-            c.disconnect();
-        }
-    }
-
-    private static File downloadToCache(Context ctx, String url, String name, Logger log) throws Exception {
-        File dst = new File(ctx.getCacheDir(), name);
-        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
-        c.setConnectTimeout(15000);
-        c.setReadTimeout(60000);
-        c.setRequestProperty("User-Agent", ua());
-        try (BufferedInputStream in = new BufferedInputStream(c.getInputStream());
-             BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(dst))) {
-            byte[] buf = new byte[8192];
-            int n;
-            long total = 0;
-            while ((n = in.read(buf)) >= 0) {
-                out.write(buf, 0, n);
-                total += n;
-            }
-        } finally {
-            c.disconnect();
-        }
-        return dst;
-    }
-
-    private static void unzip(File zip, File toDir) throws Exception {
-        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)))) {
-            ZipEntry e;
-            byte[] buf = new byte[8192];
-            while ((e = zis.getNextEntry()) != null) {
-                File out = new File(toDir, e.getName());
-                if (!out.getCanonicalPath().startsWith(toDir.getCanonicalPath()))
-                    throw new SecurityException("zip path traversal: " + e.getName());
-                if (e.isDirectory()) {
-                    if (!out.exists() && !out.mkdirs())
-                        throw new IllegalStateException("mkdirs failed: " + out);
-                } else {
-                    File parent = out.getParentFile();
-                    if (parent != null && !parent.isDirectory() && !parent.mkdirs())
-                        throw new IllegalStateException("mkdirs failed: " + parent);
-                    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(out))) {
-                        int n;
-                        while ((n = zis.read(buf)) > 0) bos.write(buf, 0, n);
-                    }
-                }
-                zis.closeEntry();
-            }
-        }
-    }
-
-    private static String sha256File(File f) throws Exception {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(f))) {
-            byte[] buf = new byte[8192];
-            int n; while ((n = in.read(buf)) >= 0) md.update(buf, 0, n);
-        }
-        byte[] d = md.digest();
-        StringBuilder sb = new StringBuilder(d.length * 2);
-        for (byte b : d) sb.append(String.format(Locale.US, "%02x", b));
-        return sb.toString();
-    }
-
-    private static void deleteRecursively(File f) {
-        if (f.isDirectory()) {
-            File[] kids = f.listFiles();
-            if (kids != null) for (File k : kids) deleteRecursively(k);
+            RuntimeManifest m = RuntimeManifest.parse(sb.toString());
+            if (log != null) log.log("[runtime] asset manifest url: " + m.url);
+            return m;
         }
-        try { f.delete(); } catch (Throwable ignore) {}
     }
 
-    private static String ua() {
-        return "RobotForest/" + (Build.VERSION.RELEASE != null ? Build.VERSION.RELEASE : "0") +
-                " (Android; " + Build.SUPPORTED_ABIS[0] + ")";
+    /**
+     * Download into {@code dst} from the best of {@code sources} (see {@link Mirrors}); returns the
+     * hex digest of the completed file under {@code alg}.
+     */
+    private static String downloadToCache(List<String> sources, File dst, ProgressLog log, Hashes.Algorithm alg,
+                                          String expected) throws Exception {
+        return Mirrors.downloadTo(sources, 15000, 60000, dst, log, alg, expected);
     }
 
     @SuppressWarnings("unused")
@@ -1,20 +1,48 @@
 package com.robotforest.launcher;
 
 import android.content.Context;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.*;
-import java.security.MessageDigest;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public final class RuntimeInstaller {
     private static final String TAG = "runtime";
+    static final String STAMP = ".sha256";
+    private static final String EMBEDDED_MANIFEST = "runtime/manifest.json";
     private static final Handler MAIN = new Handler(Looper.getMainLooper());
+    private static final ExecutorService IO = Executors.newSingleThreadExecutor();
+    private static final ScheduledExecutorService CHECK = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rf-install-check");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private static final long CHECK_DELAY_MS = 15000;
+    // The embedded manifest is fixed for the life of the process, so these name one version each
+    private static final String KEY_REPAIR = "repair:" + EMBEDDED_MANIFEST;
+    private static final String KEY_PERMISSIONS = "permissions:";
+    private static final String KEY_IMPORT = "import:";
+    private static final SingleFlight FLIGHTS = new SingleFlight(IO);
+    private static final InstallFlights INSTALLS = new InstallFlights(FLIGHTS, EMBEDDED_MANIFEST);
 
     public interface Listener {
         void onReady(File installDir);
@@ -22,142 +50,527 @@ public final class RuntimeInstaller {
         void onError(Exception e);
     }
 
+    /** Stable path of the active runtime (a symlink into {@code versions/}; see {@link RuntimeLayout}). */
     public static File getInstallDir(Context ctx, String subdir) {
-        File base = ctx.getDir("runtime", Context.MODE_PRIVATE);
-        return new File(base, subdir);
+        return layout(ctx, subdir).link();
     }
 
-    public static void ensureInstalled(Context ctx, Listener cb) {
-        installInternal(ctx, cb, /*force*/ false);
+    /**
+     * Where {@code mf}'s archive can come from, for {@link Mirrors}: files preseeded into the app's
+     * external {@code files/preseed} dir (by digest or by the url's file name, e.g. with adb push),
+     * then the manifest's url and mirrors.
+     */
+    static List<String> sources(Context ctx, RuntimeManifest mf) {
+        List<String> out = new ArrayList<>();
+        File preseed = ctx.getExternalFilesDir("preseed");
+        if (preseed != null) {
+            if (Hashes.shouldVerify(mf.digest)) out.add(new File(preseed, mf.digest).getAbsolutePath());
+            String name = Uri.parse(mf.url).getLastPathSegment();
+            if (name != null && !name.isEmpty()) out.add(new File(preseed, name).getAbsolutePath());
+        }
+        out.addAll(mf.sources);
+        return out;
+    }
+
+    private static RuntimeLayout layout(Context ctx, String subdir) {
+        return RuntimeStore.shared(ctx).layout(subdir);
     }
 
-    public static void forceReinstall(Context ctx, Listener cb) {
-        installInternal(ctx, cb, /*force*/ true);
+    /**
+     * Joins the install (or forced reinstall) already in flight, otherwise starts one. Installs
+     * and repairs run one at a time on a single worker; see {@link #installs()}.
+     */
+    static SingleFlight.Handle<File> ensureInstalled(Context ctx, Listener cb) {
+        return INSTALLS.ensureInstalled((token, log) -> install(ctx, false, log), callback(cb));
     }
 
-    private static void installInternal(Context ctx, Listener cb, boolean force) {
+    /** Joins a forced reinstall already in flight; otherwise one starts after any running install. */
+    static SingleFlight.Handle<File> forceReinstall(Context ctx, Listener cb) {
+        return INSTALLS.forceReinstall((token, log) -> install(ctx, true, log), callback(cb));
+    }
+
+    /** The process-wide coordinator every install path goes through, {@link RuntimeBootstrap} included. */
+    static SingleFlight installs() {
+        return FLIGHTS;
+    }
+
+    private static SingleFlight.Callback<File> callback(Listener cb) {
+        return new SingleFlight.Callback<File>() {
+            @Override public void onProgress(String msg) { post(cb, () -> cb.onProgress(msg)); }
+            @Override public void onResult(File dir) { post(cb, () -> cb.onReady(dir)); }
+            @Override public void onError(Exception e) { post(cb, () -> cb.onError(e)); }
+        };
+    }
+
+    /**
+     * Everything is built in a staging dir and swapped in at the end, so the active version stays
+     * usable (and running sessions keep their files) for the whole download/extract. The new tree
+     * is then hard-linked into the {@link RuntimeStore}, so files it shares with kept versions take
+     * no more space.
+     */
+    private static File install(Context ctx, boolean force, ProgressLog log) throws Exception {
+        Metrics.Install run = Metrics.start(force ? "reinstall" : "install");
+        String outcome = "installed";
+        Exception failure = null;
+        File spool = null;
+        File staging = null;
         try {
-            RuntimeManifest mf = RuntimeManifest.fromAssets(ctx);
-            File install = getInstallDir(ctx, mf.subdir);
-            File stamp = new File(install, ".sha256");
-
-            if (!force && install.isDirectory() && stamp.isFile()) {
-                String existing = readAll(stamp).trim().toLowerCase();
-                if (!existing.isEmpty() && !existing.equals("auto") && existing.equals(mf.sha256)) {
-                    post(cb, () -> cb.onReady(install));
-                    return;
+            RuntimeManifest mf;
+            try (Metrics.Phase p = run.phase("manifest")) {
+                mf = embeddedManifest(ctx);
+            }
+            run.tag("hash", mf.hash);
+            run.tag("format", mf.format);
+            RuntimeStore store = RuntimeStore.shared(ctx);
+            store.adoptLegacy(ctx);
+            RuntimeLayout layout = store.layout(mf.subdir);
+            File current = layout.current();
+            File stamp = current != null ? new File(current, STAMP) : null;
+
+            // O(1) readiness: one fixed-size header read, whatever the size of the tree.
+            // Installs from before the index fall back to the .sha256 stamp.
+            if (!force && current != null) {
+                InstallIndex.Header h;
+                boolean ready;
+                try (Metrics.Phase p = run.phase("readiness")) {
+                    h = InstallIndex.readHeader(current);
+                    ready = h != null ? h.matches(mf.digest) : stampMatches(stamp, mf.digest);
+                }
+                if (ready) {
+                    outcome = "ready";
+                    if (h != null) scheduleBackgroundCheck(store, current, mf);
+                    return current;
                 }
             }
 
-            post(cb, () -> cb.onProgress("[runtime] downloading…"));
-            Net.getBytesAsync(mf.url, 8000, 30000, new Net.Callback() {
-                @Override public void onSuccess(byte[] data) {
-                    try {
-                        post(cb, () -> cb.onProgress("[runtime] verifying…"));
-                        String got = sha256Hex(data);
-                        String expected = (mf.sha256 == null) ? "" : mf.sha256.trim().toLowerCase();
-                        if (!expected.isEmpty() && !expected.equals("auto") && !got.equals(expected)) {
-                            throw new IOException("sha256 mismatch expected=" + expected + " got=" + got);
-                        }
+            // A version kept from before (e.g. after a rollback) only needs the link pointed back at it
+            File kept = force ? null : layout.find(mf.digest);
+            if (kept != null) {
+                log.log("[runtime] reactivating " + kept.getName());
+                try (Metrics.Phase p = run.phase("activate")) {
+                    layout.activate(kept);
+                }
+                outcome = "kept";
+                return kept;
+            }
 
-                        post(cb, () -> cb.onProgress("[runtime] unpacking…"));
-                        unzipTo(data, install);
+            String id = RuntimeLayout.newVersionId(mf.digest);
 
-                        // Write stamp
-                        if (!install.exists() && !install.mkdirs())
-                            throw new IOException("mkdirs failed: " + install);
-                        try (FileWriter w = new FileWriter(stamp, false)) {
-                            w.write(got);
-                            w.write("\n");
+            // Per-file delta when the manifest indexes the tree and an earlier install is present:
+            // hard-link the current tree into staging, then patch only what changed.
+            if (!force && mf.supportsDelta() && stamp != null && stamp.isFile()) {
+                try {
+                    log.log("[runtime] delta update…");
+                    DeltaUpdater.Plan plan;
+                    try (Metrics.Phase p = run.phase("delta")) {
+                        staging = layout.newStaging(id);
+                        RuntimeLayout.linkTree(current, staging);
+                        plan = DeltaUpdater.update(mf, staging, log);
+                        p.add("files", plan.fetch.size());
+                        p.add("bytes", plan.fetchBytes);
+                    }
+                    try (Metrics.Phase p = run.phase("index")) {
+                        List<InstallIndex.Entry> entries = new ArrayList<>(plan.wanted.size());
+                        for (RuntimeManifest.FileEntry fe : plan.wanted) {
+                            entries.add(InstallIndex.Entry.of(staging, fe.path, Hashes.unhex(fe.sha256), fe.mode));
                         }
+                        store.ingest(staging, entries);
+                        InstallIndex.write(staging, mf.digest, entries);
+                        writeStamp(new File(staging, STAMP), mf.digest);
+                    }
+                    File installed;
+                    try (Metrics.Phase p = run.phase("activate")) {
+                        installed = layout.commit(staging, id);
+                        staging = null;
+                        layout.gc();
+                        store.trim();
+                    }
+                    outcome = "delta";
+                    return installed;
+                } catch (Exception e) {
+                    Log.w(TAG, "delta update failed; falling back to full archive", e);
+                    run.tag("delta", "failed");
+                    log.log("[runtime] delta failed (" + e.getMessage() + "), full download…");
+                }
+            }
 
-                        // **Critical**: ensure exec bits on dirs and bin/*
-                        post(cb, () -> cb.onProgress("[runtime] fixing permissions…"));
-                        fixExecBitsRecursive(install);
-                        File bin = new File(install, "bin");
-                        if (bin.isDirectory()) {
-                            File[] xs = bin.listFiles();
-                            if (xs != null) {
-                                for (File f : xs) {
-                                    try { Os.chmod(f.getAbsolutePath(), 0755); } catch (Throwable t) { Log.w(TAG, "chmod exec", t); }
-                                }
-                            }
-                        }
+            // Stream the body to a spool file, hashing as it goes; the live tree is untouched until verified.
+            // A failed transfer leaves its .part behind so the next attempt, from any source, resumes it.
+            log.log("[runtime] downloading…");
+            spool = store.archive("rf-runtime.spool." + mf.format);
+            Hashes.Algorithm alg = Hashes.algorithm(mf.hash);
+            String got;
+            try (Metrics.Phase p = run.phase("download")) {
+                got = Mirrors.downloadTo(sources(ctx, mf), 8000, 30000, spool, log, alg, mf.digest);
+            }
+
+            log.log("[runtime] verifying…");
+            try (Metrics.Phase p = run.phase("verify")) {
+                verify(mf, alg, got);
+            }
+
+            log.log("[runtime] unpacking…");
+            staging = layout.newStaging(id);
+            // Modes are set as files land: bin/* 0755, other files 0644, directories 0755
+            Queue<InstallIndex.Entry> entries;
+            try (Metrics.Phase p = run.phase("extract")) {
+                entries = Unpacker.unpack(spool, mf.format, staging, ParallelUnzip.defaultThreads(), mf.modes);
+            }
+
+            File installed = activate(store, layout, mf, staging, id, got, entries, run, log);
+            staging = null;
+            return installed;
+        } catch (Exception e) {
+            failure = e;
+            Log.e(TAG, "install failed", e);
+            throw e;
+        } finally {
+            run.finish(outcome, failure);
+            //noinspection ResultOfMethodCallIgnored
+            if (spool != null) spool.delete();
+            if (staging != null) RuntimeLayout.deleteRec(staging);
+        }
+    }
+
+    /**
+     * Indexes, stamps and ingests a verified, freshly extracted {@code staging} tree, then swaps it
+     * in as the active version; the old one is removed once no session uses it.
+     */
+    private static File activate(RuntimeStore store, RuntimeLayout layout, RuntimeManifest mf, File staging,
+                                 String id, String got, Queue<InstallIndex.Entry> entries,
+                                 Metrics.Install run, ProgressLog log) throws Exception {
+        try (Metrics.Phase p = run.phase("index")) {
+            // Keep the file index so the next version can be applied as a delta
+            if (mf.supportsDelta()) {
+                try {
+                    DeltaUpdater.writeIndex(staging, DeltaUpdater.resolveIndex(mf));
+                } catch (Exception e) {
+                    Log.w(TAG, "file index unavailable; next update will be a full download", e);
+                }
+            }
+
+            store.ingest(staging, entries);
+            InstallIndex.write(staging, got, entries);
+            writeStamp(new File(staging, STAMP), got);
+        }
+
+        log.log("[runtime] activating…");
+        try (Metrics.Phase p = run.phase("activate")) {
+            File installed = layout.commit(staging, id);
+            layout.gc();
+            store.trim();
+            return installed;
+        }
+    }
+
+    private static void verify(RuntimeManifest mf, Hashes.Algorithm alg, String got) throws IOException {
+        String expected = (mf.digest == null) ? "" : mf.digest.trim().toLowerCase();
+        if (Hashes.shouldVerify(expected) && !got.equals(expected)) {
+            throw new IOException(alg + " mismatch expected=" + expected + " got=" + got);
+        }
+    }
+
+    /**
+     * Installs the embedded manifest's runtime from an archive already on the device: a path, a
+     * {@code file:} uri, or a {@code content:} uri such as the document picker returns. Nothing is
+     * copied first: the archive is extracted into staging straight from where it is while it is
+     * hashed, and committed with the same index and stamp as a download only if the digest
+     * matches. Runs on the install worker, after any install in flight.
+     */
+    static SingleFlight.Handle<File> importArchive(Context ctx, Uri source, Listener cb) {
+        return FLIGHTS.submit(KEY_IMPORT + source, (token, log) -> importInternal(ctx, source, token, log), callback(cb));
+    }
+
+    private static File importInternal(Context ctx, Uri source, CancellationToken token, ProgressLog log) throws Exception {
+        Metrics.Install run = Metrics.start("import");
+        String outcome = "installed";
+        Exception failure = null;
+        File spool = null;
+        File staging = null;
+        try (Source in = Source.open(ctx, source)) {
+            RuntimeManifest mf;
+            try (Metrics.Phase p = run.phase("manifest")) {
+                mf = embeddedManifest(ctx);
+            }
+            run.tag("hash", mf.hash);
+            run.tag("format", mf.format);
+            run.tag("source", in.kind);
+            RuntimeStore store = RuntimeStore.shared(ctx);
+            store.adoptLegacy(ctx);
+            RuntimeLayout layout = store.layout(mf.subdir);
 
-                        post(cb, () -> cb.onReady(install));
-                    } catch (Exception e) {
-                        Log.e(TAG, "install failed", e);
-                        post(cb, () -> cb.onError(e));
+            // Importing what is already installed (or kept) is a no-op, so provisioning scripts can rerun
+            if (Hashes.shouldVerify(mf.digest)) {
+                File current = layout.current();
+                InstallIndex.Header h = current != null ? InstallIndex.readHeader(current) : null;
+                if (h != null && h.matches(mf.digest)) {
+                    log.log("[runtime] " + mf.digest + " already installed");
+                    Log.i(TAG, "import done: already installed");
+                    outcome = "ready";
+                    return current;
+                }
+                File kept = layout.find(mf.digest);
+                if (kept != null) {
+                    log.log("[runtime] reactivating " + kept.getName());
+                    try (Metrics.Phase p = run.phase("activate")) {
+                        layout.activate(kept);
                     }
+                    Log.i(TAG, "import done: " + kept);
+                    outcome = "kept";
+                    return kept;
                 }
-                @Override public void onError(Exception e) {
-                    Log.e(TAG, "download failed", e);
-                    post(cb, () -> cb.onError(e));
+            }
+
+            log.log("[runtime] importing " + source + "…");
+            Hashes.Algorithm alg = Hashes.algorithm(mf.hash);
+            File archive = in.file;
+            if (archive == null && !Unpacker.TAR_ZST.equals(mf.format)) {
+                // A zip's directory is at its end: a provider that only streams has to be spooled
+                log.log("[runtime] source is not seekable; spooling…");
+                spool = store.archive("rf-runtime.import." + mf.format);
+                try (Metrics.Phase p = run.phase("copy")) {
+                    p.add("bytes", spool(in.stream, spool));
                 }
-            });
+                archive = spool;
+            }
+
+            String id = RuntimeLayout.newVersionId(mf.digest);
+            staging = layout.newStaging(id);
+            Queue<InstallIndex.Entry> entries;
+            String got;
+            log.log("[runtime] unpacking…");
+            try (Metrics.Phase p = run.phase("extract")) {
+                int threads = ParallelUnzip.defaultThreads();
+                if (archive != null) {
+                    // Hashed on a thread of its own while it extracts; the page cache serves both readers
+                    CancellationToken hashing = new CancellationToken();
+                    try (Closeable link = token.onCancel(hashing::cancel)) {
+                        Future<String> digest = hashAside(archive, alg, hashing);
+                        entries = Unpacker.unpack(archive, mf.format, staging, threads, mf.modes);
+                        got = digest.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    } finally {
+                        hashing.cancel();
+                    }
+                    p.add("bytes", archive.length());
+                } else {
+                    Hashes.HashingInputStream h = new Hashes.HashingInputStream(in.stream, alg);
+                    entries = Unpacker.unpack(h, mf.format, staging, threads, mf.modes);
+                    got = h.finish();
+                }
+            }
+
+            log.log("[runtime] verifying…");
+            try (Metrics.Phase p = run.phase("verify")) {
+                // An archive from outside is only as trustworthy as the digest it is checked against
+                if (!Hashes.shouldVerify(mf.digest)) throw new IOException("embedded manifest pins no " + mf.hash + " digest");
+                verify(mf, alg, got);
+            }
 
+            File installed = activate(store, layout, mf, staging, id, got, entries, run, log);
+            staging = null;
+            log.log("[runtime] imported " + got);
+            Log.i(TAG, "import done: " + installed);
+            return installed;
         } catch (Exception e) {
-            Log.e(TAG, "manifest/init failed", e);
-            post(cb, () -> cb.onError(e));
+            failure = e;
+            Log.e(TAG, "import failed", e);
+            throw e;
+        } finally {
+            run.finish(outcome, failure);
+            //noinspection ResultOfMethodCallIgnored
+            if (spool != null) spool.delete();
+            if (staging != null) RuntimeLayout.deleteRec(staging);
         }
     }
 
-    private static void unzipTo(byte[] zipBytes, File destDir) throws IOException {
-        if (destDir.exists()) deleteRec(destDir);
-        if (!destDir.mkdirs() && !destDir.isDirectory())
-            throw new IOException("mkdirs failed: " + destDir);
-
-        try (ByteArrayInputStream bin = new ByteArrayInputStream(zipBytes);
-             ZipInputStream zin = new ZipInputStream(bin)) {
-            ZipEntry e;
-            byte[] buf = new byte[8192];
-            while ((e = zin.getNextEntry()) != null) {
-                File out = new File(destDir, e.getName());
-                if (e.isDirectory()) {
-                    if (!out.exists() && !out.mkdirs())
-                        throw new IOException("mkdirs failed: " + out);
-                } else {
-                    File parent = out.getParentFile();
-                    if (parent != null && !parent.exists() && !parent.mkdirs())
-                        throw new IOException("mkdirs failed: " + parent);
-                    try (FileOutputStream fos = new FileOutputStream(out)) {
-                        int n;
-                        while ((n = zin.read(buf)) >= 0) fos.write(buf, 0, n);
-                    }
-                    // default file mode 0644; we'll fix exec bits later
-                    try { Os.chmod(out.getAbsolutePath(), 0644); } catch (Throwable ignore) {}
+    /** Digest of {@code f} on a thread of its own, under {@code token}. */
+    private static Future<String> hashAside(File f, Hashes.Algorithm alg, CancellationToken token) {
+        FutureTask<String> task = new FutureTask<>(() -> {
+            try (CancellationToken.Scope s = token.enter()) {
+                return Hashes.fileHex(f, alg);
+            }
+        });
+        Thread t = new Thread(task, "rf-import-hash");
+        t.setDaemon(true);
+        t.start();
+        return task;
+    }
+
+    private static long spool(InputStream in, File dst) throws IOException {
+        CancellationToken token = CancellationToken.current();
+        long total = 0;
+        try (FileOutputStream out = new FileOutputStream(dst)) {
+            byte[] buf = new byte[256 * 1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                token.throwIfCancelled();
+                out.write(buf, 0, n);
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * An archive to import, opened once: a file it can be read from in place, else (for a provider
+     * that only hands out a pipe) a stream.
+     */
+    private static final class Source implements Closeable {
+        final File file;
+        final InputStream stream;
+        final String kind;
+        private final ParcelFileDescriptor pfd;
+
+        private Source(File file, InputStream stream, ParcelFileDescriptor pfd, String kind) {
+            this.file = file; this.stream = stream; this.pfd = pfd; this.kind = kind;
+        }
+
+        static Source open(Context ctx, Uri uri) throws IOException {
+            String scheme = uri.getScheme();
+            if (scheme == null || scheme.equalsIgnoreCase("file")) {
+                File f = new File(uri.getPath());
+                if (!f.isFile()) throw new FileNotFoundException("no archive at " + f);
+                return new Source(f, null, null, "file");
+            }
+            ParcelFileDescriptor pfd = ctx.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) throw new FileNotFoundException("provider returned nothing for " + uri);
+            try {
+                // Documents on local storage come back as a real file: read it through our own descriptor
+                File self = new File("/proc/self/fd/" + pfd.getFd());
+                if (OsConstants.S_ISREG(Os.fstat(pfd.getFileDescriptor()).st_mode) && self.canRead()) {
+                    return new Source(self, null, pfd, "fd");
                 }
-                zin.closeEntry();
+            } catch (ErrnoException e) {
+                Log.w(TAG, "fstat failed for " + uri + "; reading it as a stream", e);
             }
+            return new Source(null, new ParcelFileDescriptor.AutoCloseInputStream(pfd), pfd, "stream");
+        }
+
+        @Override public void close() throws IOException {
+            if (stream != null) stream.close();
+            if (pfd != null) pfd.close();
         }
     }
 
-    private static void fixExecBitsRecursive(File root) {
-        // Ensure every directory has 0755 so traversal/execution is allowed
-        if (root.isDirectory()) {
-            try { Os.chmod(root.getAbsolutePath(), 0755); } catch (Throwable t) { Log.w(TAG, "chmod dir", t); }
-            File[] kids = root.listFiles();
-            if (kids != null) for (File k : kids) fixExecBitsRecursive(k);
-        } else {
-            // leave files at 0644; bin/* is bumped to 0755 above
+    /**
+     * Background permission repair on the install worker: stats every file the install index
+     * lists (and their directories) and chmods only those whose mode is wrong. Trees without an
+     * index are walked and compared with the default modes.
+     */
+    static SingleFlight.Handle<File> fixPermissions(Context ctx, File dir, Listener cb) {
+        return FLIGHTS.submit(KEY_PERMISSIONS + dir.getAbsolutePath(), (token, log) -> {
+            InstallIndex idx = InstallIndex.read(dir);
+            token.throwIfCancelled();
+            FileModes.Repair r = FileModes.repair(dir, idx != null ? idx.entries : null);
+            log.log("[fix] permissions: " + r + (idx == null ? " (no index; default modes)" : ""));
+            return dir;
+        }, callback(cb));
+    }
+
+    /**
+     * Deferred, low-priority incremental scrub of an installed tree (see {@link RuntimeScrubber});
+     * files that really differ are repaired in place.
+     */
+    private static void scheduleBackgroundCheck(RuntimeStore store, File dir, RuntimeManifest mf) {
+        CHECK.schedule(() -> {
+            try {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                RuntimeScrubber.Result r = RuntimeScrubber.scrub(dir, new RuntimeScrubber.Options(),
+                        new RuntimeScrubber.Handle(), null);
+                Log.i(TAG, "install check: " + r);
+                // Patched on the install worker, so it can't interleave with an install
+                if (!r.isClean()) FLIGHTS.submit(KEY_REPAIR + "/background", (token, log) -> repairInternal(store, dir, mf, r.bad, log),
+                        new SingleFlight.Callback<Boolean>() {
+                            @Override public void onProgress(String msg) { Log.i(TAG, msg); }
+                            @Override public void onResult(Boolean repaired) {}
+                            @Override public void onError(Exception e) { Log.w(TAG, "background repair failed", e); }
+                        });
+            } catch (Exception e) {
+                Log.w(TAG, "install check failed", e);
+            }
+        }, CHECK_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Re-fetches just the files a scrub found corrupt or missing. Needs {@code blob_base} in the
+     * manifest; without it the install is invalidated and reinstalled from the full archive.
+     */
+    static SingleFlight.Handle<File> repair(Context ctx, RuntimeScrubber.Result result, Listener cb) {
+        return FLIGHTS.submit(KEY_REPAIR, (token, log) -> {
+            try {
+                RuntimeManifest mf = embeddedManifest(ctx);
+                RuntimeStore store = RuntimeStore.shared(ctx);
+                File current = store.layout(mf.subdir).current();
+                if (current == null) throw new FileNotFoundException("runtime not installed");
+                if (result.isClean()) return current;
+                // Already on the install worker: a full reinstall runs inline
+                if (!repairInternal(store, current, mf, result.bad, log)) return install(ctx, true, log);
+                return current;
+            } catch (Exception e) {
+                Log.e(TAG, "repair failed", e);
+                throw e;
+            }
+        }, callback(cb));
+    }
+
+    /**
+     * Replaces {@code bad} in {@code dir} from blobs, and in the store too, since the damaged copies
+     * are its objects, then records them in the index. Returns false
+     * (after dropping the index and stamp so the next launch reinstalls) when there is no blob source.
+     */
+    private static boolean repairInternal(RuntimeStore store, File dir, RuntimeManifest mf,
+                                          List<InstallIndex.Entry> bad, ProgressLog log) throws Exception {
+        if (mf.blobBase.isEmpty()) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, InstallIndex.NAME).delete();
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, STAMP).delete();
+            return false;
+        }
+        log.log("[runtime] repairing " + bad.size() + " file(s)…");
+        List<RuntimeManifest.FileEntry> fix = new ArrayList<>(bad.size());
+        for (InstallIndex.Entry e : bad) fix.add(new RuntimeManifest.FileEntry(e.path, e.size, e.mode, e.shaHex()));
+        // Files are replaced by rename, so a session still running from this tree keeps its old inodes.
+        DeltaUpdater.repair(dir, mf.blobBase, fix, log);
+        store.forget(bad);
+        store.ingest(dir, bad);
+
+        InstallIndex idx = InstallIndex.read(dir);
+        if (idx != null) {
+            Map<String, InstallIndex.Entry> byPath = new HashMap<>();
+            for (InstallIndex.Entry e : idx.entries) byPath.put(e.path, e);
+            for (InstallIndex.Entry e : bad) {
+                InstallIndex.Entry x = byPath.get(e.path);
+                if (x != null) x.mtime = new File(dir, e.path).lastModified();
+            }
+            idx.rewrite(dir);
         }
+        log.log("[runtime] repaired " + bad.size() + " file(s)");
+        return true;
     }
 
-    private static void deleteRec(File f) {
-        if (f.isDirectory()) {
-            File[] kids = f.listFiles();
-            if (kids != null) for (File k : kids) deleteRec(k);
+    private static RuntimeManifest embeddedManifest(Context ctx) throws Exception {
+        try (InputStream in = ctx.getAssets().open(EMBEDDED_MANIFEST)) {
+            return RuntimeManifest.pinned(in);
         }
-        //noinspection ResultOfMethodCallIgnored
-        f.delete();
     }
 
-    private static String sha256Hex(byte[] data) throws Exception {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        byte[] d = md.digest(data);
-        StringBuilder sb = new StringBuilder(d.length * 2);
-        for (byte b : d) sb.append(String.format("%02x", b));
-        return sb.toString();
+    private static boolean stampMatches(File stamp, String sha256) throws IOException {
+        if (stamp == null || !stamp.isFile()) return false;
+        String existing = readAll(stamp).trim().toLowerCase();
+        return !existing.isEmpty() && !existing.equals("auto") && existing.equals(sha256);
+    }
+
+    private static void writeStamp(File stamp, String sha) throws IOException {
+        // Unlink first: in a delta staging tree the old stamp is a hard link into the live version.
+        //noinspection ResultOfMethodCallIgnored
+        stamp.delete();
+        try (FileWriter w = new FileWriter(stamp, false)) {
+            w.write(sha);
+            w.write("\n");
+        }
     }
 
     private static String readAll(File f) throws IOException {
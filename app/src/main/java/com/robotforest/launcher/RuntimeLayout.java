@@ -0,0 +1,311 @@
+package com.robotforest.launcher;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Versioned on-disk layout for an installed runtime:
+ *
+ * <pre>
+ *   base/versions/&lt;id&gt;/          complete, verified trees
+ *   base/versions/.staging-&lt;id&gt;/ tree being extracted (never read by launches)
+ *   base/&lt;name&gt;  -&gt; versions/&lt;id&gt; symlink to the active tree
+ * </pre>
+ *
+ * An install fills a staging dir, fsyncs it, renames it into {@code versions/} and then
+ * atomically repoints the {@code name} symlink with rename(2). Until that rename, launches keep
+ * using the old tree; after it, they get the new one. A process killed part-way leaves at most
+ * a stale staging dir, which {@link #gc()} removes. Old versions stay, as hard links into the
+ * {@link RuntimeStore}, until its budget evicts them, least recently used first and never while
+ * a {@link Lease} (held by running {@link Exec} sessions) refers to them. Several names may share
+ * one base; a version any of them points to is active.
+ */
+final class RuntimeLayout {
+    private static final String TAG = "runtime";
+    static final String VERSIONS = "versions";
+    private static final String STAGING_PREFIX = ".staging-";
+
+    private static final Map<String, AtomicInteger> LEASES = new ConcurrentHashMap<>();
+    // versions/legacy-* -> the flat tree's old path, whose leases still pin it after the move
+    private static final Map<String, String> PARKED = new ConcurrentHashMap<>();
+
+    private final File base;
+    private final String name;
+
+    RuntimeLayout(File base, String name) {
+        this.base = base;
+        this.name = name;
+    }
+
+    /** The stable path launches use; a symlink to the active version (or a legacy real dir). */
+    File link() { return new File(base, name); }
+
+    File versionsDir() { return new File(base, VERSIONS); }
+
+    /** Resolved directory of the active version, or null when nothing is installed. */
+    File current() throws IOException {
+        File link = link();
+        if (!link.isDirectory()) return null;
+        return link.getCanonicalFile();
+    }
+
+    static String newVersionId(String sha256) {
+        String stem = (sha256 != null && sha256.length() >= 12) ? sha256.substring(0, 12) : "v";
+        return stem + "-" + Long.toString(System.currentTimeMillis(), 36);
+    }
+
+    /** Fresh, empty staging directory for version {@code id}. */
+    File newStaging(String id) throws IOException {
+        File dir = new File(versionsDir(), STAGING_PREFIX + id);
+        if (dir.exists()) deleteRec(dir);
+        if (!dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+        return dir;
+    }
+
+    /**
+     * Makes {@code staging} the active version: fsync, rename into {@code versions/id}, then
+     * swap the {@code name} symlink. Returns the committed version directory.
+     */
+    File commit(File staging, String id) throws IOException {
+        syncTree(staging);
+        File version = new File(versionsDir(), id);
+        if (version.exists()) throw new IOException("version already exists: " + version);
+        rename(staging, version);
+        syncDir(versionsDir());
+        return activate(version);
+    }
+
+    /** A kept version whose install index records archive digest {@code digest}, or null. */
+    File find(String digest) {
+        File[] kids = versionsDir().listFiles();
+        if (kids == null || !Hashes.shouldVerify(digest)) return null;
+        for (File v : kids) {
+            if (v.getName().startsWith(STAGING_PREFIX)) continue;
+            InstallIndex.Header h = InstallIndex.readHeader(v);
+            if (h != null && h.matches(digest)) return v;
+        }
+        return null;
+    }
+
+    /** Atomically points {@code name} at {@code version}, a directory in {@code versions/}. */
+    File activate(File version) throws IOException {
+        String id = version.getName();
+        File link = link();
+        File tmp = new File(base, "." + name + ".swap");
+        //noinspection ResultOfMethodCallIgnored
+        tmp.delete();
+        try {
+            Os.symlink(VERSIONS + "/" + id, tmp.getAbsolutePath());
+        } catch (ErrnoException e) {
+            throw new IOException("symlink failed: " + tmp, e);
+        }
+        if (link.isDirectory() && !isSymlink(link)) {
+            // One-time migration from the flat layout: park the old tree as a version so a running
+            // session keeps its files; this is the only non-atomic step and happens once per device.
+            // Sessions leased it by its old path, which keeps pinning it under the new one.
+            String flat = link.getCanonicalPath();
+            File legacy = new File(versionsDir(), "legacy-" + Long.toString(System.currentTimeMillis(), 36));
+            rename(link, legacy);
+            PARKED.put(legacy.getCanonicalPath(), flat);
+        }
+        rename(tmp, link);
+        syncDir(base);
+        //noinspection ResultOfMethodCallIgnored
+        version.setLastModified(System.currentTimeMillis());
+        return version;
+    }
+
+    /** Deletes stale staging dirs; call when no install is running. Versions are left to {@link RuntimeStore#trim}. */
+    void gc() {
+        File[] kids = versionsDir().listFiles();
+        if (kids == null) return;
+        for (File v : kids) {
+            if (!v.getName().startsWith(STAGING_PREFIX)) continue;
+            Log.i(TAG, "gc " + v.getName());
+            deleteRec(v);
+        }
+    }
+
+    /**
+     * Versions no name in {@code base} points to and no session leases, least recently used (by
+     * the directory's mtime, which activation and leases bump) first. Null when it can't tell
+     * what is active.
+     */
+    static List<File> inactive(File base) {
+        Set<String> active = new HashSet<>();
+        File[] links = base.listFiles();
+        if (links != null) for (File l : links) {
+            if (!isSymlink(l)) continue;
+            try {
+                active.add(l.getCanonicalPath());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        List<File> out = new ArrayList<>();
+        File[] kids = new File(base, VERSIONS).listFiles();
+        if (kids != null) for (File v : kids) {
+            if (v.getName().startsWith(STAGING_PREFIX) || !v.isDirectory()) continue;
+            String path;
+            try { path = v.getCanonicalPath(); } catch (IOException e) { continue; }
+            if (!active.contains(path) && !isLeased(path)) out.add(v);
+        }
+        Collections.sort(out, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        return out;
+    }
+
+    // ---- leases ----------------------------------------------------------------------------
+
+    /** Pins a version directory while something runs from it. */
+    static final class Lease implements Closeable {
+        private final String key;
+        private boolean closed;
+        private Lease(String key) { this.key = key; }
+        @Override public synchronized void close() {
+            if (closed || key == null) return;
+            closed = true;
+            AtomicInteger n = LEASES.get(key);
+            if (n != null && n.decrementAndGet() <= 0) LEASES.remove(key, n);
+        }
+    }
+
+    /**
+     * Leases the version that contains {@code path}, and marks it used now for LRU eviction. A
+     * path in a flat runtime (a stamped tree from before {@code versions/}) leases that tree, which
+     * stays pinned once {@link #activate} parks it as a version. A no-op lease for anything else.
+     */
+    static Lease lease(File path) {
+        String key = null;
+        try {
+            File f = path != null ? path.getCanonicalFile() : null;
+            File flat = null;
+            while (f != null) {
+                File parent = f.getParentFile();
+                if (parent != null && VERSIONS.equals(parent.getName())) { key = f.getPath(); break; }
+                if (flat == null && new File(f, RuntimeInstaller.STAMP).isFile()) flat = f;
+                f = parent;
+            }
+            if (key == null && flat != null) key = flat.getPath();
+        } catch (IOException ignore) {}
+        if (key != null) {
+            LEASES.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            //noinspection ResultOfMethodCallIgnored
+            new File(key).setLastModified(System.currentTimeMillis());
+        }
+        return new Lease(key);
+    }
+
+    /** True while any session runs from a runtime tree. */
+    static boolean anyLeased() {
+        for (AtomicInteger n : LEASES.values()) if (n.get() > 0) return true;
+        return false;
+    }
+
+    private static boolean isLeased(String canonical) {
+        AtomicInteger n = LEASES.get(canonical);
+        if (n != null && n.get() > 0) return true;
+        String flat = PARKED.get(canonical);
+        if (flat == null) return false;
+        n = LEASES.get(flat);
+        return n != null && n.get() > 0;
+    }
+
+    // ---- filesystem helpers ----------------------------------------------------------------
+
+    /**
+     * Populates {@code dst} with hard links to every file under {@code src} (copies if linking
+     * fails). Files in the result share inodes with the source: replace them (unlink or rename
+     * over), never rewrite them in place. Symlinks are recreated, not followed.
+     */
+    static void linkTree(File src, File dst) throws IOException {
+        File[] kids = src.listFiles();
+        if (kids == null) return;
+        for (File k : kids) {
+            File out = new File(dst, k.getName());
+            if (isSymlink(k)) {
+                try {
+                    Os.symlink(Os.readlink(k.getAbsolutePath()), out.getAbsolutePath());
+                } catch (ErrnoException e) {
+                    throw new IOException("symlink failed: " + out, e);
+                }
+            } else if (k.isDirectory()) {
+                if (!out.isDirectory() && !out.mkdirs()) throw new IOException("mkdirs failed: " + out);
+                try { Os.chmod(out.getAbsolutePath(), 0755); } catch (Throwable ignore) {}
+                linkTree(k, out);
+            } else {
+                try {
+                    Os.link(k.getAbsolutePath(), out.getAbsolutePath());
+                } catch (ErrnoException e) {
+                    copy(k, out);
+                }
+            }
+        }
+    }
+
+    /** fsync every file and directory under {@code root}, children before parents; symlinks are skipped. */
+    static void syncTree(File root) throws IOException {
+        File[] kids = root.listFiles();
+        if (kids != null) for (File k : kids) {
+            if (isSymlink(k)) continue;
+            if (k.isDirectory()) syncTree(k);
+            else try (FileInputStream in = new FileInputStream(k)) { in.getFD().sync(); }
+        }
+        syncDir(root);
+    }
+
+    private static void syncDir(File dir) {
+        try {
+            FileDescriptor fd = Os.open(dir.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try { Os.fsync(fd); } finally { Os.close(fd); }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "fsync dir " + dir, e);
+        }
+    }
+
+    static boolean isSymlink(File f) {
+        try {
+            return OsConstants.S_ISLNK(Os.lstat(f.getAbsolutePath()).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        try {
+            Os.rename(from.getAbsolutePath(), to.getAbsolutePath());
+        } catch (ErrnoException e) {
+            throw new IOException("rename " + from + " -> " + to + " failed", e);
+        }
+    }
+
+    private static void copy(File src, File dst) throws IOException {
+        try (InputStream in = new FileInputStream(src); OutputStream out = new FileOutputStream(dst)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) out.write(buf, 0, n);
+        }
+        try { Os.chmod(dst.getAbsolutePath(), Os.stat(src.getAbsolutePath()).st_mode & 07777); } catch (Throwable ignore) {}
+    }
+
+    static void deleteRec(File f) {
+        // Never follow a symlink out of the tree being deleted.
+        if (f.isDirectory() && !isSymlink(f)) {
+            File[] kids = f.listFiles();
+            if (kids != null) for (File k : kids) deleteRec(k);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
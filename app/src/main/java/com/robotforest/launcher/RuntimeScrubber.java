@@ -0,0 +1,272 @@
+package com.robotforest.launcher;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies an installed runtime tree against its {@link InstallIndex}, hashing files on several
+ * threads. An incremental scrub only hashes files whose size or mtime differ from the last
+ * verified state recorded in the index; a full scrub hashes everything. Verified mtimes are written
+ * back, so the next incremental scrub skips those files.
+ *
+ * Reads go through a shared byte-rate limit, which drops to {@link Options#busyBytesPerSec}
+ * while a session holds a {@link RuntimeLayout.Lease}, so a scrub does not compete with a running
+ * box64. Bad files are reported in {@link Result}; {@link RuntimeInstaller#repair} re-fetches them.
+ */
+public final class RuntimeScrubber {
+    private static final String TAG = "runtime";
+    private static final Handler MAIN = new Handler(Looper.getMainLooper());
+    private static final int BUF = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    /** All callbacks run on the main thread. */
+    public interface Listener {
+        void onProgress(Progress p);
+        void onResult(Result r);
+        void onError(Exception e);
+    }
+
+    public static final class Options {
+        /** Hash every file, ignoring the recorded size/mtime. */
+        public boolean full = false;
+        public int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        /** Read budget while idle; 0 means unlimited. */
+        public long bytesPerSec = 64L * 1024 * 1024;
+        /** Read budget while a session runs from the runtime; 0 means unlimited. */
+        public long busyBytesPerSec = 8L * 1024 * 1024;
+    }
+
+    public static final class Progress {
+        public final int filesDone, filesTotal;
+        public final long bytesHashed, bytesToHash;
+        Progress(int filesDone, int filesTotal, long bytesHashed, long bytesToHash) {
+            this.filesDone = filesDone; this.filesTotal = filesTotal;
+            this.bytesHashed = bytesHashed; this.bytesToHash = bytesToHash;
+        }
+        @Override public String toString() {
+            return filesDone + "/" + filesTotal + " files, " + (bytesHashed >> 20) + "/" + (bytesToHash >> 20) + " MB";
+        }
+    }
+
+    public static final class Result {
+        public final int checked;       // files hashed
+        public final int skipped;       // unchanged since last verified
+        public final long bytesHashed;
+        public final long elapsedMs;
+        public final boolean cancelled;
+        public final List<String> corrupt;
+        public final List<String> missing;
+        /** Index entries of corrupt and missing files, for {@link RuntimeInstaller#repair}. */
+        final List<InstallIndex.Entry> bad;
+
+        Result(int checked, int skipped, long bytesHashed, long elapsedMs, boolean cancelled,
+               List<InstallIndex.Entry> corrupt, List<InstallIndex.Entry> missing) {
+            this.checked = checked; this.skipped = skipped; this.bytesHashed = bytesHashed;
+            this.elapsedMs = elapsedMs; this.cancelled = cancelled;
+            this.corrupt = paths(corrupt);
+            this.missing = paths(missing);
+            List<InstallIndex.Entry> bad = new ArrayList<>(corrupt);
+            bad.addAll(missing);
+            this.bad = Collections.unmodifiableList(bad);
+        }
+
+        public boolean isClean() { return corrupt.isEmpty() && missing.isEmpty(); }
+
+        @Override public String toString() {
+            return "checked " + checked + ", skipped " + skipped + ", corrupt " + corrupt.size()
+                    + ", missing " + missing.size() + ", " + (bytesHashed >> 20) + " MB in " + elapsedMs + " ms"
+                    + (cancelled ? " (cancelled)" : "");
+        }
+
+        private static List<String> paths(List<InstallIndex.Entry> es) {
+            List<String> out = new ArrayList<>(es.size());
+            for (InstallIndex.Entry e : es) out.add(e.path);
+            return Collections.unmodifiableList(out);
+        }
+    }
+
+    /** A running scrub. */
+    public static final class Handle {
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile Future<?> future;
+        /** Stops at the next buffer; the listener still gets a Result with {@code cancelled} set. */
+        public void cancel() { cancelled.set(true); }
+        public boolean isCancelled() { return cancelled.get(); }
+        public boolean isDone() { Future<?> f = future; return f != null && f.isDone(); }
+    }
+
+    /** Receives progress on the scrubbing thread. */
+    interface ProgressSink { void onProgress(Progress p); }
+
+    private static final ExecutorService RUNNER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "rf-scrub");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private RuntimeScrubber() {}
+
+    /** Starts scrubbing {@code installDir} in the background; one scrub runs at a time. */
+    public static Handle start(File installDir, Options opt, Listener cb) {
+        Handle h = new Handle();
+        Options o = opt != null ? opt : new Options();
+        h.future = RUNNER.submit(() -> {
+            try {
+                Result r = scrub(installDir, o, h, p -> MAIN.post(() -> cb.onProgress(p)));
+                MAIN.post(() -> cb.onResult(r));
+            } catch (Exception e) {
+                Log.w(TAG, "scrub failed", e);
+                MAIN.post(() -> cb.onError(e));
+            }
+        });
+        return h;
+    }
+
+    /** Synchronous scrub on the calling thread (workers are spawned for hashing). */
+    static Result scrub(File dir, Options o, Handle h, ProgressSink sink) throws IOException {
+        long t0 = SystemClock.elapsedRealtime();
+        InstallIndex idx = InstallIndex.read(dir);
+        if (idx == null) throw new FileNotFoundException("no install index in " + dir);
+
+        List<InstallIndex.Entry> corrupt = Collections.synchronizedList(new ArrayList<>());
+        List<InstallIndex.Entry> missing = new ArrayList<>();
+        List<InstallIndex.Entry> work = new ArrayList<>();
+        long toHash = 0;
+        int skipped = 0;
+        // Stat pass: cheap, single-threaded, decides what needs hashing.
+        for (InstallIndex.Entry e : idx.entries) {
+            File f = new File(dir, e.path);
+            if (!f.isFile()) { missing.add(e); continue; }
+            long len = f.length();
+            if (len != e.size) { corrupt.add(e); continue; }
+            if (!o.full && f.lastModified() == e.mtime) { skipped++; continue; }
+            work.add(e);
+            toHash += e.size;
+        }
+        // Largest first keeps the workers evenly loaded to the end.
+        Collections.sort(work, (a, b) -> Long.compare(b.size, a.size));
+
+        AtomicInteger cursor = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong hashed = new AtomicLong();
+        AtomicBoolean dirty = new AtomicBoolean();
+        Throttle throttle = new Throttle(o.bytesPerSec, o.busyBytesPerSec);
+        long total = toHash;
+        AtomicLong lastReport = new AtomicLong();
+        Runnable report = () -> {
+            if (sink == null) return;
+            long now = SystemClock.elapsedRealtime(), last = lastReport.get();
+            if (now - last >= PROGRESS_INTERVAL_MS && lastReport.compareAndSet(last, now)) {
+                sink.onProgress(new Progress(done.get(), work.size(), hashed.get(), total));
+            }
+        };
+
+        int n = Math.max(1, Math.min(o.threads, work.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(() -> {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "rf-scrub-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> fs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                fs.add(pool.submit(() -> {
+                    byte[] buf = new byte[BUF];
+                    int i2;
+                    while (!h.isCancelled() && (i2 = cursor.getAndIncrement()) < work.size()) {
+                        InstallIndex.Entry e = work.get(i2);
+                        File f = new File(dir, e.path);
+                        long mtime = f.lastModified();
+                        byte[] got = hash(f, buf, throttle, h, hashed);
+                        if (got == null) break; // cancelled mid-file
+                        if (Arrays.equals(got, e.sha256)) {
+                            if (mtime != e.mtime) { e.mtime = mtime; dirty.set(true); }
+                        } else {
+                            corrupt.add(e);
+                        }
+                        done.incrementAndGet();
+                        report.run();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : fs) {
+                try {
+                    f.get();
+                } catch (ExecutionException ee) {
+                    h.cancel();
+                    Throwable c = ee.getCause();
+                    throw c instanceof IOException ? (IOException) c : new IOException(c);
+                } catch (InterruptedException ie) {
+                    h.cancel();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("scrub interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Keep what was verified even when cancelled, so the next incremental run resumes from it.
+        if (dirty.get()) idx.rewrite(dir);
+        if (sink != null) sink.onProgress(new Progress(done.get(), work.size(), hashed.get(), total));
+        return new Result(done.get(), skipped, hashed.get(), SystemClock.elapsedRealtime() - t0,
+                h.isCancelled(), new ArrayList<>(corrupt), missing);
+    }
+
+    /** SHA-256 of {@code f}, or null if cancelled part-way. */
+    private static byte[] hash(File f, byte[] buf, Throttle throttle, Handle h, AtomicLong hashed) throws IOException {
+        MessageDigest md = Hashes.sha256();
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                if (h.isCancelled()) return null;
+                md.update(buf, 0, n);
+                hashed.addAndGet(n);
+                throttle.acquire(n);
+            }
+        }
+        return md.digest();
+    }
+
+    /** Paces reads to a byte rate shared by all workers; the rate drops while sessions run. */
+    private static final class Throttle {
+        private final long idleRate, busyRate;
+        private long nextFreeNanos = System.nanoTime();
+
+        Throttle(long idleRate, long busyRate) { this.idleRate = idleRate; this.busyRate = busyRate; }
+
+        void acquire(int bytes) throws InterruptedIOException {
+            long rate = RuntimeLayout.anyLeased() ? busyRate : idleRate;
+            if (rate <= 0) return;
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                // Don't bank more than ~100 ms of idle time as burst credit.
+                if (nextFreeNanos < now - 100_000_000L) nextFreeNanos = now - 100_000_000L;
+                nextFreeNanos += bytes * 1_000_000_000L / rate;
+                wait = nextFreeNanos - now;
+            }
+            if (wait <= 0) return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("scrub interrupted");
+            }
+        }
+    }
+}
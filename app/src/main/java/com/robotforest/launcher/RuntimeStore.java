@@ -0,0 +1,284 @@
+package com.robotforest.launcher;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The one on-device home of the runtime: every kept version, the archives being downloaded, and
+ * a single copy of each file they contain.
+ *
+ * <pre>
+ *   base/objects/&lt;ab&gt;/&lt;sha256&gt;-&lt;mode&gt;   one inode per distinct file and mode
+ *   base/archives/                          download spools, and their .part while resuming
+ *   base/versions/, base/&lt;name&gt;             see {@link RuntimeLayout}
+ * </pre>
+ *
+ * {@link #ingest} turns a freshly extracted tree into hard links to objects: a file the store
+ * already has is replaced by a link to it, a new one is linked in. Two versions then cost their
+ * difference, not their sum. Links share modes and mtimes, so the mode is part of the key, and
+ * version trees must only ever be changed by replacing files (rename over, unlink), never by
+ * writing into them. An object whose link count is back to one belongs to no version and is
+ * swept.
+ *
+ * {@link #trim} keeps everything under the base within a byte budget, dropping abandoned
+ * downloads and then the least recently used inactive, unleased versions; {@link #reserve}
+ * does the same when a download would not fit on the disk. Both, and {@link #ingest}, run on
+ * the install worker or its download threads.
+ */
+final class RuntimeStore {
+    private static final String TAG = "runtime";
+    static final String OBJECTS = "objects";
+    static final String ARCHIVES = "archives";
+    /** Budget for everything under the base dir unless {@link #setBudget} says otherwise. */
+    static final long DEFAULT_BUDGET = 4L * 1024 * 1024 * 1024;
+    // Where RuntimeBootstrap installed before there was one store
+    private static final String LEGACY_ROOT = "rf_runtime";
+    private static final String LEGACY_CACHE_PREFIX = "rf-runtime.";
+
+    private static volatile RuntimeStore shared;
+    private static volatile long budget = DEFAULT_BUDGET;
+
+    static RuntimeStore shared(Context ctx) {
+        RuntimeStore s = shared;
+        if (s == null) {
+            synchronized (RuntimeStore.class) {
+                if (shared == null) shared = new RuntimeStore(ctx.getDir("runtime", Context.MODE_PRIVATE));
+                s = shared;
+            }
+        }
+        return s;
+    }
+
+    /** Byte budget for the store; applies from the next {@link #trim}. */
+    static void setBudget(long bytes) { budget = bytes; }
+
+    private final File base;
+
+    RuntimeStore(File base) {
+        this.base = base;
+    }
+
+    File base() { return base; }
+
+    RuntimeLayout layout(String name) { return new RuntimeLayout(base, name); }
+
+    /** Where to download archive {@code name}; it lives here only until its tree is ingested. */
+    File archive(String name) throws IOException {
+        File dir = new File(base, ARCHIVES);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+        return new File(dir, name);
+    }
+
+    private File object(byte[] sha256, int mode) {
+        String hex = Hashes.hex(sha256);
+        return new File(new File(new File(base, OBJECTS), hex.substring(0, 2)),
+                hex + "-" + Integer.toOctalString(mode & 07777));
+    }
+
+    /**
+     * Replaces every file {@code entries} lists under {@code tree} with a hard link to its object,
+     * adding the objects the store lacks, and refreshes each entry's mtime to match. A file that
+     * can't be linked (say, the tree is on another filesystem) stays a plain file. Each entry's
+     * mode must already be on its file.
+     */
+    void ingest(File tree, Collection<InstallIndex.Entry> entries) throws IOException {
+        Metrics.Phase m = Metrics.current();
+        CancellationToken token = CancellationToken.current();
+        for (InstallIndex.Entry e : entries) {
+            token.throwIfCancelled();
+            File f = new File(tree, e.path);
+            File obj = object(e.sha256, e.mode);
+            StructStat fs = lstat(f);
+            if (fs == null || !OsConstants.S_ISREG(fs.st_mode)) continue;
+            StructStat os = lstat(obj);
+            try {
+                if (os != null && os.st_ino == fs.st_ino) {
+                    m.add("sharedFiles", 1);
+                } else if (os != null && os.st_size == fs.st_size) {
+                    // Already stored: the extracted copy gives way to a link
+                    File tmp = new File(f.getPath() + ".rf-link");
+                    //noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                    Os.link(obj.getAbsolutePath(), tmp.getAbsolutePath());
+                    Os.rename(tmp.getAbsolutePath(), f.getAbsolutePath());
+                    m.add("dedupFiles", 1);
+                    m.add("dedupBytes", fs.st_size);
+                } else {
+                    File dir = obj.getParentFile();
+                    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+                    // A stored object of the wrong size is damaged; this copy replaces it for later versions
+                    if (os != null) forget(obj);
+                    Os.link(f.getAbsolutePath(), obj.getAbsolutePath());
+                    m.add("newObjects", 1);
+                }
+            } catch (ErrnoException x) {
+                if (x.errno != OsConstants.EXDEV && x.errno != OsConstants.EPERM) {
+                    throw new IOException("link failed for " + e.path, x);
+                }
+                m.add("unlinked", 1);
+            }
+            e.mtime = f.lastModified();
+        }
+    }
+
+    /** Drops the objects behind {@code entries}, e.g. after a scrub found them damaged; versions keep their links. */
+    void forget(Collection<InstallIndex.Entry> entries) {
+        for (InstallIndex.Entry e : entries) forget(object(e.sha256, e.mode));
+    }
+
+    private static void forget(File obj) {
+        //noinspection ResultOfMethodCallIgnored
+        obj.delete();
+    }
+
+    /**
+     * Evicts until everything under the base fits the budget. Call after an install, once its
+     * version is active and its staging dir gone.
+     */
+    synchronized void trim() {
+        Metrics.Phase m = Metrics.current();
+        long used = usage();
+        long limit = budget;
+        while (used > limit && evictOne(null)) used = usage();
+        m.set("storeBytes", used);
+        if (used > limit) Log.w(TAG, "store over budget: " + used + " > " + limit + " bytes");
+    }
+
+    /**
+     * {@link Downloads.Space} over the store: evicts until {@code bytes} (plus
+     * {@link Downloads#MIN_FREE}) fit on the disk, leaving {@code dst}'s own partial download.
+     */
+    synchronized void reserve(File dst, long bytes) throws IOException {
+        long usable = Downloads.usableSpace(dst);
+        while (usable > 0 && usable < bytes + Downloads.MIN_FREE && evictOne(dst)) {
+            usable = Downloads.usableSpace(dst);
+        }
+        if (usable > 0 && usable < bytes + Downloads.MIN_FREE) throw new Downloads.NoSpaceException(dst, bytes, usable);
+    }
+
+    /**
+     * Drops the oldest archive other than {@code keep}'s, else the least recently used inactive
+     * version and the objects only it used. False when there is nothing left to drop.
+     */
+    private boolean evictOne(File keep) {
+        Metrics.Phase m = Metrics.current();
+        File[] spools = new File(base, ARCHIVES).listFiles();
+        if (spools != null && spools.length > 0) {
+            Arrays.sort(spools, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File f : spools) {
+                if (keep != null && f.getName().startsWith(keep.getName())) continue;
+                Log.i(TAG, "evict archive " + f.getName());
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+                m.add("evictedArchives", 1);
+                return true;
+            }
+        }
+        List<File> inactive = RuntimeLayout.inactive(base);
+        if (inactive == null || inactive.isEmpty()) return false;
+        File v = inactive.get(0);
+        Log.i(TAG, "evict version " + v.getName());
+        RuntimeLayout.deleteRec(v);
+        m.add("evictedVersions", 1);
+        m.add("sweptObjects", sweep());
+        return true;
+    }
+
+    /** Deletes objects no version links to any more; returns how many. */
+    int sweep() {
+        int n = 0;
+        File[] shards = new File(base, OBJECTS).listFiles();
+        if (shards == null) return 0;
+        for (File shard : shards) {
+            File[] objs = shard.listFiles();
+            if (objs == null) continue;
+            for (File o : objs) {
+                StructStat st = lstat(o);
+                if (st != null && st.st_nlink <= 1) {
+                    forget(o);
+                    n++;
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            shard.delete(); // only if empty
+        }
+        return n;
+    }
+
+    /** Bytes on disk under the base, counting each inode once however many links it has. */
+    long usage() {
+        return usage(base, new HashSet<>());
+    }
+
+    private static long usage(File f, Set<Long> seen) {
+        StructStat st = lstat(f);
+        if (st == null || OsConstants.S_ISLNK(st.st_mode)) return 0;
+        if (OsConstants.S_ISDIR(st.st_mode)) {
+            long total = 0;
+            File[] kids = f.listFiles();
+            if (kids != null) for (File k : kids) total += usage(k, seen);
+            return total;
+        }
+        return st.st_nlink > 1 && !seen.add(st.st_ino) ? 0 : st.st_size;
+    }
+
+    /**
+     * Moves versions from before the one store into it and clears their leftovers: the bootstrap's
+     * {@code files/rf_runtime} root and archives in the cache dir. Runs on the install worker.
+     */
+    void adoptLegacy(Context ctx) {
+        File[] cached = ctx.getCacheDir().listFiles((d, n) -> n.startsWith(LEGACY_CACHE_PREFIX));
+        if (cached != null) for (File f : cached) {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+        File old = new File(ctx.getFilesDir(), LEGACY_ROOT);
+        // A session running from there holds a lease keyed by the old path: wait for a quiet moment
+        if (!old.isDirectory() || RuntimeLayout.anyLeased()) return;
+        File into = new File(base, RuntimeLayout.VERSIONS);
+        if (!into.isDirectory() && !into.mkdirs()) return;
+        File[] versions = new File(old, RuntimeLayout.VERSIONS).listFiles();
+        if (versions != null) for (File v : versions) {
+            if (!v.getName().startsWith(".")) adopt(v, new File(into, v.getName()));
+        }
+        // A flat tree from before versions/ existed
+        File[] kids = old.listFiles();
+        if (kids != null) for (File k : kids) {
+            if (k.isDirectory() && !RuntimeLayout.isSymlink(k) && !k.getName().equals(RuntimeLayout.VERSIONS)) {
+                adopt(k, new File(into, "legacy-" + k.getName() + "-" + Long.toString(System.currentTimeMillis(), 36)));
+            }
+        }
+        // Adopted versions stay inactive unless an install finds one by digest; trim evicts them in LRU order
+        Log.i(TAG, "adopted " + old);
+        RuntimeLayout.deleteRec(old);
+    }
+
+    private static void adopt(File from, File to) {
+        if (to.exists()) return;
+        try {
+            Os.rename(from.getAbsolutePath(), to.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Log.w(TAG, "could not adopt " + from, e);
+        }
+    }
+
+    private static StructStat lstat(File f) {
+        try {
+            return Os.lstat(f.getAbsolutePath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+}
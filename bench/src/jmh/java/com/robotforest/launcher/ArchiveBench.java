@@ -0,0 +1,55 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * zip vs tar.zst: the same tree packed as {@code make_runtime.sh} packs it, then unpacked (with
+ * per-file SHA-256 and modes, as an install does) per thread count. Archive sizes are printed in
+ * setup. {@code -Prf.tree=<runtime_staging>} measures the real runtime instead of a synthetic one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ArchiveBench {
+    @Param({"zip", "tar.zst"})
+    public String format;
+    @Param({"1", "4", "8"})
+    public int threads;
+    @Param({"64"})
+    public int sizeMb;
+    @Param({"500"})
+    public int files;
+    /** A staging tree to pack; empty for a synthetic one of {@code sizeMb} and {@code files}. */
+    @Param({""})
+    public String tree;
+
+    private File archive;
+    private File dest;
+
+    @Setup
+    public void setup() throws Exception {
+        File src = tree.isEmpty() ? BenchFixtures.runtime(sizeMb, files).tree : new File(tree);
+        archive = BenchFixtures.archive(src, format);
+        long treeBytes = BenchFixtures.treeSize(src);
+        System.out.printf("%n[archive] %s: %d bytes, %.1f%% of the %d byte tree%n",
+                format, archive.length(), archive.length() * 100.0 / Math.max(1, treeBytes), treeBytes);
+    }
+
+    @Setup(Level.Invocation)
+    public void fresh() throws Exception {
+        dest = BenchFixtures.tempDir("archive");
+    }
+
+    @Benchmark
+    public Object unpack() throws Exception {
+        return Unpacker.unpack(archive, format, dest, threads, FileModes.Policy.DEFAULT);
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() {
+        BenchFixtures.deleteRec(dest);
+    }
+}
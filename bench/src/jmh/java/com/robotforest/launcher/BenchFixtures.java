@@ -0,0 +1,257 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic runtime trees and archives shaped like the real one: a big {@code bin/box64}, a few
+ * more executables, and many library/data files whose sizes are log-uniform, about half of the
+ * bytes compressible. Built once per (size, file count) under {@code java.io.tmpdir/rf-bench}
+ * and reused by later trials and forks.
+ */
+final class BenchFixtures {
+    static final int SEED = 42;
+
+    /** One generated runtime. */
+    static final class Runtime {
+        final File dir;
+        final File tree;
+        final File zip;
+        final List<RuntimeManifest.FileEntry> files;
+        final long treeBytes;
+
+        Runtime(File dir, File tree, File zip, List<RuntimeManifest.FileEntry> files, long treeBytes) {
+            this.dir = dir; this.tree = tree; this.zip = zip; this.files = files; this.treeBytes = treeBytes;
+        }
+
+        /** Manifest as the packer writes it, pointing at {@code zipUrl}. */
+        String manifestJson(String zipUrl, Hashes.Algorithm alg) throws IOException {
+            String sha = Hashes.sha256File(zip);
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\n  \"url\": \"").append(zipUrl).append("\",\n  \"sha256\": \"").append(sha).append('"');
+            if (alg != Hashes.SHA256) {
+                sb.append(",\n  \"hash\": \"").append(alg.name).append("\",\n  \"digest\": \"")
+                        .append(Hashes.fileHex(zip, alg)).append('"');
+            }
+            sb.append(",\n  \"subdir\": \"runtime\",\n  \"files\": ").append(filesJson()).append("\n}\n");
+            return sb.toString();
+        }
+
+        /** The per-file index ({@code files.json}). */
+        String filesJson() {
+            StringBuilder sb = new StringBuilder(files.size() * 128).append('[');
+            for (int i = 0; i < files.size(); i++) {
+                RuntimeManifest.FileEntry e = files.get(i);
+                sb.append(i == 0 ? "\n" : ",\n").append("  {\"path\":\"").append(e.path).append("\",\"size\":").append(e.size)
+                        .append(",\"mode\":\"").append(Integer.toOctalString(e.mode)).append("\",\"sha256\":\"").append(e.sha256).append("\"}");
+            }
+            return sb.append("\n]").toString();
+        }
+    }
+
+    private BenchFixtures() {}
+
+    static synchronized Runtime runtime(int sizeMb, int files) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "rf-bench/s" + sizeMb + "-f" + files + "-" + SEED);
+        File tree = new File(dir, "tree");
+        File zip = new File(dir, "runtime.zip");
+        File done = new File(dir, ".done");
+        if (!done.isFile()) {
+            deleteRec(dir);
+            if (!tree.mkdirs()) throw new IOException("mkdirs failed: " + tree);
+            generate(tree, (long) sizeMb << 20, Math.max(1, files));
+            zip(tree, zip);
+            if (!done.createNewFile()) throw new IOException("cannot mark " + dir);
+        }
+        return new Runtime(dir, tree, zip, index(tree), treeSize(tree));
+    }
+
+    /**
+     * {@code tree} packed by {@code scripts/runtime/pack_archive.sh} (found through the
+     * {@code rf.scripts} property the build sets), so it is what the packer ships. Built once per
+     * tree, size, file count and format; {@code ZSTD_LEVEL} and {@code ZSTD_FRAME_MB} pass through.
+     */
+    static synchronized File archive(File tree, String format) throws IOException, InterruptedException {
+        List<String> rels = list(tree);
+        String key = Integer.toHexString(tree.getAbsolutePath().hashCode()) + "-" + rels.size() + "-" + treeSize(tree);
+        File out = new File(System.getProperty("java.io.tmpdir"), "rf-bench/archive-" + key + "." + format);
+        if (!out.isFile()) {
+            File tmp = new File(out.getPath() + ".tmp");
+            File script = new File(System.getProperty("rf.scripts", "../scripts/runtime"), "pack_archive.sh");
+            Process p = new ProcessBuilder("bash", script.getPath(), format, tree.getPath(), tmp.getPath())
+                    .inheritIO().start();
+            if (p.waitFor() != 0) throw new IOException(script + " " + format + " failed for " + tree);
+            if (!tmp.renameTo(out)) throw new IOException("rename failed: " + tmp);
+        }
+        return out;
+    }
+
+    /** A single file of {@code sizeMb} MiB, half random and half compressible. */
+    static synchronized File payload(int sizeMb) throws IOException {
+        File f = new File(System.getProperty("java.io.tmpdir"), "rf-bench/payload-" + sizeMb + ".bin");
+        if (f.length() != (long) sizeMb << 20) {
+            if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs()) throw new IOException("mkdirs failed: " + f);
+            writeContent(f, (long) sizeMb << 20, new Random(SEED));
+        }
+        return f;
+    }
+
+    /**
+     * Stand-in for {@code bin/box64} on a host without one: a shell script that prints a version
+     * line like {@code box64 -v} does and exits 0. Spawn, exec and a dynamically linked
+     * interpreter's startup, without the emulator's own.
+     */
+    static synchronized File stubBox64() throws IOException {
+        File f = new File(System.getProperty("java.io.tmpdir"), "rf-bench/stub/box64");
+        if (!f.canExecute()) {
+            if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs()) throw new IOException("mkdirs failed: " + f);
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8")) {
+                w.write("#!/bin/sh\necho \"Box64 with Dynarec v0.0.0 (rf-bench stub)\"\n");
+            }
+            if (!f.setExecutable(true, false)) throw new IOException("chmod failed: " + f);
+        }
+        return f;
+    }
+
+    private static void generate(File tree, long total, int files) throws IOException {
+        Random r = new Random(SEED);
+        List<String> paths = new ArrayList<>(files);
+        paths.add("bin/box64");
+        String[] bins = {"bin/wine", "bin/wineserver", "bin/box86", "bin/rf-run"};
+        for (int i = 0; i < bins.length && paths.size() < files; i++) paths.add(bins[i]);
+        for (int i = paths.size(); i < files; i++) {
+            int kind = r.nextInt(10);
+            String dir = kind < 5 ? "lib/" + (kind < 2 ? "x86_64-linux-gnu/" : "wine/" + (i % 7) + "/")
+                    : kind < 8 ? "share/wine/" + (i % 13) + "/" : "etc/";
+            paths.add(dir + "f" + i + (kind < 5 ? ".so" : ".dat"));
+        }
+        // box64 takes ~8%; the rest is log-uniform between 512 B and total/16, scaled to fit.
+        long[] sizes = new long[paths.size()];
+        sizes[0] = Math.max(1, total / 12);
+        double lo = Math.log(512), hi = Math.log(Math.max(1024, total / 16)), sum = 0;
+        for (int i = 1; i < sizes.length; i++) {
+            sizes[i] = (long) Math.exp(lo + r.nextDouble() * (hi - lo));
+            sum += sizes[i];
+        }
+        double scale = sizes.length > 1 ? (total - sizes[0]) / sum : 0;
+        for (int i = 1; i < sizes.length; i++) sizes[i] = Math.max(1, (long) (sizes[i] * scale));
+        for (int i = 0; i < sizes.length; i++) {
+            File f = new File(tree, paths.get(i));
+            if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs()) throw new IOException("mkdirs failed: " + f);
+            writeContent(f, sizes[i], r);
+        }
+    }
+
+    /** Alternating 4 KiB blocks of random bytes and of repetitive text, like ELF code vs tables. */
+    private static void writeContent(File f, long size, Random r) throws IOException {
+        byte[] rnd = new byte[4096];
+        byte[] text = new byte[4096];
+        byte[] line = "symbol_table_entry 0x0000 GLIBC_2.17 libwine.so.1\n".getBytes("US-ASCII");
+        for (int i = 0; i < text.length; i++) text[i] = line[i % line.length];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+            for (long left = size, k = 0; left > 0; k++) {
+                int n = (int) Math.min(4096, left);
+                if ((k & 1) == 0) {
+                    r.nextBytes(rnd);
+                    out.write(rnd, 0, n);
+                } else {
+                    text[(int) (k % 64)] = (byte) k; // not quite identical blocks
+                    out.write(text, 0, n);
+                }
+                left -= n;
+            }
+        }
+    }
+
+    /** {@code rt}'s tree with every entry STORED, as the packer leaves incompressible files; built once. */
+    static synchronized File storedZip(Runtime rt) throws IOException {
+        File zip = new File(rt.dir, "runtime-stored.zip");
+        if (!zip.isFile()) zip(rt.tree, zip, true);
+        return zip;
+    }
+
+    private static void zip(File tree, File zip) throws IOException {
+        zip(tree, zip, false);
+    }
+
+    private static void zip(File tree, File zip, boolean stored) throws IOException {
+        File tmp = new File(zip.getPath() + ".tmp");
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.setLevel(6);
+            byte[] buf = new byte[64 * 1024];
+            for (String rel : list(tree)) {
+                ZipEntry e = new ZipEntry(rel);
+                if (stored) {
+                    // STORED needs size and CRC before the data
+                    File f = new File(tree, rel);
+                    CRC32 crc = new CRC32();
+                    try (InputStream in = new FileInputStream(f)) {
+                        int n;
+                        while ((n = in.read(buf)) >= 0) crc.update(buf, 0, n);
+                    }
+                    e.setMethod(ZipEntry.STORED);
+                    e.setSize(f.length());
+                    e.setCompressedSize(f.length());
+                    e.setCrc(crc.getValue());
+                }
+                out.putNextEntry(e);
+                try (InputStream in = new FileInputStream(new File(tree, rel))) {
+                    int n;
+                    while ((n = in.read(buf)) >= 0) out.write(buf, 0, n);
+                }
+                out.closeEntry();
+            }
+        }
+        if (!tmp.renameTo(zip)) throw new IOException("rename failed: " + tmp);
+    }
+
+    private static List<RuntimeManifest.FileEntry> index(File tree) throws IOException {
+        List<RuntimeManifest.FileEntry> out = new ArrayList<>();
+        for (String rel : list(tree)) {
+            File f = new File(tree, rel);
+            out.add(new RuntimeManifest.FileEntry(rel, f.length(), FileModes.intendedMode(rel), Hashes.sha256File(f)));
+        }
+        return out;
+    }
+
+    /** Relative paths of all regular files, sorted. */
+    static List<String> list(File root) {
+        List<String> out = new ArrayList<>();
+        list(root, "", out);
+        java.util.Collections.sort(out);
+        return out;
+    }
+
+    private static void list(File dir, String prefix, List<String> out) {
+        File[] kids = dir.listFiles();
+        if (kids == null) return;
+        for (File k : kids) {
+            if (k.isDirectory()) list(k, prefix + k.getName() + "/", out);
+            else out.add(prefix + k.getName());
+        }
+    }
+
+    static long treeSize(File tree) {
+        long n = 0;
+        for (String rel : list(tree)) n += new File(tree, rel).length();
+        return n;
+    }
+
+    static File tempDir(String name) throws IOException {
+        File d = new File(System.getProperty("java.io.tmpdir"), "rf-bench/work-" + name + "-" + System.nanoTime());
+        if (!d.mkdirs()) throw new IOException("mkdirs failed: " + d);
+        return d;
+    }
+
+    static void deleteRec(File f) {
+        File[] kids = f.listFiles();
+        if (kids != null) for (File k : kids) deleteRec(k);
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
@@ -0,0 +1,157 @@
+package com.robotforest.launcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback HTTP server for the benchmarks: static files and text with strong ETags, HEAD, single
+ * byte ranges and If-Range, like the GitHub release CDN. A per-connection byte rate and a fixed
+ * first-byte delay make loopback behave more like a real link; both default to off.
+ * {@link #cutAfter} makes it a mirror that goes away mid-transfer.
+ */
+final class BenchServer implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HttpServer server;
+    private final ExecutorService pool;
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> texts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> gets = new ConcurrentHashMap<>();
+    private final long bytesPerSec;
+    private final long latencyMs;
+    private final AtomicLong sent = new AtomicLong();
+    private volatile long cutAfter = -1;
+
+    /** @param bytesPerSec per-connection cap, 0 for unlimited */
+    BenchServer(long bytesPerSec, long latencyMs) throws IOException {
+        this.bytesPerSec = bytesPerSec;
+        this.latencyMs = latencyMs;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+        pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "rf-bench-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(pool);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + path;
+    }
+
+    BenchServer file(String path, File f) { files.put("/" + path, f); return this; }
+
+    BenchServer text(String path, String body) { texts.put("/" + path, body.getBytes(UTF8)); return this; }
+
+    /**
+     * Once {@code bytes} of bodies have gone out (from now, all requests together), drops the
+     * connection it is sending on and answers 503 from then on; -1 never.
+     */
+    BenchServer cutAfter(long bytes) {
+        sent.set(0);
+        cutAfter = bytes;
+        return this;
+    }
+
+    /** GET requests for {@code path} so far (ranged ones included), for checks on how often it was fetched. */
+    int gets(String path) {
+        AtomicInteger n = gets.get("/" + path);
+        return n != null ? n.get() : 0;
+    }
+
+    @Override public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+
+    private void handle(HttpExchange x) throws IOException {
+        try {
+            if (latencyMs > 0) TimeUnit.MILLISECONDS.sleep(latencyMs);
+            String path = x.getRequestURI().getPath();
+            if (cutAfter >= 0 && sent.get() >= cutAfter) {
+                x.sendResponseHeaders(503, -1);
+                return;
+            }
+            File f = files.get(path);
+            byte[] text = f == null ? texts.get(path) : null;
+            if (f == null && text == null) {
+                x.sendResponseHeaders(404, -1);
+                return;
+            }
+            long length = f != null ? f.length() : text.length;
+            long version = f != null ? f.lastModified() : java.util.Arrays.hashCode(text);
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(version) + "\"";
+            x.getResponseHeaders().set("ETag", etag);
+            x.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            long from = 0, to = length - 1;
+            boolean partial = false;
+            String range = x.getRequestHeaders().getFirst("Range");
+            String ifRange = x.getRequestHeaders().getFirst("If-Range");
+            if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(etag))) {
+                String[] ab = range.substring(6).split("-", 2);
+                from = Long.parseLong(ab[0].trim());
+                if (ab.length > 1 && !ab[1].trim().isEmpty()) to = Math.min(to, Long.parseLong(ab[1].trim()));
+                if (from > to) {
+                    x.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    x.sendResponseHeaders(416, -1);
+                    return;
+                }
+                partial = true;
+                x.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + length);
+            }
+            long n = to - from + 1;
+            if ("GET".equals(x.getRequestMethod())) gets.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+            if ("HEAD".equals(x.getRequestMethod())) {
+                x.getResponseHeaders().set("Content-Length", Long.toString(n));
+                x.sendResponseHeaders(partial ? 206 : 200, -1);
+                return;
+            }
+            x.sendResponseHeaders(partial ? 206 : 200, n == 0 ? -1 : n);
+            try (OutputStream out = x.getResponseBody()) {
+                if (f != null) {
+                    try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                        raf.seek(from);
+                        copy(raf, out, n);
+                    }
+                } else {
+                    out.write(text, (int) from, (int) n);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            x.close();
+        }
+    }
+
+    private void copy(RandomAccessFile in, OutputStream out, long n) throws IOException, InterruptedException {
+        byte[] buf = new byte[64 * 1024];
+        long t0 = System.nanoTime(), sent = 0;
+        while (sent < n) {
+            int k = in.read(buf, 0, (int) Math.min(buf.length, n - sent));
+            if (k < 0) throw new EOFException();
+            out.write(buf, 0, k);
+            sent += k;
+            if (cutAfter >= 0 && this.sent.addAndGet(k) >= cutAfter) throw new IOException("cut");
+            if (bytesPerSec > 0) {
+                long due = sent * 1_000_000_000L / bytesPerSec - (System.nanoTime() - t0);
+                if (due > 0) TimeUnit.NANOSECONDS.sleep(due);
+            }
+        }
+    }
+}
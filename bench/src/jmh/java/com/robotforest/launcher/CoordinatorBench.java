@@ -0,0 +1,116 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The install coordinator under contention. {@code joined}: {@code callers} threads ask for the
+ * same install at once through {@link InstallFlights}, as the app does; exactly one download may
+ * reach the server and every caller must get its digest, or the run fails. {@code cancel}: a
+ * throttled download is cancelled mid-body; the score is how long the operation takes to wind
+ * down after the cancel. Correctness under contention is {@code InstallFlightsTest}'s job.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CoordinatorBench {
+    @Param({"50"})
+    public int callers;
+    @Param({"16"})
+    public int sizeMb;
+
+    private BenchServer server;
+    private BenchServer slow;
+    private File work;
+    private ExecutorService installWorker;
+    private ExecutorService callerPool;
+
+    @Setup
+    public void setup() throws Exception {
+        File payload = BenchFixtures.payload(sizeMb);
+        server = new BenchServer(0, 0).file("payload.bin", payload);
+        slow = new BenchServer(8_000_000L / 8, 0).file("payload.bin", payload); // 8 Mbit/s
+        work = BenchFixtures.tempDir("coordinator");
+        // One connection, so each download is exactly one GET on the server
+        SegmentedDownload.Options o = new SegmentedDownload.Options();
+        o.connections = 1;
+        Downloads.setOptions(o);
+        installWorker = Executors.newSingleThreadExecutor();
+        callerPool = Executors.newFixedThreadPool(callers);
+    }
+
+    @Benchmark
+    public int joined() throws Exception {
+        File dst = fresh("joined.bin");
+        InstallFlights installs = new InstallFlights(new SingleFlight(installWorker), "bench");
+        int before = server.gets("payload.bin");
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            results.add(callerPool.submit(() -> {
+                go.await();
+                return installs.ensureInstalled((token, log) -> {
+                    runs.incrementAndGet();
+                    return Downloads.downloadTo(server.url("payload.bin"), 5000, 30000, dst);
+                }, null).await();
+            }));
+        }
+        go.countDown();
+        String first = null;
+        for (Future<String> f : results) {
+            String d = f.get();
+            if (first == null) first = d;
+            else if (!first.equals(d)) throw new IllegalStateException("callers saw different results");
+        }
+        int downloads = server.gets("payload.bin") - before;
+        if (runs.get() != 1 || downloads != 1) {
+            throw new IllegalStateException(callers + " callers: " + runs.get() + " runs, " + downloads + " downloads");
+        }
+        return downloads;
+    }
+
+    @Benchmark
+    public long cancel() throws Exception {
+        File dst = fresh("cancel.bin");
+        SingleFlight flights = new SingleFlight(installWorker);
+        CountDownLatch started = new CountDownLatch(1);
+        SingleFlight.Handle<String> h = flights.submit("install:slow", (token, log) -> {
+            started.countDown();
+            return Downloads.downloadTo(slow.url("payload.bin"), 5000, 30000, dst);
+        }, null);
+        started.await();
+        Thread.sleep(200); // well into the body
+        long t0 = System.nanoTime();
+        h.cancel();
+        try {
+            h.await();
+            throw new IllegalStateException("download finished despite cancel");
+        } catch (CancellationToken.Cancelled expected) {
+            return (System.nanoTime() - t0) / 1_000_000;
+        }
+    }
+
+    private File fresh(String name) {
+        File dst = new File(work, name);
+        //noinspection ResultOfMethodCallIgnored
+        dst.delete();
+        ResumableDownload.discard(dst);
+        return dst;
+    }
+
+    @TearDown
+    public void tearDown() {
+        callerPool.shutdownNow();
+        installWorker.shutdownNow();
+        server.close();
+        slow.close();
+        Downloads.setOptions(new SegmentedDownload.Options());
+        BenchFixtures.deleteRec(work);
+    }
+}
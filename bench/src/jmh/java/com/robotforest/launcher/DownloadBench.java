@@ -0,0 +1,60 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Archive download from the loopback server: one connection (the resumable path, SHA-256 while
+ * streaming) versus segmented ranges, which hash the in-order prefix on the calling thread as
+ * ranges complete. {@code mbps} caps each connection so the segmented path has a link to
+ * saturate; 0 measures raw loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloadBench {
+    @Param({"64"})
+    public int sizeMb;
+    @Param({"1", "4"})
+    public int connections;
+    @Param({"0", "200"})
+    public int mbps;
+
+    private BenchServer server;
+    private File payload;
+    private File work;
+    private File dst;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = BenchFixtures.payload(sizeMb);
+        server = new BenchServer(mbps * 1_000_000L / 8, 0).file("payload.bin", payload);
+        SegmentedDownload.Options o = new SegmentedDownload.Options();
+        o.connections = connections;
+        o.minSizeForSegments = 1024 * 1024;
+        Downloads.setOptions(o);
+        work = BenchFixtures.tempDir("download");
+    }
+
+    @Setup(Level.Invocation)
+    public void fresh() {
+        dst = new File(work, "payload.bin");
+        //noinspection ResultOfMethodCallIgnored
+        dst.delete();
+        ResumableDownload.discard(dst);
+    }
+
+    @Benchmark
+    public String download() throws Exception {
+        return Downloads.downloadTo(server.url("payload.bin"), 5000, 30000, dst);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        Downloads.setOptions(new SegmentedDownload.Options());
+        BenchFixtures.deleteRec(work);
+    }
+}
@@ -0,0 +1,44 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/** Archive digest throughput per algorithm and thread count (MB/s = sizeMb * 1000 / score). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashBench {
+    @Param({"256"})
+    public int sizeMb;
+    @Param({"sha256", "sha256-tree", "blake3"})
+    public String algorithm;
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private File payload;
+    private Hashes.Algorithm alg;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = BenchFixtures.payload(sizeMb);
+        alg = Hashes.algorithm(algorithm);
+    }
+
+    /** Mapped file input; tree algorithms split it over {@code threads}. */
+    @Benchmark
+    public byte[] file() throws Exception {
+        return alg.file(payload, threads);
+    }
+
+    /** Plain stream input through one hasher (what a download sees), independent of {@code threads}. */
+    @Benchmark
+    public byte[] stream() throws Exception {
+        try (InputStream in = new FileInputStream(payload)) {
+            return Hashes.digest(in, alg);
+        }
+    }
+}
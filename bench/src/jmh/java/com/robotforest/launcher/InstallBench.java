@@ -0,0 +1,68 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end, as RuntimeBootstrap does it minus the Android parts: fetch and parse the manifest,
+ * download the archive, verify its digest, unpack with modes, write the install index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InstallBench {
+    @Param({"64"})
+    public int sizeMb;
+    @Param({"500"})
+    public int files;
+    @Param({"sha256", "sha256-tree"})
+    public String algorithm;
+    @Param({"4"})
+    public int connections;
+
+    private BenchServer server;
+    private File work;
+    private File dest;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchFixtures.Runtime rt = BenchFixtures.runtime(sizeMb, files);
+        server = new BenchServer(0, 0);
+        server.file("runtime.zip", rt.zip)
+                .text("manifest.json", rt.manifestJson(server.url("runtime.zip"), Hashes.algorithm(algorithm)));
+        SegmentedDownload.Options o = new SegmentedDownload.Options();
+        o.connections = connections;
+        Downloads.setOptions(o);
+        work = BenchFixtures.tempDir("install");
+    }
+
+    @Setup(Level.Invocation)
+    public void fresh() throws Exception {
+        BenchFixtures.deleteRec(work);
+        dest = new File(work, "runtime");
+        if (!dest.mkdirs()) throw new IOException("mkdirs failed: " + dest);
+    }
+
+    @Benchmark
+    public int install() throws Exception {
+        RuntimeManifest m = RuntimeManifest.parse(Downloads.getText(server.url("manifest.json"), 5000, 30000));
+        Hashes.Algorithm alg = Hashes.algorithm(m.hash);
+        File zip = new File(work, "runtime.zip");
+        String got = Downloads.downloadTo(m.url, 5000, 30000, zip, null, alg);
+        if (!got.equals(m.digest)) throw new IOException(alg + " mismatch: " + got);
+        Queue<InstallIndex.Entry> entries = Unpacker.unpack(zip, dest, ParallelUnzip.defaultThreads());
+        InstallIndex.write(dest, got, entries);
+        return entries.size();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        Downloads.setOptions(new SegmentedDownload.Options());
+        BenchFixtures.deleteRec(work);
+    }
+}
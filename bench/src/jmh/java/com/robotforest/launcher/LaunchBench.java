@@ -0,0 +1,33 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Launch to exit of a command ({@code box64 -v} by default, a stub standing in for it), sampled so
+ * JMH reports percentiles. Spawn and first-output times need {@link LaunchHarness}; this one keeps
+ * the total in results.json next to the other benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LaunchBench {
+    /** Space-separated command line; empty for the stub box64. */
+    @Param({""})
+    public String command;
+
+    private LaunchLatency.Launcher launcher;
+
+    @Setup
+    public void setup() throws Exception {
+        launcher = LaunchLatency.direct(LaunchHarness.command(command), null, null);
+    }
+
+    @Benchmark
+    public int launch() throws Exception {
+        LaunchLatency.Sample s = launcher.launch();
+        if (s.exitCode != 0) throw new IllegalStateException("exit " + s.exitCode);
+        return s.exitCode;
+    }
+}
@@ -0,0 +1,64 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Launch latency on the host JVM: {@code cold} then {@code warm} launches of a command, spawn,
+ * first output and total as percentiles (see {@link LaunchLatency}). Not JMH, which times one
+ * number per call; run in a fresh JVM so the cold launches are really the first.
+ *
+ *   LaunchHarness [--cold N] [--warm N] [--json FILE] [-- command args…]
+ *
+ * Without a command it launches {@link BenchFixtures#stubBox64} with {@code -v}. Exits non-zero if
+ * any launch did.
+ */
+public final class LaunchHarness {
+    private LaunchHarness() {}
+
+    public static void main(String[] args) throws Exception {
+        int cold = 1, warm = 50;
+        File json = null;
+        List<String> cmd = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--")) {
+                cmd.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else if (a.equals("--cold") && i + 1 < args.length) {
+                cold = Integer.parseInt(args[++i]);
+            } else if (a.equals("--warm") && i + 1 < args.length) {
+                warm = Integer.parseInt(args[++i]);
+            } else if (a.equals("--json") && i + 1 < args.length) {
+                json = new File(args[++i]);
+            } else {
+                System.err.println("usage: LaunchHarness [--cold N] [--warm N] [--json FILE] [-- command args...]");
+                System.exit(2);
+            }
+        }
+        if (cmd.isEmpty()) cmd = command("");
+
+        LaunchLatency.Report r = LaunchLatency.run(String.join(" ", cmd), LaunchLatency.direct(cmd, null, null), cold, warm);
+        System.out.print(r.summary());
+        if (json != null) {
+            File dir = json.getAbsoluteFile().getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(json), "UTF-8")) {
+                w.write(r.toJson().toString());
+                w.write("\n");
+            }
+            System.out.println("wrote " + json);
+        }
+        for (List<LaunchLatency.Sample> xs : Arrays.asList(r.cold, r.warm)) {
+            for (LaunchLatency.Sample s : xs) if (s.exitCode != 0) System.exit(1);
+        }
+    }
+
+    /** {@code line} split on spaces; the stub box64 with {@code -v} if blank. */
+    static List<String> command(String line) throws IOException {
+        if (line == null || line.trim().isEmpty()) return Arrays.asList(BenchFixtures.stubBox64().getAbsolutePath(), "-v");
+        return Arrays.asList(line.trim().split("\\s+"));
+    }
+}
@@ -0,0 +1,40 @@
+package com.robotforest.launcher;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Manifest and file-index parsing, which scale with the file count. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ManifestBench {
+    @Param({"64"})
+    public int sizeMb;
+    @Param({"500", "5000"})
+    public int files;
+
+    private String manifest;
+    private String index;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchFixtures.Runtime rt = BenchFixtures.runtime(sizeMb, files);
+        manifest = rt.manifestJson("http://127.0.0.1/runtime.zip", Hashes.SHA256);
+        index = rt.filesJson();
+    }
+
+    /** Full manifest with the inline per-file index. */
+    @Benchmark
+    public RuntimeManifest manifest() throws Exception {
+        return RuntimeManifest.parse(manifest);
+    }
+
+    /** A separately served {@code files.json}. */
+    @Benchmark
+    public List<RuntimeManifest.FileEntry> filesIndex() throws Exception {
+        return RuntimeManifest.parseFiles(new JSONArray(index));
+    }
+}
@@ -0,0 +1,72 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Archive download from three loopback mirrors of one payload, listed far first as a manifest
+ * with a GitHub url and LAN mirrors would: first byte after 150, 40 and 5 ms, 40, 100 and 800
+ * Mbit/s per connection. {@code pick=first} takes the url alone, as before mirrors;
+ * {@code race} lets {@link Mirrors} probe all three. {@code cut} drops the LAN mirror halfway
+ * through, so the download fails over and continues from the next best.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MirrorBench {
+    @Param({"32"})
+    public int sizeMb;
+    @Param({"race", "first"})
+    public String pick;
+    @Param({"false", "true"})
+    public boolean cut;
+
+    private BenchServer far;
+    private BenchServer near;
+    private BenchServer lan;
+    private File payload;
+    private String digest;
+    private File work;
+    private File dst;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = BenchFixtures.payload(sizeMb);
+        digest = Hashes.sha256File(payload);
+        far = new BenchServer(40_000_000L / 8, 150).file("payload.bin", payload);
+        near = new BenchServer(100_000_000L / 8, 40).file("payload.bin", payload);
+        lan = new BenchServer(800_000_000L / 8, 5).file("payload.bin", payload);
+        work = BenchFixtures.tempDir("mirror");
+    }
+
+    @Setup(Level.Invocation)
+    public void fresh() {
+        dst = new File(work, "payload.bin");
+        //noinspection ResultOfMethodCallIgnored
+        dst.delete();
+        ResumableDownload.discard(dst);
+        lan.cutAfter(cut ? payload.length() / 2 : -1);
+    }
+
+    @Benchmark
+    public String download() throws Exception {
+        List<String> sources = "first".equals(pick)
+                ? Arrays.asList(far.url("payload.bin"))
+                : Arrays.asList(far.url("payload.bin"), near.url("payload.bin"), lan.url("payload.bin"));
+        String got = Mirrors.downloadTo(sources, 5000, 30000, dst, null, Hashes.SHA256, digest);
+        if (!got.equals(digest)) throw new IllegalStateException("digest mismatch: " + got);
+        return got;
+    }
+
+    @TearDown
+    public void tearDown() {
+        far.close();
+        near.close();
+        lan.close();
+        BenchFixtures.deleteRec(work);
+    }
+}
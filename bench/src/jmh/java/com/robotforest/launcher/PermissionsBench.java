@@ -0,0 +1,34 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/** Permission passes over an extracted tree: the repair check (stat, chmod only what differs) against a blind chmod of every entry. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PermissionsBench {
+    @Param({"64"})
+    public int sizeMb;
+    @Param({"500", "5000"})
+    public int files;
+
+    private File tree;
+
+    @Setup
+    public void setup() throws Exception {
+        tree = BenchFixtures.runtime(sizeMb, files).tree;
+    }
+
+    @Benchmark
+    public int repair() {
+        return FileModes.repair(tree, null).fixed;
+    }
+
+    @Benchmark
+    public int tree() {
+        return FileModes.fixTree(tree);
+    }
+}
@@ -0,0 +1,52 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of the runtime archive per thread count, with and without per-file SHA-256, from
+ * deflated entries and from STORED ones (copied straight out of the archive). The tree size is
+ * printed in setup; MB/s is that over the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UnzipBench {
+    @Param({"64"})
+    public int sizeMb;
+    @Param({"500"})
+    public int files;
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+    @Param({"false", "true"})
+    public boolean digest;
+    @Param({"deflated", "stored"})
+    public String method;
+
+    private File zip;
+    private File dest;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchFixtures.Runtime rt = BenchFixtures.runtime(sizeMb, files);
+        zip = "stored".equals(method) ? BenchFixtures.storedZip(rt) : rt.zip;
+        System.out.printf("%n[unzip] %s: %.1f MB tree, %.1f MB archive%n", method, rt.treeBytes / 1e6, zip.length() / 1e6);
+    }
+
+    @Setup(Level.Invocation)
+    public void fresh() throws Exception {
+        dest = BenchFixtures.tempDir("unzip");
+    }
+
+    @Benchmark
+    public ParallelUnzip.Stats extract() throws Exception {
+        return ParallelUnzip.extract(zip, dest, threads, digest, (out, e, sha) -> {});
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() {
+        BenchFixtures.deleteRec(dest);
+    }
+}
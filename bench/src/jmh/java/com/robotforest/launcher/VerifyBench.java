@@ -0,0 +1,81 @@
+package com.robotforest.launcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checking an installed tree against its {@link InstallIndex}: the O(1) readiness header, an
+ * incremental pass (stat only, nothing changed) and a full re-hash on {@code threads} threads.
+ * Mirrors the stages of RuntimeScrubber, which itself stays in :app (it paces against live
+ * sessions and runs at background priority).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VerifyBench {
+    @Param({"64"})
+    public int sizeMb;
+    @Param({"500"})
+    public int files;
+    @Param({"1", "4"})
+    public int threads;
+
+    private File installed;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchFixtures.Runtime rt = BenchFixtures.runtime(sizeMb, files);
+        installed = BenchFixtures.tempDir("verify");
+        InstallIndex.write(installed, Hashes.sha256File(rt.zip),
+                Unpacker.unpack(rt.zip, installed, ParallelUnzip.defaultThreads()));
+    }
+
+    @Benchmark
+    public InstallIndex.Header header() throws Exception {
+        return InstallIndex.readHeader(installed);
+    }
+
+    @Benchmark
+    public int incremental() throws Exception {
+        InstallIndex idx = InstallIndex.read(installed);
+        int changed = 0;
+        for (InstallIndex.Entry e : idx.entries) {
+            File f = new File(installed, e.path);
+            if (f.length() != e.size || f.lastModified() != e.mtime) changed++;
+        }
+        return changed;
+    }
+
+    @Benchmark
+    public int full() throws Exception {
+        InstallIndex idx = InstallIndex.read(installed);
+        AtomicInteger next = new AtomicInteger(), bad = new AtomicInteger();
+        Thread[] ts = new Thread[threads];
+        Exception[] err = new Exception[1];
+        for (int t = 0; t < ts.length; t++) {
+            ts[t] = new Thread(() -> {
+                int i;
+                try {
+                    while ((i = next.getAndIncrement()) < idx.entries.size()) {
+                        InstallIndex.Entry e = idx.entries.get(i);
+                        if (!Hashes.hexEquals(Hashes.SHA256.file(new File(installed, e.path), 1), e.shaHex())) bad.incrementAndGet();
+                    }
+                } catch (Exception ex) {
+                    err[0] = ex;
+                }
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts) t.join();
+        if (err[0] != null) throw err[0];
+        return bad.get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchFixtures.deleteRec(installed);
+    }
+}
@@ -0,0 +1,103 @@
+package com.robotforest.launcher;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cooperative cancellation of one install operation.
+ *
+ * The thread running the operation makes its token current ({@link #enter()}); the loops that
+ * move bytes ({@link Http} bodies, the downloaders, {@link Hashes}, {@link ParallelUnzip}) check
+ * {@link #current()} between buffers and throw {@link Cancelled}. Pools hand the token to their
+ * workers explicitly. A socket read blocked on a slow server is woken by the hook {@link Http}
+ * registers, which disconnects the connection.
+ */
+final class CancellationToken {
+    /** Thrown by a cancelled operation; retry loops rethrow it instead of trying again. */
+    static final class Cancelled extends InterruptedIOException {
+        Cancelled() { super("cancelled"); }
+    }
+
+    /** Restores the previous current token; {@link #close()} on the thread that entered. */
+    static final class Scope implements Closeable {
+        private final CancellationToken previous;
+        private Scope(CancellationToken previous) { this.previous = previous; }
+        @Override public void close() {
+            if (previous != null) CURRENT.set(previous); else CURRENT.remove();
+        }
+    }
+
+    private static final ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<>();
+    private static final CancellationToken NONE = new CancellationToken();
+
+    private volatile boolean cancelled;
+    private final List<Runnable> hooks = new ArrayList<>(); // guarded by this
+
+    /** The token entered on this thread, or one that is never cancelled. */
+    static CancellationToken current() {
+        CancellationToken t = CURRENT.get();
+        return t != null ? t : NONE;
+    }
+
+    Scope enter() {
+        Scope s = new Scope(CURRENT.get());
+        CURRENT.set(this);
+        return s;
+    }
+
+    boolean isCancelled() { return cancelled; }
+
+    void throwIfCancelled() throws Cancelled {
+        if (cancelled) throw new Cancelled();
+    }
+
+    /** Idempotent; runs the registered hooks on the calling thread. */
+    void cancel() {
+        if (this == NONE) return;
+        List<Runnable> run;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            run = new ArrayList<>(hooks);
+            hooks.clear();
+            notifyAll();
+        }
+        for (Runnable r : run) {
+            try { r.run(); } catch (Throwable ignore) {}
+        }
+    }
+
+    /**
+     * Runs {@code hook} on cancel, or at once if already cancelled. Closing the result unregisters
+     * it; do so as soon as the resource it guards is released.
+     */
+    Closeable onCancel(Runnable hook) {
+        if (this == NONE) return () -> {};
+        synchronized (this) {
+            if (!cancelled) {
+                hooks.add(hook);
+                return () -> { synchronized (CancellationToken.this) { hooks.remove(hook); } };
+            }
+        }
+        hook.run();
+        return () -> {};
+    }
+
+    /** Sleeps {@code ms}, returning early with {@link Cancelled} on cancel. */
+    void sleep(long ms) throws InterruptedIOException {
+        long end = System.nanoTime() + ms * 1_000_000;
+        synchronized (this) {
+            try {
+                for (long left; !cancelled && (left = end - System.nanoTime()) > 0; ) {
+                    wait(Math.max(1, left / 1_000_000));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted");
+            }
+        }
+        throwIfCancelled();
+    }
+}
@@ -0,0 +1,115 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+
+/** Blocking downloads for the install pipeline; call from worker threads. */
+final class Downloads {
+    private Downloads() {}
+
+    /** Blocking GET of a small UTF-8 text resource (indexes, sidecars), gzip-encoded if the server likes. Call from a worker thread. */
+    static String getText(String url, int connectMs, int readMs) throws IOException {
+        try (Http.Response r = Http.execute(Http.get(url).timeouts(connectMs, readMs).gzip())) {
+            return r.expectOk().text();
+        }
+    }
+
+    private static volatile SegmentedDownload.Options downloadOptions = new SegmentedDownload.Options();
+
+    /** Kept free beyond the body itself, so a download never fills the disk to the last block. */
+    static final long MIN_FREE = 64L * 1024 * 1024;
+
+    /**
+     * Makes room for {@code bytes} more in {@code dst}'s directory, or throws
+     * {@link NoSpaceException}. Called once the body's length is known, before any of it is
+     * written. The default only compares with the usable space; the app installs one that first
+     * evicts from the runtime store.
+     */
+    interface Space { void reserve(File dst, long bytes) throws IOException; }
+
+    private static volatile Space space = Downloads::checkUsable;
+
+    static void setSpace(Space s) { space = s; }
+
+    /** Not enough disk for a download; not worth retrying. */
+    static final class NoSpaceException extends IOException {
+        NoSpaceException(File dst, long bytes, long usable) {
+            super("not enough space for " + dst.getName() + ": need " + bytes + " bytes + "
+                    + MIN_FREE + " spare, " + usable + " usable");
+        }
+    }
+
+    static void reserve(File dst, long bytes) throws IOException {
+        if (bytes > 0) space.reserve(dst, bytes);
+    }
+
+    /** The usable space of {@code dst}'s directory (or the nearest one that exists); 0 if unknown. */
+    static long usableSpace(File dst) {
+        File dir = dst.getAbsoluteFile().getParentFile();
+        while (dir != null && !dir.isDirectory()) dir = dir.getParentFile();
+        return dir != null ? dir.getUsableSpace() : 0;
+    }
+
+    private static void checkUsable(File dst, long bytes) throws IOException {
+        long usable = usableSpace(dst);
+        // 0 means the filesystem wouldn't say; let the write find out
+        if (usable > 0 && usable < bytes + MIN_FREE) throw new NoSpaceException(dst, bytes, usable);
+    }
+
+    /** Connection count, segment size etc. for large downloads; applies to downloads started afterwards. */
+    static void setOptions(SegmentedDownload.Options o) {
+        downloadOptions = o.copy();
+    }
+
+    static String downloadTo(String url, int connectMs, int readMs, File dst) throws IOException {
+        return downloadTo(url, connectMs, readMs, dst, null);
+    }
+
+    static String downloadTo(String url, int connectMs, int readMs, File dst, ProgressLog log)
+            throws IOException {
+        return downloadTo(url, connectMs, readMs, dst, log, Hashes.SHA256);
+    }
+
+    /**
+     * Blocking: downloads {@code url} into {@code dst} and returns the lowercase hex digest of the
+     * file under {@code alg}. Large bodies from servers that honour ranges are fetched over several
+     * connections ({@link SegmentedDownload}); everything else, and any segmented attempt that
+     * fails, goes through the single-connection resumable path ({@link ResumableDownload}). Both
+     * compute SHA-256 as the bytes land and share one {@code .part} spool, so either continues what
+     * the other left. Tree algorithms hash the finished file on several threads. Heap use is a
+     * fixed buffer per connection regardless of size. Either path {@link #reserve}s the body's
+     * length before writing it. Call from a worker thread.
+     */
+    static String downloadTo(String url, int connectMs, int readMs, File dst, ProgressLog log,
+                             Hashes.Algorithm alg) throws IOException {
+        SegmentedDownload.Options o = downloadOptions;
+        if (o.connections > 1) {
+            try {
+                SegmentedDownload.Probe p = SegmentedDownload.probe(url, connectMs, readMs);
+                if (p.segmentable(o)) {
+                    reserve(dst, p.length);
+                    String sha = SegmentedDownload.fetch(url, dst, p, o, connectMs, readMs, log);
+                    Metrics.current().add("bytes", dst.length());
+                    return alg == Hashes.SHA256 ? sha : hashFile(dst, alg);
+                }
+            } catch (InterruptedIOException | NoSpaceException e) {
+                throw e;
+            } catch (IOException e) {
+                CancellationToken.current().throwIfCancelled();
+                // The .part keeps its hashed prefix; the single-connection path continues from there.
+                if (log != null) log.log("[download] segmented fetch failed, falling back: " + e);
+                Metrics.current().add("fallbacks", 1);
+            }
+        }
+        String sha = ResumableDownload.fetch(url, dst, connectMs, readMs, log);
+        Metrics.current().add("bytes", dst.length());
+        return alg == Hashes.SHA256 ? sha : hashFile(dst, alg);
+    }
+
+    /** A pass over the finished file, timed as its own phase; both download paths hash SHA-256 inline. */
+    private static String hashFile(File f, Hashes.Algorithm alg) throws IOException {
+        try (Metrics.Phase p = Metrics.phase("hash")) {
+            p.add("bytes", f.length());
+            return Hashes.fileHex(f, alg);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a child process and drains stdout and stderr concurrently, each on its own thread, so a
+ * child that fills one pipe while we block on the other can't deadlock. Output is streamed to an
+ * optional {@link OutputListener} and only the last {@link Options#tailChars} of each stream is
+ * kept for {@link Callback#onCompleted}, so memory stays bounded however much the child writes.
+ *
+ * Deliveries to the listener are coalesced: a stream has at most one task queued on the callback
+ * executor, and text arriving meanwhile is appended to it. Once {@link Options#maxPendingChars}
+ * are waiting, the reader either blocks (the child then blocks on its next write) or drops text
+ * and reports how much, depending on {@link Options#blockWhenFull}.
+ *
+ * The run ends when the child exits, not when its pipes close: a grandchild that inherited them
+ * (wineserver) may hold them open indefinitely. Once the child is gone, output still arriving
+ * within {@link #PIPE_GRACE_MS} is kept; then the pipes are closed and anything later is dropped.
+ *
+ * Android-free: the app plugs in its main thread ({@link #setMainExecutor}) and what must happen
+ * before a command starts ({@link #setLaunchGuard}) at startup.
+ */
+public final class Exec {
+    public interface Callback {
+        /** {@code stdout}/{@code stderr} are the retained tails, not necessarily the whole output. */
+        void onCompleted(int exitCode, String stdout, String stderr);
+        void onError(Exception e);
+    }
+
+    public enum Stream { STDOUT, STDERR }
+
+    public interface OutputListener {
+        /** Whole lines (without the newline) in line mode, otherwise arbitrary chunks. */
+        void onOutput(Stream stream, String text);
+    }
+
+    public static final class Options {
+        /** Chars of each stream kept for the completion callback. */
+        public int tailChars = 64 * 1024;
+        /** Deliver whole lines instead of raw chunks; overlong lines are cut at {@link #maxLineChars}. */
+        public boolean lines = true;
+        public int maxLineChars = 8 * 1024;
+        /** Where callbacks run; the main thread ({@link #setMainExecutor}) by default. Use a serial executor to keep them ordered. */
+        public Executor callbackExecutor;
+        public OutputListener listener;
+        /** Undelivered chars per stream before backpressure kicks in. */
+        public int maxPendingChars = 256 * 1024;
+        /** On overflow, block the reader (and so the child) instead of dropping text. */
+        public boolean blockWhenFull = false;
+    }
+
+    private static final ExecutorService EXEC = Executors.newCachedThreadPool();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** How long the pipes may stay open after the child exits before reading stops. */
+    static final long PIPE_GRACE_MS = 1000;
+
+    /**
+     * Runs before a command starts, on the thread that will run it; the result is closed once the
+     * child is gone. The app pins the runtime version the command runs from and waits for whatever
+     * of it an install has not put in place yet.
+     */
+    interface LaunchGuard {
+        Closeable prepare(List<String> cmd, File workDir) throws IOException;
+    }
+
+    /** Until the app sets its main thread, default callbacks run on Exec's own threads. */
+    private static volatile Executor mainExecutor = Runnable::run;
+    private static volatile LaunchGuard guard = (cmd, workDir) -> () -> {};
+
+    static void setMainExecutor(Executor e) { mainExecutor = e; }
+
+    static void setLaunchGuard(LaunchGuard g) { guard = g; }
+
+    public static void runAsync(
+            List<String> cmd,
+            File workDir,
+            Map<String, String> extraEnv,
+            Callback cb
+    ) {
+        runAsync(cmd, workDir, extraEnv, new Options(), cb);
+    }
+
+    public static void runAsync(
+            List<String> cmd,
+            File workDir,
+            Map<String, String> extraEnv,
+            Options opts,
+            Callback cb
+    ) {
+        final Options o = opts != null ? opts : new Options();
+        EXEC.submit(() -> run(cmd, workDir, extraEnv, o, callbackExecutor(o), cb, null));
+    }
+
+    /** Lifecycle hooks for {@link ProcessSupervisor}; called on Exec's threads. */
+    interface Observer {
+        void onStart(Process p);
+        /** Some output arrived (drives idle timeouts). */
+        void onActivity();
+    }
+
+    static Executor callbackExecutor(Options o) {
+        return o.callbackExecutor != null ? o.callbackExecutor : mainExecutor;
+    }
+
+    /** Runs {@code cmd} to completion on the calling thread; results go to {@code cb} via {@code cbx}. */
+    static void run(List<String> cmd, File workDir, Map<String, String> extraEnv, Options o, Executor cbx,
+                    Callback cb, Observer obs) {
+        Process p = null;
+        Closeable guarded = null;
+        try {
+            guarded = guard.prepare(cmd, workDir);
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            if (workDir != null) pb.directory(workDir);
+            pb.redirectErrorStream(false);
+            Map<String, String> env = pb.environment();
+            if (extraEnv != null) env.putAll(extraEnv);
+            p = pb.start();
+            if (obs != null) obs.onStart(p);
+            p.getOutputStream().close(); // no stdin: a child waiting on it would never exit
+
+            Drain out = new Drain(Stream.STDOUT, p.getInputStream(), o, cbx, obs);
+            Drain err = new Drain(Stream.STDERR, p.getErrorStream(), o, cbx, obs);
+            Future<?> outF = EXEC.submit(out);
+            Future<?> errF = EXEC.submit(err);
+            int code = p.waitFor();
+            long deadline = System.nanoTime() + PIPE_GRACE_MS * 1_000_000;
+            if (!drained(outF, deadline) | !drained(errF, deadline)) {
+                // Someone below the child still holds a pipe: stop listening and finish without it
+                out.detach();
+                err.detach();
+                closeQuietly(p.getInputStream());
+                closeQuietly(p.getErrorStream());
+            }
+            out.finish();
+            err.finish();
+
+            final String fOut = out.tail.toString();
+            final String fErr = err.tail.toString();
+            cbx.execute(() -> cb.onCompleted(code, fOut, fErr));
+        } catch (Exception e) {
+            cbx.execute(() -> cb.onError(e));
+        } finally {
+            if (p != null) p.destroy();
+            if (guarded != null) closeQuietly(guarded);
+        }
+    }
+
+    /**
+     * Launches {@code cmd} the way {@link #runAsync} does, callbacks on the main thread, for
+     * {@link LaunchLatency}: spawn is when {@link ProcessBuilder#start} returned, first output
+     * when the first chunk of either stream reached the main thread. Blocks until completion is
+     * delivered there, so never call the launcher on the main thread.
+     */
+    static LaunchLatency.Launcher latencyProbe(List<String> cmd, File workDir, Map<String, String> extraEnv) {
+        return () -> {
+            long[] at = {-1, -1};   // spawned, first output; guarded by at
+            int[] code = {0};
+            Exception[] failed = {null};
+            CountDownLatch done = new CountDownLatch(1);
+            Options o = new Options();
+            o.lines = false;
+            o.listener = (stream, text) -> {
+                synchronized (at) {
+                    if (at[1] < 0) at[1] = System.nanoTime();
+                }
+            };
+            Observer obs = new Observer() {
+                @Override public void onStart(Process p) {
+                    synchronized (at) {
+                        at[0] = System.nanoTime();
+                    }
+                }
+
+                @Override public void onActivity() {}
+            };
+            Callback cb = new Callback() {
+                @Override public void onCompleted(int exitCode, String stdout, String stderr) {
+                    code[0] = exitCode;
+                    done.countDown();
+                }
+
+                @Override public void onError(Exception e) {
+                    failed[0] = e;
+                    done.countDown();
+                }
+            };
+            long t0 = System.nanoTime();
+            EXEC.submit(() -> run(cmd, workDir, extraEnv, o, mainExecutor, cb, obs));
+            done.await();
+            long end = System.nanoTime();
+            if (failed[0] != null) throw failed[0];
+            synchronized (at) {
+                return new LaunchLatency.Sample(LaunchLatency.us(at[0] - t0),
+                        at[1] < 0 ? -1 : LaunchLatency.us(at[1] - t0), LaunchLatency.us(end - t0), code[0]);
+            }
+        };
+    }
+
+    /** Whether {@code f} finished by {@code deadline} ({@link System#nanoTime}); rethrows what it threw. */
+    private static boolean drained(Future<?> f, long deadline) throws Exception {
+        try {
+            f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException ee) {
+            Throwable c = ee.getCause();
+            throw c instanceof Exception ? (Exception) c : new IOException(c);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try { c.close(); } catch (IOException ignore) {}
+    }
+
+    /** Reads one pipe to EOF, feeding the tail and the (coalescing) listener delivery. */
+    private static final class Drain implements Callable<Void> {
+        final Stream stream;
+        final InputStream in;
+        final Options o;
+        final Tail tail;
+        final Delivery delivery;
+        final Observer obs;
+        final StringBuilder line = new StringBuilder();
+
+        Drain(Stream stream, InputStream in, Options o, Executor cbx, Observer obs) {
+            this.stream = stream;
+            this.in = in;
+            this.o = o;
+            this.obs = obs;
+            this.tail = new Tail(o.tailChars);
+            this.delivery = o.listener != null ? new Delivery(stream, o, cbx) : null;
+        }
+
+        @Override public Void call() throws IOException, InterruptedException {
+            char[] buf = new char[8192];
+            try (Reader r = new InputStreamReader(in, UTF8)) {
+                int n;
+                while ((n = r.read(buf)) >= 0) {
+                    tail.append(buf, 0, n);
+                    if (obs != null) obs.onActivity();
+                    if (delivery == null) continue;
+                    if (!o.lines) {
+                        delivery.offer(new String(buf, 0, n));
+                        continue;
+                    }
+                    int start = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (buf[i] != '\n') continue;
+                        line.append(buf, start, i - start);
+                        emitLine();
+                        start = i + 1;
+                    }
+                    line.append(buf, start, n - start);
+                    while (line.length() >= o.maxLineChars) {
+                        delivery.offer(line.substring(0, o.maxLineChars) + "\n");
+                        line.delete(0, o.maxLineChars);
+                    }
+                }
+            }
+            if (delivery != null && line.length() > 0) emitLine();
+            return null;
+        }
+
+        private void emitLine() throws InterruptedException {
+            int end = line.length();
+            if (end > 0 && line.charAt(end - 1) == '\r') end--;
+            line.setLength(end);
+            line.append('\n');
+            delivery.offer(line.toString());
+            line.setLength(0);
+        }
+
+        /** Stops delivering: whatever this drain reads from now on only reaches the tail. */
+        void detach() {
+            if (delivery != null) delivery.close();
+        }
+
+        void finish() throws InterruptedException {
+            if (delivery != null) delivery.awaitIdle();
+        }
+    }
+
+    /**
+     * Hands text to the listener with at most one task queued on the executor. Lines are joined
+     * with '\n' while pending and split again on delivery.
+     */
+    private static final class Delivery {
+        final Stream stream;
+        final Options o;
+        final Executor cbx;
+        private final StringBuilder pending = new StringBuilder();
+        private boolean scheduled;
+        private boolean closed;
+        private long dropped;
+
+        Delivery(Stream stream, Options o, Executor cbx) {
+            this.stream = stream;
+            this.o = o;
+            this.cbx = cbx;
+        }
+
+        synchronized void offer(String s) throws InterruptedException {
+            if (closed) return;
+            if (pending.length() > 0 && pending.length() + s.length() > o.maxPendingChars) {
+                if (o.blockWhenFull) {
+                    while (!closed && pending.length() > 0 && pending.length() + s.length() > o.maxPendingChars) wait();
+                    if (closed) return;
+                } else {
+                    // Text only: in line mode each offer ends with the '\n' joining pending lines
+                    dropped += o.lines ? s.length() - 1 : s.length();
+                    return;
+                }
+            }
+            pending.append(s);
+            if (!scheduled) {
+                scheduled = true;
+                cbx.execute(this::flush);
+            }
+        }
+
+        private void flush() {
+            String text;
+            long lost;
+            synchronized (this) {
+                text = pending.toString();
+                pending.setLength(0);
+                lost = dropped;
+                dropped = 0;
+            }
+            try {
+                if (lost > 0) o.listener.onOutput(stream, "[… " + lost + " chars dropped]");
+                if (!o.lines) {
+                    o.listener.onOutput(stream, text);
+                } else {
+                    int start = 0, nl;
+                    while ((nl = text.indexOf('\n', start)) >= 0) {
+                        o.listener.onOutput(stream, text.substring(start, nl));
+                        start = nl + 1;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    if (pending.length() > 0 || dropped > 0) {
+                        cbx.execute(this::flush);
+                    } else {
+                        scheduled = false;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        /** Drops later offers, and wakes an offer blocked on a full queue. */
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        /** Waits until everything offered has been delivered, so completion comes after output. */
+        synchronized void awaitIdle() throws InterruptedException {
+            while (scheduled) wait();
+        }
+    }
+
+    /** Ring buffer holding the last {@code cap} chars written. */
+    static final class Tail {
+        private final char[] buf;
+        private int pos;
+        private long total;
+
+        Tail(int cap) { buf = new char[Math.max(0, cap)]; }
+
+        // Appended by a drain, read by the run: after a detach, possibly at the same time
+        synchronized void append(char[] src, int off, int len) {
+            total += len;
+            if (buf.length == 0) return;
+            if (len >= buf.length) {
+                System.arraycopy(src, off + len - buf.length, buf, 0, buf.length);
+                pos = 0;
+                return;
+            }
+            int first = Math.min(len, buf.length - pos);
+            System.arraycopy(src, off, buf, pos, first);
+            System.arraycopy(src, off + first, buf, 0, len - first);
+            pos = (pos + len) % buf.length;
+        }
+
+        synchronized long total() { return total; }
+
+        @Override public synchronized String toString() {
+            if (total <= buf.length) return new String(buf, 0, (int) total);
+            StringBuilder sb = new StringBuilder(buf.length + 32);
+            sb.append("[… ").append(total - buf.length).append(" chars omitted]\n");
+            sb.append(buf, pos, buf.length - pos).append(buf, 0, pos);
+            return sb.toString();
+        }
+    }
+}
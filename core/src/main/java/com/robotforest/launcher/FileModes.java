@@ -0,0 +1,221 @@
+package com.robotforest.launcher;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Unix permission bits for installed runtime trees.
+ *
+ * The core can't call {@code chmod(2)}/{@code stat(2)} itself on every platform, so the app
+ * installs them ({@code Os::chmod} and {@code Os.stat} on Android) via {@link #setChmod} and
+ * {@link #setStat}; until then a {@link File}-based approximation is used, which is what the JVM
+ * benchmarks run with. It only sees the owner's bits, so comparisons then look at those alone.
+ */
+final class FileModes {
+    interface Chmod { void chmod(String path, int mode) throws Exception; }
+
+    /** Permission bits of {@code path} (no type bits). */
+    interface Stat { int mode(String path) throws Exception; }
+
+    /** Every directory of an installed tree: it must be traversable, and nothing else matters. */
+    static final int DIR_MODE = 0755;
+
+    private static volatile Chmod chmod = FileModes::portable;
+    private static volatile Stat stat = FileModes::portableStat;
+    private static volatile int statMask = 0700;
+
+    private FileModes() {}
+
+    static void setChmod(Chmod c) { chmod = c; }
+
+    static void setStat(Stat s) {
+        stat = s;
+        statMask = 07777;
+    }
+
+    /** Mode an installed file should have when nothing better is known: executables directly under {@code bin/}, data elsewhere. */
+    static int intendedMode(String rel) {
+        return rel.startsWith("bin/") && rel.indexOf('/', 4) < 0 ? 0755 : 0644;
+    }
+
+    /**
+     * Where a file's mode comes from: the first manifest rule whose glob matches its path, else the
+     * mode recorded in the archive, else {@link #intendedMode}. Archive modes lose setuid/setgid,
+     * sticky and group/world write, and always keep owner read.
+     */
+    static final class Policy {
+        static final Policy DEFAULT = new Policy(Collections.<Rule>emptyList());
+
+        /** {@code glob} over relative paths: {@code *} and {@code ?} stay within a segment, {@code **} spans them. */
+        static final class Rule {
+            final String glob;
+            final int mode;
+            private final Pattern re;
+
+            Rule(String glob, int mode) {
+                this.glob = glob;
+                this.mode = mode & 07777;
+                this.re = compile(glob);
+            }
+
+            boolean matches(String rel) { return re.matcher(rel).matches(); }
+        }
+
+        final List<Rule> rules;
+
+        Policy(List<Rule> rules) {
+            this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        }
+
+        /** @param archiveMode {@code st_mode} from the zip ({@link ZipModes}), or -1 if it has none */
+        int fileMode(String rel, int archiveMode) {
+            for (Rule r : rules) if (r.matches(rel)) return r.mode;
+            if (archiveMode > 0 && (archiveMode & 0777) != 0) return (archiveMode & 0755) | 0400;
+            return intendedMode(rel);
+        }
+
+        private static Pattern compile(String glob) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    // "**/" also matches no directory at all
+                    boolean slash = i + 2 < glob.length() && glob.charAt(i + 2) == '/';
+                    sb.append(slash ? "(?:.*/)?" : ".*");
+                    i += slash ? 2 : 1;
+                } else if (c == '*') {
+                    sb.append("[^/]*");
+                } else if (c == '?') {
+                    sb.append("[^/]");
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return Pattern.compile(sb.toString());
+        }
+    }
+
+    /** Best effort; false if the mode could not be set. */
+    static boolean chmod(File f, int mode) {
+        try {
+            chmod.chmod(f.getAbsolutePath(), mode);
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /** Permission bits of {@code f}, or -1 if they can't be read. */
+    static int mode(File f) {
+        try {
+            return stat.mode(f.getAbsolutePath()) & 07777;
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    /** Whether {@code f} already has {@code mode}, as far as the platform hook can tell. */
+    static boolean hasMode(File f, int mode) {
+        int m = mode(f);
+        return m >= 0 && (m & statMask) == (mode & statMask);
+    }
+
+    /** Outcome of {@link #repair}. */
+    static final class Repair {
+        int checked;
+        int fixed;
+        int failed;
+
+        @Override public String toString() {
+            return checked + " checked, " + fixed + " fixed" + (failed > 0 ? ", " + failed + " failed" : "");
+        }
+    }
+
+    /**
+     * Stats each indexed file and its directories and chmods only those whose mode is wrong. The
+     * index carries the mode each file was installed with; directories want {@link #DIR_MODE}.
+     * Without an index ({@code entries == null}) every file under {@code root} is compared
+     * against {@link #intendedMode}.
+     */
+    static Repair repair(File root, Collection<InstallIndex.Entry> entries) {
+        Repair r = new Repair();
+        if (entries == null) {
+            repairWalk(root, "", r);
+            return r;
+        }
+        Set<String> dirs = new HashSet<>();
+        fix(root, DIR_MODE, r);
+        for (InstallIndex.Entry e : entries) {
+            for (int s = e.path.indexOf('/'); s > 0; s = e.path.indexOf('/', s + 1)) {
+                String d = e.path.substring(0, s);
+                if (dirs.add(d)) fix(new File(root, d), DIR_MODE, r);
+            }
+            File f = new File(root, e.path);
+            if (f.isFile()) fix(f, e.mode, r);
+        }
+        return r;
+    }
+
+    private static void repairWalk(File f, String rel, Repair r) {
+        boolean dir = f.isDirectory();
+        fix(f, dir ? DIR_MODE : intendedMode(rel), r);
+        if (!dir) return;
+        File[] kids = f.listFiles();
+        if (kids != null) for (File k : kids) {
+            if (!isSymlink(k)) repairWalk(k, rel.isEmpty() ? k.getName() : rel + "/" + k.getName(), r);
+        }
+    }
+
+    private static void fix(File f, int mode, Repair r) {
+        r.checked++;
+        if (hasMode(f, mode)) return;
+        if (chmod(f, mode)) r.fixed++; else r.failed++;
+    }
+
+    /** {@link #DIR_MODE} on directories and {@link #intendedMode} on files, unconditionally; returns the number of failures. */
+    static int fixTree(File root) {
+        return fixTree(root, "");
+    }
+
+    private static int fixTree(File f, String rel) {
+        if (!f.isDirectory()) return chmod(f, intendedMode(rel)) ? 0 : 1;
+        int n = chmod(f, DIR_MODE) ? 0 : 1;
+        File[] kids = f.listFiles();
+        if (kids != null) for (File k : kids) {
+            if (!isSymlink(k)) n += fixTree(k, rel.isEmpty() ? k.getName() : rel + "/" + k.getName());
+        }
+        return n;
+    }
+
+    /**
+     * Whether {@code f} is a symlink, without {@code lstat}: resolving it moves it away from its
+     * (resolved) parent directory. Walks skip them; chmod would follow one out of the tree.
+     */
+    static boolean isSymlink(File f) {
+        try {
+            File parent = f.getAbsoluteFile().getParentFile();
+            if (parent == null) return false;
+            File inParent = new File(parent.getCanonicalFile(), f.getName());
+            return !inParent.getCanonicalFile().equals(inParent);
+        } catch (java.io.IOException e) {
+            return false;
+        }
+    }
+
+    /** Owner and world read/write/execute bits through {@link File}; group bits follow "others". */
+    private static void portable(String path, int mode) throws Exception {
+        File f = new File(path);
+        boolean ok = f.setReadable((mode & 0004) != 0, false) | f.setReadable((mode & 0400) != 0, true);
+        ok &= f.setWritable((mode & 0002) != 0, false) | f.setWritable((mode & 0200) != 0, true);
+        ok &= f.setExecutable((mode & 0001) != 0, false) | f.setExecutable((mode & 0100) != 0, true);
+        if (!ok) throw new java.io.IOException("chmod failed: " + path);
+    }
+
+    /** Owner bits only: all {@link File} can tell about the current user. */
+    private static int portableStat(String path) throws Exception {
+        File f = new File(path);
+        if (!f.exists()) throw new java.io.FileNotFoundException(path);
+        return (f.canRead() ? 0400 : 0) | (f.canWrite() ? 0200 : 0) | (f.canExecute() ? 0100 : 0);
+    }
+}
@@ -0,0 +1,371 @@
+package com.robotforest.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Digests for everything the launcher verifies.
+ *
+ * The archive digest algorithm is named by the manifest's {@code "hash"} field:
+ * <ul>
+ *   <li>{@code sha256} &mdash; plain SHA-256 (the default, and what the legacy {@code sha256} field holds).</li>
+ *   <li>{@code sha256-tree} &mdash; SHA-256 over 1 MiB leaves: {@code root = SHA-256(0x01 || leaf...)},
+ *       {@code leaf = SHA-256(0x00 || chunk)}. Leaves are independent, so files hash on every core.</li>
+ *   <li>{@code blake3} &mdash; BLAKE3, whose own chunk tree is split into 1 MiB subtrees the same way.</li>
+ * </ul>
+ * Files are read through {@link FileChannel#map}; tree algorithms map and hash regions in parallel.
+ */
+final class Hashes {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Leaf size of {@code sha256-tree}, and the unit of parallel work for every tree algorithm. */
+    static final int TREE_LEAF = 1024 * 1024;
+    /** Sequential reads map the file this much at a time. */
+    private static final int MAP_WINDOW = 16 * 1024 * 1024;
+
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "rf-hash");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    private Hashes() {}
+
+    /** Streaming digest state, one instance per input. */
+    interface Hasher {
+        void update(byte[] b, int off, int len);
+        void update(ByteBuffer b);
+        byte[] digest();
+    }
+
+    /** A named digest algorithm. */
+    abstract static class Algorithm {
+        final String name;
+        /** Whether {@link #file} can use more than one thread. */
+        final boolean tree;
+
+        Algorithm(String name, boolean tree) { this.name = name; this.tree = tree; }
+
+        abstract Hasher newHasher();
+
+        /** Digest of a whole file; tree algorithms split it over up to {@code threads} threads. */
+        byte[] file(File f, int threads) throws IOException {
+            Hasher h = newHasher();
+            CancellationToken token = CancellationToken.current();
+            try (FileInputStream in = new FileInputStream(f); FileChannel ch = in.getChannel()) {
+                long size = ch.size();
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    token.throwIfCancelled();
+                    h.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos)));
+                }
+            }
+            return h.digest();
+        }
+
+        @Override public String toString() { return name; }
+    }
+
+    static final Algorithm SHA256 = new Algorithm("sha256", false) {
+        @Override Hasher newHasher() { return new MdHasher(sha256()); }
+    };
+
+    static final Algorithm SHA256_TREE = new Algorithm("sha256-tree", true) {
+        @Override Hasher newHasher() { return new Sha256Tree(); }
+
+        @Override byte[] file(File f, int threads) throws IOException {
+            try (FileInputStream in = new FileInputStream(f); FileChannel ch = in.getChannel()) {
+                long size = ch.size();
+                int leaves = (int) ((size + TREE_LEAF - 1) / TREE_LEAF);
+                if (threads <= 1 || leaves < 2) return super.file(f, 1);
+                byte[][] digests = new byte[leaves][];
+                parallel(leaves, threads, i -> {
+                    MessageDigest md = sha256();
+                    md.update((byte) 0);
+                    md.update(map(ch, (long) i * TREE_LEAF, size));
+                    digests[i] = md.digest();
+                });
+                MessageDigest root = sha256();
+                root.update((byte) 1);
+                for (byte[] d : digests) root.update(d);
+                return root.digest();
+            }
+        }
+    };
+
+    static final Algorithm BLAKE3 = new Algorithm("blake3", true) {
+        @Override Hasher newHasher() { return new Blake3(); }
+
+        @Override byte[] file(File f, int threads) throws IOException {
+            try (FileInputStream in = new FileInputStream(f); FileChannel ch = in.getChannel()) {
+                long size = ch.size();
+                // Whole subtrees strictly before the last byte; the tail (never empty) finishes the root.
+                int units = size == 0 ? 0 : (int) ((size - 1) / TREE_LEAF);
+                if (threads <= 1 || units < 2) return super.file(f, 1);
+                int[][] cvs = new int[units][];
+                long chunks = TREE_LEAF / Blake3.CHUNK_LEN;
+                parallel(units, threads, i -> cvs[i] = Blake3.subtree(map(ch, (long) i * TREE_LEAF, size), i * chunks));
+                Blake3 h = new Blake3();
+                for (int[] cv : cvs) h.pushSubtree(cv, chunks);
+                for (long pos = (long) units * TREE_LEAF; pos < size; pos += MAP_WINDOW) {
+                    CancellationToken.current().throwIfCancelled();
+                    h.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos)));
+                }
+                return h.digest();
+            }
+        }
+    };
+
+    /** The algorithm for a manifest {@code "hash"} value, or null if this build doesn't know it. */
+    static Algorithm algorithm(String name) {
+        if (name == null) return SHA256;
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "":
+            case "sha256":
+            case "sha-256":
+                return SHA256;
+            case "sha256-tree":
+                return SHA256_TREE;
+            case "blake3":
+                return BLAKE3;
+            default:
+                return null;
+        }
+    }
+
+    static int defaultThreads() {
+        return Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Lowercase hex digest of {@code f} under {@code alg}, using {@link #defaultThreads()}. */
+    static String fileHex(File f, Algorithm alg) throws IOException {
+        return hex(alg.file(f, defaultThreads()));
+    }
+
+    static boolean shouldVerify(String expected) {
+        if (expected == null) return false;
+        String e = expected.trim();
+        return !(e.isEmpty() || e.equalsIgnoreCase("auto"));
+    }
+    static String sha256Hex(byte[] data) {
+        return hex(sha256().digest(data));
+    }
+    static String sha256File(File f) throws IOException {
+        return hex(SHA256.file(f, 1));
+    }
+    /** Streams {@code in} to EOF through a fresh hasher for {@code alg}. */
+    static byte[] digest(InputStream in, Algorithm alg) throws IOException {
+        Hasher h = alg.newHasher();
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) >= 0) h.update(buf, 0, n);
+        return h.digest();
+    }
+
+    /**
+     * Hashes every byte read through it, for input that can only be read once. Skips are read too,
+     * so nothing passes unhashed; {@link #finish} reads the rest and returns the digest of it all.
+     */
+    static final class HashingInputStream extends FilterInputStream {
+        private final Hasher h;
+        private final byte[] one = new byte[1];
+
+        HashingInputStream(InputStream in, Algorithm alg) {
+            super(in);
+            this.h = alg.newHasher();
+        }
+
+        @Override public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) h.update(b, off, n);
+            return n;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            byte[] buf = new byte[(int) Math.min(n, 64 * 1024)];
+            long done = 0;
+            int r;
+            while (done < n && (r = read(buf, 0, (int) Math.min(buf.length, n - done))) >= 0) done += r;
+            return done;
+        }
+
+        @Override public boolean markSupported() { return false; }
+
+        /** Reads to EOF and returns the lowercase hex digest of everything the stream held. */
+        String finish() throws IOException {
+            CancellationToken token = CancellationToken.current();
+            byte[] buf = new byte[64 * 1024];
+            while (read(buf, 0, buf.length) >= 0) token.throwIfCancelled();
+            return hex(h.digest());
+        }
+    }
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 unavailable", ex);
+        }
+    }
+    static String hex(byte[] d) {
+        char[] out = new char[d.length * 2];
+        hex(d, out, 0);
+        return new String(out);
+    }
+    /** Writes {@code d} as lowercase hex into {@code out} at {@code off}; no allocation. */
+    static void hex(byte[] d, char[] out, int off) {
+        for (int i = 0; i < d.length; i++) {
+            out[off + 2 * i] = HEX[(d[i] >> 4) & 0xf];
+            out[off + 2 * i + 1] = HEX[d[i] & 0xf];
+        }
+    }
+    /** Whether {@code d} is the digest spelled by {@code hex} (either case); no allocation. */
+    static boolean hexEquals(byte[] d, String hex) {
+        if (hex == null || hex.length() != d.length * 2) return false;
+        for (int i = 0; i < d.length; i++) {
+            if (Character.digit(hex.charAt(2 * i), 16) != ((d[i] >> 4) & 0xf)
+                    || Character.digit(hex.charAt(2 * i + 1), 16) != (d[i] & 0xf)) return false;
+        }
+        return true;
+    }
+    static byte[] unhex(String s) {
+        if ((s.length() & 1) != 0) throw new IllegalArgumentException("odd hex length");
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16), lo = Character.digit(s.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("bad hex: " + s);
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return out;
+    }
+
+    // ---- internals ---------------------------------------------------------------------------
+
+    private static final class MdHasher implements Hasher {
+        private final MessageDigest md;
+        MdHasher(MessageDigest md) { this.md = md; }
+        @Override public void update(byte[] b, int off, int len) { md.update(b, off, len); }
+        @Override public void update(ByteBuffer b) { md.update(b); }
+        @Override public byte[] digest() { return md.digest(); }
+    }
+
+    /** Streaming form of {@code sha256-tree}; matches the parallel file path byte for byte. */
+    private static final class Sha256Tree implements Hasher {
+        private final MessageDigest root = sha256();
+        private final MessageDigest leaf = sha256();
+        private int leafLen = -1; // -1: no leaf open
+
+        Sha256Tree() { root.update((byte) 1); }
+
+        @Override public void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = Math.min(room(), len);
+                leaf.update(b, off, n);
+                leafLen += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override public void update(ByteBuffer b) {
+            while (b.hasRemaining()) {
+                int n = Math.min(room(), b.remaining());
+                ByteBuffer part = b.duplicate();
+                part.limit(part.position() + n);
+                leaf.update(part);
+                b.position(b.position() + n);
+                leafLen += n;
+            }
+        }
+
+        /** Space left in the open leaf, closing a full one (or opening the first) as needed. */
+        private int room() {
+            if (leafLen == TREE_LEAF) {
+                root.update(leaf.digest());
+                leafLen = -1;
+            }
+            if (leafLen < 0) {
+                leaf.update((byte) 0);
+                leafLen = 0;
+            }
+            return TREE_LEAF - leafLen;
+        }
+
+        @Override public byte[] digest() {
+            if (leafLen > 0) {
+                root.update(leaf.digest());
+                leafLen = -1;
+            }
+            return root.digest();
+        }
+    }
+
+    private interface Task { void run(int i) throws IOException; }
+
+    /** Runs {@code task(0..n-1)} on the hash pool plus the calling thread, first failure wins. */
+    private static void parallel(int n, int threads, Task task) throws IOException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CancellationToken token = CancellationToken.current();
+        Callable<Void> worker = () -> {
+            int i;
+            while (failed.get() == 0 && (i = next.getAndIncrement()) < n) {
+                try {
+                    token.throwIfCancelled();
+                    task.run(i);
+                } catch (IOException | RuntimeException e) {
+                    failed.set(1);
+                    throw e;
+                }
+            }
+            return null;
+        };
+        int helpers = Math.min(threads, n) - 1;
+        Future<?>[] fs = new Future<?>[helpers];
+        for (int k = 0; k < helpers; k++) fs[k] = POOL.submit(worker);
+        IOException first = null;
+        try {
+            worker.call();
+        } catch (IOException e) {
+            first = e;
+        } catch (Exception e) {
+            first = new IOException(e);
+        }
+        for (Future<?> f : fs) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                failed.set(1);
+                Thread.currentThread().interrupt();
+                if (first == null) first = new InterruptedIOException("interrupted while hashing");
+            } catch (ExecutionException e) {
+                if (first == null) first = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if (first != null) throw first;
+    }
+
+    private static MappedByteBuffer map(FileChannel ch, long pos, long size) throws IOException {
+        return ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(TREE_LEAF, size - pos));
+    }
+}
@@ -0,0 +1,318 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The launcher's one HTTP client, on top of {@link HttpURLConnection}.
+ *
+ * <ul>
+ *   <li>Keep-alive: bodies are closed, never {@code disconnect()}ed, so the platform pool can
+ *       hand the socket to the next request for the same host.</li>
+ *   <li>Limits: at most {@link #configure perHost} exchanges in flight per host (callers block
+ *       for a slot), and async work runs on a bounded pool instead of one shared thread.</li>
+ *   <li>Compression: {@link Request#gzip()} asks for and decodes gzip; everything else is sent
+ *       {@code Accept-Encoding: identity} so Content-Length and byte ranges mean raw bytes.</li>
+ *   <li>Redirects are followed here, across hosts, up to {@link #MAX_REDIRECTS}, keeping the
+ *       request's headers; an https fetch fails rather than follow a redirect to plain http.</li>
+ *   <li>Every exchange records {@link Timing}, reported to an optional {@link TimingListener}.</li>
+ *   <li>Cancelling the calling thread's {@link CancellationToken} disconnects the exchange and
+ *       makes body reads throw {@link CancellationToken.Cancelled}.</li>
+ * </ul>
+ */
+final class Http {
+    private static final Logger LOG = Logger.getLogger("rf.http");
+    static final int MAX_REDIRECTS = 8;
+
+    private static volatile int perHost = 6;
+    private static final Map<String, Semaphore> HOSTS = new ConcurrentHashMap<>();
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "rf-http");
+                t.setDaemon(true);
+                return t;
+            });
+    private static volatile TimingListener timingListener;
+
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+        // Idle keep-alive sockets the platform pool may hold (default 5).
+        if (System.getProperty("http.maxConnections") == null) System.setProperty("http.maxConnections", "16");
+    }
+
+    private Http() {}
+
+    /** Async pool size and per-host concurrency; applies to work started afterwards. */
+    static void configure(int poolSize, int perHostLimit) {
+        int n = Math.max(1, poolSize);
+        if (n > POOL.getMaximumPoolSize()) { POOL.setMaximumPoolSize(n); POOL.setCorePoolSize(n); }
+        else { POOL.setCorePoolSize(n); POOL.setMaximumPoolSize(n); }
+        perHost = Math.max(1, perHostLimit);
+        HOSTS.clear();
+    }
+
+    /** Runs blocking HTTP work on the shared bounded pool. */
+    static <T> Future<T> submit(Callable<T> task) {
+        return POOL.submit(task);
+    }
+
+    interface TimingListener { void onTiming(String method, String url, int code, Timing t); }
+
+    static void setTimingListener(TimingListener l) { timingListener = l; }
+
+    static Request get(String url) { return new Request(url); }
+
+    static final class Request {
+        final String url;
+        String method = "GET";
+        final Map<String, String> headers = new LinkedHashMap<>();
+        int connectMs = 15000;
+        int readMs = 30000;
+        boolean gzip;
+
+        Request(String url) { this.url = url; }
+
+        Request method(String m) { method = m; return this; }
+        Request header(String k, String v) { headers.put(k, v); return this; }
+        Request timeouts(int connectMs, int readMs) { this.connectMs = connectMs; this.readMs = readMs; return this; }
+        /** Accept a gzip body (text: manifests, indexes, sidecars); {@link Response#body()} decodes it. */
+        Request gzip() { gzip = true; return this; }
+    }
+
+    /** Wall-clock breakdown of one exchange, in milliseconds. */
+    static final class Timing {
+        long waitMs;      // blocked on the per-host limit
+        long headersMs;   // connect + request + response headers, all hops
+        long bodyMs;      // reading the body until close()
+        long bytes;       // body bytes as read (after decompression)
+        int redirects;
+
+        long totalMs() { return waitMs + headersMs + bodyMs; }
+
+        @Override public String toString() {
+            return "wait " + waitMs + "ms, headers " + headersMs + "ms, body " + bodyMs + "ms, "
+                    + bytes + " bytes" + (redirects > 0 ? ", " + redirects + " redirects" : "");
+        }
+    }
+
+    /** Executes {@code r}, following redirects; the caller must {@link Response#close()} the result. */
+    static Response execute(Request r) throws IOException {
+        CancellationToken token = CancellationToken.current();
+        token.throwIfCancelled();
+        Timing t = new Timing();
+        long t0 = System.nanoTime();
+        Semaphore slot = HOSTS.computeIfAbsent(new URL(r.url).getHost(), h -> new Semaphore(perHost, true));
+        try {
+            slot.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a connection slot");
+        }
+        long t1 = System.nanoTime();
+        t.waitMs = (t1 - t0) / 1_000_000;
+        try {
+            String url = r.url;
+            String method = r.method;
+            for (int hop = 0; ; hop++) {
+                HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+                Closeable onCancel = token.onCancel(c::disconnect);
+                c.setInstanceFollowRedirects(false);
+                c.setConnectTimeout(r.connectMs);
+                c.setReadTimeout(r.readMs);
+                c.setRequestMethod(method);
+                c.setRequestProperty("User-Agent", userAgent());
+                c.setRequestProperty("Accept-Encoding", r.gzip ? "gzip" : "identity");
+                for (Map.Entry<String, String> h : r.headers.entrySet()) c.setRequestProperty(h.getKey(), h.getValue());
+                int code;
+                try {
+                    code = c.getResponseCode();
+                } catch (IOException e) {
+                    onCancel.close();
+                    c.disconnect();
+                    token.throwIfCancelled();
+                    throw e;
+                }
+                String loc = isRedirect(code) ? c.getHeaderField("Location") : null;
+                if (loc == null) {
+                    t.headersMs = (System.nanoTime() - t1) / 1_000_000;
+                    t.redirects = hop;
+                    return new Response(r, method, url, code, c, slot, t, token, onCancel);
+                }
+                discard(c);
+                onCancel.close();
+                token.throwIfCancelled();
+                if (hop + 1 > MAX_REDIRECTS) throw new IOException("too many redirects: " + r.url);
+                URL from = new URL(url);
+                URL next = new URL(from, loc);
+                // A secure fetch stays secure: a redirect must not downgrade it to plaintext
+                if ("https".equalsIgnoreCase(from.getProtocol()) && !"https".equalsIgnoreCase(next.getProtocol())) {
+                    throw new IOException("refusing redirect from " + from + " to " + next);
+                }
+                url = next.toString();
+                if (code == 303) method = "GET";
+            }
+        } catch (IOException | RuntimeException e) {
+            slot.release();
+            throw e;
+        }
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    /** Reads and closes a small body so the socket can go back to the pool. */
+    private static void discard(HttpURLConnection c) {
+        try {
+            InputStream in = c.getResponseCode() >= 400 ? c.getErrorStream() : c.getInputStream();
+            if (in != null) {
+                try (InputStream i = in) {
+                    byte[] buf = new byte[4096];
+                    long left = 64 * 1024;
+                    int n;
+                    while (left > 0 && (n = i.read(buf)) >= 0) left -= n;
+                }
+            }
+        } catch (IOException ignore) {
+            c.disconnect();
+        }
+    }
+
+    /** One response. Headers are available at once; the body streams. Close exactly once. */
+    static final class Response implements Closeable {
+        final String method;
+        final String url;       // after redirects
+        final int code;
+        final Timing timing;
+        private final String requestUrl;
+        private final boolean gzipRequested;
+        private final HttpURLConnection c;
+        private final Semaphore slot;
+        private final CancellationToken token;
+        private final Closeable onCancel;
+        private final long bodyStart = System.nanoTime();
+        private InputStream body;
+        private boolean closed;
+
+        Response(Request r, String method, String url, int code, HttpURLConnection c, Semaphore slot, Timing t,
+                 CancellationToken token, Closeable onCancel) {
+            this.method = method;
+            this.url = url;
+            this.code = code;
+            this.timing = t;
+            this.requestUrl = r.url;
+            this.gzipRequested = r.gzip;
+            this.c = c;
+            this.slot = slot;
+            this.token = token;
+            this.onCancel = onCancel;
+        }
+
+        String header(String name) { return c.getHeaderField(name); }
+
+        /** Raw Content-Length, -1 if absent (or if the body is compressed). */
+        long contentLength() {
+            if ("gzip".equalsIgnoreCase(header("Content-Encoding"))) return -1;
+            return headerLong("Content-Length", -1);
+        }
+
+        long headerLong(String name, long def) {
+            String v = header(name);
+            if (v == null) return def;
+            try { return Long.parseLong(v.trim()); } catch (NumberFormatException e) { return def; }
+        }
+
+        /** The body (error body for 4xx/5xx, possibly empty), decompressed if needed. */
+        InputStream body() throws IOException {
+            if (body != null) return body;
+            InputStream in = code >= 400 ? c.getErrorStream() : c.getInputStream();
+            if (in == null) in = new ByteArrayInputStream(new byte[0]);
+            if (gzipRequested && "gzip".equalsIgnoreCase(header("Content-Encoding"))) in = new GZIPInputStream(in, 8192);
+            body = new FilterInputStream(in) {
+                @Override public int read() throws IOException {
+                    token.throwIfCancelled();
+                    int b;
+                    try {
+                        b = super.read();
+                    } catch (IOException e) {
+                        token.throwIfCancelled(); // the disconnect surfaces as a socket error
+                        throw e;
+                    }
+                    if (b >= 0) timing.bytes++;
+                    return b;
+                }
+                @Override public int read(byte[] b, int off, int len) throws IOException {
+                    token.throwIfCancelled();
+                    int n;
+                    try {
+                        n = super.read(b, off, len);
+                    } catch (IOException e) {
+                        token.throwIfCancelled();
+                        throw e;
+                    }
+                    if (n > 0) timing.bytes += n;
+                    return n;
+                }
+            };
+            return body;
+        }
+
+        byte[] bytes() throws IOException {
+            try (ByteArrayOutputStream bos = new ByteArrayOutputStream(16 * 1024)) {
+                InputStream in = body();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+                return bos.toByteArray();
+            }
+        }
+
+        String text() throws IOException {
+            return new String(bytes(), "UTF-8");
+        }
+
+        /** Throws unless the status is 200. */
+        Response expectOk() throws IOException {
+            if (code != HttpURLConnection.HTTP_OK) {
+                close();
+                throw new IOException("HTTP " + code + " for " + requestUrl);
+            }
+            return this;
+        }
+
+        @Override public void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                // A fully read, closed body returns the socket to the keep-alive pool.
+                InputStream in = body != null ? body : (code >= 400 ? c.getErrorStream() : null);
+                if (in != null) in.close();
+                else if (!"HEAD".equals(method)) c.getInputStream().close();
+            } catch (IOException e) {
+                c.disconnect();
+            } finally {
+                try { onCancel.close(); } catch (IOException ignore) {}
+                slot.release();
+                timing.bodyMs = (System.nanoTime() - bodyStart) / 1_000_000;
+                TimingListener l = timingListener;
+                if (l != null) {
+                    try { l.onTiming(method, requestUrl, code, timing); } catch (Throwable ignore) {}
+                }
+                if (LOG.isLoggable(Level.FINE)) LOG.fine(method + " " + requestUrl + " " + code + ": " + timing);
+            }
+        }
+    }
+
+    private static volatile String userAgent = "RobotForest (Java " + System.getProperty("java.version") + ")";
+
+    /** Set once at startup by the app (platform and ABI). */
+    static void setUserAgent(String ua) { userAgent = ua; }
+
+    static String userAgent() { return userAgent; }
+}
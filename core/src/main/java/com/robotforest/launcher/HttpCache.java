@@ -0,0 +1,291 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size-bounded on-disk cache for small text responses (the runtime manifest, .sha256 sidecars).
+ *
+ * Each entry is {@code <sha256(url)>.body} plus a {@code .meta} properties file holding the
+ * validators ({@code ETag}, {@code Last-Modified}), the body's SHA-256 and when it was last
+ * confirmed. Revalidation is a conditional GET, so an unchanged resource costs a 304 with no
+ * body. An entry whose meta does not parse or whose body no longer matches its digest is dropped,
+ * and the next request is a plain GET. Least recently used entries are evicted once the total
+ * exceeds the budget.
+ *
+ * {@link #getStale} is stale-while-revalidate: it answers from disk at once and refreshes in the
+ * background, so callers on the startup path never wait for the network when something is cached.
+ */
+final class HttpCache {
+    private static final Logger LOG = Logger.getLogger("rf.http-cache");
+    static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    /** Larger responses are passed through uncached. */
+    static final int MAX_ENTRY_BYTES = 256 * 1024;
+
+    private static volatile HttpCache shared;
+
+    /** The process-wide cache under {@code cacheDir/http}; the first caller's directory wins. */
+    static HttpCache shared(File cacheDir) {
+        HttpCache c = shared;
+        if (c == null) {
+            synchronized (HttpCache.class) {
+                if (shared == null) shared = new HttpCache(new File(cacheDir, "http"), DEFAULT_MAX_BYTES);
+                c = shared;
+            }
+        }
+        return c;
+    }
+
+    /** A cached or fresh body and whether it came from the network just now. */
+    static final class Entry {
+        final String url;
+        final String body;
+        final String etag;
+        final String lastModified;
+        final long validatedAt;
+        final boolean fromNetwork;
+
+        Entry(String url, String body, String etag, String lastModified, long validatedAt, boolean fromNetwork) {
+            this.url = url; this.body = body; this.etag = etag; this.lastModified = lastModified;
+            this.validatedAt = validatedAt; this.fromNetwork = fromNetwork;
+        }
+
+        long ageMs() { return System.currentTimeMillis() - validatedAt; }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    /** key -> body size, in access order (eldest first). */
+    private final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    HttpCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * Stale-while-revalidate: the cached entry at once, plus a background revalidation when it is
+     * older than {@code freshMs}. Null when nothing is cached; the caller then decides whether to
+     * wait for {@link #get}. Never touches the network on the caller's thread.
+     */
+    Entry getStale(String url, long freshMs, int connectMs, int readMs) {
+        Entry e = read(url);
+        if (e != null && e.ageMs() >= freshMs) refreshAsync(url, connectMs, readMs);
+        return e;
+    }
+
+    /**
+     * Blocking: revalidates (or fetches) {@code url} unless the cached copy is younger than
+     * {@code freshMs}. If the network fails and a cached copy exists, that copy is returned.
+     */
+    Entry get(String url, long freshMs, int connectMs, int readMs) throws IOException {
+        Entry cached = read(url);
+        if (cached != null && cached.ageMs() < freshMs) return cached;
+        try {
+            return revalidate(url, cached, connectMs, readMs);
+        } catch (IOException e) {
+            if (cached == null) throw e;
+            LOG.warning("revalidate failed, serving cached " + url + ": " + e);
+            return cached;
+        }
+    }
+
+    /** Starts a background revalidation unless one for {@code url} is already running. */
+    void refreshAsync(String url, int connectMs, int readMs) {
+        if (!refreshing.add(url)) return;
+        Http.submit(() -> {
+            try {
+                revalidate(url, read(url), connectMs, readMs);
+            } catch (IOException e) {
+                LOG.warning("background refresh failed for " + url + ": " + e);
+            } finally {
+                refreshing.remove(url);
+            }
+            return null;
+        });
+    }
+
+    private Entry revalidate(String url, Entry cached, int connectMs, int readMs) throws IOException {
+        Http.Request req = Http.get(url).timeouts(connectMs, readMs).gzip();
+        if (cached != null) {
+            if (cached.etag != null) req.header("If-None-Match", cached.etag);
+            if (cached.lastModified != null) req.header("If-Modified-Since", cached.lastModified);
+        }
+        try (Http.Response r = Http.execute(req)) {
+            long now = System.currentTimeMillis();
+            if (r.code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                Entry e = new Entry(url, cached.body, orElse(r.header("ETag"), cached.etag),
+                        orElse(r.header("Last-Modified"), cached.lastModified), now, true);
+                refreshMeta(e);
+                return e;
+            }
+            r.expectOk();
+            byte[] body = r.bytes();
+            Entry e = new Entry(url, new String(body, "UTF-8"), r.header("ETag"), r.header("Last-Modified"), now, true);
+            if (body.length <= MAX_ENTRY_BYTES && !noStore(r.header("Cache-Control"))) store(e);
+            return e;
+        }
+    }
+
+    // ---- storage -----------------------------------------------------------------------------
+
+    private synchronized void load() {
+        File[] metas = dir.listFiles((d, n) -> n.endsWith(".meta"));
+        if (metas == null) return;
+        Arrays.sort(metas, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File m : metas) {
+            String k = m.getName().substring(0, m.getName().length() - 5);
+            File body = new File(dir, k + ".body");
+            if (!body.isFile()) { delete(k); continue; }
+            lru.put(k, body.length());
+            totalBytes += body.length();
+        }
+        trim();
+    }
+
+    /**
+     * The entry's files are read under the lock that {@link #store} renames them under, so a read
+     * never pairs a new body with the old meta and drops a good entry as corrupt.
+     */
+    private synchronized Entry read(String url) {
+        String k = key(url);
+        if (lru.get(k) == null) return null; // also bumps recency
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(new File(dir, k + ".meta"))) {
+            p.load(in);
+            if (!url.equals(p.getProperty("url"))) return null;
+            byte[] raw = readAll(new File(dir, k + ".body"));
+            if (!Hashes.sha256Hex(raw).equals(p.getProperty("sha256"))) throw new IOException("corrupt entry for " + url);
+            String body = new String(raw, "UTF-8");
+            long at = Long.parseLong(p.getProperty("validatedAt", "0"));
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, k + ".meta").setLastModified(System.currentTimeMillis()); // LRU order across restarts
+            return new Entry(url, body, p.getProperty("etag"), p.getProperty("lastModified"), at, false);
+        } catch (IOException | IllegalArgumentException e) {
+            forget(k);
+            return null;
+        }
+    }
+
+    private void store(Entry e) {
+        String k = key(e.url);
+        try {
+            // As decoded, so the digest in the meta matches whether it is written here or after a 304
+            byte[] body = e.body.getBytes("UTF-8");
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+            File bodyTmp = tmp(k, ".body");
+            try (FileOutputStream out = new FileOutputStream(bodyTmp)) {
+                out.write(body);
+            }
+            File metaTmp = writeMeta(k, e);
+            // Both renames and the bookkeeping as one step, so readers see the old pair or the new one
+            synchronized (this) {
+                rename(bodyTmp, new File(dir, k + ".body"));
+                rename(metaTmp, new File(dir, k + ".meta"));
+                Long old = lru.put(k, (long) body.length);
+                totalBytes += body.length - (old != null ? old : 0);
+                trim();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "cache store failed for " + e.url, ex);
+        }
+    }
+
+    /** After a 304: new validators for the body already on disk, unless it was dropped meanwhile. */
+    private void refreshMeta(Entry e) throws IOException {
+        String k = key(e.url);
+        File metaTmp = writeMeta(k, e);
+        synchronized (this) {
+            if (lru.containsKey(k)) {
+                rename(metaTmp, new File(dir, k + ".meta"));
+                return;
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        metaTmp.delete();
+    }
+
+    /** Writes {@code e}'s meta to a temp file for the caller to rename into place. */
+    private File writeMeta(String k, Entry e) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("url", e.url);
+        if (e.etag != null) p.setProperty("etag", e.etag);
+        if (e.lastModified != null) p.setProperty("lastModified", e.lastModified);
+        p.setProperty("sha256", Hashes.sha256Hex(e.body.getBytes("UTF-8")));
+        p.setProperty("validatedAt", Long.toString(e.validatedAt));
+        File tmp = tmp(k, ".meta");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, null);
+        }
+        return tmp;
+    }
+
+    private File tmp(String k, String suffix) {
+        return new File(dir, k + suffix + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    private static void rename(File tmp, File dst) throws IOException {
+        if (!tmp.renameTo(dst)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("rename failed: " + tmp);
+        }
+    }
+
+    /** Evicts least recently used entries until within budget. Caller holds the lock. */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            totalBytes -= e.getValue();
+            it.remove();
+            delete(e.getKey());
+        }
+    }
+
+    private void forget(String k) {
+        Long size = lru.remove(k);
+        if (size != null) totalBytes -= size;
+        delete(k);
+    }
+
+    private void delete(String k) {
+        //noinspection ResultOfMethodCallIgnored
+        new File(dir, k + ".body").delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(dir, k + ".meta").delete();
+    }
+
+    synchronized long sizeBytes() { return totalBytes; }
+
+    private static String key(String url) {
+        try {
+            return Hashes.sha256Hex(url.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean noStore(String cacheControl) {
+        return cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-store");
+    }
+
+    private static String orElse(String a, String b) { return a != null ? a : b; }
+
+    private static byte[] readAll(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f);
+             ByteArrayOutputStream bos = new ByteArrayOutputStream((int) Math.max(16, f.length()))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+            return bos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.robotforest.launcher;
+
+/**
+ * The install and forced reinstall of one runtime version as {@link SingleFlight} keys. Asking for
+ * the install joins a reinstall already in flight (it ends with the same runtime), else the
+ * install itself; asking for a reinstall joins only a reinstall, so it starts after a running
+ * install when the coordinator has one worker.
+ */
+final class InstallFlights {
+    private final SingleFlight flights;
+    private final String installKey;
+    private final String reinstallKey;
+
+    /** {@code version} names what is installed, fixed for the life of the keys. */
+    InstallFlights(SingleFlight flights, String version) {
+        this.flights = flights;
+        this.installKey = "install:" + version;
+        this.reinstallKey = "reinstall:" + version;
+    }
+
+    <T> SingleFlight.Handle<T> ensureInstalled(SingleFlight.Job<T> install, SingleFlight.Callback<T> cb) {
+        return flights.submit(reinstallKey, installKey, install, cb);
+    }
+
+    <T> SingleFlight.Handle<T> forceReinstall(SingleFlight.Job<T> reinstall, SingleFlight.Callback<T> cb) {
+        return flights.submit(reinstallKey, reinstall, cb);
+    }
+}
@@ -0,0 +1,201 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary record of an installed runtime tree, written next to it at install time.
+ *
+ * <pre>
+ * header (64 bytes, big-endian)
+ *   u32 magic "RFIX" | u16 version | u16 flags | u32 entryCount | u64 totalBytes
+ *   byte[32] archive sha256 | u64 createdAt (ms) | u32 crc32 of the preceding 60 bytes
+ * entries (entryCount times)
+ *   u16 pathLen | utf8 path | u64 size | u64 mtime (ms) | u16 mode | byte[32] sha256
+ * trailer
+ *   u32 crc32 of all entry bytes
+ * </pre>
+ *
+ * Launch only reads the fixed-size header ({@link #readHeader}), so deciding READY costs the
+ * same for ten files or ten thousand. The entries are for the deferred background check,
+ * which stats each file and re-hashes only those whose size or mtime moved.
+ */
+final class InstallIndex {
+    static final String NAME = ".rfindex";
+    static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x52464958; // "RFIX"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final class Header {
+        final int count;
+        final long totalBytes;
+        final String archiveSha256;   // hex lowercase, "" if unknown
+        final long createdAt;
+        Header(int count, long totalBytes, String archiveSha256, long createdAt) {
+            this.count = count; this.totalBytes = totalBytes;
+            this.archiveSha256 = archiveSha256; this.createdAt = createdAt;
+        }
+        boolean matches(String sha256) {
+            return !archiveSha256.isEmpty() && archiveSha256.equalsIgnoreCase(sha256);
+        }
+    }
+
+    static final class Entry {
+        final String path;
+        final long size;
+        long mtime;
+        final int mode;
+        final byte[] sha256;
+        Entry(String path, long size, long mtime, int mode, byte[] sha256) {
+            this.path = path; this.size = size; this.mtime = mtime; this.mode = mode; this.sha256 = sha256;
+        }
+        String shaHex() { return Hashes.hex(sha256); }
+
+        /** Entry for {@code root/rel} as it is on disk now (size, mtime), with a known digest and mode. */
+        static Entry of(File root, String rel, byte[] sha256, int mode) {
+            File f = new File(root, rel);
+            return new Entry(rel, f.length(), f.lastModified(), mode, sha256);
+        }
+    }
+
+    final Header header;
+    final List<Entry> entries;
+
+    private InstallIndex(Header header, List<Entry> entries) {
+        this.header = header;
+        this.entries = entries;
+    }
+
+    /** Writes the index for {@code dir} atomically (temp file + rename). Entries are stored sorted by path. */
+    static void write(File dir, String archiveSha256, Collection<Entry> entries) throws IOException {
+        List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, (a, b) -> a.path.compareTo(b.path));
+        long total = 0;
+        for (Entry e : sorted) total += e.size;
+
+        File out = new File(dir, NAME);
+        File tmp = new File(dir, NAME + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024))) {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            h.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0);
+            h.putInt(sorted.size()).putLong(total);
+            h.put(shaBytes(archiveSha256));
+            h.putLong(System.currentTimeMillis());
+            CRC32 hc = new CRC32();
+            hc.update(h.array(), 0, HEADER_SIZE - 4);
+            h.putInt((int) hc.getValue());
+            dos.write(h.array());
+
+            CRC32 ec = new CRC32();
+            ByteArrayOutputStream rec = new ByteArrayOutputStream(256);
+            DataOutputStream r = new DataOutputStream(rec);
+            for (Entry e : sorted) {
+                rec.reset();
+                byte[] p = e.path.getBytes(UTF8);
+                r.writeShort(p.length);
+                r.write(p);
+                r.writeLong(e.size);
+                r.writeLong(e.mtime);
+                r.writeShort(e.mode);
+                r.write(e.sha256);
+                r.flush();
+                byte[] b = rec.toByteArray();
+                ec.update(b, 0, b.length);
+                dos.write(b);
+            }
+            dos.writeInt((int) ec.getValue());
+            dos.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(out)) throw new IOException("rename failed: " + tmp);
+    }
+
+    /** O(1): reads and checks only the fixed header. Null when missing, truncated or corrupt. */
+    static Header readHeader(File dir) {
+        File f = new File(dir, NAME);
+        byte[] b = new byte[HEADER_SIZE];
+        try (FileInputStream in = new FileInputStream(f)) {
+            int off = 0;
+            while (off < b.length) {
+                int n = in.read(b, off, b.length - off);
+                if (n < 0) return null;
+                off += n;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return parseHeader(b);
+    }
+
+    /** Full read, including every entry; null when missing or corrupt. */
+    static InstallIndex read(File dir) {
+        File f = new File(dir, NAME);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024))) {
+            byte[] hb = new byte[HEADER_SIZE];
+            in.readFully(hb);
+            Header h = parseHeader(hb);
+            if (h == null) return null;
+            CRC32 ec = new CRC32();
+            List<Entry> entries = new ArrayList<>(h.count);
+            ByteBuffer scratch = ByteBuffer.allocate(8 + 8 + 2 + 32);
+            for (int i = 0; i < h.count; i++) {
+                int len = in.readUnsignedShort();
+                byte[] p = new byte[len];
+                in.readFully(p);
+                in.readFully(scratch.array());
+                ec.update(new byte[]{(byte) (len >>> 8), (byte) len}, 0, 2);
+                ec.update(p, 0, len);
+                ec.update(scratch.array(), 0, scratch.capacity());
+                scratch.rewind();
+                long size = scratch.getLong();
+                long mtime = scratch.getLong();
+                int mode = scratch.getShort() & 0xffff;
+                byte[] sha = new byte[32];
+                scratch.get(sha);
+                scratch.clear();
+                entries.add(new Entry(new String(p, UTF8), size, mtime, mode, sha));
+            }
+            if (in.readInt() != (int) ec.getValue()) return null;
+            return new InstallIndex(h, entries);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Rewrites this index (e.g. after refreshing mtimes or repairing entries). */
+    void rewrite(File dir) throws IOException {
+        write(dir, header.archiveSha256, entries);
+    }
+
+    private static Header parseHeader(byte[] b) {
+        ByteBuffer h = ByteBuffer.wrap(b);
+        if (h.getInt() != MAGIC) return null;
+        if ((h.getShort() & 0xffff) != VERSION) return null;
+        h.getShort(); // flags
+        int count = h.getInt();
+        long total = h.getLong();
+        byte[] sha = new byte[32];
+        h.get(sha);
+        long created = h.getLong();
+        CRC32 hc = new CRC32();
+        hc.update(b, 0, HEADER_SIZE - 4);
+        if (h.getInt() != (int) hc.getValue() || count < 0) return null;
+        boolean zero = true;
+        for (byte x : sha) if (x != 0) { zero = false; break; }
+        return new Header(count, total, zero ? "" : Hashes.hex(sha), created);
+    }
+
+    private static byte[] shaBytes(String hex) {
+        if (hex == null || hex.length() != 64) return new byte[32];
+        try {
+            return Hashes.unhex(hex);
+        } catch (IllegalArgumentException e) {
+            return new byte[32];
+        }
+    }
+}
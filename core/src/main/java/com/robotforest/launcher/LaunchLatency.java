@@ -0,0 +1,169 @@
+package com.robotforest.launcher;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Times repeated launches of one command the way the launcher starts box64: how long until the
+ * process exists (fork/exec, environment, until {@link ProcessBuilder#start} returns), until its
+ * first byte of output (dynamic loading and the program's own startup), and until it exits, all
+ * from the moment the launch was asked for.
+ *
+ * The first {@code cold} launches of a series are reported apart from the {@code warm} ones that
+ * follow: they pay for whatever the first run of a command pays in this process (loader and page
+ * caches, the JVM's process reaper). Dropping the kernel's caches
+ * needs root, so "cold" means first-in-process, not first-since-boot.
+ */
+final class LaunchLatency {
+    private LaunchLatency() {}
+
+    /** One launch, in microseconds from when it was asked for. */
+    static final class Sample {
+        final long spawnUs;
+        final long firstOutputUs;   // -1 if it printed nothing
+        final long totalUs;
+        final int exitCode;
+
+        Sample(long spawnUs, long firstOutputUs, long totalUs, int exitCode) {
+            this.spawnUs = spawnUs; this.firstOutputUs = firstOutputUs; this.totalUs = totalUs; this.exitCode = exitCode;
+        }
+    }
+
+    /** Runs the command once, to exit, and says how long each step took. */
+    interface Launcher {
+        Sample launch() throws Exception;
+    }
+
+    /** Cold and warm samples of one series. */
+    static final class Report {
+        final String label;
+        final List<Sample> cold;
+        final List<Sample> warm;
+        final long at = System.currentTimeMillis();
+
+        Report(String label, List<Sample> cold, List<Sample> warm) {
+            this.label = label; this.cold = cold; this.warm = warm;
+        }
+
+        /** Percentile table, in milliseconds with microseconds kept. */
+        String summary() {
+            StringBuilder sb = new StringBuilder("[launch] ").append(label).append(": ")
+                    .append(cold.size()).append(" cold, ").append(warm.size()).append(" warm");
+            int failed = 0;
+            for (Sample s : cold) if (s.exitCode != 0) failed++;
+            for (Sample s : warm) if (s.exitCode != 0) failed++;
+            if (failed > 0) sb.append(", ").append(failed).append(" non-zero exits");
+            sb.append('\n').append(String.format(Locale.US, "  %-18s %5s %9s %9s %9s %9s%n",
+                    "", "n", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+            row(sb, "cold spawn", cold, 0);
+            row(sb, "cold first output", cold, 1);
+            row(sb, "cold total", cold, 2);
+            row(sb, "warm spawn", warm, 0);
+            row(sb, "warm first output", warm, 1);
+            row(sb, "warm total", warm, 2);
+            return sb.toString();
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("kind", "launch");
+            o.put("at", at);
+            o.put("label", label);
+            o.put("cold", series(cold));
+            o.put("warm", series(warm));
+            return o;
+        }
+
+        private static JSONObject series(List<Sample> xs) throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("n", xs.size());
+            o.put("spawnUs", percentiles(xs, 0));
+            o.put("firstOutputUs", percentiles(xs, 1));
+            o.put("totalUs", percentiles(xs, 2));
+            return o;
+        }
+
+        private static JSONObject percentiles(List<Sample> xs, int which) throws JSONException {
+            List<Long> v = values(xs, which);
+            JSONObject o = new JSONObject();
+            if (v.isEmpty()) return o;
+            o.put("p50", Metrics.percentile(v, 50));
+            o.put("p90", Metrics.percentile(v, 90));
+            o.put("p99", Metrics.percentile(v, 99));
+            o.put("max", v.get(v.size() - 1));
+            return o;
+        }
+
+        private static void row(StringBuilder sb, String name, List<Sample> xs, int which) {
+            List<Long> v = values(xs, which);
+            if (v.isEmpty()) return;
+            sb.append(String.format(Locale.US, "  %-18s %5d %9.3f %9.3f %9.3f %9.3f%n", name, v.size(),
+                    Metrics.percentile(v, 50) / 1000.0, Metrics.percentile(v, 90) / 1000.0,
+                    Metrics.percentile(v, 99) / 1000.0, v.get(v.size() - 1) / 1000.0));
+        }
+
+        /** Sorted spawn (0), first-output (1) or total (2) times; launches that printed nothing have no first output. */
+        private static List<Long> values(List<Sample> xs, int which) {
+            List<Long> v = new ArrayList<>(xs.size());
+            for (Sample s : xs) {
+                long x = which == 0 ? s.spawnUs : which == 1 ? s.firstOutputUs : s.totalUs;
+                if (x >= 0) v.add(x);
+            }
+            Collections.sort(v);
+            return v;
+        }
+    }
+
+    /** Blocking: {@code cold} launches, then {@code warm} more, one at a time. */
+    static Report run(String label, Launcher l, int cold, int warm) throws Exception {
+        CancellationToken token = CancellationToken.current();
+        List<Sample> c = new ArrayList<>(cold);
+        List<Sample> w = new ArrayList<>(warm);
+        for (int i = 0; i < cold + warm; i++) {
+            token.throwIfCancelled();
+            Sample s = l.launch();
+            (i < cold ? c : w).add(s);
+        }
+        return new Report(label, c, w);
+    }
+
+    /**
+     * Launches {@code cmd} straight through {@link ProcessBuilder}, stdout and stderr merged and
+     * drained on the calling thread: the floor under what {@code Exec} adds, and the launcher the
+     * JVM harness uses.
+     */
+    static Launcher direct(List<String> cmd, File workDir, Map<String, String> env) {
+        return () -> {
+            long t0 = System.nanoTime();
+            ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+            if (workDir != null) pb.directory(workDir);
+            if (env != null) pb.environment().putAll(env);
+            Process p = pb.start();
+            long spawned = System.nanoTime();
+            long first = -1;
+            try {
+                p.getOutputStream().close();
+                try (InputStream in = p.getInputStream()) {
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        if (n > 0 && first < 0) first = System.nanoTime();
+                    }
+                }
+                int code = p.waitFor();
+                long end = System.nanoTime();
+                return new Sample(us(spawned - t0), first < 0 ? -1 : us(first - t0), us(end - t0), code);
+            } finally {
+                p.destroy();
+            }
+        };
+    }
+
+    static long us(long nanos) {
+        return nanos / 1000;
+    }
+}
@@ -0,0 +1,391 @@
+package com.robotforest.launcher;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timings of the install pipeline.
+ *
+ * <pre>
+ *   Install run = Metrics.start("bootstrap");
+ *   try (Metrics.Phase p = run.phase("download")) { … p.add("bytes", n); }
+ *   run.finish("installed", null);   // one JSON line to the sink
+ * </pre>
+ *
+ * Each {@link Phase} is also a platform trace section ({@link #setTracer}; {@code android.os.Trace}
+ * on device). Code deep in the pipeline adds counters to {@link #current()}, the innermost phase
+ * open on its thread, without the install being passed down; pools hand that phase to their
+ * workers explicitly. Outside an install {@link #current()} is a no-op phase, so the downloaders
+ * and the unzipper work the same from the JVM benchmarks.
+ */
+final class Metrics {
+    private static final Logger LOG = Logger.getLogger("rf.metrics");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Begin/end of a named section; always paired on one thread, innermost first. */
+    interface Tracer {
+        void begin(String section);
+        void end();
+    }
+
+    /** Receives each finished install, on the thread that finished it. */
+    interface Sink {
+        void accept(Install run) throws IOException;
+    }
+
+    private static volatile Tracer tracer;
+    private static volatile Sink sink;
+    private static final ThreadLocal<Phase> CURRENT = new ThreadLocal<>();
+    private static final Phase NONE = new Phase(null, "none", null, null);
+
+    private Metrics() {}
+
+    static void setTracer(Tracer t) { tracer = t; }
+
+    static void setSink(Sink s) { sink = s; }
+
+    static Install start(String kind) {
+        return new Install(kind);
+    }
+
+    /** Innermost phase open on this thread, or a phase that ignores everything. */
+    static Phase current() {
+        Phase p = CURRENT.get();
+        return p != null ? p : NONE;
+    }
+
+    /** A phase nested in {@link #current()}'s install; a no-op outside one. */
+    static Phase phase(String name) {
+        Phase p = CURRENT.get();
+        return p != null ? p.run.phase(name) : NONE;
+    }
+
+    /** One run of the pipeline: its phases, a few tags, and how it ended. */
+    static final class Install {
+        final String kind;
+        final long startedAt = System.currentTimeMillis();
+        private final long t0 = System.nanoTime();
+        private final List<Phase> phases = new ArrayList<>();
+        private final Map<String, String> tags = new LinkedHashMap<>();
+        private String outcome;
+        private String error;
+        private long totalMs = -1;
+
+        private Install(String kind) { this.kind = kind; }
+
+        /** Opens a phase on this thread, nested in whatever phase is already open here. */
+        Phase phase(String name) {
+            Phase outer = CURRENT.get();
+            Phase p = new Phase(this, name, outer != null && outer.run == this ? outer : null, outer);
+            synchronized (this) { phases.add(p); }
+            Tracer t = tracer;
+            if (t != null) {
+                p.traced = true;
+                t.begin("rf:" + name);
+            }
+            CURRENT.set(p);
+            return p;
+        }
+
+        synchronized Install tag(String key, Object value) {
+            tags.put(key, String.valueOf(value));
+            return this;
+        }
+
+        /** Records the outcome and hands the install to the sink; later calls are ignored. */
+        void finish(String outcome, Throwable failure) {
+            synchronized (this) {
+                if (totalMs >= 0) return;
+                totalMs = (System.nanoTime() - t0) / 1_000_000;
+                this.outcome = failure != null ? "failed" : outcome;
+                error = failure != null ? String.valueOf(failure) : null;
+            }
+            Sink s = sink;
+            if (s == null) return;
+            try {
+                s.accept(this);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "metrics sink failed", t);
+            }
+        }
+
+        synchronized List<Phase> phases() { return new ArrayList<>(phases); }
+
+        synchronized JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("kind", kind);
+            o.put("at", startedAt);
+            o.put("ms", totalMs);
+            o.put("outcome", outcome != null ? outcome : "open");
+            if (error != null) o.put("error", error);
+            for (Map.Entry<String, String> e : tags.entrySet()) o.put(e.getKey(), e.getValue());
+            JSONArray ps = new JSONArray();
+            for (Phase p : phases) ps.put(p.toJson());
+            o.put("phases", ps);
+            return o;
+        }
+    }
+
+    /** Restores the phase that was current before {@link Phase#enter()}. */
+    static final class Scope implements Closeable {
+        private final Phase previous;
+        private Scope(Phase previous) { this.previous = previous; }
+        @Override public void close() {
+            if (previous != null) CURRENT.set(previous); else CURRENT.remove();
+        }
+    }
+
+    /**
+     * A timed step with counters. Counters may be added from any thread; {@link #close()} belongs
+     * to the thread that opened the phase.
+     */
+    static final class Phase implements Closeable {
+        final String name;
+        final Phase parent;
+        private final Install run;
+        private final Phase restore;
+        private final long t0 = System.nanoTime();
+        private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+        private volatile long ms = -1;
+        private boolean traced;
+
+        private Phase(Install run, String name, Phase parent, Phase restore) {
+            this.run = run;
+            this.name = name;
+            this.parent = parent;
+            this.restore = restore;
+        }
+
+        void add(String key, long delta) {
+            if (run != null) counter(key).addAndGet(delta);
+        }
+
+        void set(String key, long value) {
+            if (run != null) counter(key).set(value);
+        }
+
+        void max(String key, long value) {
+            if (run == null) return;
+            AtomicLong c = counter(key);
+            long v;
+            while ((v = c.get()) < value && !c.compareAndSet(v, value)) { /* retry */ }
+        }
+
+        long get(String key) {
+            AtomicLong c = counters.get(key);
+            return c != null ? c.get() : 0;
+        }
+
+        /** Elapsed ms once closed, -1 while open. */
+        long ms() { return ms; }
+
+        /**
+         * Makes this phase current on a pool thread, so what runs there counts here; close the
+         * result on that thread. Does not reopen or time anything.
+         */
+        Scope enter() {
+            Scope s = new Scope(CURRENT.get());
+            if (run != null) CURRENT.set(this);
+            return s;
+        }
+
+        private AtomicLong counter(String key) {
+            AtomicLong c = counters.get(key);
+            if (c == null) {
+                counters.putIfAbsent(key, new AtomicLong());
+                c = counters.get(key);
+            }
+            return c;
+        }
+
+        @Override public void close() {
+            if (run == null || ms >= 0) return;
+            ms = (System.nanoTime() - t0) / 1_000_000;
+            Tracer t = tracer;
+            if (traced && t != null) t.end();
+            if (CURRENT.get() == this) {
+                if (restore != null) CURRENT.set(restore); else CURRENT.remove();
+            }
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("name", name);
+            if (parent != null) o.put("parent", parent.name);
+            o.put("ms", ms);
+            for (Map.Entry<String, AtomicLong> e : new TreeMap<>(counters).entrySet()) o.put(e.getKey(), e.getValue().get());
+            return o;
+        }
+    }
+
+    /** Keeps the last {@code capacity} installs in memory; for the JVM benchmarks and tests. */
+    static final class Recent implements Sink {
+        private final ArrayDeque<JSONObject> ring = new ArrayDeque<>();
+        private final int capacity;
+
+        Recent(int capacity) { this.capacity = Math.max(1, capacity); }
+
+        @Override public synchronized void accept(Install run) throws IOException {
+            try {
+                if (ring.size() == capacity) ring.removeFirst();
+                ring.addLast(run.toJson());
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /** Oldest first. */
+        synchronized List<JSONObject> records() { return new ArrayList<>(ring); }
+    }
+
+    /**
+     * One JSON object per line in {@code dir/name}, rotated to {@code name.1 … name.keep} past
+     * {@code rotateBytes}. Plain {@link java.io}: works the same on device and on the JVM.
+     */
+    static final class JsonLines implements Sink {
+        private final File dir;
+        private final String name;
+        private final long rotateBytes;
+        private final int keep;
+
+        JsonLines(File dir, String name, long rotateBytes, int keep) {
+            this.dir = dir;
+            this.name = name;
+            this.rotateBytes = rotateBytes;
+            this.keep = Math.max(0, keep);
+        }
+
+        @Override public void accept(Install run) throws IOException {
+            try {
+                append(run.toJson());
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /** Appends any record, rotating like install records; {@link #read} returns it too. */
+        synchronized void append(JSONObject record) throws IOException {
+            byte[] line = (record.toString() + "\n").getBytes(UTF8);
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+            File f = new File(dir, name);
+            if (f.length() > 0 && f.length() + line.length > rotateBytes) rotate(f);
+            try (OutputStream out = new FileOutputStream(f, true)) {
+                out.write(line);
+            }
+        }
+
+        private void rotate(File f) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, name + "." + keep).delete();
+            for (int i = keep - 1; i >= 1; i--) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(dir, name + "." + i).renameTo(new File(dir, name + "." + (i + 1)));
+            }
+            //noinspection ResultOfMethodCallIgnored
+            if (keep > 0) f.renameTo(new File(dir, name + ".1")); else f.delete();
+        }
+
+        /** The last {@code max} records across the rotations, oldest first; unparsable lines are skipped. */
+        synchronized List<JSONObject> read(int max) throws IOException {
+            ArrayDeque<JSONObject> out = new ArrayDeque<>();
+            for (int i = keep; i >= 0; i--) {
+                File f = new File(dir, i == 0 ? name : name + "." + i);
+                if (!f.isFile()) continue;
+                try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8))) {
+                    String s;
+                    while ((s = r.readLine()) != null) {
+                        if (s.isEmpty()) continue;
+                        try {
+                            out.addLast(new JSONObject(s));
+                        } catch (JSONException e) {
+                            continue;
+                        }
+                        if (out.size() > max) out.removeFirst();
+                    }
+                }
+            }
+            return new ArrayList<>(out);
+        }
+    }
+
+    /**
+     * Per-phase p50/p95 over {@code records} (as written by {@link Install#toJson()}), plus
+     * download throughput and per-entry extract time where those were recorded.
+     */
+    static String summary(List<JSONObject> records) {
+        if (records.isEmpty()) return "[metrics] no installs recorded";
+        Map<String, Integer> outcomes = new TreeMap<>();
+        Map<String, List<Long>> ms = new LinkedHashMap<>();
+        List<Long> total = new ArrayList<>();
+        List<Long> mbps = new ArrayList<>();
+        List<Long> entryUs = new ArrayList<>();
+        long retries = 0;
+        for (JSONObject r : records) {
+            String outcome = r.optString("outcome", "?");
+            Integer n = outcomes.get(outcome);
+            outcomes.put(outcome, n == null ? 1 : n + 1);
+            if (!"ready".equals(outcome)) total.add(r.optLong("ms", 0));
+            JSONArray ps = r.optJSONArray("phases");
+            if (ps == null) continue;
+            for (int i = 0; i < ps.length(); i++) {
+                JSONObject p = ps.optJSONObject(i);
+                if (p == null || p.optLong("ms", -1) < 0) continue;
+                String name = p.has("parent") ? p.optString("parent") + "/" + p.optString("name") : p.optString("name");
+                // Archive formats extract at different speeds; keep them apart
+                String key = "extract".equals(name) && r.has("format") ? "extract (" + r.optString("format") + ")" : name;
+                List<Long> xs = ms.get(key);
+                if (xs == null) ms.put(key, xs = new ArrayList<>());
+                xs.add(p.optLong("ms", 0));
+                if ("download".equals(name)) {
+                    retries += p.optLong("retries", 0);
+                    long bytes = p.optLong("bytes", 0), t = p.optLong("ms", 0);
+                    // kB/ms == MB/s; kept in tenths
+                    if (bytes > 0 && t > 0) mbps.add(bytes * 10 / 1000 / t);
+                }
+                long entries = p.optLong("entries", 0);
+                if ("extract".equals(name) && entries > 0) entryUs.add(p.optLong("entryUs", 0) / entries);
+            }
+        }
+        StringBuilder sb = new StringBuilder("[metrics] ").append(records.size()).append(" runs: ");
+        boolean first = true;
+        for (Map.Entry<String, Integer> e : outcomes.entrySet()) {
+            sb.append(first ? "" : ", ").append(e.getValue()).append(' ').append(e.getKey());
+            first = false;
+        }
+        sb.append('\n').append(String.format(Locale.US, "  %-22s %5s %9s %9s%n", "phase", "n", "p50 ms", "p95 ms"));
+        if (!total.isEmpty()) row(sb, "(total)", total);
+        for (Map.Entry<String, List<Long>> e : ms.entrySet()) row(sb, e.getKey(), e.getValue());
+        if (!mbps.isEmpty()) {
+            Collections.sort(mbps);
+            sb.append(String.format(Locale.US, "  download MB/s p50 %.1f, p95 %.1f; %d retries%n",
+                    percentile(mbps, 50) / 10.0, percentile(mbps, 95) / 10.0, retries));
+        }
+        if (!entryUs.isEmpty()) {
+            Collections.sort(entryUs);
+            sb.append(String.format(Locale.US, "  extract µs/entry p50 %d, p95 %d%n",
+                    percentile(entryUs, 50), percentile(entryUs, 95)));
+        }
+        return sb.toString();
+    }
+
+    private static void row(StringBuilder sb, String name, List<Long> xs) {
+        Collections.sort(xs);
+        sb.append(String.format(Locale.US, "  %-22s %5d %9d %9d%n", name, xs.size(), percentile(xs, 50), percentile(xs, 95)));
+    }
+
+    /** Nearest rank over a sorted list. */
+    static long percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) return 0;
+        int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+    }
+}
@@ -0,0 +1,252 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Downloads one archive that several sources serve under the same digest: HTTPS mirrors,
+ * {@code file://} paths and preseeded files. Since every source must produce the same bytes,
+ * any of them can be trusted as far as the final digest check, and bytes from one can be
+ * continued from another.
+ *
+ * Local files go first: one that hashes to the expected digest is copied and nothing touches the
+ * network. Remote sources are then raced: each gets a ranged GET for its first
+ * {@link #PROBE_BYTES} at the same time, and they are ranked by how long that took (time to first
+ * byte plus early throughput). Sources slower than {@link #PROBE_GRACE} times the fastest are
+ * ranked last, not waited for. The body comes from the best one over {@link ResumableDownload};
+ * when a source fails part-way, the next continues its {@code .part} with a range request instead
+ * of starting over. A single remote source takes {@link Downloads#downloadTo}'s usual path,
+ * segments included.
+ */
+final class Mirrors {
+    static final int PROBE_BYTES = 256 * 1024;
+    /** Probes still running this many times the fastest one's time are ranked without waiting. */
+    static final int PROBE_GRACE = 3;
+    private static final long PROBE_MIN_WAIT_MS = 100;
+    /** Each source gets this many attempts per round before the next one takes over. */
+    private static final int ATTEMPTS_PER_SOURCE = 2;
+    private static final int ROUNDS = 3;
+
+    private Mirrors() {}
+
+    /** A remote source as its probe found it. */
+    static final class Probe {
+        final String url;
+        final long firstByteMs;
+        final long probeMs;   // Long.MAX_VALUE when it failed or ran past the grace period
+        final long length;    // total length the source reports, -1 if unknown
+        final IOException error;
+
+        Probe(String url, long firstByteMs, long probeMs, long length, IOException error) {
+            this.url = url; this.firstByteMs = firstByteMs; this.probeMs = probeMs;
+            this.length = length; this.error = error;
+        }
+
+        boolean ok() { return error == null && probeMs != Long.MAX_VALUE; }
+
+        @Override public String toString() {
+            if (error != null) return host(url) + ": " + error.getMessage();
+            if (probeMs == Long.MAX_VALUE) return host(url) + ": too slow";
+            return host(url) + ": first byte " + firstByteMs + " ms, " + PROBE_BYTES / 1024 + " KiB in " + probeMs + " ms";
+        }
+    }
+
+    /**
+     * Blocking: downloads whichever of {@code sources} is best into {@code dst} and returns its
+     * lowercase hex digest under {@code alg}. {@code expected} (may be empty) lets a local file or
+     * a finished download that doesn't match be passed over for the next source rather than
+     * failing the install. Call from a worker thread.
+     */
+    static String downloadTo(List<String> sources, int connectMs, int readMs, File dst, ProgressLog log,
+                             Hashes.Algorithm alg, String expected) throws IOException {
+        Metrics.Phase m = Metrics.current();
+        boolean check = Hashes.shouldVerify(expected);
+        List<String> remote = new ArrayList<>();
+        for (String s : sources) {
+            File local = localFile(s);
+            if (local == null) {
+                if (!remote.contains(s)) remote.add(s);
+                continue;
+            }
+            if (!local.isFile()) continue;
+            String got = Hashes.fileHex(local, alg);
+            if (check && !got.equals(expected)) {
+                if (log != null) log.log("[mirror] " + local + " is not this archive; skipped");
+                continue;
+            }
+            if (log != null) log.log("[mirror] local copy " + local);
+            copy(local, dst);
+            m.add("bytes", dst.length());
+            m.set("localSource", 1);
+            return got;
+        }
+        if (remote.isEmpty()) throw new FileNotFoundException("no source has the archive: " + sources);
+        if (remote.size() == 1) return Downloads.downloadTo(remote.get(0), connectMs, readMs, dst, log, alg);
+
+        List<Probe> ranked = race(remote, connectMs, readMs);
+        m.set("mirrors", remote.size());
+        if (log != null) for (Probe p : ranked) log.log("[mirror] " + p);
+        Probe best = ranked.get(0);
+        if (!best.ok()) throw best.error != null ? best.error : new IOException("no source answered");
+        m.set("probeMs", best.probeMs);
+
+        IOException last = null;
+        Set<String> wrong = new HashSet<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Probe p : ranked) {
+                // A source reporting another length serves another file
+                if (wrong.contains(p.url) || (p.length >= 0 && best.length >= 0 && p.length != best.length)) continue;
+                try {
+                    if (log != null) log.log("[mirror] downloading from " + host(p.url));
+                    String sha = ResumableDownload.fetch(p.url, dst, connectMs, readMs, ATTEMPTS_PER_SOURCE, true, log);
+                    m.add("bytes", dst.length());
+                    String got = alg == Hashes.SHA256 ? sha : Hashes.fileHex(dst, alg);
+                    if (!check || got.equals(expected)) return got;
+                    if (log != null) log.log("[mirror] " + host(p.url) + " served other content (" + got + ")");
+                    wrong.add(p.url);
+                    //noinspection ResultOfMethodCallIgnored
+                    dst.delete();
+                    last = new IOException(alg + " mismatch from " + p.url + ": " + got);
+                } catch (InterruptedIOException | Downloads.NoSpaceException e) {
+                    throw e;
+                } catch (IOException e) {
+                    CancellationToken.current().throwIfCancelled();
+                    last = e;
+                    m.add("failovers", 1);
+                    if (log != null) log.log("[mirror] " + host(p.url) + " failed (" + e.getMessage()
+                            + "); " + new File(dst.getPath() + ".part").length() + " bytes kept for the next source");
+                }
+            }
+        }
+        throw last != null ? last : new IOException("every source failed: " + remote);
+    }
+
+    /**
+     * Probes every source at once and returns them best first: completed probes by time, then the
+     * rest in the order given.
+     */
+    static List<Probe> race(List<String> urls, int connectMs, int readMs) throws IOException {
+        CancellationToken parent = CancellationToken.current();
+        CancellationToken probes = new CancellationToken();
+        ExecutorService pool = Executors.newFixedThreadPool(urls.size(), r -> {
+            Thread t = new Thread(r, "rf-mirror-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        Map<String, Probe> done = new ConcurrentHashMap<>();
+        CompletionService<Probe> cs = new ExecutorCompletionService<>(pool);
+        try (Closeable link = parent.onCancel(probes::cancel)) {
+            for (String u : urls) {
+                cs.submit(() -> {
+                    try (CancellationToken.Scope s = probes.enter()) {
+                        return probe(u, connectMs, readMs);
+                    }
+                });
+            }
+            long deadline = Long.MAX_VALUE;
+            for (int i = 0; i < urls.size(); i++) {
+                long wait = deadline == Long.MAX_VALUE ? connectMs + (long) readMs
+                        : deadline - System.nanoTime() / 1_000_000;
+                Future<Probe> f = cs.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                if (f == null) break;
+                Probe p = f.get();
+                done.put(p.url, p);
+                if (p.ok() && deadline == Long.MAX_VALUE) {
+                    deadline = System.nanoTime() / 1_000_000 + Math.max(PROBE_MIN_WAIT_MS, p.probeMs * (PROBE_GRACE - 1));
+                }
+            }
+            parent.throwIfCancelled();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("mirror probe interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            probes.cancel();
+            pool.shutdownNow();
+        }
+        List<Probe> out = new ArrayList<>();
+        for (String u : urls) {
+            Probe p = done.get(u);
+            out.add(p != null ? p : new Probe(u, -1, Long.MAX_VALUE, -1, null));
+        }
+        // Stable: failed and late sources keep the manifest's order among themselves
+        Collections.sort(out, (a, b) -> Long.compare(a.probeMs, b.probeMs));
+        return out;
+    }
+
+    private static Probe probe(String url, int connectMs, int readMs) {
+        long t0 = System.nanoTime();
+        Http.Request req = Http.get(url).timeouts(connectMs, readMs).header("Range", "bytes=0-" + (PROBE_BYTES - 1));
+        try (Http.Response r = Http.execute(req)) {
+            long firstByte = (System.nanoTime() - t0) / 1_000_000;
+            long length;
+            if (r.code == 206) {
+                length = total(r.header("Content-Range"));
+            } else if (r.code == 200) {
+                length = r.contentLength(); // no ranges: it can still serve the whole body
+            } else {
+                throw new IOException("HTTP " + r.code);
+            }
+            byte[] buf = new byte[64 * 1024];
+            long left = PROBE_BYTES;
+            try (InputStream in = r.body()) {
+                int n;
+                while (left > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, left))) >= 0) left -= n;
+            }
+            return new Probe(url, firstByte, (System.nanoTime() - t0) / 1_000_000, length, null);
+        } catch (IOException e) {
+            return new Probe(url, -1, Long.MAX_VALUE, -1, e);
+        }
+    }
+
+    /** {@code file:} URLs and absolute paths; null for anything remote. */
+    static File localFile(String source) {
+        if (source.startsWith("/")) return new File(source);
+        if (!source.regionMatches(true, 0, "file:", 0, 5)) return null;
+        try {
+            return new File(new URI(source));
+        } catch (Exception e) {
+            return new File(source.substring(5));
+        }
+    }
+
+    private static long total(String contentRange) {
+        int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        if (slash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void copy(File src, File dst) throws IOException {
+        File tmp = new File(dst.getPath() + ".copy");
+        Downloads.reserve(dst, src.length());
+        try (FileInputStream in = new FileInputStream(src);
+             FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel from = in.getChannel();
+            FileChannel to = out.getChannel();
+            long size = from.size();
+            for (long pos = 0; pos < size; ) {
+                CancellationToken.current().throwIfCancelled();
+                pos += from.transferTo(pos, Math.min(size - pos, 64L * 1024 * 1024), to);
+            }
+        }
+        if (dst.exists() && !dst.delete()) throw new IOException("cannot replace " + dst);
+        if (!tmp.renameTo(dst)) throw new IOException("rename failed: " + tmp + " -> " + dst);
+    }
+
+    private static String host(String url) {
+        try {
+            String h = new URI(url).getAuthority();
+            return h != null ? h : url;
+        } catch (Exception e) {
+            return url;
+        }
+    }
+}
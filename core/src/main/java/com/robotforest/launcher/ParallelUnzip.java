@@ -0,0 +1,323 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts a zip using random access to its central directory instead of a single
+ * {@link java.util.zip.ZipInputStream} pass, so entries inflate on several cores.
+ *
+ * All directories are created up front; file entries are then handed out largest-compressed
+ * first from a shared cursor, which keeps workers evenly loaded when a few big binaries sit
+ * among thousands of small DLLs. Every entry is checked against its central-directory CRC-32.
+ *
+ * STORED entries (the packer stores what doesn't compress) bypass {@link ZipFile}'s stream: their
+ * bytes are read at the offset {@link ZipModes} found, with no inflater or stream in between.
+ * Without a digest, large ones go from a read-only mapping of the archive to the output channel,
+ * CRC'd from that same mapping; SHA-256 wants arrays, so hashed copies read into the worker's
+ * buffer. That buffer grows with the entries a worker sees, up to a cache-sized cap. Outputs of
+ * known size are preallocated first.
+ */
+final class ParallelUnzip {
+    private static final int MIN_BUF = 16 * 1024;
+    private static final int MAX_BUF = 128 * 1024;
+    /** STORED entries from this size up are copied through a mapping rather than read. */
+    private static final int MAP_MIN = 256 * 1024;
+    private static final int MAP_WINDOW = 16 * 1024 * 1024;
+    private static final int PREALLOCATE_MIN = 64 * 1024;
+    private static final int LOC_SIG = 0x04034b50;
+
+    /**
+     * Reserves {@code length} bytes for a file about to be written, so a big binary neither
+     * fragments nor runs out of space halfway. Throws only when the space is not there; a
+     * filesystem that can't preallocate is not an error. The app installs
+     * {@code posix_fallocate}; the default does nothing.
+     */
+    interface Preallocate { void allocate(FileDescriptor fd, long length) throws IOException; }
+
+    private static volatile Preallocate preallocate = (fd, length) -> {};
+
+    static void setPreallocate(Preallocate p) { preallocate = p; }
+
+    /** Preallocates {@code out} to {@code length} when that is big enough to matter. */
+    static void preallocate(FileOutputStream out, long length) throws IOException {
+        if (length >= PREALLOCATE_MIN) preallocate.allocate(out.getFD(), length);
+    }
+
+    /**
+     * Called after each file is written and closed, on the worker thread that wrote it.
+     * {@code sha256} is the digest of the written bytes when requested, otherwise null.
+     */
+    interface FileHook {
+        void onFile(File out, ZipEntry e, byte[] sha256) throws IOException;
+
+        /**
+         * Called once per directory (listed or implied by a path), parents first, on the calling
+         * thread before any file is written. {@code name} has no trailing slash.
+         */
+        default void onDir(File dir, String name) throws IOException {}
+    }
+
+    /** Totals of one extraction. */
+    static final class Stats {
+        final int files;
+        final int dirs;
+        final long bytes;
+        Stats(int files, int dirs, long bytes) { this.files = files; this.dirs = dirs; this.bytes = bytes; }
+        @Override public String toString() { return files + " files, " + dirs + " dirs, " + bytes + " bytes"; }
+    }
+
+    private ParallelUnzip() {}
+
+    static int defaultThreads() {
+        return Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    }
+
+    static Stats extract(File zip, File destDir, FileHook hook) throws IOException {
+        return extract(zip, destDir, defaultThreads(), false, hook);
+    }
+
+    /** @param digest also SHA-256 each entry while writing it and pass the digest to {@code hook} */
+    static Stats extract(File zip, File destDir, int threads, boolean digest, FileHook hook) throws IOException {
+        return extract(zip, ZipModes.read(zip), destDir, threads, digest, hook);
+    }
+
+    /** @param dir {@code zip}'s central directory, for callers that have read it already */
+    static Stats extract(File zip, ZipModes.Directory dir, File destDir, int threads, boolean digest, FileHook hook)
+            throws IOException {
+        if (!destDir.isDirectory() && !destDir.mkdirs()) throw new IOException("mkdirs failed: " + destDir);
+        try (ZipFile zf = new ZipFile(zip);
+             RandomAccessFile raf = new RandomAccessFile(zip, "r");
+             FileChannel archive = raf.getChannel()) {
+            Source src = new Source(zf, archive, dir);
+            List<ZipEntry> files = new ArrayList<>();
+            TreeSet<String> dirs = new TreeSet<>();
+            Enumeration<? extends ZipEntry> en = zf.entries();
+            while (en.hasMoreElements()) {
+                ZipEntry e = en.nextElement();
+                String name = checkName(e.getName());
+                if (e.isDirectory()) {
+                    addDirs(dirs, name, name.length());
+                } else {
+                    files.add(e);
+                    addDirs(dirs, name, name.lastIndexOf('/'));
+                }
+            }
+            // Sorted order puts parents first, so each mkdir needs no recursion.
+            for (String d : dirs) {
+                File out = new File(destDir, d);
+                if (!out.isDirectory() && !out.mkdir() && !out.isDirectory()) throw new IOException("mkdir failed: " + out);
+                if (hook != null) hook.onDir(out, d);
+            }
+
+            Collections.sort(files, (a, b) -> Long.compare(b.getCompressedSize(), a.getCompressedSize()));
+            AtomicLong bytes = new AtomicLong();
+            Metrics.Phase m = Metrics.current();
+            CancellationToken token = CancellationToken.current();
+            int n = Math.max(1, Math.min(threads, files.size()));
+            m.set("threads", n);
+            if (n == 1) {
+                Worker w = new Worker();
+                for (ZipEntry e : files) bytes.addAndGet(writeEntry(src, e, destDir, w, digest, hook, m, token));
+            } else {
+                runParallel(src, files, destDir, n, digest, hook, bytes, m, token);
+            }
+            m.add("dirs", dirs.size());
+            return new Stats(files.size(), dirs.size(), bytes.get());
+        }
+    }
+
+    /** {@code name.substring(0, end)} and all its ancestors. */
+    private static void addDirs(Set<String> dirs, String name, int end) {
+        while (end > 0 && dirs.add(name.substring(0, end))) end = name.lastIndexOf('/', end - 1);
+    }
+
+    /** The archive, opened both ways, and what its central directory says. */
+    private static final class Source {
+        final ZipFile zf;
+        final FileChannel channel;
+        final ZipModes.Directory dir;
+
+        Source(ZipFile zf, FileChannel channel, ZipModes.Directory dir) {
+            this.zf = zf;
+            this.channel = channel;
+            this.dir = dir;
+        }
+    }
+
+    /** Per-thread copy buffer, grown to the largest entry seen up to {@link #MAX_BUF}: small files take one read and one write. */
+    private static final class Worker {
+        private byte[] buf = new byte[MIN_BUF];
+
+        byte[] buffer(long size) {
+            int want = (int) Math.min(MAX_BUF, size);
+            if (want > buf.length) buf = new byte[Integer.highestOneBit(want - 1) << 1];
+            return buf;
+        }
+    }
+
+    private static void runParallel(Source src, List<ZipEntry> files, File destDir, int n, boolean digest,
+                                    FileHook hook, AtomicLong bytes, Metrics.Phase m,
+                                    CancellationToken token) throws IOException {
+        AtomicInteger cursor = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "rf-unzip");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> fs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                fs.add(pool.submit(() -> {
+                    Worker w = new Worker();
+                    int idx;
+                    while ((idx = cursor.getAndIncrement()) < files.size()) {
+                        if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+                        bytes.addAndGet(writeEntry(src, files.get(idx), destDir, w, digest, hook, m, token));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : fs) {
+                try {
+                    f.get();
+                } catch (ExecutionException ee) {
+                    cursor.set(files.size()); // stop the others at their next entry
+                    Throwable c = ee.getCause();
+                    throw c instanceof IOException ? (IOException) c : new IOException(c);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("unzip interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param m receives entries, bytes and per-entry microseconds (sum and max), hook included,
+     *          and the entries and bytes that took the STORED path
+     * @param token checked between buffers, so a cancel stops even a large entry promptly
+     */
+    private static long writeEntry(Source src, ZipEntry e, File destDir, Worker w, boolean digest,
+                                   FileHook hook, Metrics.Phase m, CancellationToken token) throws IOException {
+        long t0 = System.nanoTime();
+        File out = new File(destDir, e.getName());
+        CRC32 crc = new CRC32();
+        MessageDigest md = digest ? Hashes.sha256() : null;
+        Long header = e.getMethod() == ZipEntry.STORED ? src.dir.storedHeaders.get(e.getName()) : null;
+        long total;
+        try (FileOutputStream os = new FileOutputStream(out)) {
+            if (e.getSize() > 0) preallocate(os, e.getSize());
+            total = header != null
+                    ? copyStored(src.channel, header, e, os, w, crc, md, token)
+                    : copyStream(src.zf, e, os, w, crc, md, token);
+        }
+        if (header != null) {
+            m.add("storedEntries", 1);
+            m.add("storedBytes", total);
+        }
+        if (e.getCrc() != -1 && crc.getValue() != e.getCrc()) {
+            throw new ZipException("CRC mismatch in " + e.getName());
+        }
+        if (hook != null) hook.onFile(out, e, md != null ? md.digest() : null);
+        long us = (System.nanoTime() - t0) / 1000;
+        m.add("entries", 1);
+        m.add("bytes", total);
+        m.add("entryUs", us);
+        m.max("entryUsMax", us);
+        return total;
+    }
+
+    private static long copyStream(ZipFile zf, ZipEntry e, OutputStream os, Worker w, CRC32 crc, MessageDigest md,
+                                   CancellationToken token) throws IOException {
+        byte[] buf = w.buffer(e.getSize() > 0 ? e.getSize() : MIN_BUF);
+        long total = 0;
+        try (InputStream in = zf.getInputStream(e)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                token.throwIfCancelled();
+                os.write(buf, 0, n);
+                crc.update(buf, 0, n);
+                if (md != null) md.update(buf, 0, n);
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /** Copies a STORED entry's bytes straight from the archive, whose local header is at {@code header}. */
+    private static long copyStored(FileChannel archive, long header, ZipEntry e, FileOutputStream os, Worker w,
+                                   CRC32 crc, MessageDigest md, CancellationToken token) throws IOException {
+        ByteBuffer loc = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(archive, loc, header);
+        if (loc.getInt(0) != LOC_SIG) throw new ZipException("bad local header for " + e.getName());
+        long data = header + 30 + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+        long size = e.getSize();
+        if (size != e.getCompressedSize() || data + size > archive.size()) {
+            throw new ZipException("bad stored entry " + e.getName());
+        }
+        if (md == null && size >= MAP_MIN) {
+            FileChannel out = os.getChannel();
+            for (long pos = 0; pos < size; ) {
+                token.throwIfCancelled();
+                MappedByteBuffer map = archive.map(FileChannel.MapMode.READ_ONLY, data + pos, Math.min(MAP_WINDOW, size - pos));
+                pos += map.remaining();
+                crc.update(map.duplicate());
+                while (map.hasRemaining()) out.write(map);
+            }
+            return size;
+        }
+        // SHA-256 only takes arrays at full speed, so read: still no inflater and no stream
+        byte[] buf = w.buffer(size);
+        for (long pos = 0; pos < size; ) {
+            token.throwIfCancelled();
+            int n = (int) Math.min(buf.length, size - pos);
+            readFully(archive, ByteBuffer.wrap(buf, 0, n), data + pos);
+            os.write(buf, 0, n);
+            crc.update(buf, 0, n);
+            if (md != null) md.update(buf, 0, n);
+            pos += n;
+        }
+        return size;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        int start = b.position();
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position() - start) < 0) throw new EOFException("zip truncated at " + (pos + b.position() - start));
+        }
+    }
+
+    /**
+     * Zip-slip guard: rejects absolute names and any {@code ..} segment, so every entry
+     * resolves inside the destination. Done lexically to avoid a realpath per entry; the
+     * destination tree is freshly created and holds no symlinks to escape through.
+     * Returns the name without a trailing slash.
+     */
+    static String checkName(String name) {
+        if (name.startsWith("/") || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            throw new SecurityException("zip path traversal: " + name);
+        }
+        for (String seg : name.split("/")) {
+            if (seg.equals("..")) throw new SecurityException("zip path traversal: " + name);
+        }
+        String n = name;
+        while (n.startsWith("./")) n = n.substring(2);
+        while (n.endsWith("/")) n = n.substring(0, n.length() - 1);
+        return n;
+    }
+}
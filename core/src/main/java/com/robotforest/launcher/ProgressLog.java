@@ -0,0 +1,6 @@
+package com.robotforest.launcher;
+
+/** Receives one-line progress messages ("[download] 40% …"); any thread. */
+public interface ProgressLog {
+    void log(String msg);
+}
@@ -0,0 +1,298 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Single-connection download that survives dropped connections.
+ *
+ * Bytes land in {@code dst + ".part"}; a {@code ".part.meta"} sidecar records the URL, the
+ * committed offset and the server's ETag/Last-Modified. A retry (in this call or a later one)
+ * sends {@code Range: bytes=offset-} with {@code If-Range}, so only missing bytes cross the
+ * wire. If the server answers 200 instead of 206 (ranges unsupported or the validator no
+ * longer matches) the partial file is discarded and the body is taken from the start.
+ *
+ * With {@code anySource}, for mirrors that all serve the same digest ({@link Mirrors}), a partial
+ * written from another URL is continued too: its validators mean nothing to this server, so the
+ * range goes without If-Range, and the final digest check is what catches a mismatched mirror.
+ */
+final class ResumableDownload {
+    private static final int BUF = 64 * 1024;
+    static final long META_EVERY = 4L * 1024 * 1024;
+    static final int DEFAULT_ATTEMPTS = 8;
+    private static final long BACKOFF_BASE_MS = 1000;
+    private static final long BACKOFF_MAX_MS = 30000;
+
+    private ResumableDownload() {}
+
+    /** Downloads {@code url} to {@code dst}, resuming any earlier partial; returns the SHA-256 hex of the file. */
+    static String fetch(String url, File dst, int connectMs, int readMs, ProgressLog log)
+            throws IOException {
+        return fetch(url, dst, connectMs, readMs, DEFAULT_ATTEMPTS, log);
+    }
+
+    static String fetch(String url, File dst, int connectMs, int readMs, int attempts,
+                        ProgressLog log) throws IOException {
+        return fetch(url, dst, connectMs, readMs, attempts, false, log);
+    }
+
+    static String fetch(String url, File dst, int connectMs, int readMs, int attempts, boolean anySource,
+                        ProgressLog log) throws IOException {
+        final File part = partFile(dst);
+        final File side = metaFile(dst);
+        Meta meta = Meta.load(side);
+        if (anySource && meta != null && !url.equals(meta.url) && part.isFile()) {
+            Meta moved = new Meta(url);
+            moved.offset = meta.offset;
+            meta = moved;
+        }
+        if (meta == null || !url.equals(meta.url) || !part.isFile()) {
+            meta = new Meta(url);
+            truncate(part, 0);
+        } else if (part.length() != meta.offset) {
+            // Only bytes covered by a persisted offset are trusted; a segmented attempt's ranges past it go.
+            if (!meta.ranges.isEmpty()) {
+                meta.ranges.clear();
+                meta.store(side);
+            }
+            truncate(part, Math.min(part.length(), meta.offset));
+            meta.offset = part.length();
+        }
+
+        MessageDigest md = Hashes.sha256();
+        long hashed = digestPrefix(part, md);
+
+        IOException last = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            if (attempt > 0) {
+                Metrics.current().add("retries", 1);
+                sleepBackoff(attempt, log);
+            }
+            if (hashed != part.length()) {
+                md.reset();
+                hashed = digestPrefix(part, md);
+            }
+            meta.offset = hashed;
+            Http.Response c = null;
+            try {
+                Http.Request req = Http.get(url).timeouts(connectMs, readMs);
+                boolean resuming = meta.offset > 0 && (meta.validator() != null || anySource);
+                if (resuming) {
+                    req.header("Range", "bytes=" + meta.offset + "-");
+                    if (meta.validator() != null) req.header("If-Range", meta.validator());
+                }
+                c = Http.execute(req);
+                int code = c.code;
+                if (code == HttpURLConnection.HTTP_PARTIAL && resuming
+                        && rangeStart(c.header("Content-Range")) == meta.offset) {
+                    if (log != null) log.log("[download] resuming at " + meta.offset + " bytes");
+                    Metrics.current().add("resumedBytes", meta.offset);
+                    if (meta.validator() == null) {
+                        // Continuing another source's bytes: later resumes can use this one's validators
+                        meta.etag = c.header("ETag");
+                        meta.lastModified = c.header("Last-Modified");
+                        meta.store(side);
+                    }
+                } else if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL) {
+                    if (code == HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException("unexpected Content-Range: " + c.header("Content-Range"));
+                    }
+                    if (meta.offset > 0 && log != null) log.log("[download] server sent full body; restarting");
+                    truncate(part, 0);
+                    md.reset();
+                    hashed = 0;
+                    meta.offset = 0;
+                    meta.etag = c.header("ETag");
+                    meta.lastModified = c.header("Last-Modified");
+                    meta.store(side);
+                } else if (code >= 500 || code == 408 || code == 429 || code == 416) {
+                    if (code == 416) {
+                        // Our offset is past the server's idea of the file; start over.
+                        truncate(part, 0);
+                        md.reset();
+                        hashed = 0;
+                        meta = new Meta(url);
+                        meta.store(side);
+                    }
+                    throw new IOException("HTTP " + code);
+                } else {
+                    throw new FatalHttp(code);
+                }
+
+                long expectEnd = c.contentLength() >= 0 ? meta.offset + c.contentLength() : -1;
+                Downloads.reserve(dst, c.contentLength());
+                try (InputStream in = c.body();
+                     FileOutputStream out = new FileOutputStream(part, true)) {
+                    byte[] buf = new byte[BUF];
+                    long sinceMeta = 0;
+                    int n;
+                    try {
+                        while ((n = in.read(buf)) >= 0) {
+                            out.write(buf, 0, n);
+                            md.update(buf, 0, n);
+                            hashed += n;
+                            sinceMeta += n;
+                            if (sinceMeta >= META_EVERY) {
+                                meta.offset = hashed;
+                                meta.store(side);
+                                sinceMeta = 0;
+                            }
+                        }
+                    } finally {
+                        out.flush();
+                        meta.offset = hashed;
+                        meta.store(side);
+                    }
+                }
+                if (expectEnd >= 0 && hashed != expectEnd) {
+                    throw new EOFException("short body: " + hashed + " of " + expectEnd);
+                }
+
+                if (dst.exists() && !dst.delete()) throw new IOException("cannot replace " + dst);
+                if (!part.renameTo(dst)) throw new IOException("rename failed: " + part + " -> " + dst);
+                //noinspection ResultOfMethodCallIgnored
+                side.delete();
+                return Hashes.hex(md.digest());
+            } catch (FatalHttp | Downloads.NoSpaceException e) {
+                throw e;
+            } catch (IOException e) {
+                CancellationToken.current().throwIfCancelled();
+                last = e;
+                if (log != null) log.log("[download] attempt " + (attempt + 1) + "/" + attempts + " failed at "
+                        + hashed + " bytes: " + e);
+            } finally {
+                if (c != null) c.close();
+            }
+        }
+        throw last != null ? last : new IOException("download failed: " + url);
+    }
+
+    /** Discards any partial state for {@code dst}. */
+    static void discard(File dst) {
+        //noinspection ResultOfMethodCallIgnored
+        partFile(dst).delete();
+        //noinspection ResultOfMethodCallIgnored
+        metaFile(dst).delete();
+    }
+
+    static File partFile(File dst) { return new File(dst.getPath() + ".part"); }
+
+    static File metaFile(File dst) { return new File(dst.getPath() + ".part.meta"); }
+
+    private static long digestPrefix(File part, MessageDigest md) throws IOException {
+        if (!part.isFile() || part.length() == 0) return 0;
+        long total = 0;
+        try (InputStream in = new FileInputStream(part)) {
+            byte[] buf = new byte[BUF];
+            int n;
+            while ((n = in.read(buf)) >= 0) { md.update(buf, 0, n); total += n; }
+        }
+        return total;
+    }
+
+    static void truncate(File f, long len) throws IOException {
+        File parent = f.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("mkdirs failed: " + parent);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(len);
+        }
+    }
+
+    /** Parses the first byte position of {@code bytes a-b/total}; -1 if absent or malformed. */
+    static long rangeStart(String contentRange) {
+        if (contentRange == null) return -1;
+        String s = contentRange.trim();
+        if (s.startsWith("bytes")) s = s.substring(5).trim();
+        int dash = s.indexOf('-');
+        if (dash <= 0) return -1;
+        try {
+            return Long.parseLong(s.substring(0, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void sleepBackoff(int attempt, ProgressLog log) throws IOException {
+        long cap = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt - 1, 16));
+        // Full jitter keeps a fleet of devices from retrying in lockstep.
+        long ms = cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+        if (log != null) log.log("[download] retrying in " + ms + " ms");
+        CancellationToken.current().sleep(ms);
+    }
+
+    /** Non-retryable HTTP status (404, 403, …). */
+    static final class FatalHttp extends IOException {
+        final int code;
+        FatalHttp(int code) { super("HTTP " + code); this.code = code; }
+    }
+
+    /**
+     * The {@code .part.meta} sidecar. {@code offset} is the trusted prefix of the spool; a
+     * segmented download ({@link SegmentedDownload}) also records the body's {@code length} and
+     * the half-open {@code ranges} it finished past the prefix.
+     */
+    static final class Meta {
+        final String url;
+        long offset;
+        String etag;
+        String lastModified;
+        long length = -1;
+        final List<long[]> ranges = new ArrayList<>();
+
+        Meta(String url) { this.url = url; }
+
+        /** Strong ETag preferred; If-Range does not accept weak validators. */
+        String validator() {
+            if (etag != null && !etag.startsWith("W/")) return etag;
+            return lastModified;
+        }
+
+        static Meta load(File f) {
+            if (!f.isFile()) return null;
+            Properties p = new Properties();
+            try (InputStream in = new FileInputStream(f)) {
+                p.load(in);
+                Meta m = new Meta(p.getProperty("url", ""));
+                m.offset = Long.parseLong(p.getProperty("offset", "0"));
+                m.etag = p.getProperty("etag");
+                m.lastModified = p.getProperty("lastModified");
+                m.length = Long.parseLong(p.getProperty("length", "-1"));
+                String rs = p.getProperty("ranges", "");
+                for (String r : rs.isEmpty() ? new String[0] : rs.split(",")) {
+                    int dash = r.indexOf('-');
+                    long a = Long.parseLong(r.substring(0, dash)), b = Long.parseLong(r.substring(dash + 1));
+                    if (a < m.offset || b <= a || (m.length >= 0 && b > m.length)) return null;
+                    m.ranges.add(new long[] {a, b});
+                }
+                return m;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        void store(File f) throws IOException {
+            Properties p = new Properties();
+            p.setProperty("url", url);
+            p.setProperty("offset", Long.toString(offset));
+            if (etag != null) p.setProperty("etag", etag);
+            if (lastModified != null) p.setProperty("lastModified", lastModified);
+            if (length >= 0) p.setProperty("length", Long.toString(length));
+            if (!ranges.isEmpty()) {
+                StringBuilder sb = new StringBuilder();
+                for (long[] r : ranges) sb.append(sb.length() == 0 ? "" : ",").append(r[0]).append('-').append(r[1]);
+                p.setProperty("ranges", sb.toString());
+            }
+            File tmp = new File(f.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                p.store(out, null);
+            }
+            if (!tmp.renameTo(f)) throw new IOException("rename failed: " + tmp);
+        }
+    }
+}
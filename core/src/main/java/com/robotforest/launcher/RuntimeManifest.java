@@ -0,0 +1,152 @@
+package com.robotforest.launcher;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class RuntimeManifest {
+    public final String url;
+    public final String sha256;   // hex lowercase
+    public final String subdir;   // e.g. "runtime"
+    // Archive format: "zip" or "tar.zst" (see Unpacker). Declared as "format", else implied by
+    // the url's suffix; builds before tar.zst support ignore the field.
+    public final String format;
+
+    // Archive digest: algorithm name (see Hashes.algorithm) and value. For "sha256" the digest is
+    // the legacy sha256 field; newer manifests keep that field too so older builds still verify.
+    public final String hash;
+    public final String digest;   // hex lowercase, "" or "auto" when unresolved
+
+    // Everywhere the archive can come from, url first, then "mirrors": more HTTPS URLs, file://
+    // paths. All must serve the same digest; see Mirrors for how one is picked.
+    public final List<String> sources;
+
+    // Optional per-file index for delta updates (see DeltaUpdater)
+    public final List<FileEntry> files;  // inline index, or null
+    public final String filesUrl;        // index served separately, or ""
+    public final String blobBase;        // blob for a file is blobBase + sha256, or ""
+
+    // Permission overrides, first match wins: "modes": [{"path": "lib/**/*.so", "mode": "755"}, …].
+    // Files no rule matches keep the mode recorded in the archive.
+    final FileModes.Policy modes;
+
+    /** One regular file of the runtime tree, relative to the install dir. */
+    public static final class FileEntry {
+        public final String path;
+        public final long size;
+        public final int mode;        // permission bits, e.g. 0755
+        public final String sha256;   // hex lowercase
+
+        public FileEntry(String path, long size, int mode, String sha256) {
+            this.path = path;
+            this.size = size;
+            this.mode = mode;
+            this.sha256 = sha256;
+        }
+    }
+
+    private RuntimeManifest(String url, String sha256, String subdir, String format, String hash, String digest,
+                            List<String> sources, List<FileEntry> files, String filesUrl, String blobBase,
+                            FileModes.Policy modes) {
+        this.url = url;
+        this.sha256 = sha256;
+        this.subdir = subdir;
+        this.format = format;
+        this.hash = hash;
+        this.digest = digest;
+        this.sources = sources;
+        this.files = files;
+        this.filesUrl = filesUrl;
+        this.blobBase = blobBase;
+        this.modes = modes;
+    }
+
+    /** Strict parse for the manifest embedded in the APK, which must pin the archive digest. */
+    public static RuntimeManifest pinned(InputStream in) throws Exception {
+        RuntimeManifest m = from(new JSONObject(slurp(in)));
+        // "auto" or an empty value would skip verification altogether
+        if (!Hashes.shouldVerify(m.digest)) throw new JSONException("no pinned " + m.hash + " digest");
+        return m;
+    }
+
+    /**
+     * Lenient parse: {@code sha256} may be missing or "auto" (resolved from the .sha256 sidecar).
+     * An unknown {@code hash} falls back to {@code sha256} when that is present.
+     */
+    public static RuntimeManifest parse(String json) throws Exception {
+        return from(new JSONObject(json));
+    }
+
+    /** True when the manifest carries enough to update file-by-file instead of via the full archive. */
+    public boolean supportsDelta() {
+        return !blobBase.isEmpty() && (files != null || !filesUrl.isEmpty());
+    }
+
+    private static RuntimeManifest from(JSONObject o) throws Exception {
+        String url = o.getString("url");
+        String sha = o.optString("sha256", "").trim().toLowerCase();
+        String subdir = o.optString("subdir", "runtime");
+        String format = Unpacker.format(o.optString("format", ""), url);
+        if (format == null) throw new JSONException("unsupported archive format \"" + o.optString("format") + "\"");
+        JSONArray arr = o.optJSONArray("files");
+        List<FileEntry> files = arr != null ? parseFiles(arr) : null;
+        String filesUrl = o.optString("files_url", "");
+        String blobBase = o.optString("blob_base", "");
+        String hash = o.optString("hash", "sha256").trim().toLowerCase();
+        String digest = o.optString("digest", "").trim().toLowerCase();
+        Hashes.Algorithm alg = Hashes.algorithm(hash);
+        if (alg == null && !sha.isEmpty()) {
+            alg = Hashes.SHA256; // unknown to this build: fall back to the legacy digest
+        } else if (alg == null) {
+            throw new JSONException("unsupported hash \"" + hash + "\" and no sha256");
+        }
+        if (alg == Hashes.SHA256) digest = sha;
+        List<String> sources = new ArrayList<>();
+        sources.add(url);
+        JSONArray mirrors = o.optJSONArray("mirrors");
+        if (mirrors != null) for (int i = 0; i < mirrors.length(); i++) {
+            String s = mirrors.getString(i).trim();
+            if (!s.isEmpty() && !sources.contains(s)) sources.add(s);
+        }
+        JSONArray rules = o.optJSONArray("modes");
+        FileModes.Policy modes = rules != null ? parseModes(rules) : FileModes.Policy.DEFAULT;
+        return new RuntimeManifest(url, sha, subdir, format, alg.name, digest, Collections.unmodifiableList(sources),
+                files, filesUrl, blobBase, modes);
+    }
+
+    private static FileModes.Policy parseModes(JSONArray arr) throws Exception {
+        List<FileModes.Policy.Rule> rules = new ArrayList<>(arr.length());
+        for (int i = 0; i < arr.length(); i++) {
+            JSONObject r = arr.getJSONObject(i);
+            String path = r.getString("path");
+            if (path.startsWith("./")) path = path.substring(2);
+            rules.add(new FileModes.Policy.Rule(path, Integer.parseInt(r.getString("mode"), 8)));
+        }
+        return new FileModes.Policy(rules);
+    }
+
+    /** Parses a file index: a JSON array of {path, size, mode, sha256}; mode is an octal string. */
+    public static List<FileEntry> parseFiles(JSONArray arr) throws Exception {
+        List<FileEntry> out = new ArrayList<>(arr.length());
+        for (int i = 0; i < arr.length(); i++) {
+            JSONObject f = arr.getJSONObject(i);
+            String path = f.getString("path");
+            if (path.startsWith("./")) path = path.substring(2);
+            int mode = Integer.parseInt(f.optString("mode", "644"), 8) & 07777;
+            out.add(new FileEntry(path, f.getLong("size"), mode, f.getString("sha256").toLowerCase()));
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    private static String slurp(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+        return bos.toString("UTF-8");
+    }
+}
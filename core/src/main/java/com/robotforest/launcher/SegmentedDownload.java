@@ -0,0 +1,447 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel byte-range download into a preallocated file.
+ *
+ * After a probe, the body is cut into {@link Options#segmentSize} ranges which
+ * {@link Options#connections} workers fetch concurrently, each writing at its own offset through
+ * one shared {@link FileChannel}. When the queue runs dry an idle worker steals the back half of
+ * the slowest in-flight range, so one stalled connection cannot hold up the tail of the file.
+ *
+ * The file is the same {@code .part} spool {@link ResumableDownload} uses, with the same
+ * sidecar: the calling thread hashes the in-order prefix as it fills and records it as the
+ * sidecar's offset, with the finished ranges past it. A later call against the same validator
+ * fetches only the gaps; the single-connection path can continue the prefix.
+ */
+final class SegmentedDownload {
+    /** How often the calling thread catches the digest up with the workers. */
+    private static final long HASH_POLL_MS = 100;
+
+    /** Tunables; the defaults suit a few hundred MB from a CDN over LTE/Wi-Fi. */
+    static final class Options {
+        int connections = 4;
+        long segmentSize = 8L * 1024 * 1024;
+        /** A range is only split when both halves would be at least this long. */
+        long minStealSize = 1024 * 1024;
+        /** Smaller bodies go through the single-connection path. */
+        long minSizeForSegments = 16L * 1024 * 1024;
+        int attemptsPerSegment = 5;
+        int bufferSize = 64 * 1024;
+
+        Options copy() {
+            Options o = new Options();
+            o.connections = connections;
+            o.segmentSize = segmentSize;
+            o.minStealSize = minStealSize;
+            o.minSizeForSegments = minSizeForSegments;
+            o.attemptsPerSegment = attemptsPerSegment;
+            o.bufferSize = bufferSize;
+            return o;
+        }
+    }
+
+    /** What the server told us about the resource. */
+    static final class Probe {
+        final long length;        // -1 if unknown
+        final boolean ranges;
+        final String etag;
+        final String lastModified;
+        final String validator;   // strong ETag or Last-Modified, for If-Range
+        Probe(long length, boolean ranges, String etag, String lastModified) {
+            this.length = length; this.ranges = ranges; this.etag = etag; this.lastModified = lastModified;
+            this.validator = etag != null && !etag.startsWith("W/") ? etag : lastModified;
+        }
+        boolean segmentable(Options o) {
+            return ranges && o.connections > 1 && length >= o.minSizeForSegments;
+        }
+    }
+
+    private SegmentedDownload() {}
+
+    /**
+     * HEAD first; some CDNs reject HEAD on signed release URLs, so fall back to a one-byte
+     * ranged GET and read the total from Content-Range.
+     */
+    static Probe probe(String url, int connectMs, int readMs) throws IOException {
+        try (Http.Response c = Http.execute(Http.get(url).method("HEAD").timeouts(connectMs, readMs))) {
+            int code = c.code;
+            if (code == HttpURLConnection.HTTP_OK) {
+                long len = c.contentLength();
+                boolean ranges = "bytes".equalsIgnoreCase(trim(c.header("Accept-Ranges")));
+                return new Probe(len, ranges, c.header("ETag"), c.header("Last-Modified"));
+            }
+        }
+        try (Http.Response c = Http.execute(Http.get(url).header("Range", "bytes=0-0").timeouts(connectMs, readMs))) {
+            int code = c.code;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String cr = c.header("Content-Range");
+                long total = -1;
+                int slash = cr == null ? -1 : cr.lastIndexOf('/');
+                if (slash >= 0) {
+                    try { total = Long.parseLong(cr.substring(slash + 1).trim()); } catch (NumberFormatException ignore) {}
+                }
+                return new Probe(total, total > 0, c.header("ETag"), c.header("Last-Modified"));
+            }
+            if (code == HttpURLConnection.HTTP_OK) {
+                return new Probe(c.contentLength(), false, c.header("ETag"), c.header("Last-Modified"));
+            }
+            throw new IOException("probe HTTP " + code);
+        }
+    }
+
+    /**
+     * Fetches the whole resource described by {@code p} into {@code dst}, continuing the
+     * {@code .part} an earlier call left for the same URL and validator; returns the SHA-256 hex
+     * of the file. On failure the spool and its sidecar stay for the next attempt.
+     */
+    static String fetch(String url, File dst, Probe p, Options o, int connectMs, int readMs,
+                        ProgressLog log) throws IOException {
+        if (!p.segmentable(o)) throw new IllegalArgumentException("resource is not segmentable");
+        final File part = ResumableDownload.partFile(dst);
+        final File side = ResumableDownload.metaFile(dst);
+        ResumableDownload.Meta meta = ResumableDownload.Meta.load(side);
+        boolean resume = meta != null && url.equals(meta.url) && p.validator != null
+                && p.validator.equals(meta.validator()) && (meta.length < 0 || meta.length == p.length)
+                && meta.offset <= p.length && part.isFile() && part.length() >= meta.offset;
+        if (!resume) {
+            meta = new ResumableDownload.Meta(url);
+            meta.etag = p.etag;
+            meta.lastModified = p.lastModified;
+            ResumableDownload.truncate(part, 0);
+        }
+        meta.length = p.length;
+        meta.store(side);
+
+        final Plan plan = new Plan(meta.offset, p.length, meta.ranges, o);
+        final long resumed = plan.written.get();
+        final Metrics.Phase m = Metrics.current();
+        final CancellationToken token = CancellationToken.current();
+        final int workers = (int) Math.max(1, Math.min(o.connections,
+                (p.length - resumed + o.minStealSize - 1) / o.minStealSize));
+        if (resumed > 0) {
+            if (log != null) log.log("[download] resuming with " + resumed + " of " + p.length + " bytes");
+            m.add("resumedBytes", resumed);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "rf-segment");
+            t.setDaemon(true);
+            return t;
+        });
+        MessageDigest md = Hashes.sha256();
+        byte[] hashBuf = new byte[o.bufferSize];
+        long hashed = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            raf.setLength(p.length);
+            final FileChannel ch = raf.getChannel();
+            plan.workers(workers);
+            List<Future<?>> fs = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                fs.add(pool.submit(() -> {
+                    try (CancellationToken.Scope s = token.enter()) {
+                        runWorker(url, p.validator, ch, plan, o, connectMs, readMs, m);
+                    } catch (Throwable t) {
+                        plan.abort();
+                        throw t;
+                    } finally {
+                        plan.workerDone();
+                    }
+                    return null;
+                }));
+            }
+            try {
+                hashed = digest(ch, md, 0, meta.offset, hashBuf);
+                long stored = hashed;
+                while (plan.await(HASH_POLL_MS)) {
+                    hashed = digest(ch, md, hashed, plan.contiguous(hashed), hashBuf);
+                    if (hashed - stored >= ResumableDownload.META_EVERY) {
+                        persist(meta, side, plan, hashed);
+                        stored = hashed;
+                    }
+                }
+                hashed = digest(ch, md, hashed, plan.contiguous(hashed), hashBuf);
+            } catch (InterruptedException e) {
+                plan.abort();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("segmented download interrupted");
+            } finally {
+                persist(meta, side, plan, hashed);
+            }
+            IOException failure = null;
+            for (Future<?> f : fs) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    plan.abort();
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                } catch (InterruptedException e) {
+                    plan.abort();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("segmented download interrupted");
+                }
+            }
+            token.throwIfCancelled();
+            if (failure != null) throw failure;
+            if (hashed != p.length) {
+                throw new IOException("incomplete: " + hashed + " of " + p.length);
+            }
+            ch.force(false);
+            if (log != null) log.log("[download] " + (p.length - resumed) + " bytes over " + workers
+                    + " connections, " + plan.steals.get() + " steals");
+            m.set("connections", workers);
+            m.add("steals", plan.steals.get());
+        } finally {
+            plan.abort();
+            pool.shutdownNow();
+        }
+        if (dst.exists() && !dst.delete()) throw new IOException("cannot replace " + dst);
+        if (!part.renameTo(dst)) throw new IOException("rename failed: " + part + " -> " + dst);
+        //noinspection ResultOfMethodCallIgnored
+        side.delete();
+        return Hashes.hex(md.digest());
+    }
+
+    /** Feeds [{@code from}, {@code to}) of the spool to {@code md}; returns {@code to}. */
+    private static long digest(FileChannel ch, MessageDigest md, long from, long to, byte[] buf) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (from < to) {
+            bb.clear();
+            bb.limit((int) Math.min(buf.length, to - from));
+            int n = ch.read(bb, from);
+            if (n < 0) throw new EOFException("spool shorter than " + to);
+            md.update(buf, 0, n);
+            from += n;
+        }
+        return to;
+    }
+
+    /** Records the hashed prefix as the sidecar's offset and what is finished past it. */
+    private static void persist(ResumableDownload.Meta meta, File side, Plan plan, long hashed) throws IOException {
+        meta.offset = hashed;
+        meta.ranges.clear();
+        meta.ranges.addAll(plan.finished(hashed));
+        meta.store(side);
+    }
+
+    private static void runWorker(String url, String validator, FileChannel ch, Plan plan, Options o,
+                                  int connectMs, int readMs, Metrics.Phase m) throws IOException {
+        byte[] buf = new byte[o.bufferSize];
+        Segment s;
+        while ((s = plan.next()) != null) {
+            int failures = 0;
+            while (!s.done() && !plan.aborted) {
+                try {
+                    fetchSegment(url, validator, ch, s, plan, buf, connectMs, readMs);
+                } catch (IOException e) {
+                    if (plan.aborted || ++failures >= o.attemptsPerSegment) throw e;
+                    CancellationToken.current().throwIfCancelled();
+                    m.add("retries", 1);
+                    CancellationToken.current().sleep(250L << Math.min(failures, 6));
+                }
+            }
+        }
+    }
+
+    private static void fetchSegment(String url, String validator, FileChannel ch, Segment s, Plan plan,
+                                     byte[] buf, int connectMs, int readMs) throws IOException {
+        long from = s.rewind();
+        // Ask for the segment's original end; a steal only ever shrinks it, and we stop early.
+        Http.Request req = Http.get(url).timeouts(connectMs, readMs).header("Range", "bytes=" + from + "-" + (s.end() - 1));
+        if (validator != null) req.header("If-Range", validator);
+        try (Http.Response c = Http.execute(req)) {
+            int code = c.code;
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                // 200 here means the validator no longer matches: the file changed under us.
+                plan.abort();
+                throw new ResumableDownload.FatalHttp(code);
+            }
+            if (ResumableDownload.rangeStart(c.header("Content-Range")) != from) {
+                throw new IOException("bad Content-Range: " + c.header("Content-Range"));
+            }
+            try (InputStream in = c.body()) {
+                int n;
+                while (!plan.aborted && (n = in.read(buf)) >= 0) {
+                    long at = s.position();
+                    int take = s.claim(n);
+                    writeFully(ch, buf, take, at);
+                    s.filled(take);
+                    plan.written.addAndGet(take);
+                    if (take < n || s.done()) break;
+                }
+            }
+            if (!s.done() && !plan.aborted) throw new EOFException("segment ended early at " + s.position());
+        }
+    }
+
+    private static void writeFully(FileChannel ch, byte[] buf, int len, long at) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining()) at += ch.write(bb, at);
+    }
+
+    private static String trim(String s) { return s == null ? "" : s.trim(); }
+
+    /**
+     * A half-open byte range [pos, end) owned by one worker; {@code end} can move down under a
+     * steal. Bytes from {@code start} up to {@code filled} are on disk.
+     */
+    private static final class Segment {
+        final long start;
+        private long pos;
+        private long end;
+        private long filled;
+        Segment(long start, long end) { this.start = start; this.pos = start; this.end = end; this.filled = start; }
+
+        synchronized long position() { return pos; }
+        synchronized long end() { return end; }
+        synchronized long remaining() { return end - pos; }
+        synchronized boolean done() { return filled >= end; }
+        synchronized long filled() { return filled; }
+
+        /** Reserves up to {@code n} bytes at the current position; returns how many may be written. */
+        synchronized int claim(int n) {
+            int take = (int) Math.min(n, end - pos);
+            pos += take;
+            return take;
+        }
+
+        /** Marks {@code n} claimed bytes as written. */
+        synchronized void filled(int n) { filled += n; }
+
+        /** Drops claims that never reached the disk, for a retry; returns where to resume. */
+        synchronized long rewind() {
+            pos = filled;
+            return pos;
+        }
+
+        /** Gives away the back half if both halves stay at least {@code min}; returns the stolen range. */
+        synchronized Segment split(long min) {
+            long rem = end - pos;
+            if (rem < 2 * min) return null;
+            long mid = pos + rem / 2;
+            Segment tail = new Segment(mid, end);
+            end = mid;
+            return tail;
+        }
+    }
+
+    private static final class Plan {
+        private final ArrayDeque<Segment> queue = new ArrayDeque<>();
+        private final List<Segment> active = new ArrayList<>();
+        /** Every segment handed out or queued, for {@link #contiguous} and {@link #finished}. */
+        private final List<Segment> all = new ArrayList<>();
+        /** Ranges an earlier call finished. */
+        private final List<long[]> done;
+        private final long minSteal;
+        private int running;
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong steals = new AtomicLong();
+        volatile boolean aborted;
+
+        /** Segments for the gaps in [{@code prefix}, {@code length}) not covered by {@code done}. */
+        Plan(long prefix, long length, List<long[]> done, Options o) {
+            this.minSteal = Math.max(1, o.minStealSize);
+            this.done = new ArrayList<>(done);
+            Collections.sort(this.done, (a, b) -> Long.compare(a[0], b[0]));
+            long seg = Math.max(minSteal, o.segmentSize);
+            long have = prefix;
+            long at = prefix;
+            for (int i = 0; i <= this.done.size(); i++) {
+                long gapEnd = i < this.done.size() ? this.done.get(i)[0] : length;
+                for (; at < gapEnd; at += seg) {
+                    Segment s = new Segment(at, Math.min(gapEnd, at + seg));
+                    queue.add(s);
+                    all.add(s);
+                }
+                if (i < this.done.size()) {
+                    long[] r = this.done.get(i);
+                    have += r[1] - Math.max(r[0], at);
+                    at = Math.max(at, r[1]);
+                }
+            }
+            written.set(have);
+        }
+
+        synchronized Segment next() {
+            if (aborted) return null;
+            active.removeIf(Segment::done);
+            Segment s = queue.poll();
+            if (s == null) {
+                Segment victim = null;
+                for (Segment a : active) {
+                    if (victim == null || a.remaining() > victim.remaining()) victim = a;
+                }
+                if (victim != null) {
+                    s = victim.split(minSteal);
+                    if (s != null) {
+                        steals.incrementAndGet();
+                        all.add(s);
+                    }
+                }
+            }
+            if (s != null) active.add(s);
+            return s;
+        }
+
+        /** The end of the run of finished bytes starting at {@code from}. */
+        synchronized long contiguous(long from) {
+            for (boolean moved = true; moved; ) {
+                moved = false;
+                for (long[] r : done) {
+                    if (r[0] <= from && r[1] > from) { from = r[1]; moved = true; }
+                }
+                for (Segment s : all) {
+                    long f = s.filled();
+                    if (s.start <= from && f > from) { from = f; moved = true; }
+                }
+            }
+            return from;
+        }
+
+        /** Finished ranges past {@code from}, sorted and merged. */
+        synchronized List<long[]> finished(long from) {
+            List<long[]> rs = new ArrayList<>();
+            for (long[] r : done) if (r[1] > from) rs.add(new long[] {Math.max(r[0], from), r[1]});
+            for (Segment s : all) {
+                long f = s.filled();
+                if (f > s.start && f > from) rs.add(new long[] {Math.max(s.start, from), f});
+            }
+            Collections.sort(rs, (a, b) -> Long.compare(a[0], b[0]));
+            List<long[]> out = new ArrayList<>();
+            for (long[] r : rs) {
+                long[] last = out.isEmpty() ? null : out.get(out.size() - 1);
+                if (last != null && r[0] <= last[1]) last[1] = Math.max(last[1], r[1]);
+                else out.add(r);
+            }
+            return out;
+        }
+
+        /** Waits up to {@code ms} for a worker to finish; false once none is left. */
+        synchronized boolean await(long ms) throws InterruptedException {
+            if (running > 0) wait(ms);
+            return running > 0;
+        }
+
+        synchronized void workers(int n) { running = n; }
+
+        synchronized void workerDone() {
+            running--;
+            notifyAll();
+        }
+
+        void abort() { aborted = true; }
+    }
+}
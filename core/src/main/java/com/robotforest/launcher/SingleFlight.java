@@ -0,0 +1,206 @@
+package com.robotforest.launcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs at most one operation per key; requests for a key that is already running join it.
+ *
+ * <pre>
+ *   submit("install:v1", job, cb1)  ──► operation starts on the executor
+ *   submit("install:v1", job, cb2)  ──► joins: cb2 gets the same progress (from now on) and result
+ *   h1.cancel(); h2.cancel()        ──► no one is left waiting: the token is cancelled
+ * </pre>
+ *
+ * Every operation has its own {@link CancellationToken}, current on the executor thread while the
+ * job runs. A {@link Handle} that cancels only detaches itself; the operation is cancelled once no
+ * handle is waiting, or at once through {@link Handle#cancelAll()}. Operations for different keys
+ * run as the executor allows; give it one thread to serialize them.
+ */
+final class SingleFlight {
+    /** The work itself; runs on the executor with {@code token} current. */
+    interface Job<T> {
+        T run(CancellationToken token, ProgressLog log) throws Exception;
+    }
+
+    /** Called on the executor thread. Progress goes to every attached handle; a null callback gets nothing. */
+    interface Callback<T> {
+        void onProgress(String msg);
+        void onResult(T value);
+        void onError(Exception e);
+    }
+
+    private final Executor executor;
+    private final Map<String, Operation<?>> running = new HashMap<>(); // guarded by this
+
+    SingleFlight(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Joins the operation running for {@code key}, or starts {@code job} as a new one. One that is
+     * winding down after a cancel is not joined.
+     */
+    <T> Handle<T> submit(String key, Job<T> job, Callback<T> cb) {
+        return submit(null, key, job, cb);
+    }
+
+    /**
+     * Joins the operation running for {@code other} if there is one, else behaves like
+     * {@link #submit(String, Job, Callback)}; both looks happen under one lock.
+     */
+    <T> Handle<T> submit(String other, String key, Job<T> job, Callback<T> cb) {
+        Operation<T> op;
+        Handle<T> h;
+        boolean start = false;
+        synchronized (this) {
+            if (other != null) {
+                Handle<T> j = join(other, cb);
+                if (j != null) return j;
+            }
+            @SuppressWarnings("unchecked")
+            Operation<T> joined = (Operation<T>) running.get(key);
+            op = joined;
+            if (op == null || op.token.isCancelled()) {
+                op = new Operation<>(key, job);
+                running.put(key, op);
+                start = true;
+            }
+            h = new Handle<>(op, cb, !start);
+            op.handles.add(h);
+        }
+        if (start) {
+            try {
+                executor.execute(op);
+            } catch (RejectedExecutionException e) {
+                op.complete(null, e);
+            }
+        }
+        return h;
+    }
+
+    /** Attaches to the operation running for {@code key}; null if there is none to join. */
+    synchronized <T> Handle<T> join(String key, Callback<T> cb) {
+        @SuppressWarnings("unchecked")
+        Operation<T> op = (Operation<T>) running.get(key);
+        if (op == null || op.token.isCancelled()) return null;
+        Handle<T> h = new Handle<>(op, cb, true);
+        op.handles.add(h);
+        return h;
+    }
+
+    /** Keys with an operation in flight. */
+    synchronized int inFlight() {
+        return running.size();
+    }
+
+    /** One caller's view of an operation. */
+    final class Handle<T> {
+        private final Operation<T> op;
+        private final Callback<T> cb;
+        /** Whether this request joined an operation that was already running. */
+        final boolean joined;
+
+        private Handle(Operation<T> op, Callback<T> cb, boolean joined) {
+            this.op = op;
+            this.cb = cb;
+            this.joined = joined;
+        }
+
+        /** Stops callbacks to this handle; the operation keeps running for the others. */
+        void detach() {
+            synchronized (SingleFlight.this) {
+                op.handles.remove(this);
+            }
+        }
+
+        /** Detaches, and cancels the operation if no other handle is waiting for it. */
+        void cancel() {
+            boolean last;
+            synchronized (SingleFlight.this) {
+                op.handles.remove(this);
+                last = op.handles.isEmpty() && !op.done;
+            }
+            if (last) op.token.cancel();
+        }
+
+        /** Cancels the operation for every handle; each gets {@link CancellationToken.Cancelled}. */
+        void cancelAll() {
+            op.token.cancel();
+        }
+
+        boolean isDone() {
+            synchronized (SingleFlight.this) { return op.done; }
+        }
+
+        /** Blocks until the operation ends and returns its result; for callers on worker threads. */
+        T await() throws Exception {
+            synchronized (SingleFlight.this) {
+                while (!op.done) SingleFlight.this.wait();
+                if (op.error != null) throw op.error;
+                return op.value;
+            }
+        }
+    }
+
+    private final class Operation<T> implements Runnable {
+        final String key;
+        final Job<T> job;
+        final CancellationToken token = new CancellationToken();
+        final List<Handle<T>> handles = new ArrayList<>(); // guarded by SingleFlight.this
+        T value;           // guarded by SingleFlight.this
+        Exception error;   // guarded by SingleFlight.this
+        boolean done;      // guarded by SingleFlight.this
+
+        Operation(String key, Job<T> job) {
+            this.key = key;
+            this.job = job;
+        }
+
+        @Override public void run() {
+            T v = null;
+            Exception err = null;
+            try (CancellationToken.Scope s = token.enter()) {
+                token.throwIfCancelled(); // everyone left while it was queued
+                v = job.run(token, this::progress);
+            } catch (Exception e) {
+                err = e;
+            }
+            complete(v, err);
+        }
+
+        private void progress(String msg) {
+            for (Handle<T> h : attached()) {
+                if (h.cb == null) continue;
+                try { h.cb.onProgress(msg); } catch (Throwable ignore) {}
+            }
+        }
+
+        void complete(T v, Exception err) {
+            List<Handle<T>> waiting;
+            synchronized (SingleFlight.this) {
+                value = v;
+                error = err;
+                done = true;
+                if (running.get(key) == this) running.remove(key);
+                waiting = new ArrayList<>(handles);
+                handles.clear();
+                SingleFlight.this.notifyAll();
+            }
+            for (Handle<T> h : waiting) {
+                if (h.cb == null) continue;
+                try {
+                    if (err != null) h.cb.onError(err); else h.cb.onResult(v);
+                } catch (Throwable ignore) {}
+            }
+        }
+
+        private List<Handle<T>> attached() {
+            synchronized (SingleFlight.this) { return new ArrayList<>(handles); }
+        }
+    }
+}
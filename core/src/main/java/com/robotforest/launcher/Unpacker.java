@@ -0,0 +1,160 @@
+package com.robotforest.launcher;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.ZipEntry;
+
+/** Archive &rarr; install tree: extraction, permissions and the entries for {@link InstallIndex}. */
+final class Unpacker {
+    static final String ZIP = "zip";
+    /** A tar stream in zstd frames; see {@link Zstd} and {@link Untar}. */
+    static final String TAR_ZST = "tar.zst";
+
+    private Unpacker() {}
+
+    /**
+     * The archive format a manifest names, else the one its URL's suffix implies, else zip; null
+     * if it names one this build can't read.
+     */
+    static String format(String declared, String url) {
+        String f = declared.trim().toLowerCase(Locale.ROOT);
+        if (f.isEmpty()) {
+            String path = url.toLowerCase(Locale.ROOT);
+            int q = path.indexOf('?');
+            if (q >= 0) path = path.substring(0, q);
+            return path.endsWith(".tar.zst") || path.endsWith(".tzst") ? TAR_ZST : ZIP;
+        }
+        return f.equals(ZIP) || f.equals(TAR_ZST) ? f : null;
+    }
+
+    /** {@code format} as {@link #format} returned it. */
+    static Queue<InstallIndex.Entry> unpack(File archive, String format, File destDir, int threads,
+                                            FileModes.Policy policy) throws IOException {
+        String found = sniff(archive);
+        if (found != null && !found.equals(format)) {
+            throw new IOException("archive is " + found + ", manifest says " + format + ": " + archive);
+        }
+        if (TAR_ZST.equals(format)) {
+            try (InputStream in = new FileInputStream(archive)) {
+                return unpackTarZst(in, destDir, threads, policy);
+            }
+        }
+        if (ZIP.equals(format)) return unpack(archive, destDir, threads, policy);
+        throw new IOException("unsupported archive format: " + format);
+    }
+
+    /**
+     * As {@link #unpack(File, String, File, int, FileModes.Policy)}, from input read once front to
+     * back (a pipe, a content provider). Only tar.zst streams: a zip's directory is at its end.
+     * {@code in} is left open, and positioned wherever the archive's end was found.
+     */
+    static Queue<InstallIndex.Entry> unpack(InputStream in, String format, File destDir, int threads,
+                                            FileModes.Policy policy) throws IOException {
+        BufferedInputStream b = new BufferedInputStream(new FilterInputStream(in) {
+            @Override public void close() {}
+        }, 64 * 1024);
+        b.mark(4);
+        byte[] head = new byte[4];
+        int n = 0, r;
+        while (n < head.length && (r = b.read(head, n, head.length - n)) >= 0) n += r;
+        b.reset();
+        String found = sniff(head, n);
+        if (found != null && !found.equals(format)) {
+            throw new IOException("archive is " + found + ", manifest says " + format);
+        }
+        if (TAR_ZST.equals(format)) return unpackTarZst(b, destDir, threads, policy);
+        if (ZIP.equals(format)) throw new IOException("a zip can't be extracted from a stream; it needs a file");
+        throw new IOException("unsupported archive format: " + format);
+    }
+
+    static Queue<InstallIndex.Entry> unpack(File zip, File destDir, int threads) throws IOException {
+        return unpack(zip, destDir, threads, FileModes.Policy.DEFAULT);
+    }
+
+    /**
+     * Extracts {@code zip} into {@code destDir} on {@code threads} threads, hashing each file while
+     * it is written. Every directory and file gets its mode exactly once, as it is created:
+     * {@link FileModes#DIR_MODE} for directories, {@code policy} over the Unix mode the archive
+     * recorded for files. Nothing walks the tree afterwards.
+     */
+    static Queue<InstallIndex.Entry> unpack(File zip, File destDir, int threads, FileModes.Policy policy)
+            throws IOException {
+        ZipModes.Directory dir = ZipModes.read(zip);
+        Map<String, Integer> archiveModes = dir.modes;
+        Queue<InstallIndex.Entry> entries = new ConcurrentLinkedQueue<>();
+        Metrics.Phase m = Metrics.current();
+        if (!FileModes.chmod(destDir, FileModes.DIR_MODE)) m.add("chmodFailures", 1);
+        ParallelUnzip.extract(zip, dir, destDir, threads, true, new ParallelUnzip.FileHook() {
+            @Override public void onFile(File out, ZipEntry e, byte[] sha) {
+                String rel = ParallelUnzip.checkName(e.getName());
+                Integer recorded = archiveModes.get(e.getName());
+                int mode = policy.fileMode(rel, recorded != null ? recorded : -1);
+                if (!FileModes.chmod(out, mode)) m.add("chmodFailures", 1);
+                entries.add(new InstallIndex.Entry(rel, out.length(), out.lastModified(), mode, sha));
+            }
+
+            // **Critical**: exec bits on every directory, or nothing under it can run
+            @Override public void onDir(File dir, String name) {
+                if (!FileModes.chmod(dir, FileModes.DIR_MODE)) m.add("chmodFailures", 1);
+            }
+        });
+        m.add("archiveModes", archiveModes.size());
+        return entries;
+    }
+
+    /**
+     * As {@link #unpack(File, File, int, FileModes.Policy)}, from a tar.zst: frames decode on
+     * {@code threads} threads while files are written on as many more. Every tar entry records its
+     * mode. Symlinks are made but not indexed; there is nothing in them to verify.
+     */
+    private static Queue<InstallIndex.Entry> unpackTarZst(InputStream archive, File destDir, int threads,
+                                                          FileModes.Policy policy) throws IOException {
+        Queue<InstallIndex.Entry> entries = new ConcurrentLinkedQueue<>();
+        Metrics.Phase m = Metrics.current();
+        if (!destDir.isDirectory() && !destDir.mkdirs()) throw new IOException("mkdirs failed: " + destDir);
+        if (!FileModes.chmod(destDir, FileModes.DIR_MODE)) m.add("chmodFailures", 1);
+        ParallelUnzip.Stats stats;
+        try (InputStream in = Zstd.parallel(archive, threads)) {
+            stats = Untar.extract(in, destDir, threads, new Untar.Hook() {
+                @Override public void onFile(File out, Untar.Entry e, byte[] sha) {
+                    int mode = policy.fileMode(e.name, e.mode);
+                    if (!FileModes.chmod(out, mode)) m.add("chmodFailures", 1);
+                    entries.add(new InstallIndex.Entry(e.name, out.length(), out.lastModified(), mode, sha));
+                }
+
+                @Override public void onDir(File dir, String name) {
+                    if (!FileModes.chmod(dir, FileModes.DIR_MODE)) m.add("chmodFailures", 1);
+                }
+            });
+        }
+        m.add("dirs", stats.dirs);
+        m.add("archiveModes", stats.files);
+        return entries;
+    }
+
+    /** The format the first bytes of {@code archive} give away, or null if they don't. */
+    private static String sniff(File archive) throws IOException {
+        byte[] b = new byte[4];
+        int n;
+        try (InputStream in = new FileInputStream(archive)) {
+            n = in.read(b);
+        }
+        return sniff(b, n);
+    }
+
+    private static String sniff(byte[] b, int n) {
+        if (n < 4) return null;
+        int magic = (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+        if (magic == 0x04034b50 || magic == 0x06054b50) return ZIP; // local header, or an empty zip
+        if (Zstd.isMagic(magic)) return TAR_ZST;
+        return null;
+    }
+}
@@ -0,0 +1,461 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Extracts a tar stream (ustar, GNU and pax headers) in one forward pass, which is all a
+ * {@link Zstd} stream allows.
+ *
+ * Directories are made on the reading thread as entries name them. Files up to {@link #SMALL}
+ * are read into memory and written and hashed on a pool, with the bytes in flight bounded, so a
+ * tree of many small DLLs overlaps writes with decompression; larger files are written as they
+ * are read. Links come last, once every file is in place: hard links are copied from their
+ * extracted target, and symlinks are only created in directories this extraction made and where
+ * nothing else was extracted. No entry is ever written through a symlink, whatever it points
+ * at. Wine prefixes need links to absolute paths ({@code dosdevices/z: -> /}), so targets are
+ * not restricted.
+ */
+final class Untar {
+    /** Files up to this size are handed to the pool whole. */
+    static final int SMALL = 1 << 20;
+    private static final int IN_FLIGHT_KB = 16 * 1024;
+    private static final int META_MAX = 1 << 20;
+    private static final int BLOCK = 512;
+    private static final int BUF = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    interface Hook {
+        /**
+         * Called after each file (or copied hard link) is written and closed, on the thread that
+         * wrote it, with the SHA-256 of its bytes.
+         */
+        void onFile(File out, Entry e, byte[] sha256) throws IOException;
+
+        /** Called once per directory, parents first, on the calling thread before anything is written into it. */
+        default void onDir(File dir, String name) throws IOException {}
+    }
+
+    /** Creates a symbolic link at {@code path}; the app installs {@code Os::symlink}. */
+    interface Symlink { void create(String target, String path) throws Exception; }
+
+    private static volatile Symlink symlink =
+            (target, path) -> Files.createSymbolicLink(Paths.get(path), Paths.get(target));
+
+    static void setSymlink(Symlink s) { symlink = s; }
+
+    /** One archive member, after any long-name and pax headers have been applied. */
+    static final class Entry {
+        static final char FILE = '0', HARDLINK = '1', SYMLINK = '2', DIR = '5';
+
+        final String name;  // checked, without a trailing slash
+        final char type;
+        final int mode;     // permission bits as archived
+        final long size;
+        final String link;  // target of a link, else null
+
+        Entry(String name, char type, int mode, long size, String link) {
+            this.name = name;
+            this.type = type;
+            this.mode = mode;
+            this.size = size;
+            this.link = link;
+        }
+    }
+
+    private Untar() {}
+
+    /**
+     * Extracts {@code in} into {@code destDir}, writing on up to {@code threads} threads. Stops at
+     * the end-of-archive block (or a clean end of input) and leaves {@code in} open.
+     */
+    static ParallelUnzip.Stats extract(InputStream in, File destDir, int threads, Hook hook) throws IOException {
+        if (!destDir.isDirectory() && !destDir.mkdirs()) throw new IOException("mkdirs failed: " + destDir);
+        Extraction x = new Extraction(destDir, Math.max(1, threads), hook);
+        try {
+            x.read(in);
+            x.drain();
+            x.links();
+        } finally {
+            x.shutdown();
+        }
+        return new ParallelUnzip.Stats(x.files, x.dirs.size(), x.bytes.get());
+    }
+
+    private static final class Extraction {
+        private final File destDir;
+        private final Hook hook;
+        private final Metrics.Phase m = Metrics.current();
+        private final CancellationToken token = CancellationToken.current();
+        private final ExecutorService pool;
+        private final Semaphore inFlight = new Semaphore(IN_FLIGHT_KB);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final Set<String> dirs = new HashSet<>();
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> regular = new HashSet<>();
+        private final List<Entry> hardlinks = new ArrayList<>();
+        private final List<Entry> symlinks = new ArrayList<>();
+        private final AtomicLong bytes = new AtomicLong();
+        private final byte[] buf = new byte[BUF];
+        private int files;
+
+        Extraction(File destDir, int threads, Hook hook) {
+            this.destDir = destDir;
+            this.hook = hook;
+            this.pool = threads == 1 ? null : Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "rf-untar");
+                t.setDaemon(true);
+                return t;
+            });
+            m.set("threads", threads);
+        }
+
+        void read(InputStream in) throws IOException {
+            byte[] h = new byte[BLOCK];
+            String longName = null, longLink = null;
+            Map<String, String> pax = null;
+            while (true) {
+                token.throwIfCancelled();
+                rethrow();
+                int got = readUpTo(in, h, BLOCK);
+                if (got == 0) break;
+                if (got < BLOCK) throw new EOFException("tar truncated in a header");
+                if (isZero(h)) break;
+                checkSum(h);
+                char type = (char) h[156];
+                long size = number(h, 124, 12);
+                switch (type) {
+                    case 'L': longName = cString(meta(in, size), 0, (int) size); continue;
+                    case 'K': longLink = cString(meta(in, size), 0, (int) size); continue;
+                    case 'x': pax = pax(meta(in, size)); continue;
+                    case 'g': skip(in, padded(size)); continue;
+                    case 'S': throw new IOException("sparse tar entries are not supported: " + headerName(h));
+                    default: break;
+                }
+                String name = longName != null ? longName : headerName(h);
+                String link = longLink != null ? longLink : cString(h, 157, 100);
+                if (pax != null) {
+                    if (pax.containsKey("path")) name = pax.get("path");
+                    if (pax.containsKey("linkpath")) link = pax.get("linkpath");
+                    if (pax.containsKey("size")) size = parsePaxSize(pax.get("size"));
+                }
+                longName = longLink = null;
+                pax = null;
+                entry(in, h, type, name, link, size);
+            }
+        }
+
+        private void entry(InputStream in, byte[] h, char type, String name, String link, long size) throws IOException {
+            String rel = ParallelUnzip.checkName(name);
+            int mode = (int) number(h, 100, 8) & 07777;
+            switch (type) {
+                case Entry.DIR:
+                    mkdirs(rel);
+                    skip(in, padded(size));
+                    return;
+                case '\0':
+                case '7': // contiguous file
+                case Entry.FILE:
+                    claim(rel);
+                    regular.add(rel);
+                    file(in, new Entry(rel, Entry.FILE, mode, size, null));
+                    return;
+                case Entry.HARDLINK:
+                    claim(rel);
+                    hardlinks.add(new Entry(rel, Entry.HARDLINK, mode, 0, ParallelUnzip.checkName(link)));
+                    skip(in, padded(size));
+                    return;
+                case Entry.SYMLINK:
+                    claim(rel);
+                    if (link.isEmpty()) throw new IOException("tar symlink without a target: " + rel);
+                    symlinks.add(new Entry(rel, Entry.SYMLINK, mode, 0, link));
+                    skip(in, padded(size));
+                    return;
+                default:
+                    // devices, fifos, volume labels: nothing an app can or should create
+                    m.add("skipped", 1);
+                    skip(in, padded(size));
+            }
+        }
+
+        /** A non-directory name: unique in the archive, with its parents created. */
+        private void claim(String rel) throws IOException {
+            if (rel.isEmpty() || dirs.contains(rel) || !names.add(rel)) throw new IOException("duplicate tar entry: " + rel);
+            int s = rel.lastIndexOf('/');
+            if (s > 0) mkdirs(rel.substring(0, s));
+        }
+
+        private void mkdirs(String rel) throws IOException {
+            if (rel.isEmpty() || dirs.contains(rel)) return;
+            if (names.contains(rel)) throw new IOException("tar directory over a file: " + rel);
+            int s = rel.lastIndexOf('/');
+            if (s > 0) mkdirs(rel.substring(0, s));
+            File d = new File(destDir, rel);
+            if (!d.mkdir() && !d.isDirectory()) throw new IOException("mkdir failed: " + d);
+            dirs.add(rel);
+            if (hook != null) hook.onDir(d, rel);
+        }
+
+        private void file(InputStream in, Entry e) throws IOException {
+            files++;
+            if (pool == null || e.size > SMALL) {
+                long t0 = System.nanoTime();
+                File out = new File(destDir, e.name);
+                MessageDigest md = Hashes.sha256();
+                try (FileOutputStream os = new FileOutputStream(out)) {
+                    ParallelUnzip.preallocate(os, e.size);
+                    for (long left = e.size; left > 0; ) {
+                        token.throwIfCancelled();
+                        int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                        if (n < 0) throw new EOFException("tar truncated in " + e.name);
+                        os.write(buf, 0, n);
+                        md.update(buf, 0, n);
+                        left -= n;
+                    }
+                }
+                skip(in, padded(e.size) - e.size);
+                written(out, e, md.digest(), t0);
+                return;
+            }
+            int kb = (int) ((e.size + 1023) >>> 10);
+            try {
+                inFlight.acquire(kb);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("untar interrupted");
+            }
+            byte[] data;
+            try {
+                data = new byte[(int) e.size];
+                readFully(in, data, data.length);
+                skip(in, padded(e.size) - e.size);
+            } catch (IOException | RuntimeException ex) {
+                inFlight.release(kb);
+                throw ex;
+            }
+            pool.execute(() -> {
+                try {
+                    if (failure.get() != null) return;
+                    long t0 = System.nanoTime();
+                    File out = new File(destDir, e.name);
+                    try (OutputStream os = new FileOutputStream(out)) {
+                        os.write(data);
+                    }
+                    MessageDigest md = Hashes.sha256();
+                    md.update(data);
+                    written(out, e, md.digest(), t0);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    inFlight.release(kb);
+                }
+            });
+        }
+
+        private void written(File out, Entry e, byte[] sha, long t0) throws IOException {
+            if (hook != null) hook.onFile(out, e, sha);
+            long us = (System.nanoTime() - t0) / 1000;
+            bytes.addAndGet(e.size);
+            m.add("entries", 1);
+            m.add("bytes", e.size);
+            m.add("entryUs", us);
+            m.max("entryUsMax", us);
+        }
+
+        /** Waits for the pool's writes; rethrows the first that failed. */
+        void drain() throws IOException {
+            if (pool != null) {
+                pool.shutdown();
+                try {
+                    while (!pool.awaitTermination(1, TimeUnit.SECONDS)) token.throwIfCancelled();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("untar interrupted");
+                }
+            }
+            rethrow();
+        }
+
+        /** Hard links as copies of their targets, then symlinks. */
+        void links() throws IOException {
+            for (Entry e : hardlinks) {
+                token.throwIfCancelled();
+                if (!regular.contains(e.link)) {
+                    throw new IOException("tar hard link to a file not in the archive: " + e.name + " -> " + e.link);
+                }
+                long t0 = System.nanoTime();
+                File out = new File(destDir, e.name);
+                MessageDigest md = Hashes.sha256();
+                long size = 0;
+                try (InputStream in = new FileInputStream(new File(destDir, e.link));
+                     OutputStream os = new FileOutputStream(out)) {
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        os.write(buf, 0, n);
+                        md.update(buf, 0, n);
+                        size += n;
+                    }
+                }
+                files++;
+                written(out, new Entry(e.name, Entry.HARDLINK, e.mode, size, e.link), md.digest(), t0);
+            }
+            m.add("hardlinks", hardlinks.size());
+            for (Entry e : symlinks) {
+                File out = new File(destDir, e.name);
+                try {
+                    symlink.create(e.link, out.getAbsolutePath());
+                } catch (Exception ex) {
+                    throw new IOException("symlink failed: " + e.name + " -> " + e.link, ex);
+                }
+            }
+            m.add("symlinks", symlinks.size());
+        }
+
+        void shutdown() {
+            if (pool != null) pool.shutdownNow();
+        }
+
+        private void rethrow() throws IOException {
+            Throwable t = failure.get();
+            if (t == null) return;
+            if (t instanceof IOException) throw (IOException) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new IOException(t);
+        }
+
+        /** Body of a long-name or pax header. */
+        private byte[] meta(InputStream in, long size) throws IOException {
+            if (size > META_MAX) throw new IOException("tar extended header of " + size + " bytes");
+            byte[] b = new byte[(int) size];
+            readFully(in, b, b.length);
+            skip(in, padded(size) - size);
+            return b;
+        }
+    }
+
+    // ---- headers -----------------------------------------------------------------------------
+
+    private static String headerName(byte[] h) {
+        String name = cString(h, 0, 100);
+        // POSIX ustar splits long names; the old GNU format uses the same bytes for other things
+        boolean ustar = h[257] == 'u' && h[258] == 's' && h[259] == 't' && h[260] == 'a' && h[261] == 'r' && h[262] == 0;
+        if (ustar && h[345] != 0) name = cString(h, 345, 155) + "/" + name;
+        return name;
+    }
+
+    /** {@code "<length> <key>=<value>\n"} records. */
+    private static Map<String, String> pax(byte[] b) throws IOException {
+        Map<String, String> out = new HashMap<>();
+        int p = 0;
+        while (p < b.length) {
+            int sp = p;
+            while (sp < b.length && b[sp] != ' ') sp++;
+            int len;
+            try {
+                len = Integer.parseInt(new String(b, p, sp - p, UTF8));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad pax record length");
+            }
+            int end = p + len;
+            if (len <= 0 || end > b.length || b[end - 1] != '\n') throw new IOException("bad pax record");
+            String rec = new String(b, sp + 1, end - 1 - (sp + 1), UTF8);
+            int eq = rec.indexOf('=');
+            if (eq < 0) throw new IOException("bad pax record: " + rec);
+            out.put(rec.substring(0, eq), rec.substring(eq + 1));
+            p = end;
+        }
+        return out;
+    }
+
+    private static long parsePaxSize(String s) throws IOException {
+        try {
+            long v = Long.parseLong(s);
+            if (v < 0) throw new NumberFormatException();
+            return v;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad pax size: " + s);
+        }
+    }
+
+    /** Accepts both the unsigned sum POSIX specifies and the signed one some old tars wrote. */
+    private static void checkSum(byte[] h) throws IOException {
+        long stored = number(h, 148, 8);
+        long unsigned = 0, signed = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            int b = i >= 148 && i < 156 ? ' ' : h[i];
+            unsigned += b & 0xff;
+            signed += b;
+        }
+        if (stored != unsigned && stored != signed) throw new IOException("bad tar header checksum");
+    }
+
+    /** An octal field, or base-256 when the high bit of its first byte is set (GNU, for large values). */
+    private static long number(byte[] h, int off, int len) throws IOException {
+        if ((h[off] & 0x80) != 0) {
+            if ((h[off] & 0x40) != 0) throw new IOException("negative tar number");
+            long v = h[off] & 0x3f;
+            for (int i = 1; i < len; i++) {
+                if (v > Long.MAX_VALUE >>> 8) throw new IOException("tar number out of range");
+                v = v << 8 | (h[off + i] & 0xff);
+            }
+            return v;
+        }
+        int i = off, end = off + len;
+        while (i < end && (h[i] == ' ' || h[i] == 0)) i++;
+        long v = 0;
+        for (; i < end && h[i] != ' ' && h[i] != 0; i++) {
+            if (h[i] < '0' || h[i] > '7') throw new IOException("bad octal in tar header");
+            v = v << 3 | (h[i] - '0');
+        }
+        return v;
+    }
+
+    private static String cString(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) end++;
+        return new String(b, off, end - off, UTF8);
+    }
+
+    private static boolean isZero(byte[] h) {
+        for (byte b : h) if (b != 0) return false;
+        return true;
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK - 1) & ~(long) (BLOCK - 1);
+    }
+
+    // ---- stream helpers ----------------------------------------------------------------------
+
+    private static int readUpTo(InputStream in, byte[] b, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int r = in.read(b, n, len - n);
+            if (r < 0) break;
+            n += r;
+        }
+        return n;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        if (readUpTo(in, b, len) != len) throw new EOFException("tar truncated");
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) {
+                if (in.read() < 0) throw new EOFException("tar truncated");
+                s = 1;
+            }
+            n -= s;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.robotforest.launcher;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Unix modes, and where STORED entries sit, from a zip's central directory.
+ *
+ * {@link java.util.zip.ZipEntry} exposes neither the "external attributes" field, where Info-ZIP
+ * on Unix (what {@code make_runtime.sh} runs) stores {@code st_mode} in the high 16 bits, nor
+ * an entry's offset in the file. This reads just the central directory (ZIP64 included) in one
+ * pass; the entries themselves are not touched.
+ */
+final class ZipModes {
+    static final int S_IFMT = 0170000;
+    static final int S_IFREG = 0100000;
+    static final int S_IFDIR = 0040000;
+    static final int S_IFLNK = 0120000;
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int HOST_UNIX = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Entry names as {@link java.util.zip.ZipEntry#getName()} spells them. */
+    static final class Directory {
+        /**
+         * {@code st_mode} (type and permission bits) for entries written on a Unix host with a
+         * mode set. Entries from other hosts are absent.
+         */
+        final Map<String, Integer> modes;
+        /**
+         * Offset of the local header of every STORED, unencrypted entry; its bytes follow that
+         * header verbatim.
+         */
+        final Map<String, Long> storedHeaders;
+
+        Directory(Map<String, Integer> modes, Map<String, Long> storedHeaders) {
+            this.modes = modes;
+            this.storedHeaders = storedHeaders;
+        }
+    }
+
+    private ZipModes() {}
+
+    static Directory read(File zip) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(zip, "r"); FileChannel ch = raf.getChannel()) {
+            long size = ch.size();
+            int tailLen = (int) Math.min(size, 0xffff + 22);
+            ByteBuffer tail = read(ch, size - tailLen, tailLen);
+            int eocd = -1;
+            for (int i = tailLen - 22; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIG) { eocd = i; break; }
+            }
+            if (eocd < 0) throw new ZipException("no end of central directory: " + zip);
+            long cenCount = tail.getShort(eocd + 10) & 0xffff;
+            long cenSize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long cenOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+            if ((cenCount == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL)
+                    && eocd >= 20 && tail.getInt(eocd - 20) == ZIP64_LOCATOR_SIG) {
+                ByteBuffer z = read(ch, tail.getLong(eocd - 20 + 8), 56);
+                if (z.getInt(0) != ZIP64_EOCD_SIG) throw new ZipException("bad zip64 end record: " + zip);
+                cenCount = z.getLong(32);
+                cenSize = z.getLong(40);
+                cenOffset = z.getLong(48);
+            }
+            if (cenSize > Integer.MAX_VALUE || cenOffset + cenSize > size) {
+                throw new ZipException("bad central directory bounds: " + zip);
+            }
+
+            ByteBuffer cen = read(ch, cenOffset, (int) cenSize);
+            Map<String, Integer> modes = new HashMap<>((int) Math.min(cenCount, 1 << 16) * 2);
+            Map<String, Long> stored = new HashMap<>();
+            int p = 0;
+            for (long i = 0; i < cenCount; i++) {
+                if (p + 46 > cen.limit() || cen.getInt(p) != CEN_SIG) throw new ZipException("bad central directory entry " + i);
+                int host = (cen.getShort(p + 4) >> 8) & 0xff;
+                int flags = cen.getShort(p + 8) & 0xffff;
+                int method = cen.getShort(p + 10) & 0xffff;
+                int nameLen = cen.getShort(p + 28) & 0xffff;
+                int extraLen = cen.getShort(p + 30) & 0xffff;
+                int commentLen = cen.getShort(p + 32) & 0xffff;
+                int mode = (cen.getInt(p + 38) >>> 16) & 0xffff;
+                boolean isStored = method == 0 && (flags & 1) == 0;
+                if (p + 46 + nameLen + extraLen > cen.limit()) throw new ZipException("bad central directory entry " + i);
+                if ((host == HOST_UNIX && mode != 0) || isStored) {
+                    byte[] name = new byte[nameLen];
+                    cen.position(p + 46);
+                    cen.get(name);
+                    String n = new String(name, UTF8);
+                    if (host == HOST_UNIX && mode != 0) modes.put(n, mode);
+                    if (isStored) stored.put(n, headerOffset(cen, p, nameLen, extraLen));
+                }
+                p += 46 + nameLen + extraLen + commentLen;
+            }
+            return new Directory(modes, stored);
+        }
+    }
+
+    /** The local header offset of the entry at {@code p}, from its ZIP64 extra field when it overflows. */
+    private static long headerOffset(ByteBuffer cen, int p, int nameLen, int extraLen) throws ZipException {
+        long offset = cen.getInt(p + 42) & 0xffffffffL;
+        if (offset != 0xffffffffL) return offset;
+        // ZIP64 fields are present only for the values that overflowed, in this order
+        int skip = ((cen.getInt(p + 24) == -1) ? 8 : 0) + ((cen.getInt(p + 20) == -1) ? 8 : 0);
+        for (int x = p + 46 + nameLen, end = x + extraLen; x + 4 <= end; ) {
+            int id = cen.getShort(x) & 0xffff;
+            int size = cen.getShort(x + 2) & 0xffff;
+            if (id == ZIP64_EXTRA && skip + 8 <= size && x + 4 + skip + 8 <= end) return cen.getLong(x + 4 + skip);
+            x += 4 + size;
+        }
+        throw new ZipException("zip64 entry without its header offset");
+    }
+
+    private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) throw new EOFException("zip truncated at " + (pos + b.position()));
+        }
+        b.flip();
+        return b;
+    }
+}
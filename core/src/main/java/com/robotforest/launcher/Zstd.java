@@ -0,0 +1,1099 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Zstandard decompression (RFC 8878), ported from the reference decoder. There are no
+ * dictionaries, and content checksums are skipped because the archive digest already covers them.
+ *
+ * {@link #input} decodes frames one block at a time through a sliding window, so an archive
+ * written as one long frame streams in bounded memory. The packer can also cut the tar into
+ * independent frames that each record their content size. {@link #parallel} reads those ahead,
+ * decodes each one whole on a pool and hands them back in order, so the reader still sees one
+ * stream. A frame that can't be decoded whole is streamed in place.
+ */
+final class Zstd {
+    static final int MAGIC = 0xFD2FB528;
+    private static final int SKIPPABLE = 0x184D2A50; // low nibble is free
+    private static final int BLOCK_MAX = 128 * 1024;
+    /** Largest window accepted; {@code zstd -19} uses 8 MiB. */
+    static final long MAX_WINDOW = 128L << 20;
+    /** Frames whose header records a content size up to this are decoded whole on the pool. */
+    static final int PARALLEL_MAX_FRAME = 32 << 20;
+
+    private static final int[] DICT_ID_BYTES = {0, 1, 2, 4};
+
+    private Zstd() {}
+
+    /** Whether a stream starting with these four (little-endian) bytes is zstd: a frame or a skippable frame. */
+    static boolean isMagic(int first4) {
+        return first4 == MAGIC || (first4 & 0xFFFFFFF0) == SKIPPABLE;
+    }
+
+    /** Sequential decoding of a stream of frames. */
+    static InputStream input(InputStream in) {
+        return new Input(in, false, CancellationToken.current());
+    }
+
+    /**
+     * Decodes frames that record their content size on up to {@code threads} threads, at most
+     * {@code threads + 1} frames ahead of the reader. Other frames are streamed. Closing the
+     * result closes {@code in}.
+     */
+    static InputStream parallel(InputStream in, int threads) {
+        if (threads <= 1) return input(in);
+        return new ParallelInput(in, threads);
+    }
+
+    /** The fields of a frame header that decoding needs. */
+    static final class Header {
+        final long windowSize;
+        final long contentSize;   // -1 when not recorded
+        final boolean checksum;
+
+        Header(long windowSize, long contentSize, boolean checksum) {
+            this.windowSize = windowSize;
+            this.contentSize = contentSize;
+            this.checksum = checksum;
+        }
+    }
+
+    /** Header bytes after the magic number, given the first of them (the frame header descriptor). */
+    private static int headerLength(int fhd) {
+        boolean single = (fhd & 0x20) != 0;
+        int fcs = fhd >>> 6;
+        return 1 + (single ? 0 : 1) + DICT_ID_BYTES[fhd & 3] + (fcs == 0 ? (single ? 1 : 0) : 1 << fcs);
+    }
+
+    /** @param p offset of the frame header descriptor, just past the magic number */
+    private static Header parseHeader(byte[] b, int p) throws IOException {
+        int fhd = b[p] & 0xff;
+        if ((fhd & 0x08) != 0) throw corrupt("reserved bit set in frame header");
+        boolean single = (fhd & 0x20) != 0;
+        int q = p + 1;
+        long window = 0;
+        if (!single) {
+            int wd = b[q++] & 0xff;
+            long base = 1L << (10 + (wd >>> 3));
+            window = base + (base >>> 3) * (wd & 7);
+        }
+        int dictBytes = DICT_ID_BYTES[fhd & 3];
+        long dict = le(b, q, dictBytes);
+        q += dictBytes;
+        if (dict != 0) throw new IOException("zstd frame needs dictionary " + dict);
+        int fcsFlag = fhd >>> 6;
+        int fcsBytes = fcsFlag == 0 ? (single ? 1 : 0) : 1 << fcsFlag;
+        long content = fcsBytes == 0 ? -1 : le(b, q, fcsBytes) + (fcsBytes == 2 ? 256 : 0);
+        if (fcsBytes == 8 && content < 0) throw new IOException("zstd frame content size out of range");
+        if (single) window = content;
+        if (window > MAX_WINDOW) {
+            throw new IOException("zstd window of " + window + " bytes is over the " + MAX_WINDOW + " byte limit");
+        }
+        return new Header(window, content, (fhd & 4) != 0);
+    }
+
+    /**
+     * Decodes one whole frame ({@code src[0, len)}, magic number included) whose header records
+     * its content size.
+     */
+    static byte[] decodeFrame(byte[] src, int len, CancellationToken token) throws IOException {
+        if (len < 5 || le32(src, 0) != MAGIC) throw corrupt("not a zstd frame");
+        int hl = headerLength(src[4] & 0xff);
+        if (4 + hl > len) throw corrupt("truncated frame header");
+        Header h = parseHeader(src, 4);
+        if (h.contentSize < 0 || h.contentSize > PARALLEL_MAX_FRAME) throw new IOException("zstd frame size not usable in memory");
+        byte[] out = new byte[(int) h.contentSize];
+        int blockMax = (int) Math.min(h.windowSize, BLOCK_MAX);
+        Context ctx = new Context();
+        int p = 4 + hl, op = 0;
+        for (boolean last = false; !last; ) {
+            token.throwIfCancelled();
+            if (p + 3 > len) throw corrupt("truncated block header");
+            int bh = le24(src, p);
+            p += 3;
+            last = (bh & 1) != 0;
+            int size = bh >>> 3;
+            switch ((bh >>> 1) & 3) {
+                case 0:
+                    if (size > blockMax || p + size > len || op + size > out.length) throw corrupt("bad raw block");
+                    System.arraycopy(src, p, out, op, size);
+                    p += size;
+                    op += size;
+                    break;
+                case 1:
+                    if (size > blockMax || p >= len || op + size > out.length) throw corrupt("bad RLE block");
+                    Arrays.fill(out, op, op + size, src[p++]);
+                    op += size;
+                    break;
+                case 2:
+                    if (size > blockMax || p + size > len) throw corrupt("bad compressed block");
+                    op = ctx.block(src, p, p + size, out, op, 0, Math.min(out.length, op + BLOCK_MAX));
+                    p += size;
+                    break;
+                default:
+                    throw corrupt("reserved block type");
+            }
+        }
+        if (op != out.length) throw corrupt("frame decoded to " + op + " bytes, header says " + out.length);
+        return out;
+    }
+
+    // ---- sequential stream -------------------------------------------------------------------
+
+    private static final class Input extends InputStream {
+        private final InputStream in;
+        private final boolean oneFrame;
+        private final CancellationToken token;
+        private final Context ctx = new Context();
+        private final byte[] head = new byte[4 + 14];
+        private final byte[] block = new byte[BLOCK_MAX];
+        private byte[] window = new byte[0];
+        private int pos, end;           // decoded and not yet read: window[pos, end)
+        private Header frame;           // null between frames
+        private int blockMax;
+        private boolean last;           // the frame's last block has been decoded
+        private boolean done;
+
+        /** @param oneFrame stop after one frame, leaving {@code in} just past it */
+        Input(InputStream in, boolean oneFrame, CancellationToken token) {
+            this.in = in;
+            this.oneFrame = oneFrame;
+            this.token = token;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == end) {
+                if (!decodeMore()) return -1;
+            }
+            int n = Math.min(len, end - pos);
+            System.arraycopy(window, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override public int available() {
+            return end - pos;
+        }
+
+        @Override public void close() throws IOException {
+            if (!oneFrame) in.close();
+        }
+
+        /** Decodes the next block (or steps over a frame boundary); false at the end of input. */
+        private boolean decodeMore() throws IOException {
+            token.throwIfCancelled();
+            if (frame == null) return !done && startFrame();
+            if (last) {
+                if (frame.checksum) readFully(in, head, 0, 4);
+                frame = null;
+                done = oneFrame;
+                return !done;
+            }
+            readFully(in, head, 0, 3);
+            int bh = le24(head, 0);
+            last = (bh & 1) != 0;
+            int size = bh >>> 3;
+            int type = (bh >>> 1) & 3;
+            if (type == 3) throw corrupt("reserved block type");
+            if (size > blockMax) throw corrupt("block of " + size + " bytes over the " + blockMax + " byte maximum");
+            // Only the window is kept once everything decoded so far has been read
+            if (end + BLOCK_MAX > window.length && end > frame.windowSize) {
+                int keep = (int) frame.windowSize;
+                System.arraycopy(window, end - keep, window, 0, keep);
+                pos = end = keep;
+            }
+            int cap = (int) Math.min(window.length, (long) end + BLOCK_MAX);
+            if (type == 0) {
+                if (end + size > cap) throw corrupt("raw block past the frame");
+                readFully(in, window, end, size);
+                end += size;
+            } else if (type == 1) {
+                if (end + size > cap) throw corrupt("RLE block past the frame");
+                readFully(in, head, 0, 1);
+                Arrays.fill(window, end, end + size, head[0]);
+                end += size;
+            } else {
+                readFully(in, block, 0, size);
+                end = ctx.block(block, 0, size, window, end, 0, cap);
+            }
+            return true;
+        }
+
+        /** Reads a frame header, skipping skippable frames; false at a clean end of input. */
+        private boolean startFrame() throws IOException {
+            while (true) {
+                int first = in.read();
+                if (first < 0) return false;
+                head[0] = (byte) first;
+                readFully(in, head, 1, 4);
+                int magic = le32(head, 0);
+                if ((magic & 0xFFFFFFF0) == SKIPPABLE) {
+                    readFully(in, head, 5, 3);
+                    skipFully(in, le32(head, 4) & 0xffffffffL);
+                    continue;
+                }
+                if (magic != MAGIC) throw corrupt("not a zstd frame");
+                int hl = headerLength(head[4] & 0xff);
+                readFully(in, head, 5, hl - 1);
+                frame = parseHeader(head, 4);
+                blockMax = (int) Math.min(frame.windowSize, BLOCK_MAX);
+                long need = frame.contentSize >= 0 && frame.contentSize <= frame.windowSize
+                        ? frame.contentSize
+                        : frame.windowSize + Math.max(frame.windowSize >>> 1, BLOCK_MAX);
+                if (window.length < need) window = new byte[(int) need];
+                pos = end = 0;
+                last = false;
+                ctx.reset();
+                Metrics.current().add("frames", 1);
+                return true;
+            }
+        }
+    }
+
+    // ---- parallel stream ---------------------------------------------------------------------
+
+    private static final class ParallelInput extends InputStream {
+        private static final byte[] EMPTY = new byte[0];
+
+        private final BufferedInputStream in;
+        private final int threads;
+        private final CancellationToken token = CancellationToken.current();
+        private final Metrics.Phase m = Metrics.current();
+        private final ArrayDeque<Future<byte[]>> ahead = new ArrayDeque<>();
+        private final byte[] head = new byte[4 + 14];
+        private ExecutorService pool;   // started by the first frame that can use it
+        private Input stream;           // a frame being streamed in place
+        private boolean streamNext;     // the frame after those ahead has to be streamed
+        private boolean eof;
+        private byte[] cur = EMPTY;
+        private int pos;
+
+        ParallelInput(InputStream in, int threads) {
+            this.in = new BufferedInputStream(in, 64 * 1024);
+            this.threads = threads;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == cur.length) {
+                if (stream != null) {
+                    int n = stream.read(b, off, len);
+                    if (n >= 0) return n;
+                    stream = null;
+                }
+                readAhead();
+                Future<byte[]> f = ahead.poll();
+                if (f != null) {
+                    cur = get(f);
+                    pos = 0;
+                } else if (streamNext) {
+                    streamNext = false;
+                    m.add("streamedFrames", 1);
+                    stream = new Input(in, true, token);
+                } else {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, cur.length - pos);
+            System.arraycopy(cur, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override public void close() throws IOException {
+            for (Future<byte[]> f : ahead) f.cancel(true);
+            ahead.clear();
+            if (pool != null) pool.shutdownNow();
+            in.close();
+        }
+
+        /** Queues frames for the pool until enough are in flight, one has to be streamed, or input ends. */
+        private void readAhead() throws IOException {
+            while (!eof && !streamNext && ahead.size() <= threads) {
+                token.throwIfCancelled();
+                in.mark(head.length);
+                int got = readUpTo(in, head, 0, 5);
+                if (got == 0) {
+                    eof = true;
+                    return;
+                }
+                if (got < 5) throw corrupt("truncated frame");
+                int magic = le32(head, 0);
+                if ((magic & 0xFFFFFFF0) == SKIPPABLE) {
+                    readFully(in, head, 5, 3);
+                    skipFully(in, le32(head, 4) & 0xffffffffL);
+                    continue;
+                }
+                if (magic != MAGIC) throw corrupt("not a zstd frame");
+                int hl = headerLength(head[4] & 0xff);
+                readFully(in, head, 5, hl - 1);
+                Header h = parseHeader(head, 4);
+                if (h.contentSize < 0 || h.contentSize > PARALLEL_MAX_FRAME) {
+                    in.reset();
+                    streamNext = true;
+                    return;
+                }
+                byte[] frame = readFrame(h, 4 + hl);
+                int len = frameLen;
+                if (pool == null) {
+                    pool = Executors.newFixedThreadPool(threads, r -> {
+                        Thread t = new Thread(r, "rf-zstd");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    m.set("decodeThreads", threads);
+                }
+                m.add("frames", 1);
+                ahead.add(pool.submit(() -> decodeFrame(frame, len, token)));
+            }
+        }
+
+        private int frameLen;
+
+        /** The rest of a frame whose header is in {@code head[0, headLen)}, walked block by block. */
+        private byte[] readFrame(Header h, int headLen) throws IOException {
+            byte[] buf = new byte[(int) Math.min(h.contentSize / 2 + 4096, PARALLEL_MAX_FRAME)];
+            System.arraycopy(head, 0, buf, 0, headLen);
+            int n = headLen;
+            for (boolean last = false; !last; ) {
+                if (n + 3 > buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                readFully(in, buf, n, 3);
+                int bh = le24(buf, n);
+                n += 3;
+                last = (bh & 1) != 0;
+                int type = (bh >>> 1) & 3;
+                int size = type == 1 ? 1 : bh >>> 3;
+                if (size > BLOCK_MAX) throw corrupt("block of " + size + " bytes");
+                if (n + size + 4 > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, n + size + 4));
+                readFully(in, buf, n, size);
+                n += size;
+            }
+            if (h.checksum) {
+                readFully(in, buf, n, 4);
+                n += 4;
+            }
+            frameLen = n;
+            return buf;
+        }
+
+        private static byte[] get(Future<byte[]> f) throws IOException {
+            try {
+                return f.get();
+            } catch (ExecutionException e) {
+                Throwable c = e.getCause();
+                throw c instanceof IOException ? (IOException) c : new IOException(c);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("zstd interrupted");
+            }
+        }
+    }
+
+    // ---- block decoding ----------------------------------------------------------------------
+
+    private static final int LL_MAX = 35, ML_MAX = 52, OF_MAX = 31;
+
+    private static final int[] LL_BASE = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+            16, 18, 20, 22, 24, 28, 32, 40, 48, 64, 128, 256, 512, 1024, 2048, 4096,
+            8192, 16384, 32768, 65536,
+    };
+    private static final int[] LL_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 6, 7, 8, 9, 10, 11, 12,
+            13, 14, 15, 16,
+    };
+    private static final int[] ML_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+            19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34,
+            35, 37, 39, 41, 43, 47, 51, 59, 67, 83, 99, 131, 259, 515, 1027, 2051,
+            4099, 8195, 16387, 32771, 65539,
+    };
+    private static final int[] ML_BITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 7, 8, 9, 10, 11,
+            12, 13, 14, 15, 16,
+    };
+
+    private static final short[] LL_DEFAULT = {
+            4, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1,
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 2, 1, 1, 1, 1, 1,
+            -1, -1, -1, -1,
+    };
+    private static final short[] ML_DEFAULT = {
+            1, 4, 3, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, -1, -1,
+            -1, -1, -1, -1, -1,
+    };
+    private static final short[] OF_DEFAULT = {
+            1, 1, 1, 1, 1, 1, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, -1, -1, -1, -1, -1,
+    };
+
+    private static final int[] LL_PREDEFINED = new int[1 << 6];
+    private static final int[] ML_PREDEFINED = new int[1 << 6];
+    private static final int[] OF_PREDEFINED = new int[1 << 5];
+
+    static {
+        buildFse(LL_DEFAULT, LL_DEFAULT.length - 1, 6, LL_PREDEFINED);
+        buildFse(ML_DEFAULT, ML_DEFAULT.length - 1, 6, ML_PREDEFINED);
+        buildFse(OF_DEFAULT, OF_DEFAULT.length - 1, 5, OF_PREDEFINED);
+    }
+
+    /** Decoding table for one of literal lengths, match lengths or offsets, with the repeat mode's memory. */
+    private static final class SeqTable {
+        final int maxSymbol, maxLog;
+        final int[] predefined;
+        final int predefinedLog;
+        final int[] own;
+        final int[] rle = new int[1];
+        int[] cur;  // null until a block defines it
+        int log;
+
+        SeqTable(int maxSymbol, int maxLog, int[] predefined, int predefinedLog) {
+            this.maxSymbol = maxSymbol;
+            this.maxLog = maxLog;
+            this.predefined = predefined;
+            this.predefinedLog = predefinedLog;
+            this.own = new int[1 << maxLog];
+        }
+    }
+
+    /**
+     * Per-frame decoding state: the Huffman table, the three sequence tables and the repeat
+     * offsets, all of which later blocks may reuse.
+     */
+    private static final class Context {
+        private static final int HUF_MAX_LOG = 11;
+
+        private final SeqTable ll = new SeqTable(LL_MAX, 9, LL_PREDEFINED, 6);
+        private final SeqTable of = new SeqTable(OF_MAX, 8, OF_PREDEFINED, 5);
+        private final SeqTable ml = new SeqTable(ML_MAX, 9, ML_PREDEFINED, 6);
+        private int rep0, rep1, rep2;
+
+        private final byte[] hufSymbol = new byte[1 << HUF_MAX_LOG];
+        private final byte[] hufBits = new byte[1 << HUF_MAX_LOG];
+        private int hufLog; // 0 until a block carries a table
+
+        // literals of the current block: lit[litPos, litEnd), either litBuf or the raw bytes in the block
+        private final byte[] litBuf = new byte[BLOCK_MAX];
+        private byte[] lit;
+        private int litPos, litEnd;
+
+        private final Bits bits = new Bits();
+        private final short[] norm = new short[256];
+        private final byte[] weights = new byte[256];
+        private final int[] weightTable = new int[1 << 6];
+        private final int[] rank = new int[HUF_MAX_LOG + 2];
+        private int normLog, normMaxSymbol;
+
+        Context() { reset(); }
+
+        void reset() {
+            rep0 = 1;
+            rep1 = 4;
+            rep2 = 8;
+            hufLog = 0;
+            ll.cur = of.cur = ml.cur = null;
+        }
+
+        /**
+         * Decodes the compressed block {@code src[p, end)} to {@code out[op, ...)}; returns the new
+         * end of output. Matches may reach back to {@code frameStart}; output stops at {@code limit}.
+         */
+        int block(byte[] src, int p, int end, byte[] out, int op, int frameStart, int limit) throws IOException {
+            try {
+                p = literals(src, p, end);
+                return sequences(src, p, end, out, op, frameStart, limit);
+            } catch (IndexOutOfBoundsException e) {
+                throw corrupt("truncated block");
+            }
+        }
+
+        private int literals(byte[] src, int p, int end) throws IOException {
+            int b0 = src[p] & 0xff;
+            int type = b0 & 3;
+            int format = (b0 >>> 2) & 3;
+            if (type < 2) {
+                int n;
+                if ((format & 1) == 0) {
+                    n = b0 >>> 3;
+                    p += 1;
+                } else if (format == 1) {
+                    n = (b0 >>> 4) + ((src[p + 1] & 0xff) << 4);
+                    p += 2;
+                } else {
+                    n = (b0 >>> 4) + ((src[p + 1] & 0xff) << 4) + ((src[p + 2] & 0xff) << 12);
+                    p += 3;
+                }
+                if (n > BLOCK_MAX) throw corrupt("literals over the block maximum");
+                if (type == 0) {
+                    if (p + n > end) throw corrupt("raw literals past the block");
+                    lit = src;
+                    litPos = p;
+                    litEnd = p + n;
+                    return p + n;
+                }
+                if (p >= end) throw corrupt("RLE literals past the block");
+                Arrays.fill(litBuf, 0, n, src[p]);
+                lit = litBuf;
+                litPos = 0;
+                litEnd = n;
+                return p + 1;
+            }
+
+            int n, size;
+            if (format < 2) {
+                int v = le24(src, p);
+                n = (v >>> 4) & 0x3ff;
+                size = (v >>> 14) & 0x3ff;
+                p += 3;
+            } else if (format == 2) {
+                int v = le32(src, p);
+                n = (v >>> 4) & 0x3fff;
+                size = (v >>> 18) & 0x3fff;
+                p += 4;
+            } else {
+                long v = (le32(src, p) & 0xffffffffL) | (long) (src[p + 4] & 0xff) << 32;
+                n = (int) (v >>> 4) & 0x3ffff;
+                size = (int) (v >>> 22) & 0x3ffff;
+                p += 5;
+            }
+            int streamsEnd = p + size;
+            if (n > BLOCK_MAX || streamsEnd > end) throw corrupt("bad compressed literals header");
+            int q = p;
+            if (type == 2) {
+                q += huffmanTable(src, p, streamsEnd);
+            } else if (hufLog == 0) {
+                throw corrupt("treeless literals without a previous table");
+            }
+            if (format == 0) {
+                huffmanStream(src, q, streamsEnd, 0, n);
+            } else {
+                if (q + 6 > streamsEnd) throw corrupt("missing jump table");
+                int s1 = le16(src, q), s2 = le16(src, q + 2), s3 = le16(src, q + 4);
+                int a = q + 6, b = a + s1, c = b + s2, d = c + s3;
+                int seg = (n + 3) / 4;
+                if (d > streamsEnd || n - 3 * seg < 0) throw corrupt("bad jump table");
+                huffmanStream(src, a, b, 0, seg);
+                huffmanStream(src, b, c, seg, seg);
+                huffmanStream(src, c, d, 2 * seg, seg);
+                huffmanStream(src, d, streamsEnd, 3 * seg, n - 3 * seg);
+            }
+            lit = litBuf;
+            litPos = 0;
+            litEnd = n;
+            return streamsEnd;
+        }
+
+        /** Reads a Huffman tree description and builds its table; returns the bytes it took. */
+        private int huffmanTable(byte[] src, int p, int end) throws IOException {
+            int hb = src[p] & 0xff;
+            int count, size;
+            if (hb < 128) {
+                size = 1 + hb;
+                if (p + size > end) throw corrupt("Huffman weights past the literals");
+                count = fseWeights(src, p + 1, p + size);
+            } else {
+                count = hb - 127;
+                size = 1 + (count + 1) / 2;
+                if (p + size > end) throw corrupt("Huffman weights past the literals");
+                for (int i = 0; i < count; i++) {
+                    int v = src[p + 1 + i / 2] & 0xff;
+                    weights[i] = (byte) ((i & 1) == 0 ? v >>> 4 : v & 15);
+                }
+            }
+
+            // The last weight is implied: it completes the total to a power of two
+            Arrays.fill(rank, 0);
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                int w = weights[i];
+                if (w > HUF_MAX_LOG) throw corrupt("Huffman weight " + w);
+                rank[w]++;
+                if (w > 0) total += 1 << (w - 1);
+            }
+            if (total == 0) throw corrupt("empty Huffman table");
+            int log = highBit(total) + 1;
+            if (log > HUF_MAX_LOG) throw corrupt("Huffman table too deep");
+            int rest = (1 << log) - total;
+            if ((rest & (rest - 1)) != 0) throw corrupt("Huffman weights don't sum to a power of two");
+            int lastWeight = highBit(rest) + 1;
+            weights[count] = (byte) lastWeight;
+            rank[lastWeight]++;
+
+            // Symbols of each weight fill a contiguous run, lowest weight (longest code) first
+            int next = 0;
+            for (int w = 1; w <= log; w++) {
+                int start = next;
+                next += rank[w] << (w - 1);
+                rank[w] = start;
+            }
+            for (int s = 0; s <= count; s++) {
+                int w = weights[s];
+                if (w == 0) continue;
+                int len = 1 << (w - 1);
+                int from = rank[w];
+                Arrays.fill(hufSymbol, from, from + len, (byte) s);
+                Arrays.fill(hufBits, from, from + len, (byte) (log + 1 - w));
+                rank[w] = from + len;
+            }
+            hufLog = log;
+            return size;
+        }
+
+        /** FSE-compressed Huffman weights in {@code src[p, end)}; returns how many were decoded. */
+        private int fseWeights(byte[] src, int p, int end) throws IOException {
+            int q = p + readNormalized(src, p, end, 255, 6);
+            int log = normLog;
+            buildFse(norm, normMaxSymbol, log, weightTable);
+            Bits br = bits;
+            br.init(src, q, end);
+            int s1 = br.read(log), s2 = br.read(log);
+            int n = 0;
+            // Two interleaved states; the stream ends when a read runs past its first bit
+            while (true) {
+                if (n > 253) throw corrupt("too many Huffman weights");
+                int e = weightTable[s1];
+                weights[n++] = (byte) e;
+                s1 = (e >>> 16) + br.read((e >>> 8) & 0xff);
+                br.reload();
+                if (br.overflow()) {
+                    weights[n++] = (byte) weightTable[s2];
+                    break;
+                }
+                e = weightTable[s2];
+                weights[n++] = (byte) e;
+                s2 = (e >>> 16) + br.read((e >>> 8) & 0xff);
+                br.reload();
+                if (br.overflow()) {
+                    weights[n++] = (byte) weightTable[s1];
+                    break;
+                }
+            }
+            return n;
+        }
+
+        /** Decodes {@code n} literals from the Huffman stream {@code src[p, end)} into {@code litBuf[at, ...)}. */
+        private void huffmanStream(byte[] src, int p, int end, int at, int n) throws IOException {
+            Bits br = bits;
+            br.init(src, p, end);
+            byte[] sym = hufSymbol, nb = hufBits, out = litBuf;
+            int log = hufLog;
+            int i = at, stop = at + n;
+            // 4 codes of at most 11 bits fit in what a reload guarantees
+            for (; i + 4 <= stop; i += 4) {
+                br.reload();
+                int k = br.peek(log);
+                out[i] = sym[k];
+                br.consumed += nb[k];
+                k = br.peek(log);
+                out[i + 1] = sym[k];
+                br.consumed += nb[k];
+                k = br.peek(log);
+                out[i + 2] = sym[k];
+                br.consumed += nb[k];
+                k = br.peek(log);
+                out[i + 3] = sym[k];
+                br.consumed += nb[k];
+            }
+            for (; i < stop; i++) {
+                br.reload();
+                int k = br.peek(log);
+                out[i] = sym[k];
+                br.consumed += nb[k];
+            }
+            if (!br.finished()) throw corrupt("Huffman stream not consumed exactly");
+        }
+
+        private int sequences(byte[] src, int p, int end, byte[] out, int op, int frameStart, int limit)
+                throws IOException {
+            if (p >= end) throw corrupt("missing sequences section");
+            int b0 = src[p++] & 0xff;
+            int count;
+            if (b0 < 128) {
+                count = b0;
+            } else if (b0 < 255) {
+                count = ((b0 - 128) << 8) + (src[p++] & 0xff);
+            } else {
+                count = (src[p] & 0xff) + ((src[p + 1] & 0xff) << 8) + 0x7f00;
+                p += 2;
+            }
+            byte[] lit = this.lit;
+            int lp = litPos, le = litEnd;
+            if (count > 0) {
+                int modes = src[p++] & 0xff;
+                if ((modes & 3) != 0) throw corrupt("reserved bits in sequence modes");
+                p = table(ll, modes >>> 6, src, p, end);
+                p = table(of, (modes >>> 4) & 3, src, p, end);
+                p = table(ml, (modes >>> 2) & 3, src, p, end);
+
+                int[] llT = ll.cur, ofT = of.cur, mlT = ml.cur;
+                Bits br = bits;
+                br.init(src, p, end);
+                int llS = br.read(ll.log), ofS = br.read(of.log), mlS = br.read(ml.log);
+                int r0 = rep0, r1 = rep1, r2 = rep2;
+                for (int i = 0; i < count; i++) {
+                    br.reload();
+                    int ofCode = ofT[ofS] & 0xff, llCode = llT[llS] & 0xff, mlCode = mlT[mlS] & 0xff;
+                    long ofValue = (1L << ofCode) + br.read(ofCode);
+                    br.reload();
+                    int mLen = ML_BASE[mlCode] + br.read(ML_BITS[mlCode]);
+                    int lLen = LL_BASE[llCode] + br.read(LL_BITS[llCode]);
+
+                    int offset;
+                    if (ofValue > 3) {
+                        if (ofValue - 3 > Integer.MAX_VALUE) throw corrupt("offset out of range");
+                        offset = (int) (ofValue - 3);
+                        r2 = r1;
+                        r1 = r0;
+                        r0 = offset;
+                    } else {
+                        // Repeat offsets; with no literals the codes shift by one
+                        switch ((int) ofValue - 1 + (lLen == 0 ? 1 : 0)) {
+                            case 0:
+                                offset = r0;
+                                break;
+                            case 1:
+                                offset = r1;
+                                r1 = r0;
+                                r0 = offset;
+                                break;
+                            case 2:
+                                offset = r2;
+                                r2 = r1;
+                                r1 = r0;
+                                r0 = offset;
+                                break;
+                            default:
+                                offset = r0 - 1;
+                                r2 = r1;
+                                r1 = r0;
+                                r0 = offset;
+                        }
+                    }
+
+                    if (i + 1 < count) {
+                        br.reload();
+                        int e = llT[llS];
+                        llS = (e >>> 16) + br.read((e >>> 8) & 0xff);
+                        e = mlT[mlS];
+                        mlS = (e >>> 16) + br.read((e >>> 8) & 0xff);
+                        e = ofT[ofS];
+                        ofS = (e >>> 16) + br.read((e >>> 8) & 0xff);
+                    }
+
+                    if (lLen > le - lp) throw corrupt("sequence needs more literals than the block has");
+                    if (mLen > limit - op - lLen) throw corrupt("sequence past the end of output");
+                    System.arraycopy(lit, lp, out, op, lLen);
+                    lp += lLen;
+                    op += lLen;
+                    if (offset <= 0 || offset > op - frameStart) throw corrupt("match offset " + offset + " before the frame");
+                    copyMatch(out, op, offset, mLen);
+                    op += mLen;
+                }
+                if (!br.finished()) throw corrupt("sequence stream not consumed exactly");
+                rep0 = r0;
+                rep1 = r1;
+                rep2 = r2;
+            } else if (p != end) {
+                throw corrupt("bytes after an empty sequences section");
+            }
+            int rest = le - lp;
+            if (rest > limit - op) throw corrupt("literals past the end of output");
+            System.arraycopy(lit, lp, out, op, rest);
+            return op + rest;
+        }
+
+        private int table(SeqTable t, int mode, byte[] src, int p, int end) throws IOException {
+            switch (mode) {
+                case 0:
+                    t.cur = t.predefined;
+                    t.log = t.predefinedLog;
+                    return p;
+                case 1: {
+                    int s = src[p] & 0xff;
+                    if (s > t.maxSymbol) throw corrupt("RLE symbol " + s);
+                    t.rle[0] = s;
+                    t.cur = t.rle;
+                    t.log = 0;
+                    return p + 1;
+                }
+                case 2: {
+                    int n = readNormalized(src, p, end, t.maxSymbol, t.maxLog);
+                    buildFse(norm, normMaxSymbol, normLog, t.own);
+                    t.cur = t.own;
+                    t.log = normLog;
+                    return p + n;
+                }
+                default:
+                    if (t.cur == null) throw corrupt("repeat mode without a previous table");
+                    return p;
+            }
+        }
+
+        /**
+         * Reads an FSE table description into {@link #norm}, {@link #normLog} and
+         * {@link #normMaxSymbol}; returns its length in bytes.
+         */
+        private int readNormalized(byte[] src, int p, int end, int maxSymbol, int maxLog) throws IOException {
+            int ip = p;
+            int bitStream = le32Padded(src, ip, end);
+            int nbBits = (bitStream & 0xf) + 5;
+            if (nbBits > maxLog) throw corrupt("FSE table log " + nbBits + " over " + maxLog);
+            normLog = nbBits;
+            bitStream >>>= 4;
+            int bitCount = 4;
+            int remaining = (1 << nbBits) + 1;
+            int threshold = 1 << nbBits;
+            nbBits++;
+            int symbol = 0;
+            boolean previous0 = false;
+            while (remaining > 1 && symbol <= maxSymbol) {
+                if (previous0) {
+                    int n0 = symbol;
+                    while ((bitStream & 0xffff) == 0xffff) {
+                        n0 += 24;
+                        ip += 2;
+                        bitStream = le32Padded(src, ip, end) >>> bitCount;
+                    }
+                    while ((bitStream & 3) == 3) {
+                        n0 += 3;
+                        bitStream >>>= 2;
+                        bitCount += 2;
+                    }
+                    n0 += bitStream & 3;
+                    bitCount += 2;
+                    if (n0 > maxSymbol) throw corrupt("FSE zero run past the last symbol");
+                    while (symbol < n0) norm[symbol++] = 0;
+                    ip += bitCount >>> 3;
+                    bitCount &= 7;
+                    bitStream = le32Padded(src, ip, end) >>> bitCount;
+                }
+                int max = (2 * threshold - 1) - remaining;
+                int count;
+                if ((bitStream & (threshold - 1)) < max) {
+                    count = bitStream & (threshold - 1);
+                    bitCount += nbBits - 1;
+                } else {
+                    count = bitStream & (2 * threshold - 1);
+                    if (count >= threshold) count -= max;
+                    bitCount += nbBits;
+                }
+                count--; // -1 is a "less than 1" probability
+                remaining -= count < 0 ? -count : count;
+                norm[symbol++] = (short) count;
+                previous0 = count == 0;
+                while (remaining < threshold) {
+                    nbBits--;
+                    threshold >>= 1;
+                }
+                ip += bitCount >>> 3;
+                bitCount &= 7;
+                bitStream = le32Padded(src, ip, end) >>> bitCount;
+            }
+            if (remaining != 1) throw corrupt("FSE probabilities don't add up");
+            int size = ip - p + ((bitCount + 7) >>> 3);
+            if (p + size > end) throw corrupt("FSE table past the block");
+            normMaxSymbol = symbol - 1;
+            return size;
+        }
+    }
+
+    /**
+     * Builds an FSE decoding table from normalized counts. Entries pack the symbol (bits 0-7), the
+     * number of bits to read for the next state (8-15) and that state's baseline (16-31).
+     */
+    private static void buildFse(short[] norm, int maxSymbol, int log, int[] table) {
+        int size = 1 << log;
+        int high = size - 1;
+        int[] next = new int[maxSymbol + 1];
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (norm[s] == -1) {
+                table[high--] = s;
+                next[s] = 1;
+            } else {
+                next[s] = norm[s];
+            }
+        }
+        int step = (size >>> 1) + (size >>> 3) + 3, mask = size - 1, pos = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            for (int i = 0; i < norm[s]; i++) {
+                table[pos] = s;
+                do {
+                    pos = (pos + step) & mask;
+                } while (pos > high);
+            }
+        }
+        for (int u = 0; u < size; u++) {
+            int s = table[u] & 0xff;
+            int state = next[s]++;
+            int nb = log - highBit(state);
+            table[u] = s | nb << 8 | ((state << nb) - size) << 16;
+        }
+    }
+
+    /** Repeats {@code out[op - offset, op)} for {@code len} bytes at {@code op}; the ranges may overlap. */
+    private static void copyMatch(byte[] out, int op, int offset, int len) {
+        int from = op - offset;
+        if (offset >= len) {
+            System.arraycopy(out, from, out, op, len);
+        } else if (offset == 1) {
+            Arrays.fill(out, op, op + len, out[from]);
+        } else {
+            // The copied span doubles each time while staying a whole number of periods
+            int d = op, left = len;
+            while (left > 0) {
+                int n = Math.min(left, d - from);
+                System.arraycopy(out, from, out, d, n);
+                d += n;
+                left -= n;
+            }
+        }
+    }
+
+    /**
+     * A backward bit stream: read from its last byte towards its first, highest bit first, after
+     * the padding down to the end mark (the last byte's highest set bit).
+     */
+    private static final class Bits {
+        private byte[] b;
+        private int start;
+        private int pos;        // the container holds b[pos, pos + 8), or the whole stream when shorter
+        private long container;
+        int consumed;           // bits of the container already read, counted from the top
+
+        void init(byte[] b, int start, int end) throws IOException {
+            if (end <= start) throw corrupt("empty bit stream");
+            int last = b[end - 1] & 0xff;
+            if (last == 0) throw corrupt("bit stream without an end mark");
+            this.b = b;
+            this.start = start;
+            int mark = Integer.numberOfLeadingZeros(last) - 24 + 1;
+            if (end - start >= 8) {
+                pos = end - 8;
+                container = le64(b, pos);
+                consumed = mark;
+            } else {
+                pos = start;
+                long c = 0;
+                for (int i = end - 1; i >= start; i--) c = c << 8 | (b[i] & 0xff);
+                container = c;
+                consumed = mark + (8 - (end - start)) * 8;
+            }
+        }
+
+        /** The next {@code n} bits without consuming them; fewer than 57 have to be left since the last reload. */
+        int peek(int n) {
+            return (int) (((container << (consumed & 63)) >>> 1) >>> ((63 - n) & 63));
+        }
+
+        int read(int n) {
+            int v = peek(n);
+            consumed += n;
+            return v;
+        }
+
+        /** Moves the container back so that at most 7 of its bits are consumed, as far as the stream allows. */
+        void reload() {
+            int n = Math.min(consumed >>> 3, pos - start);
+            if (n > 0) {
+                pos -= n;
+                consumed -= n << 3;
+                container = le64(b, pos);
+            }
+        }
+
+        /** Read past the first bit of the stream. */
+        boolean overflow() {
+            return consumed > 64;
+        }
+
+        /** Every bit read, and no more. */
+        boolean finished() {
+            reload();
+            return pos == start && consumed == 64;
+        }
+    }
+
+    // ---- helpers -----------------------------------------------------------------------------
+
+    private static int highBit(int v) {
+        return 31 - Integer.numberOfLeadingZeros(v);
+    }
+
+    private static int le16(byte[] b, int p) {
+        return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8;
+    }
+
+    private static int le24(byte[] b, int p) {
+        return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16;
+    }
+
+    private static int le32(byte[] b, int p) {
+        return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | (b[p + 3] & 0xff) << 24;
+    }
+
+    /** {@link #le32} reading zeros at and after {@code end}. */
+    private static int le32Padded(byte[] b, int p, int end) {
+        if (p + 4 <= end) return le32(b, p);
+        int v = 0;
+        for (int i = Math.min(end, p + 4) - 1; i >= p; i--) v = v << 8 | (b[i] & 0xff);
+        return v;
+    }
+
+    private static long le64(byte[] b, int p) {
+        return (le32(b, p) & 0xffffffffL) | (long) le32(b, p + 4) << 32;
+    }
+
+    private static long le(byte[] b, int p, int n) {
+        long v = 0;
+        for (int i = n - 1; i >= 0; i--) v = v << 8 | (b[p + i] & 0xff);
+        return v;
+    }
+
+    private static IOException corrupt(String what) {
+        return new IOException("corrupt zstd data: " + what);
+    }
+
+    private static int readUpTo(InputStream in, byte[] b, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int r = in.read(b, off + n, len - n);
+            if (r < 0) break;
+            n += r;
+        }
+        return n;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        if (readUpTo(in, b, off, len) != len) throw new EOFException("truncated zstd stream");
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) {
+                if (in.read() < 0) throw new EOFException("truncated zstd stream");
+                s = 1;
+            }
+            n -= s;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.robotforest.launcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * A child flooding stderr through {@link Exec} with a listener slower than the pipe. The build
+ * runs it with a 64 MiB heap, so anything that grows with the output fails it; the volume is
+ * {@code rf.exec.stressBytes} (64 MiB by default, {@code -Prf.exec.stressBytes=2147483648} for
+ * the full run).
+ */
+public class ExecStressTest {
+    private static final long BYTES = Long.getLong("rf.exec.stressBytes", 64L << 20);
+    private static final Pattern DROPPED = Pattern.compile("\\[… (\\d+) chars dropped]");
+    private static final Pattern OMITTED = Pattern.compile("\\[… (\\d+) chars omitted]\n");
+
+    private ExecutorService serial;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+
+    @Before public void setUp() {
+        serial = Executors.newSingleThreadExecutor();
+    }
+
+    @After public void tearDown() {
+        serial.shutdownNow();
+    }
+
+    private static final class Result {
+        int code = -1;
+        String stdout;
+        String stderr;
+        Exception error;
+    }
+
+    private Result flood(boolean blockWhenFull) throws Exception {
+        Exec.Options o = new Exec.Options();
+        o.blockWhenFull = blockWhenFull;
+        o.listener = (stream, text) -> {
+            Matcher m = DROPPED.matcher(text);
+            if (m.matches()) {
+                dropped.addAndGet(Long.parseLong(m.group(1)));
+                drops.incrementAndGet();
+                return;
+            }
+            delivered.addAndGet(text.length());
+            LockSupport.parkNanos(100_000); // slower than the pipe
+        };
+        List<String> cmd = Arrays.asList("sh", "-c", "head -c " + BYTES + " /dev/zero >&2");
+        Result r = new Result();
+        CountDownLatch done = new CountDownLatch(1);
+        Exec.run(cmd, null, null, o, serial, new Exec.Callback() {
+            @Override public void onCompleted(int exitCode, String stdout, String stderr) {
+                r.code = exitCode;
+                r.stdout = stdout;
+                r.stderr = stderr;
+                done.countDown();
+            }
+
+            @Override public void onError(Exception e) {
+                r.error = e;
+                done.countDown();
+            }
+        }, null);
+        // Blocking mode runs at the listener's pace: allow 4 MiB/s
+        assertTrue("completion was never delivered", done.await(Math.max(30, BYTES >> 22), TimeUnit.SECONDS));
+        if (r.error != null) throw r.error;
+        return r;
+    }
+
+    /** Only the last {@code tailChars} are kept, behind a count of what was left out. */
+    private static void assertTail(String stderr, int tailChars) {
+        Matcher m = OMITTED.matcher(stderr);
+        assertTrue(m.lookingAt());
+        assertEquals(BYTES - tailChars, Long.parseLong(m.group(1)));
+        String kept = stderr.substring(m.end());
+        assertEquals(tailChars, kept.length());
+        for (int i = 0; i < kept.length(); i++) assertEquals(0, kept.charAt(i));
+    }
+
+    @Test public void dropsAndReportsWhatTheListenerCannotTake() throws Exception {
+        Result r = flood(false);
+
+        assertEquals(0, r.code);
+        assertEquals("", r.stdout);
+        assertTail(r.stderr, new Exec.Options().tailChars);
+        assertTrue("nothing was dropped", drops.get() > 0);
+        assertEquals(BYTES, delivered.get() + dropped.get());
+    }
+
+    @Test public void blockingHoldsTheChildBackInstead() throws Exception {
+        Result r = flood(true);
+
+        assertEquals(0, r.code);
+        assertTail(r.stderr, new Exec.Options().tailChars);
+        assertEquals(0, drops.get());
+        assertEquals(BYTES, delivered.get());
+    }
+}
@@ -0,0 +1,151 @@
+package com.robotforest.launcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpCacheTest {
+    private static final String ETAG = "\"m1\"";
+    private static final String BODY = "{\"url\": \"https://example.invalid/runtime.zip\", \"sha256\": \"00ff\"}\n";
+
+    private File dir;
+    private LoopbackServer server;
+    private final AtomicInteger full = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before public void setUp() throws IOException {
+        dir = LoopbackServer.tempDir("http-cache");
+        server = new LoopbackServer(x -> {
+            if (ETAG.equals(x.header("If-None-Match"))) {
+                notModified.incrementAndGet();
+                x.send(304, new byte[0], "ETag: " + ETAG);
+            } else {
+                full.incrementAndGet();
+                x.send(200, BODY.getBytes("UTF-8"), "ETag: " + ETAG);
+            }
+        });
+    }
+
+    @After public void tearDown() throws IOException {
+        server.close();
+        LoopbackServer.deleteRec(dir);
+    }
+
+    private String url() { return server.url("/runtime-manifest.json"); }
+
+    @Test public void unchangedResourceCostsOneConditionalGet() throws Exception {
+        HttpCache cache = new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES);
+        assertEquals(BODY, cache.get(url(), 0, 2000, 2000).body);
+
+        HttpCache.Entry e = cache.get(url(), 0, 2000, 2000);
+
+        assertEquals(BODY, e.body);
+        assertTrue(e.fromNetwork);
+        assertEquals(1, full.get());
+        assertEquals(1, notModified.get());
+        List<LoopbackServer.Exchange> reqs = server.requests();
+        assertEquals(2, reqs.size());
+        assertEquals(ETAG, reqs.get(1).header("If-None-Match"));
+
+        // a fresh entry, and one read back by a new instance, need no request at all
+        assertEquals(BODY, cache.get(url(), 60_000, 2000, 2000).body);
+        HttpCache reopened = new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES);
+        HttpCache.Entry stale = reopened.getStale(url(), 60_000, 2000, 2000);
+        assertEquals(BODY, stale.body);
+        assertFalse(stale.fromNetwork);
+        assertEquals(2, server.requests().size());
+    }
+
+    @Test public void corruptBodyFallsBackToFullGet() throws Exception {
+        new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES).get(url(), 0, 2000, 2000);
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(entryFile(".body")), "UTF-8")) {
+            w.write("{\"url\": \"https://example.invalid/other.zip\"");
+        }
+
+        assertRefetchedInFull(new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES));
+    }
+
+    @Test public void mismatchedDigestFallsBackToFullGet() throws Exception {
+        new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES).get(url(), 0, 2000, 2000);
+        File meta = entryFile(".meta");
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(meta)) { p.load(in); }
+        p.setProperty("sha256", Hashes.sha256Hex(new byte[0]));
+        try (OutputStream out = new FileOutputStream(meta)) { p.store(out, null); }
+
+        assertRefetchedInFull(new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES));
+    }
+
+    @Test public void garbledMetaFallsBackToFullGet() throws Exception {
+        new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES).get(url(), 0, 2000, 2000);
+        try (OutputStream out = new FileOutputStream(entryFile(".meta"))) {
+            out.write("url=\\uZZ\0\0".getBytes("ISO-8859-1"));
+        }
+
+        assertRefetchedInFull(new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES));
+    }
+
+    @Test public void readsDuringStoresNeverDropTheEntry() throws Exception {
+        AtomicInteger version = new AtomicInteger();
+        try (LoopbackServer changing = new LoopbackServer(x ->
+                x.send(200, ("{\"v\": " + version.incrementAndGet() + "}\n").getBytes("UTF-8")))) {
+            String url = changing.url("/runtime-manifest.json");
+            HttpCache cache = new HttpCache(dir, HttpCache.DEFAULT_MAX_BYTES);
+            cache.get(url, 0, 2000, 2000);
+
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicInteger misses = new AtomicInteger();
+            AtomicInteger reads = new AtomicInteger();
+            Thread[] readers = new Thread[3];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new Thread(() -> {
+                    while (!done.get()) {
+                        HttpCache.Entry e = cache.getStale(url, Long.MAX_VALUE, 2000, 2000);
+                        if (e == null) misses.incrementAndGet();
+                        reads.incrementAndGet();
+                    }
+                });
+                readers[i].start();
+            }
+            try {
+                // Each full GET stores a new body, with a new digest, over the last one
+                for (int i = 0; i < 50; i++) cache.get(url, 0, 2000, 2000);
+            } finally {
+                done.set(true);
+                for (Thread t : readers) t.join();
+            }
+
+            assertTrue(reads.get() > 0);
+            assertEquals("reads that found no entry", 0, misses.get());
+            assertEquals("{\"v\": " + version.get() + "}\n", cache.getStale(url, Long.MAX_VALUE, 2000, 2000).body);
+        }
+    }
+
+    /** A plain GET replaces the bad entry; the request after it is conditional again. */
+    private void assertRefetchedInFull(HttpCache cache) throws IOException {
+        assertNull(cache.getStale(url(), 60_000, 2000, 2000));
+        HttpCache.Entry e = cache.get(url(), 0, 2000, 2000);
+        assertEquals(BODY, e.body);
+        assertEquals(2, full.get());
+        assertNull(server.requests().get(1).header("If-None-Match"));
+
+        assertEquals(BODY, cache.get(url(), 0, 2000, 2000).body);
+        assertEquals(2, full.get());
+        assertEquals(1, notModified.get());
+    }
+
+    private File entryFile(String suffix) {
+        File[] fs = dir.listFiles((d, n) -> n.endsWith(suffix));
+        assertNotNull(fs);
+        assertEquals(1, fs.length);
+        return fs[0];
+    }
+}
@@ -0,0 +1,120 @@
+package com.robotforest.launcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class InstallFlightsTest {
+    private static final int CALLERS = 50;
+
+    private File dir;
+    private LoopbackServer server;
+    private byte[] content;
+    private ExecutorService worker;
+    private ExecutorService callers;
+    private InstallFlights installs;
+
+    @Before public void setUp() throws IOException {
+        dir = LoopbackServer.tempDir("install-flights");
+        content = LoopbackServer.randomBytes(1024 * 1024, 20);
+        server = new LoopbackServer(x -> x.serve(content, "\"v1\""));
+        // One worker, as in the app, so installs and reinstalls queue behind each other
+        worker = Executors.newSingleThreadExecutor();
+        callers = Executors.newFixedThreadPool(CALLERS);
+        installs = new InstallFlights(new SingleFlight(worker), "runtime/manifest.json");
+    }
+
+    @After public void tearDown() throws IOException {
+        callers.shutdownNow();
+        worker.shutdownNow();
+        server.close();
+        LoopbackServer.deleteRec(dir);
+    }
+
+    @Test public void concurrentCallersShareOneInstall() throws Exception {
+        File dst = new File(dir, "runtime.zip");
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch joined = new CountDownLatch(CALLERS);
+        List<Future<SingleFlight.Handle<String>>> handles = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            handles.add(callers.submit(() -> {
+                go.await();
+                SingleFlight.Handle<String> h = installs.ensureInstalled((token, log) -> {
+                    runs.incrementAndGet();
+                    // Hold the install open until every caller has its handle
+                    if (!joined.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("callers never all joined");
+                    return Downloads.downloadTo(server.url("/runtime.zip"), 2000, 2000, dst);
+                }, null);
+                joined.countDown();
+                return h;
+            }));
+        }
+        go.countDown();
+
+        int joiners = 0;
+        for (Future<SingleFlight.Handle<String>> f : handles) {
+            SingleFlight.Handle<String> h = f.get(10, TimeUnit.SECONDS);
+            assertEquals(Hashes.sha256Hex(content), h.await());
+            if (h.joined) joiners++;
+        }
+        assertEquals(1, runs.get());
+        assertEquals(CALLERS - 1, joiners);
+        assertEquals(1, server.count("GET"));
+        assertArrayEquals(content, LoopbackServer.read(dst));
+    }
+
+    @Test public void installJoinsRunningReinstall() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger installRuns = new AtomicInteger();
+        SingleFlight.Handle<String> re = installs.forceReinstall((token, log) -> {
+            release.await();
+            return "reinstalled";
+        }, null);
+
+        SingleFlight.Handle<String> in = installs.ensureInstalled((token, log) -> {
+            installRuns.incrementAndGet();
+            return "installed";
+        }, null);
+        assertTrue(in.joined);
+        release.countDown();
+
+        assertEquals("reinstalled", re.await());
+        assertEquals("reinstalled", in.await());
+        assertEquals(0, installRuns.get());
+    }
+
+    @Test public void reinstallQueuesBehindRunningInstall() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        SingleFlight.Handle<String> in = installs.ensureInstalled((token, log) -> {
+            release.await();
+            order.add("install");
+            return "installed";
+        }, null);
+
+        SingleFlight.Handle<String> re = installs.forceReinstall((token, log) -> {
+            order.add("reinstall");
+            return "reinstalled";
+        }, null);
+        assertFalse(re.joined);
+        release.countDown();
+
+        assertEquals("installed", in.await());
+        assertEquals("reinstalled", re.await());
+        assertEquals(Arrays.asList("install", "reinstall"), order);
+
+        // A finished install is not joined; asking again runs it again
+        assertFalse(installs.ensureInstalled((token, log) -> "again", null).joined);
+    }
+}
@@ -0,0 +1,104 @@
+package com.robotforest.launcher;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LaunchLatencyTest {
+    private static final int COLD = 2;
+    private static final int WARM = 5;
+
+    private File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = LoopbackServer.tempDir("launch");
+    }
+
+    @After public void tearDown() {
+        LoopbackServer.deleteRec(dir);
+    }
+
+    /** A {@code #!/bin/sh} stand-in for box64 running {@code body}. */
+    private File stub(String name, String body) throws IOException {
+        File f = new File(dir, name);
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8")) {
+            w.write("#!/bin/sh\n" + body + "\n");
+        }
+        assertTrue(f.setExecutable(true, false));
+        return f;
+    }
+
+    private static LaunchLatency.Report run(File stub) throws Exception {
+        List<String> cmd = Collections.singletonList(stub.getAbsolutePath());
+        return LaunchLatency.run(stub.getName(), LaunchLatency.direct(cmd, null, null), COLD, WARM);
+    }
+
+    @Test public void timesEachStepInOrder() throws Exception {
+        LaunchLatency.Report r = run(stub("box64", "echo \"Box64 with Dynarec v0.0.0 (stub)\""));
+
+        assertEquals(COLD, r.cold.size());
+        assertEquals(WARM, r.warm.size());
+        for (List<LaunchLatency.Sample> series : Arrays.asList(r.cold, r.warm)) {
+            for (LaunchLatency.Sample s : series) {
+                assertEquals(0, s.exitCode);
+                assertTrue(s.spawnUs >= 0);
+                assertTrue(s.spawnUs + " <= " + s.firstOutputUs, s.spawnUs <= s.firstOutputUs);
+                assertTrue(s.firstOutputUs + " <= " + s.totalUs, s.firstOutputUs <= s.totalUs);
+            }
+        }
+    }
+
+    @Test public void silentCommandHasNoFirstOutput() throws Exception {
+        LaunchLatency.Report r = run(stub("quiet", "exit 0"));
+
+        for (List<LaunchLatency.Sample> series : Arrays.asList(r.cold, r.warm)) {
+            for (LaunchLatency.Sample s : series) {
+                assertEquals(0, s.exitCode);
+                assertEquals(-1, s.firstOutputUs);
+                assertTrue(s.spawnUs <= s.totalUs);
+            }
+        }
+        // no first-output row, and no first-output percentiles
+        assertFalse(r.summary().contains("first output"));
+        assertFalse(object(object(r.toJson(), "warm"), "firstOutputUs").has("p50"));
+    }
+
+    @Test public void nonZeroExitIsReported() throws Exception {
+        LaunchLatency.Report r = run(stub("failing", "echo no >&2; exit 3"));
+
+        for (LaunchLatency.Sample s : r.warm) assertEquals(3, s.exitCode);
+        assertTrue(r.summary(), r.summary().contains((COLD + WARM) + " non-zero exits"));
+    }
+
+    @Test public void jsonHasPercentilesPerSeries() throws Exception {
+        LaunchLatency.Report r = run(stub("box64", "echo ok"));
+
+        JSONObject o = r.toJson();
+        assertEquals("launch", o.getString("kind"));
+        assertEquals("box64", o.getString("label"));
+        for (String series : new String[] {"cold", "warm"}) {
+            JSONObject s = object(o, series);
+            assertEquals(series.equals("cold") ? COLD : WARM, s.getLong("n"));
+            for (String step : new String[] {"spawnUs", "firstOutputUs", "totalUs"}) {
+                JSONObject p = object(s, step);
+                for (String k : new String[] {"p50", "p90", "p99", "max"}) assertTrue(series + "." + step + "." + k, p.has(k));
+                assertTrue(p.getLong("p50") <= p.getLong("p90"));
+                assertTrue(p.getLong("p99") <= p.getLong("max"));
+            }
+        }
+    }
+
+    private static JSONObject object(JSONObject o, String key) {
+        JSONObject v = o.optJSONObject(key);
+        assertNotNull(key, v);
+        return v;
+    }
+}
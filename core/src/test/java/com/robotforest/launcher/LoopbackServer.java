@@ -0,0 +1,198 @@
+package com.robotforest.launcher;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A small HTTP/1.1 server on 127.0.0.1 for tests, scripted per request by a {@link Handler}. Every
+ * response closes its connection, so each request the client makes is one {@link Exchange} here,
+ * kept in {@link #requests()} for assertions.
+ */
+final class LoopbackServer implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    interface Handler {
+        void handle(Exchange x) throws Exception;
+    }
+
+    /** One request, and the means to answer it. */
+    static final class Exchange {
+        final String method;
+        final String path;
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final Socket socket;
+
+        Exchange(String method, String path, Socket socket) {
+            this.method = method; this.path = path; this.socket = socket;
+        }
+
+        String header(String name) { return headers.get(name); }
+
+        /** Sends {@code body} whole; {@code headers} are "Name: value" lines. */
+        void send(int code, byte[] body, String... headers) throws IOException {
+            send(code, body, body.length, headers);
+        }
+
+        /**
+         * Announces all of {@code body} but sends only its first {@code cutAfter} bytes, then closes
+         * the connection: a server that drops mid-transfer.
+         */
+        void send(int code, byte[] body, int cutAfter, String... headers) throws IOException {
+            StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+            for (String h : headers) sb.append(h).append("\r\n");
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+            sb.append("Connection: close\r\n\r\n");
+            OutputStream out = socket.getOutputStream();
+            out.write(sb.toString().getBytes(ASCII));
+            if (!"HEAD".equals(method)) out.write(body, 0, Math.min(cutAfter, body.length));
+            out.flush();
+            socket.close();
+        }
+
+        /**
+         * Serves {@code content} the way a static file server does: HEAD, ranges honoured when
+         * If-Range (if any) matches {@code etag}, otherwise the whole body. Only the first
+         * {@code cutAfter} bytes of the reply's body are sent; -1 sends all of it.
+         */
+        void serve(byte[] content, String etag, int cutAfter) throws IOException {
+            String range = header("Range");
+            String ifRange = header("If-Range");
+            long[] r = range != null && (ifRange == null || ifRange.equals(etag)) ? parseRange(range, content.length) : null;
+            if (r == null) {
+                send(200, content, cutAfter < 0 ? content.length : cutAfter,
+                        "ETag: " + etag, "Accept-Ranges: bytes");
+                return;
+            }
+            byte[] part = Arrays.copyOfRange(content, (int) r[0], (int) r[1] + 1);
+            send(206, part, cutAfter < 0 ? part.length : cutAfter, "ETag: " + etag, "Accept-Ranges: bytes",
+                    "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + content.length);
+        }
+
+        void serve(byte[] content, String etag) throws IOException {
+            serve(content, etag, -1);
+        }
+
+        /** {@code bytes=a-} or {@code bytes=a-b} as an inclusive [a, b] within {@code length}. */
+        static long[] parseRange(String range, long length) {
+            String s = range.trim();
+            if (!s.startsWith("bytes=")) return null;
+            s = s.substring(6);
+            int dash = s.indexOf('-');
+            long from = Long.parseLong(s.substring(0, dash));
+            long to = dash + 1 < s.length() ? Long.parseLong(s.substring(dash + 1)) : length - 1;
+            if (from >= length) return null;
+            return new long[] {from, Math.min(to, length - 1)};
+        }
+
+        private static String reason(int code) {
+            switch (code) {
+                case 200: return "OK";
+                case 206: return "Partial Content";
+                case 304: return "Not Modified";
+                case 404: return "Not Found";
+                default: return "Status";
+            }
+        }
+    }
+
+    private final ServerSocket server;
+    private final Handler handler;
+    private final List<Exchange> requests = Collections.synchronizedList(new ArrayList<>());
+    private final Thread acceptor;
+
+    LoopbackServer(Handler handler) throws IOException {
+        this.handler = handler;
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::accept, "rf-test-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getLocalPort() + path;
+    }
+
+    /** Requests received so far, in arrival order. */
+    List<Exchange> requests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    /** How many requests of {@code method} arrived. */
+    int count(String method) {
+        int n = 0;
+        for (Exchange x : requests()) if (x.method.equals(method)) n++;
+        return n;
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread t = new Thread(() -> handle(s), "rf-test-exchange");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void handle(Socket s) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), ASCII));
+            String line = in.readLine();
+            if (line == null) { s.close(); return; }
+            String[] parts = line.split(" ");
+            Exchange x = new Exchange(parts[0], parts[1], s);
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) x.headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+            requests.add(x);
+            handler.handle(x);
+        } catch (Exception e) {
+            // the client went away, or the handler dropped the connection on purpose
+        } finally {
+            try { s.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    @Override public void close() throws IOException {
+        server.close();
+    }
+
+    static byte[] randomBytes(int n, long seed) {
+        byte[] b = new byte[n];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    static byte[] read(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) bos.write(buf, 0, n);
+            return bos.toByteArray();
+        }
+    }
+
+    static File tempDir(String name) throws IOException {
+        File d = File.createTempFile("rf-" + name, "");
+        if (!d.delete() || !d.mkdirs()) throw new IOException("mkdirs failed: " + d);
+        return d;
+    }
+
+    static void deleteRec(File f) {
+        File[] kids = f.listFiles();
+        if (kids != null) for (File k : kids) deleteRec(k);
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
@@ -0,0 +1,115 @@
+package com.robotforest.launcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MirrorsTest {
+    private static final int SIZE = 1024 * 1024;
+    private static final String PROBE_RANGE = "bytes=0-" + (Mirrors.PROBE_BYTES - 1);
+    private static final long SLOW_MS = 500;
+
+    private File dir;
+    private byte[] content;
+    private String expected;
+    private LoopbackServer fast;
+    private LoopbackServer slow;
+
+    @Before public void setUp() throws IOException {
+        dir = LoopbackServer.tempDir("mirrors");
+        content = LoopbackServer.randomBytes(SIZE, 30);
+        expected = Hashes.sha256Hex(content);
+    }
+
+    @After public void tearDown() throws IOException {
+        if (fast != null) fast.close();
+        if (slow != null) slow.close();
+        LoopbackServer.deleteRec(dir);
+    }
+
+    private static boolean isProbe(LoopbackServer.Exchange x) {
+        return PROBE_RANGE.equals(x.header("Range"));
+    }
+
+    /** Requests other than the race's probe. */
+    private static int bodyRequests(LoopbackServer s) {
+        int n = 0;
+        for (LoopbackServer.Exchange x : s.requests()) if (!isProbe(x)) n++;
+        return n;
+    }
+
+    @Test public void slowMirrorLosesTheRace() throws Exception {
+        slow = new LoopbackServer(x -> {
+            Thread.sleep(SLOW_MS);
+            x.serve(content, "\"s\"");
+        });
+        fast = new LoopbackServer(x -> x.serve(content, "\"f\""));
+        List<String> sources = Arrays.asList(slow.url("/rt.zip"), fast.url("/rt.zip"));
+
+        List<Mirrors.Probe> ranked = Mirrors.race(sources, 2000, 2000);
+        assertEquals(fast.url("/rt.zip"), ranked.get(0).url);
+        assertTrue(ranked.get(0).ok());
+
+        File dst = new File(dir, "rt.zip");
+        String got = Mirrors.downloadTo(sources, 2000, 2000, dst, null, Hashes.SHA256, expected);
+
+        assertEquals(expected, got);
+        assertArrayEquals(content, LoopbackServer.read(dst));
+        assertEquals(1, bodyRequests(fast));
+        assertEquals(0, bodyRequests(slow));
+    }
+
+    @Test public void cutBodyResumesOnAnotherMirror() throws Exception {
+        int cut = 300_000;
+        AtomicInteger bodies = new AtomicInteger();
+        fast = new LoopbackServer(x -> {
+            if (isProbe(x)) x.serve(content, "\"f\"");
+            else if (bodies.getAndIncrement() == 0) x.serve(content, "\"f\"", cut);
+            else x.send(503, new byte[0]);
+        });
+        slow = new LoopbackServer(x -> {
+            if (isProbe(x)) Thread.sleep(SLOW_MS);
+            x.serve(content, "\"s\"");
+        });
+        File dst = new File(dir, "rt.zip");
+
+        String got = Mirrors.downloadTo(Arrays.asList(slow.url("/rt.zip"), fast.url("/rt.zip")), 2000, 2000,
+                dst, null, Hashes.SHA256, expected);
+
+        assertEquals(expected, got);
+        assertArrayEquals(content, LoopbackServer.read(dst));
+        List<LoopbackServer.Exchange> taken = slow.requests();
+        LoopbackServer.Exchange resume = taken.get(taken.size() - 1);
+        assertEquals("bytes=" + cut + "-", resume.header("Range"));
+        // the fast mirror's validator means nothing to this one
+        assertNull(resume.header("If-Range"));
+        assertEquals(1, bodyRequests(slow));
+    }
+
+    @Test public void wrongBytesEverywhereFailsVerification() throws Exception {
+        byte[] other = LoopbackServer.randomBytes(SIZE, 31);
+        fast = new LoopbackServer(x -> x.serve(other, "\"f\""));
+        slow = new LoopbackServer(x -> x.serve(other, "\"s\""));
+        File dst = new File(dir, "rt.zip");
+
+        try {
+            Mirrors.downloadTo(Arrays.asList(fast.url("/rt.zip"), slow.url("/rt.zip")), 2000, 2000,
+                    dst, null, Hashes.SHA256, expected);
+            fail("no mirror serves the expected bytes");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("mismatch"));
+        }
+        assertFalse(dst.exists());
+        // each mirror was tried once and then passed over
+        assertEquals(1, bodyRequests(fast));
+        assertEquals(1, bodyRequests(slow));
+    }
+}
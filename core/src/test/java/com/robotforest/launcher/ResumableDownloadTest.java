@@ -0,0 +1,97 @@
+package com.robotforest.launcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ResumableDownloadTest {
+    private static final int SIZE = 300_000;
+    private static final int CUT = 100_000;
+
+    private File dir;
+    private LoopbackServer server;
+
+    @Before public void setUp() throws IOException {
+        dir = LoopbackServer.tempDir("resume");
+    }
+
+    @After public void tearDown() throws IOException {
+        if (server != null) server.close();
+        LoopbackServer.deleteRec(dir);
+    }
+
+    @Test public void dropAfterNBytesResumesWithRange() throws Exception {
+        byte[] content = LoopbackServer.randomBytes(SIZE, 1);
+        server = new LoopbackServer(x -> {
+            boolean first = server.requests().size() == 1;
+            x.serve(content, "\"v1\"", first ? CUT : -1);
+        });
+        File dst = new File(dir, "file.bin");
+
+        String sha = ResumableDownload.fetch(server.url("/file.bin"), dst, 2000, 2000, 3, null);
+
+        assertEquals(Hashes.sha256Hex(content), sha);
+        assertArrayEquals(content, LoopbackServer.read(dst));
+        List<LoopbackServer.Exchange> reqs = server.requests();
+        assertEquals(2, reqs.size());
+        assertNull(reqs.get(0).header("Range"));
+        assertEquals("bytes=" + CUT + "-", reqs.get(1).header("Range"));
+        assertEquals("\"v1\"", reqs.get(1).header("If-Range"));
+        assertFalse(new File(dst.getPath() + ".part").exists());
+        assertFalse(new File(dst.getPath() + ".part.meta").exists());
+    }
+
+    @Test public void fullReplyToRangeRestartsFromZero() throws Exception {
+        byte[] content = LoopbackServer.randomBytes(SIZE, 2);
+        server = new LoopbackServer(x -> {
+            // ignores Range altogether, like a server without range support
+            boolean first = server.requests().size() == 1;
+            x.send(200, content, first ? CUT : content.length, "ETag: \"v1\"");
+        });
+        File dst = new File(dir, "file.bin");
+
+        String sha = ResumableDownload.fetch(server.url("/file.bin"), dst, 2000, 2000, 3, null);
+
+        assertEquals(Hashes.sha256Hex(content), sha);
+        assertArrayEquals(content, LoopbackServer.read(dst));
+        List<LoopbackServer.Exchange> reqs = server.requests();
+        assertEquals(2, reqs.size());
+        assertEquals("bytes=" + CUT + "-", reqs.get(1).header("Range"));
+    }
+
+    @Test public void ifRangeMismatchDiscardsSpool() throws Exception {
+        byte[] v1 = LoopbackServer.randomBytes(SIZE, 3);
+        byte[] v2 = LoopbackServer.randomBytes(SIZE + 1000, 4);
+        AtomicBoolean updated = new AtomicBoolean();
+        server = new LoopbackServer(x -> {
+            if (updated.get()) x.serve(v2, "\"v2\"");
+            else x.serve(v1, "\"v1\"", CUT);
+        });
+        File dst = new File(dir, "file.bin");
+        File part = new File(dst.getPath() + ".part");
+
+        try {
+            ResumableDownload.fetch(server.url("/file.bin"), dst, 2000, 2000, 1, null);
+            fail("a cut body must fail the only attempt");
+        } catch (IOException expected) {
+            // the first CUT bytes of v1 stay spooled
+        }
+        assertEquals(CUT, part.length());
+
+        updated.set(true);
+        String sha = ResumableDownload.fetch(server.url("/file.bin"), dst, 2000, 2000, 1, null);
+
+        assertEquals(Hashes.sha256Hex(v2), sha);
+        assertArrayEquals(v2, LoopbackServer.read(dst));
+        LoopbackServer.Exchange resume = server.requests().get(1);
+        assertEquals("bytes=" + CUT + "-", resume.header("Range"));
+        assertEquals("\"v1\"", resume.header("If-Range"));
+    }
+}
@@ -0,0 +1,45 @@
+package com.robotforest.launcher;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RuntimeManifestTest {
+    private static final String SHA = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final String URL = "\"url\":\"https://example.invalid/runtime.zip\"";
+
+    private static RuntimeManifest pinned(String json) throws Exception {
+        return RuntimeManifest.pinned(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void assertRejected(String json) throws Exception {
+        try {
+            pinned(json);
+            fail("accepted " + json);
+        } catch (JSONException expected) {
+        }
+    }
+
+    @Test public void pinnedAcceptsARealDigest() throws Exception {
+        RuntimeManifest m = pinned("{" + URL + ",\"sha256\":\"" + SHA.toUpperCase() + "\"}");
+        assertEquals(SHA, m.digest);
+    }
+
+    @Test public void pinnedRejectsDigestsThatSkipVerification() throws Exception {
+        assertRejected("{" + URL + "}");
+        assertRejected("{" + URL + ",\"sha256\":\"auto\"}");
+        assertRejected("{" + URL + ",\"sha256\":\"\"}");
+        assertRejected("{" + URL + ",\"sha256\":\"  \"}");
+        // A digest under another algorithm does not stand in for the sha256 the manifest hashes with
+        assertRejected("{" + URL + ",\"digest\":\"" + SHA + "\"}");
+    }
+
+    @Test public void lenientParseStillTakesAuto() throws Exception {
+        RuntimeManifest m = RuntimeManifest.parse("{" + URL + ",\"sha256\":\"auto\"}");
+        assertFalse(Hashes.shouldVerify(m.digest));
+    }
+}
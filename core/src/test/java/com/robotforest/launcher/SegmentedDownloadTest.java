@@ -0,0 +1,144 @@
+package com.robotforest.launcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class SegmentedDownloadTest {
+    private static final int SEGMENT = 512 * 1024;
+    private static final int SIZE = 5 * 1024 * 1024 + 12345;
+
+    private File dir;
+    private LoopbackServer server;
+
+    @Before public void setUp() throws IOException {
+        dir = LoopbackServer.tempDir("segmented");
+    }
+
+    @After public void tearDown() throws IOException {
+        if (server != null) server.close();
+        LoopbackServer.deleteRec(dir);
+    }
+
+    /** Small segments, no steals (a stolen range is asked for twice), one try per segment. */
+    private static SegmentedDownload.Options options() {
+        SegmentedDownload.Options o = new SegmentedDownload.Options();
+        o.connections = 4;
+        o.segmentSize = SEGMENT;
+        o.minStealSize = SEGMENT;
+        o.minSizeForSegments = 1024 * 1024;
+        o.attemptsPerSegment = 1;
+        return o;
+    }
+
+    private String fetch(File dst) throws IOException {
+        String url = server.url("/file.bin");
+        SegmentedDownload.Probe p = SegmentedDownload.probe(url, 2000, 2000);
+        return SegmentedDownload.fetch(url, dst, p, options(), 2000, 2000, null);
+    }
+
+    /** Body bytes asked for by GETs so far. */
+    private long requestedBytes() {
+        long n = 0;
+        for (LoopbackServer.Exchange x : server.requests()) {
+            if (!x.method.equals("GET")) continue;
+            String range = x.header("Range");
+            if (range == null) { n += SIZE; continue; }
+            long[] r = LoopbackServer.Exchange.parseRange(range, SIZE);
+            n += r[1] - r[0] + 1;
+        }
+        return n;
+    }
+
+    @Test public void interruptedDownloadResumesOnlyMissingRanges() throws Exception {
+        byte[] content = LoopbackServer.randomBytes(SIZE, 10);
+        AtomicBoolean cutting = new AtomicBoolean(true);
+        server = new LoopbackServer(x -> {
+            String range = x.header("Range");
+            boolean fifth = range != null && range.startsWith("bytes=" + 4 * SEGMENT + "-");
+            x.serve(content, "\"v1\"", cutting.get() && fifth ? 1000 : -1);
+        });
+        File dst = new File(dir, "file.bin");
+
+        try {
+            fetch(dst);
+            fail("the cut segment must fail its only attempt");
+        } catch (IOException expected) {
+            // what finished stays in the spool
+        }
+        assertFalse(dst.exists());
+        ResumableDownload.Meta meta = ResumableDownload.Meta.load(ResumableDownload.metaFile(dst));
+        assertNotNull(meta);
+        assertEquals(SIZE, meta.length);
+        long kept = meta.offset;
+        for (long[] r : meta.ranges) kept += r[1] - r[0];
+        assertTrue("kept " + kept, kept > SEGMENT);
+
+        cutting.set(false);
+        long before = requestedBytes();
+        String sha = fetch(dst);
+
+        assertEquals(Hashes.sha256Hex(content), sha);
+        assertArrayEquals(content, LoopbackServer.read(dst));
+        assertEquals(SIZE - kept, requestedBytes() - before);
+        assertFalse(ResumableDownload.partFile(dst).exists());
+        assertFalse(ResumableDownload.metaFile(dst).exists());
+    }
+
+    @Test public void continuesSingleConnectionPrefix() throws Exception {
+        byte[] content = LoopbackServer.randomBytes(SIZE, 11);
+        int cut = 1_500_000;
+        AtomicBoolean cutting = new AtomicBoolean(true);
+        server = new LoopbackServer(x -> x.serve(content, "\"v1\"", cutting.getAndSet(false) ? cut : -1));
+        File dst = new File(dir, "file.bin");
+        try {
+            ResumableDownload.fetch(server.url("/file.bin"), dst, 2000, 2000, 1, null);
+            fail("a cut body must fail the only attempt");
+        } catch (IOException expected) {
+            // leaves a prefix of cut bytes
+        }
+        long before = requestedBytes();
+
+        String sha = fetch(dst);
+
+        assertEquals(Hashes.sha256Hex(content), sha);
+        assertArrayEquals(content, LoopbackServer.read(dst));
+        assertEquals(SIZE - cut, requestedBytes() - before);
+    }
+
+    @Test public void changedValidatorStartsOver() throws Exception {
+        byte[] v1 = LoopbackServer.randomBytes(SIZE, 12);
+        byte[] v2 = LoopbackServer.randomBytes(SIZE, 13);
+        AtomicBoolean updated = new AtomicBoolean();
+        server = new LoopbackServer(x -> {
+            if (updated.get()) {
+                x.serve(v2, "\"v2\"");
+                return;
+            }
+            String range = x.header("Range");
+            boolean fifth = range != null && range.startsWith("bytes=" + 4 * SEGMENT + "-");
+            x.serve(v1, "\"v1\"", fifth ? 1000 : -1);
+        });
+        File dst = new File(dir, "file.bin");
+        try {
+            fetch(dst);
+            fail("the cut segment must fail its only attempt");
+        } catch (IOException expected) {
+            // v1's ranges stay behind
+        }
+
+        updated.set(true);
+        long before = requestedBytes();
+        String sha = fetch(dst);
+
+        assertEquals(Hashes.sha256Hex(v2), sha);
+        assertArrayEquals(v2, LoopbackServer.read(dst));
+        assertEquals(SIZE, requestedBytes() - before);
+    }
+}
@@ -1,5 +1,5 @@
 #!/data/data/com.termux/files/usr/bin/bash
-# Portable packer: builds runtime ZIP, writes *.sha256, updates manifests,
+# Portable packer: builds the runtime archive (zip or tar.zst), writes *.sha256, updates manifests,
 # and optionally publishes to a GitHub release when GH_PUBLISH=1.
 
 set +e
@@ -15,17 +15,26 @@ mkdir -p "$OUTDIR"
 TS="$(date +%Y%m%d-%H%M%S)"
 GIT_SHA="$(git -C "$ROOT" rev-parse --short=12 HEAD 2>/dev/null || echo nogit)"
 BASENAME="runtime-${TS}-${GIT_SHA}"
-ZIP="${OUTDIR}/${BASENAME}.zip"
-SHAFILE="${OUTDIR}/${BASENAME}.zip.sha256"
+
+# zip, or tar.zst (keeps symlinks, smaller, decoded on several cores; needs zstd and an app
+# build that reads it). ZSTD_LEVEL and ZSTD_FRAME_MB tune it, see pack_archive.sh.
+: "${ARCHIVE_FORMAT:=zip}"
+ARCHIVE="${OUTDIR}/${BASENAME}.${ARCHIVE_FORMAT}"
+SHAFILE="${ARCHIVE}.sha256"
 
 # Defaults for URL+release
 : "${GH_OWNER:=jasonsmr}"
 : "${GH_REPO:=RobotForest}"
 : "${GH_TAG:=auto}"
 : "${RUNTIME_SUBDIR:=runtime}"
+# Archive digest the app verifies: sha256 | sha256-tree (parallel on device) | blake3 (needs b3sum)
+: "${HASH_ALGO:=sha256}"
+# Space-separated mirror bases (https://lan-box/rf, file:///sdcard/rf, ...); each serves the archive
+# under its own name. Devices race them against the release URL. Copy the archive there yourself.
+: "${MIRROR_BASES:=}"
 
 echo "[runtime] staging: $STAGING"
-echo "[runtime] out zip: $ZIP"
+echo "[runtime] out ${ARCHIVE_FORMAT}: $ARCHIVE"
 
 # Sanity: we expect at least one file (box64) so app can decide validity
 if [ ! -f "${STAGING}/bin/box64" ]; then
@@ -33,33 +42,129 @@ if [ ! -f "${STAGING}/bin/box64" ]; then
   exit 1
 fi
 
-# Build ZIP
-( cd "$STAGING" && zip -r -9 "$ZIP" . >/dev/null )
+# Normalize modes: the app applies the modes recorded in the archive as it extracts
+# (owner read always, group/world write never), so they must be right here
+chmod -R u+rwX,go+rX,go-w "$STAGING"
+chmod 0755 "${STAGING}"/bin/* 2>/dev/null || true
+
+# Build the archive; both formats record st_mode for every entry
+bash "${SCRIPTS}/pack_archive.sh" "$ARCHIVE_FORMAT" "$STAGING" "$ARCHIVE"
 if [ $? -ne 0 ]; then
-  echo "[runtime] ERROR: zip failed" >&2
+  echo "[runtime] ERROR: ${ARCHIVE_FORMAT} failed" >&2
   exit 1
 fi
+echo "[runtime] size: $(stat -c %s "$ARCHIVE") bytes"
 
 # Compute sha256 (sha256sum or openssl fallback)
-if command -v sha256sum >/dev/null 2>&1; then
-  sha256sum "$ZIP" | awk '{print $1}' > "$SHAFILE"
-else
-  openssl dgst -sha256 "$ZIP" | awk '{print $2}' > "$SHAFILE"
-fi
+sha256_of() {
+  if command -v sha256sum >/dev/null 2>&1; then
+    sha256sum "$1" | awk '{print $1}'
+  else
+    openssl dgst -sha256 "$1" | awk '{print $NF}'
+  fi
+}
+sha256_of "$ARCHIVE" > "$SHAFILE"
 SHA="$(head -n1 "$SHAFILE")"
 echo "[runtime] sha256: $SHA"
 
+# Digest under HASH_ALGO; "sha256" needs nothing beyond the legacy field.
+# sha256-tree: SHA-256(0x01 || SHA-256(0x00 || 1 MiB chunk)...), see Hashes.java.
+DIGEST=""
+case "$HASH_ALGO" in
+  sha256) ;;
+  sha256-tree)
+    DIGEST="$(python3 - "$ARCHIVE" <<'PY'
+import hashlib, sys
+root = hashlib.sha256(b"\x01")
+with open(sys.argv[1], "rb") as f:
+    while True:
+        chunk = f.read(1 << 20)
+        if not chunk:
+            break
+        root.update(hashlib.sha256(b"\x00" + chunk).digest())
+print(root.hexdigest())
+PY
+)" ;;
+  blake3)
+    if ! command -v b3sum >/dev/null 2>&1; then
+      echo "[runtime] ERROR: HASH_ALGO=blake3 needs b3sum" >&2
+      exit 1
+    fi
+    DIGEST="$(b3sum --no-names "$ARCHIVE")" ;;
+  *)
+    echo "[runtime] ERROR: unknown HASH_ALGO=$HASH_ALGO" >&2
+    exit 1 ;;
+esac
+[ -n "$DIGEST" ] && echo "[runtime] ${HASH_ALGO}: $DIGEST"
+
+# Per-file index (path, size, mode, sha256) so devices can update file-by-file.
+# With BLOB_BASE set, every file is also written to out/runtime/blobs/<sha256>;
+# sync that directory to BLOB_BASE (any static HTTP server / LAN mirror).
+FILES_JSON="${OUTDIR}/${BASENAME}.files.json"
+BLOBDIR="${OUTDIR}/blobs"
+[ -n "${BLOB_BASE:-}" ] && mkdir -p "$BLOBDIR"
+(
+  cd "$STAGING" || exit 1
+  sep=""
+  printf '['
+  find . -type f | LC_ALL=C sort | while IFS= read -r f; do
+    p="${f#./}"
+    sum="$(sha256_of "$f")"
+    size="$(stat -c %s "$f")"
+    mode="$(stat -c %a "$f")"
+    esc="$(printf '%s' "$p" | sed 's/\\/\\\\/g; s/"/\\"/g')"
+    printf '%s\n  {"path":"%s","size":%s,"mode":"%s","sha256":"%s"}' "$sep" "$esc" "$size" "$mode" "$sum"
+    sep=","
+    if [ -n "${BLOB_BASE:-}" ] && [ ! -f "${BLOBDIR}/${sum}" ]; then
+      cp "$f" "${BLOBDIR}/${sum}"
+    fi
+  done
+  printf '\n]\n'
+) > "$FILES_JSON"
+if [ $? -ne 0 ]; then
+  echo "[runtime] ERROR: file index failed" >&2
+  exit 1
+fi
+echo "[runtime] file index: $FILES_JSON ($(grep -c '"path"' "$FILES_JSON") files)"
+
 # The URL the app will fetch
-PUBLISH_URL="https://github.com/${GH_OWNER}/${GH_REPO}/releases/download/${GH_TAG}/${BASENAME}.zip"
+PUBLISH_URL="https://github.com/${GH_OWNER}/${GH_REPO}/releases/download/${GH_TAG}/${BASENAME}.${ARCHIVE_FORMAT}"
+FILES_URL="https://github.com/${GH_OWNER}/${GH_REPO}/releases/download/${GH_TAG}/${BASENAME}.files.json"
 
 # Write manifests (with ACTUAL sha256)
 write_manifest() {
   local path="$1"
+  local delta=""
+  local hash=""
+  local format=""
+  local mirrors=""
+  if [ -n "$MIRROR_BASES" ]; then
+    local list="" b
+    for b in $MIRROR_BASES; do
+      list="${list:+${list}, }\"${b%/}/${BASENAME}.${ARCHIVE_FORMAT}\""
+    done
+    mirrors=",
+  \"mirrors\": [${list}]"
+  fi
+  if [ "$ARCHIVE_FORMAT" != "zip" ]; then
+    format=",
+  \"format\": \"${ARCHIVE_FORMAT}\""
+  fi
+  if [ -n "$DIGEST" ]; then
+    hash=",
+  \"hash\": \"${HASH_ALGO}\",
+  \"digest\": \"${DIGEST}\""
+  fi
+  if [ -n "${BLOB_BASE:-}" ]; then
+    delta=",
+  \"files_url\": \"${FILES_URL}\",
+  \"blob_base\": \"${BLOB_BASE}\""
+  fi
   cat > "$path" <<JSON
 {
-  "url": "${PUBLISH_URL}",
-  "sha256": "${SHA}",
-  "subdir": "${RUNTIME_SUBDIR}"
+  "url": "${PUBLISH_URL}"${mirrors},
+  "sha256": "${SHA}"${hash}${format},
+  "subdir": "${RUNTIME_SUBDIR}"${delta}
 }
 JSON
 }
@@ -68,8 +173,9 @@ write_manifest "${OUTDIR}/runtime-manifest.json"
 write_manifest "${SCRIPTS}/runtime-manifest.json"
 
 echo "[runtime] wrote:"
-echo "  $ZIP"
+echo "  $ARCHIVE"
 echo "  $SHAFILE"
+echo "  $FILES_JSON"
 echo "  ${OUTDIR}/runtime-manifest.json"
 echo "  ${SCRIPTS}/runtime-manifest.json"
 
@@ -79,8 +185,9 @@ if [ "${GH_PUBLISH:-0}" = "1" ]; then
   gh release view "${GH_TAG}" >/dev/null 2>&1 || \
     gh release create "${GH_TAG}" -t "${GH_TAG}" -n "Automated runtime ${TS}"
 
-  gh release upload "${GH_TAG}" "${ZIP}" --clobber
+  gh release upload "${GH_TAG}" "${ARCHIVE}" --clobber
   gh release upload "${GH_TAG}" "${SHAFILE}" --clobber
+  gh release upload "${GH_TAG}" "${FILES_JSON}" --clobber
 
   # Commit updated manifest (contains exact URL + sha256)
   git -C "$ROOT" add "scripts/runtime/runtime-manifest.json"
@@ -95,7 +202,7 @@ else
 fi
 
 # Convenience copy for sideload/debug
-DL="/sdcard/Download/${BASENAME}.zip"
-cp -f "$ZIP" "$DL" 2>/dev/null && echo "[runtime] copied to ${DL}"
+DL="/sdcard/Download/${BASENAME}.${ARCHIVE_FORMAT}"
+cp -f "$ARCHIVE" "$DL" 2>/dev/null && echo "[runtime] copied to ${DL}"
 
 exit 0
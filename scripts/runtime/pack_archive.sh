@@ -0,0 +1,81 @@
+#!/usr/bin/env bash
+# Builds a runtime archive from a staging tree:
+#
+#   pack_archive.sh <zip|tar.zst> <staging dir> <out file>
+#
+# Shared by make_runtime.sh and the :bench ArchiveBench, so benchmarks measure what ships.
+#   ZIP_STORE_PCT  zip: store files of 64 KiB or more that gzip -1 can't get below this
+#                  percentage of their size (default 90); the app copies those without inflating
+#   ZSTD_LEVEL     zstd level for tar.zst (default 19; above 19 adds --ultra)
+#   ZSTD_FRAME_MB  cut the tar into independent frames of this many MiB, which the app decodes
+#                  in parallel (default 4; 0 = one frame, decoded on one thread)
+
+set -e
+umask 022
+
+FORMAT="$1"
+SRC="$2"
+if [ -z "$FORMAT" ] || [ ! -d "$SRC" ] || [ -z "$3" ]; then
+  echo "usage: pack_archive.sh <zip|tar.zst> <staging dir> <out file>" >&2
+  exit 2
+fi
+OUT="$(cd "$(dirname "$3")" && pwd)/$(basename "$3")"
+: "${ZSTD_LEVEL:=19}"
+: "${ZSTD_FRAME_MB:=4}"
+rm -f "$OUT"
+
+case "$FORMAT" in
+  zip)
+    # Info-ZIP stores symlinks as copies of what they point at: for a directory link (a wine
+    # prefix's dosdevices/z: -> /) that is the whole filesystem
+    if [ -n "$(find "$SRC" -type l -xtype d -print -quit)" ]; then
+      echo "[runtime] ERROR: $SRC has symlinks to directories; use ARCHIVE_FORMAT=tar.zst" >&2
+      exit 1
+    fi
+    : "${ZIP_STORE_PCT:=90}"
+    LISTS="$(mktemp -d)"
+    trap 'rm -rf "$LISTS"' EXIT
+    : > "${LISTS}/store"
+    : > "${LISTS}/deflate"
+    ( cd "$SRC" && find . -mindepth 1 -printf '%P\n' | LC_ALL=C sort ) | while IFS= read -r f; do
+      list=deflate
+      if [ -f "${SRC}/${f}" ]; then
+        size="$(stat -L -c %s "${SRC}/${f}")"
+        if [ "$size" -ge 65536 ] && \
+           [ $(( $(gzip -1 -c "${SRC}/${f}" | wc -c) * 100 )) -ge $(( size * ZIP_STORE_PCT )) ]; then
+          list=store
+        fi
+      fi
+      printf '%s\n' "$f" >> "${LISTS}/${list}"
+    done
+    # Info-ZIP stores st_mode for every entry; the second run adds to the first's archive
+    if [ -s "${LISTS}/store" ]; then
+      ( cd "$SRC" && zip -q -0 "$OUT" -@ < "${LISTS}/store" )
+    fi
+    ( cd "$SRC" && zip -q -9 "$OUT" -@ < "${LISTS}/deflate" )
+    echo "[runtime] zip: $(wc -l < "${LISTS}/store") of $(( $(wc -l < "${LISTS}/store") + $(wc -l < "${LISTS}/deflate") )) entries stored"
+    ;;
+  tar.zst)
+    if ! command -v zstd >/dev/null 2>&1; then
+      echo "[runtime] ERROR: tar.zst needs zstd (pkg install zstd)" >&2
+      exit 1
+    fi
+    ULTRA=""
+    [ "$ZSTD_LEVEL" -gt 19 ] && ULTRA="--ultra"
+    # GNU format: long names and symlinks as they are, st_mode as staged, no owners, stable order
+    TAR=(tar --format=gnu --sort=name --owner=0 --group=0 --numeric-owner -C "$SRC" -cf - .)
+    if [ "$ZSTD_FRAME_MB" -gt 0 ]; then
+      # One frame per input file, each recording its size; the tar itself is unchanged
+      TMP="$(mktemp -d)"
+      trap 'rm -rf "$TMP"' EXIT
+      "${TAR[@]}" | split -b "${ZSTD_FRAME_MB}M" -d -a 6 - "${TMP}/frame-"
+      zstd -q $ULTRA -"$ZSTD_LEVEL" -T0 --no-check -c "$TMP"/frame-* > "$OUT"
+    else
+      "${TAR[@]}" | zstd -q $ULTRA -"$ZSTD_LEVEL" -T0 --no-check -c > "$OUT"
+    fi
+    ;;
+  *)
+    echo "[runtime] ERROR: unknown archive format: $FORMAT (zip or tar.zst)" >&2
+    exit 1
+    ;;
+esac
@@ -1,20 +1,37 @@
 #!/usr/bin/env bash
+# Installs a runtime archive on a device without the network: pushes it into the app's external
+# files dir and has the app import it (verified against its embedded manifest, stamped and
+# indexed like a download). Safe to rerun; an archive already installed is a no-op.
+#
+#   SERIAL=<adb serial> rf_runtime_preseed.sh /path/to/runtime-*.{zip,tar.zst}
+#   TIMEOUT  seconds to wait for the import (default 600)
 set -euo pipefail
 : "${SERIAL:?SERIAL not set}"
-ZIP="${1:?usage: rf_runtime_preseed.sh /path/to/runtime-*.zip}"
-# sanity
-head -c 4 "$ZIP" | od -An -tx1 | tr -d ' \n' | grep -q '^504b0304$' || { echo "not a zip"; exit 1; }
-# stream into sandbox & unpack
-adb -s "$SERIAL" shell 'run-as com.robotforest.launcher sh -lc "
-  rm -rf app_runtime/runtime app_runtime/_scratch &&
-  mkdir -p app_runtime/_scratch app_runtime/runtime
-"'
-cat "$ZIP" | adb -s "$SERIAL" shell 'run-as com.robotforest.launcher sh -lc "
-  cat > app_runtime/_scratch/rt.zip &&
-  unzip -o app_runtime/_scratch/rt.zip -d app_runtime/runtime >/dev/null &&
-  chmod -R 0755 app_runtime/runtime/bin 2>/dev/null || true &&
-  ls -l app_runtime/runtime/bin ; wc -c < app_runtime/runtime/bin/box64 ;
-  dd if=app_runtime/runtime/bin/box64 bs=1 count=4 2>/dev/null | od -An -tx1 | tr -d \" \n\"
-"'
-echo
-echo "[ok] preseed complete"
+ARCHIVE="${1:?usage: rf_runtime_preseed.sh /path/to/runtime-*.zip|tar.zst}"
+: "${TIMEOUT:=600}"
+PKG=com.robotforest.launcher
+ACTION=${PKG}.action.IMPORT_RUNTIME
+
+# sanity: zip local header or zstd frame
+case "$(head -c 4 "$ARCHIVE" | od -An -tx1 | tr -d ' \n')" in
+  504b0304|28b52ffd) ;;
+  *) echo "not a zip or tar.zst: $ARCHIVE"; exit 1 ;;
+esac
+
+# The app reads its own external files dir without any storage permission
+DIR="/sdcard/Android/data/${PKG}/files/import"
+DST="${DIR}/$(basename "$ARCHIVE")"
+adb -s "$SERIAL" shell mkdir -p "$DIR"
+adb -s "$SERIAL" push "$ARCHIVE" "$DST" >/dev/null
+
+SINCE="$(adb -s "$SERIAL" shell date +'%m-%d\ %H:%M:%S.000' | tr -d '\r')"
+adb -s "$SERIAL" shell am start -W -n "${PKG}/.MainActivity" -a "$ACTION" -d "file://${DST}" >/dev/null
+
+# RuntimeInstaller logs one of these under the "runtime" tag when the import ends
+RESULT="$(timeout "$TIMEOUT" adb -s "$SERIAL" logcat -T "$SINCE" -s runtime:I -e 'import (done|failed)' -m 1 || true)"
+adb -s "$SERIAL" shell rm -f "$DST"
+echo "$RESULT"
+case "$RESULT" in
+  *"import done"*) echo "[ok] preseed complete" ;;
+  *) echo "[error] import failed or timed out; see adb logcat -s runtime"; exit 1 ;;
+esac